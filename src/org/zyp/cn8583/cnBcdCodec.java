@@ -0,0 +1,181 @@
+package org.zyp.cn8583;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BCDͽ롣ÿֽڴλʮ֣4λ͵4λ
+ * Encodes and decodes packed BCD (two decimal digits per byte) using precomputed tables,
+ * so that no arithmetic on characters is needed for each digit. It is used for the
+ * numeric, amount and date fields of binary messages and for the length header of
+ * LLVAR and LLLVAR fields, both when writing and when parsing.
+ * <P>
+ * All the methods are static and the tables are never modified, so the class can be used
+ * from any thread.
+ * 
+ * @author zyplanke
+ */
+public final class cnBcdCodec {
+
+	/** The numeric value (0 to 99) of each BCD byte, indexed by the unsigned byte. */
+	private static final int[] BYTE_TO_NUM = new int[256];
+	/** The two ASCII digits of each BCD byte, indexed by twice the unsigned byte. */
+	private static final char[] BYTE_TO_CHARS = new char[512];
+	/** The BCD byte for each number from 0 to 99. */
+	private static final byte[] NUM_TO_BYTE = new byte[100];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int hi = (i >> 4) & 0x0f;
+			int lo = i & 0x0f;
+			BYTE_TO_NUM[i] = hi * 10 + lo;
+			BYTE_TO_CHARS[i * 2] = (char)(hi + '0');
+			BYTE_TO_CHARS[i * 2 + 1] = (char)(lo + '0');
+		}
+		for (int i = 0; i < 100; i++) {
+			NUM_TO_BYTE[i] = (byte)(((i / 10) << 4) | (i % 10));
+		}
+	}
+
+	private cnBcdCodec() {
+	}
+
+	/** Returns the number of bytes needed to store the specified number of digits in BCD. */
+	public static int bytesForDigits(int digits) {
+		return (digits / 2) + (digits % 2);
+	}
+
+	/** Returns the value (0 to 99) of the two digits stored in a BCD byte. */
+	public static int decode(byte b) {
+		return BYTE_TO_NUM[b & 0xff];
+	}
+
+	/** Returns the BCD byte for a number between 0 and 99. */
+	public static byte encode(int value) {
+		return NUM_TO_BYTE[value];
+	}
+
+	/** Reads the specified number of BCD bytes as a number. Up to 9 bytes (18 digits) fit in a long. */
+	public static long toLong(byte[] buf, int pos, int nbytes) {
+		long l = 0;
+		for (int i = pos; i < pos + nbytes; i++) {
+			l = l * 100 + BYTE_TO_NUM[buf[i] & 0xff];
+		}
+		return l;
+	}
+
+	/** Returns the digits stored in BCD as a String. If the number of digits is odd, the first
+	 * (padding) nibble is skipped.
+	 * @param buf The buffer with the BCD data.
+	 * @param pos The position of the first BCD byte.
+	 * @param digits The number of digits to be read. */
+	public static String toString(byte[] buf, int pos, int digits) {
+		char[] c = new char[digits];
+		int start = digits % 2;
+		int ci = 0;
+		for (int i = pos; i < pos + bytesForDigits(digits); i++) {
+			int b = (buf[i] & 0xff) * 2;
+			if (start == 1) {
+				start = 0;
+			} else {
+				c[ci++] = BYTE_TO_CHARS[b];
+			}
+			c[ci++] = BYTE_TO_CHARS[b + 1];
+		}
+		return new String(c);
+	}
+
+	/** Encodes the number in the specified number of bytes, filling with zeros to the left.
+	 * The number must not be negative and must fit in the bytes. */
+	public static void fromLong(long value, byte[] buf, int pos, int nbytes) {
+		for (int i = pos + nbytes - 1; i >= pos; i--) {
+			buf[i] = NUM_TO_BYTE[(int)(value % 100)];
+			value /= 100;
+		}
+	}
+
+	/** Encodes a String of decimal digits as BCD and puts it in the buffer. For odd lengths the first
+	 * nibble is left as zero. The buffer must be big enough to store the digits in the original
+	 * value (half the length of the string). */
+	public static void fromString(String value, byte[] buf, int pos) {
+		int charpos = 0; //char where we start
+		int bufpos = pos;
+		if (value.length() % 2 == 1) {
+			//for odd lengths we encode just the first digit in the first byte
+			buf[bufpos++] = (byte)(value.charAt(0) - '0');
+			charpos = 1;
+		}
+		//encode the rest of the string
+		while (charpos < value.length()) {
+			buf[bufpos++] = (byte)(((value.charAt(charpos) - '0') << 4) | (value.charAt(charpos + 1) - '0'));
+			charpos += 2;
+		}
+	}
+
+	/** Reads the length header of a LLVAR (2 digits) or LLLVAR (3 digits) field.
+	 * @param buf The message buffer.
+	 * @param pos The position of the length header.
+	 * @param digits 2 or 3.
+	 * @param binary true if the header is BCD (1 or 2 bytes), false if it is ASCII (2 or 3 bytes). */
+	public static int readLengthHeader(byte[] buf, int pos, int digits, boolean binary) {
+		if (binary) {
+			if (digits == 3) {
+				return (BYTE_TO_NUM[buf[pos] & 0xff] * 100) + BYTE_TO_NUM[buf[pos + 1] & 0xff];
+			}
+			return BYTE_TO_NUM[buf[pos] & 0xff];
+		}
+		if (digits == 3) {
+			return ((buf[pos] - '0') * 100) + ((buf[pos + 1] - '0') * 10) + (buf[pos + 2] - '0');
+		}
+		return ((buf[pos] - '0') * 10) + (buf[pos + 1] - '0');
+	}
+
+	/** Writes the length header of a LLVAR (2 digits) or LLLVAR (3 digits) field.
+	 * @param outs The stream to write the header to.
+	 * @param length The length of the field data.
+	 * @param digits 2 or 3.
+	 * @param binary true to write the header as BCD (1 or 2 bytes), false to write it in ASCII. */
+	public static void writeLengthHeader(OutputStream outs, int length, int digits, boolean binary) throws IOException {
+		if (binary) {
+			if (digits == 3) {
+				outs.write(NUM_TO_BYTE[length / 100]); //00 to 09
+			}
+			outs.write(NUM_TO_BYTE[length % 100]);
+		} else {
+			if (digits == 3) {
+				outs.write((length / 100) + '0');
+			}
+			outs.write(((length % 100) / 10) + '0');
+			outs.write((length % 10) + '0');
+		}
+	}
+
+	/** Writes the length header of a LLVAR (2 digits) or LLLVAR (3 digits) field into a buffer.
+	 * @param buf The buffer to write the header to.
+	 * @param pos The position of the header in the buffer.
+	 * @param length The length of the field data.
+	 * @param digits 2 or 3.
+	 * @param binary true to write the header as BCD (1 or 2 bytes), false to write it in ASCII.
+	 * @return The position after the header. */
+	public static int writeLengthHeader(byte[] buf, int pos, int length, int digits, boolean binary) {
+		if (binary) {
+			if (digits == 3) {
+				buf[pos++] = NUM_TO_BYTE[length / 100];
+			}
+			buf[pos++] = NUM_TO_BYTE[length % 100];
+		} else {
+			if (digits == 3) {
+				buf[pos++] = (byte) ((length / 100) + '0');
+			}
+			buf[pos++] = (byte) (((length % 100) / 10) + '0');
+			buf[pos++] = (byte) ((length % 10) + '0');
+		}
+		return pos;
+	}
+
+	/** Returns the size in bytes of the length header of a LLVAR (2 digits) or LLLVAR (3 digits) field. */
+	public static int lengthHeaderSize(int digits, boolean binary) {
+		return binary ? bytesForDigits(digits) : digits;
+	}
+
+}
@@ -0,0 +1,203 @@
+package org.zyp.cn8583;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ַͽ루̻ƵеGBKģ
+ * Converts the text of the fields to and from bytes with a fixed charset, instead of the
+ * platform default charset. If the charset codes the ASCII characters as themselves, in one
+ * byte each (GBK, GB18030, UTF-8, ISO-8859-1 and most others), values that are pure ASCII
+ * (most fields) are copied byte for byte without using the CharsetEncoder/CharsetDecoder;
+ * the others, and all the values of other charsets (e.g. EBCDIC or UTF-16), use an encoder
+ * or decoder cached for each thread.
+ * <P>
+ * Instances are shared and thread safe; get them with forName.
+ * 
+ * @author zyplanke
+ */
+public final class cnCharsetCodec {
+
+	/** The instances already created, by charset name. */
+	private static final ConcurrentMap<String, cnCharsetCodec> codecs = new ConcurrentHashMap<String, cnCharsetCodec>();
+
+	/** The default charset for the fields, GBK. */
+	public static final cnCharsetCodec DEFAULT = forName("GBK");
+
+	private final Charset charset;
+	/** true if the charset codes each ASCII character as the same single byte. */
+	private final boolean asciiCompatible;
+	/** The byte used to fill ALPHA fields: the space of the charset if it is a single byte. */
+	private final byte space;
+	/** The largest number of bytes of a character in this charset. */
+	private final float maxBytesPerChar;
+	private final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+		protected CharsetEncoder initialValue() {
+			return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+	private final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+		protected CharsetDecoder initialValue() {
+			return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private cnCharsetCodec(Charset charset) {
+		this.charset = charset;
+		this.asciiCompatible = codesAsciiAsItself(charset);
+		byte[] sp = charset.canEncode() ? " ".getBytes(charset) : new byte[0];
+		this.space = sp.length == 1 ? sp[0] : (byte)' ';
+		this.maxBytesPerChar = charset.canEncode() ? charset.newEncoder().maxBytesPerChar() : 1;
+	}
+
+	/** Returns true if the charset encodes the 128 ASCII characters as the bytes 0 to 127,
+	 * and decodes those bytes back to the same characters. */
+	private static boolean codesAsciiAsItself(Charset charset) {
+		if (!charset.canEncode()) {
+			return false;
+		}
+		char[] c = new char[128];
+		byte[] b = new byte[128];
+		for (int i = 0; i < 128; i++) {
+			c[i] = (char)i;
+			b[i] = (byte)i;
+		}
+		String ascii = new String(c);
+		return Arrays.equals(ascii.getBytes(charset), b) && ascii.equals(new String(b, charset));
+	}
+
+	/** Returns the codec for the specified charset name (for example "GBK" or "GB18030").
+	 * @throws java.nio.charset.UnsupportedCharsetException if the charset is not supported by the JVM. */
+	public static cnCharsetCodec forName(String charsetname) {
+		cnCharsetCodec codec = codecs.get(charsetname);
+		if (codec == null) {
+			codec = new cnCharsetCodec(Charset.forName(charsetname));
+			cnCharsetCodec prev = codecs.putIfAbsent(charsetname, codec);
+			if (prev != null) {
+				codec = prev;
+			}
+		}
+		return codec;
+	}
+
+	/** Returns the charset used by this codec. */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/** Returns true if this charset codes each ASCII character as the same single byte, so
+	 * the bytes of an ASCII value are its characters and its length in bytes is its length. */
+	public boolean isAsciiCompatible() {
+		return asciiCompatible;
+	}
+
+	/** Returns the byte that fills ALPHA fields to their length: the space character of this
+	 * charset (0x40 in EBCDIC), or an ASCII space if it is not coded in one byte. */
+	public byte getSpace() {
+		return space;
+	}
+
+	/** Returns true if all the characters of the String are ASCII. */
+	public static boolean isAscii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns the largest number of bytes of a character in this charset (2 in GBK, 3 in
+	 * UTF-8), so a value of n characters has at most n times as many bytes. */
+	public float getMaxBytesPerChar() {
+		return maxBytesPerChar;
+	}
+
+	/** Returns the number of bytes of the value in this charset. ASCII values are not encoded. */
+	public int encodedLength(String value) {
+		if (asciiCompatible && isAscii(value)) {
+			return value.length();
+		}
+		return encode(value).length;
+	}
+
+	/** Returns the bytes of the value in this charset. */
+	public byte[] encode(String value) {
+		int len = value.length();
+		if (asciiCompatible && isAscii(value)) {
+			byte[] b = new byte[len];
+			for (int i = 0; i < len; i++) {
+				b[i] = (byte)value.charAt(i);
+			}
+			return b;
+		}
+		CharsetEncoder enc = encoders.get();
+		enc.reset();
+		ByteBuffer out = ByteBuffer.allocate((int)Math.ceil(len * (double)enc.maxBytesPerChar()));
+		enc.encode(CharBuffer.wrap(value), out, true);
+		enc.flush(out);
+		byte[] b = new byte[out.position()];
+		System.arraycopy(out.array(), 0, b, 0, b.length);
+		return b;
+	}
+
+	/** Returns the bytes of the value in this charset, at most the specified number of them.
+	 * A value that does not fit is cut after the last whole character that fits, so a
+	 * double-byte character (e.g. in GBK) is never split. */
+	public byte[] encode(String value, int maxBytes) {
+		int len = value.length();
+		if (asciiCompatible && isAscii(value)) {
+			int n = Math.min(len, maxBytes);
+			byte[] b = new byte[n];
+			for (int i = 0; i < n; i++) {
+				b[i] = (byte)value.charAt(i);
+			}
+			return b;
+		}
+		CharsetEncoder enc = encoders.get();
+		enc.reset();
+		ByteBuffer out = ByteBuffer.allocate(Math.max(0, maxBytes));
+		//the encoder stops at the first character that does not fit in the buffer
+		enc.encode(CharBuffer.wrap(value), out, true);
+		enc.flush(out);
+		byte[] b = new byte[out.position()];
+		System.arraycopy(out.array(), 0, b, 0, b.length);
+		return b;
+	}
+
+	/** Returns the text stored in the bytes of the buffer, decoded with this charset.
+	 * @param buf The buffer.
+	 * @param pos The position of the first byte.
+	 * @param len The number of bytes to decode. */
+	public String decode(byte[] buf, int pos, int len) {
+		boolean ascii = asciiCompatible;
+		for (int i = pos; ascii && i < pos + len; i++) {
+			if (buf[i] < 0) {
+				ascii = false;
+			}
+		}
+		if (ascii) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				c[i] = (char)buf[pos + i];
+			}
+			return new String(c);
+		}
+		CharsetDecoder dec = decoders.get();
+		dec.reset();
+		CharBuffer out = CharBuffer.allocate((int)Math.ceil(len * (double)dec.maxCharsPerByte()));
+		dec.decode(ByteBuffer.wrap(buf, pos, len), out, true);
+		dec.flush(out);
+		return new String(out.array(), 0, out.position());
+	}
+
+}
@@ -0,0 +1,189 @@
+package org.zyp.cn8583;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+import org.zyp.cn8583.parse.cnFieldParseInfo;
+
+/**
+ * ԭʼֽڵڱеλúͳȣκ
+ * The index of the fields of a message in its buffer: where the data of each field starts
+ * and how many bytes it has, found by reading the bitmap and the length headers of the
+ * variable fields, without decoding any field. It lets the code in front of the parser look
+ * at a few fields of a message (e.g. field 41 to throttle a terminal, or fields 7, 11, 41
+ * and 42 to detect a retransmission) for a fraction of the cost of parsing it, and decode
+ * only the fields it needs.
+ * <P>
+ * Instances are created by {@link cnMessageFactory#indexMessage(byte[], int)}. They refer to
+ * the buffer, which must not be modified while the index is used.
+ *
+ * @author zyplanke
+ */
+public final class cnFrameIndex {
+
+	private final byte[] buf;
+	private final int msgheaderlength;
+	private final String msgtypeid;
+	private final boolean binary;
+	private final cnCharsetCodec charset;
+	/** The position of each field, including its length header; -1 if it is not present. */
+	private final int[] starts = new int[129];
+	/** The position of the data of each field, after its length header. */
+	private final int[] offsets = new int[129];
+	/** The length of the data of each field, without the length header. */
+	private final int[] lengths = new int[129];
+	private final cnFieldParseInfo[] infos = new cnFieldParseInfo[129];
+	private int end;
+
+	/** Indexes the fields of the buffer with the parse guide of its type. */
+	cnFrameIndex(byte[] buf, int msgheaderlength, String msgtypeid, cnMessageConfig.ParseGuide guide,
+			boolean binary, cnCharsetCodec charset) throws ParseException {
+		this.buf = buf;
+		this.msgheaderlength = msgheaderlength;
+		this.msgtypeid = msgtypeid;
+		this.binary = binary;
+		this.charset = charset;
+		Arrays.fill(starts, -1);
+		int pos = msgheaderlength + 4;
+		if (buf.length < pos + 8) {
+			throw new ParseException("Message too short for the bitmap", pos);
+		}
+		long bitmap1 = cnMessageFactory.readBitmapWord(buf, pos);
+		long bitmap2 = 0;
+		if (bitmap1 < 0) {
+			if (buf.length < pos + 16) {
+				throw new ParseException("Message too short for the secondary bitmap", pos);
+			}
+			bitmap2 = cnMessageFactory.readBitmapWord(buf, pos + 8);
+			pos += 16;
+		} else {
+			pos += 8;
+		}
+		for (int k = 0; k < guide.fieldids.length; k++) {
+			int i = guide.fieldids[k];
+			if (!cnMessageFactory.hasBit(bitmap1, bitmap2, i)) {
+				continue;
+			}
+			cnFieldParseInfo fpi = guide.infos[k];
+			int digits = fpi.getType().getLengthDigits();
+			int off = pos;
+			int len;
+			if (digits > 0) {
+				off = pos + cnBcdCodec.lengthHeaderSize(digits, binary);
+				if (off > buf.length) {
+					throw new ParseException("Message too short for the length of field " + i, pos);
+				}
+				len = cnBcdCodec.readLengthHeader(buf, pos, digits, binary);
+			} else {
+				len = fpi.getFixedLength(binary);
+			}
+			if (len < 0 || off + len > buf.length) {
+				throw new ParseException("Message too short for field " + i, pos);
+			}
+			starts[i] = pos;
+			offsets[i] = off;
+			lengths[i] = len;
+			infos[i] = fpi;
+			pos = off + len;
+		}
+		end = pos;
+	}
+
+	/** Returns the buffer of the message. */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/** Returns the length of the 8583 header of the message. */
+	public int getHeaderLength() {
+		return msgheaderlength;
+	}
+
+	/** Returns the message type id. */
+	public String getMsgTypeID() {
+		return msgtypeid;
+	}
+
+	/** Returns true if the message has the field (and it is in the parse guide of its type). */
+	public boolean hasField(int fieldid) {
+		return starts[fieldid] >= 0;
+	}
+
+	/** Returns the position of the field in the buffer, including its length header,
+	 * or -1 if it is not present. */
+	public int getFieldStart(int fieldid) {
+		return starts[fieldid];
+	}
+
+	/** Returns the position of the data of the field in the buffer, after its length header. */
+	public int getFieldOffset(int fieldid) {
+		return offsets[fieldid];
+	}
+
+	/** Returns the number of bytes of the data of the field, without its length header,
+	 * or 0 if it is not present. */
+	public int getFieldLength(int fieldid) {
+		return starts[fieldid] < 0 ? 0 : lengths[fieldid];
+	}
+
+	/** Returns the position after the last field that was indexed. */
+	public int getEnd() {
+		return end;
+	}
+
+	/** Returns a copy of the data of the field, or null if it is not present. */
+	public byte[] getFieldBytes(int fieldid) {
+		if (starts[fieldid] < 0) {
+			return null;
+		}
+		return Arrays.copyOfRange(buf, offsets[fieldid], offsets[fieldid] + lengths[fieldid]);
+	}
+
+	/** Returns true if the data of the field in this message and in the other buffer are the
+	 * same bytes. */
+	public boolean fieldEquals(int fieldid, byte[] other, int pos, int len) {
+		if (starts[fieldid] < 0 || lengths[fieldid] != len) {
+			return false;
+		}
+		int off = offsets[fieldid];
+		for (int i = 0; i < len; i++) {
+			if (buf[off + i] != other[pos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Decodes one field, as the parser would.
+	 * @return The value, or null if the field is not present. */
+	public cnValue<?> decodeField(int fieldid) throws ParseException {
+		if (starts[fieldid] < 0) {
+			return null;
+		}
+		cnFieldParseInfo fpi = infos[fieldid];
+		try {
+			return fpi.parse(buf, starts[fieldid], offsets[fieldid] + lengths[fieldid] - starts[fieldid], charset, binary);
+		} catch (RuntimeException ex) {
+			ParseException pe = new ParseException("Cannot parse field " + fieldid + ": " + ex, starts[fieldid]);
+			pe.initCause(ex);
+			throw pe;
+		}
+	}
+
+	/** Returns a message with only the specified fields decoded, and the header of this one.
+	 * The fields that are not present are skipped. */
+	public cnMessage decodeFields(int... fieldids) throws ParseException {
+		cnMessage m = new cnMessage(msgtypeid, msgheaderlength);
+		m.setMessageHeaderData(0, Arrays.copyOfRange(buf, 0, msgheaderlength));
+		m.setBinary(binary);
+		m.setCharset(charset);
+		for (int i : fieldids) {
+			cnValue<?> v = decodeField(i);
+			if (v != null) {
+				m.setField(i, v);
+			}
+		}
+		return m;
+	}
+
+}
@@ -0,0 +1,338 @@
+package org.zyp.cn8583;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ͷ֣ͷиơλáȺͣ46ֽڱͷ
+ * The layout of an 8583 header made of named items at fixed positions, like the 46-byte header
+ * of the CUP specs, which has the total length of the message, the destination and source
+ * institution ids and the reject code. The items are read and written in place, in the header
+ * of a message ({@link cnMessage#getHeaderString(String)}, setHeaderString, getHeaderLong,
+ * setHeaderLong) or directly in a frame, so a frame can be routed or forwarded by its header
+ * without parsing its fields ({@link cnMessageFactory#findHeaderLayout(byte[])}).
+ * <P>
+ * The items of type HEADER_LENGTH and MESSAGE_LENGTH are filled when a message is written,
+ * with the length of the header and the length of the whole message (header, type, bitmap
+ * and fields, without the length header of the frame). A layout is declared in the header
+ * element of the XML configuration, with the layout attribute: either CUP or a list of items
+ * as name:length:type separated by commas. Instances are immutable.
+ *
+ * @author zyplanke
+ */
+public final class cnHeaderLayout {
+
+	/**
+	 * ͷе͡
+	 * The types of the items of a header.
+	 */
+	public enum Type {
+		/** Text, filled with spaces to the right. */
+		ALPHA,
+		/** ASCII digits, filled with zeros to the left. */
+		NUMERIC,
+		/** Bytes, shown as hexadecimal text or read as an unsigned big-endian number. */
+		BINARY,
+		/** The length of the header, as an unsigned big-endian number; filled when writing. */
+		HEADER_LENGTH,
+		/** The length of the message in ASCII digits; filled when writing. */
+		MESSAGE_LENGTH
+	}
+
+	/**
+	 * ͷеһ
+	 * An item of a header.
+	 */
+	public static final class Item {
+		private final String name;
+		private final int offset;
+		private final int length;
+		private final Type type;
+
+		Item(String name, int offset, int length, Type type) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.type = type;
+		}
+
+		/** Returns the name of the item. */
+		public String getName() {
+			return name;
+		}
+
+		/** Returns the position of the item in the header. */
+		public int getOffset() {
+			return offset;
+		}
+
+		/** Returns the number of bytes of the item. */
+		public int getLength() {
+			return length;
+		}
+
+		/** Returns the type of the item. */
+		public Type getType() {
+			return type;
+		}
+	}
+
+	/** The 46-byte header of the CUP specs: header length, flag and version, message length,
+	 * destination id, source id, reserved, batch number, transaction info, user info and reject code. */
+	public static final cnHeaderLayout CUP = parse("length:1:HEADER_LENGTH,flag:1:BINARY,total:4:MESSAGE_LENGTH,"
+			+ "destination:11:ALPHA,source:11:ALPHA,reserved:3:BINARY,batch:1:BINARY,transaction:8:ALPHA,"
+			+ "user:1:BINARY,reject:5:ALPHA");
+
+	private final List<Item> items;
+	private final Map<String, Item> byName = new HashMap<String, Item>();
+	private final int length;
+	/** The items filled when writing. */
+	private final Item[] lengthItems;
+
+	private cnHeaderLayout(List<Item> list) {
+		items = Collections.unmodifiableList(list);
+		List<Item> auto = new ArrayList<Item>();
+		int end = 0;
+		for (Item it : list) {
+			if (byName.put(it.name, it) != null) {
+				throw new IllegalArgumentException("Duplicate header item: " + it.name);
+			}
+			if (it.type == Type.HEADER_LENGTH || it.type == Type.MESSAGE_LENGTH) {
+				auto.add(it);
+			}
+			end = it.offset + it.length;
+		}
+		length = end;
+		lengthItems = auto.toArray(new Item[auto.size()]);
+	}
+
+	/** Creates a layout from a list of items separated by commas or spaces, each one as
+	 * name:length:type (the type is ALPHA if it is omitted), or returns CUP for "CUP".
+	 * @throws IllegalArgumentException if the list is not valid. */
+	public static cnHeaderLayout parse(String spec) {
+		if ("CUP".equals(spec) && CUP != null) {
+			return CUP;
+		}
+		List<Item> list = new ArrayList<Item>();
+		int offset = 0;
+		for (String s : spec.trim().split("[\\s,]+")) {
+			if (s.length() == 0) {
+				continue;
+			}
+			String[] parts = s.split(":");
+			if (parts.length < 2 || parts.length > 3 || parts[0].length() == 0) {
+				throw new IllegalArgumentException("Invalid header item: " + s);
+			}
+			int len;
+			Type type;
+			try {
+				len = Integer.parseInt(parts[1]);
+				type = parts.length == 3 ? Type.valueOf(parts[2]) : Type.ALPHA;
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException("Invalid header item: " + s);
+			}
+			if (len <= 0 || (type == Type.HEADER_LENGTH && len > 4) || (type == Type.MESSAGE_LENGTH && len > 9)) {
+				throw new IllegalArgumentException("Invalid length of header item: " + s);
+			}
+			list.add(new Item(parts[0], offset, len, type));
+			offset += len;
+		}
+		if (list.isEmpty()) {
+			throw new IllegalArgumentException("A header layout needs at least one item");
+		}
+		return new cnHeaderLayout(list);
+	}
+
+	/** Returns the length of the header. */
+	public int getLength() {
+		return length;
+	}
+
+	/** Returns the items, in order. */
+	public List<Item> getItems() {
+		return items;
+	}
+
+	/** Returns an item.
+	 * @throws IllegalArgumentException if the layout has no item with that name. */
+	public Item getItem(String name) {
+		Item it = byName.get(name);
+		if (it == null) {
+			throw new IllegalArgumentException("No header item named " + name);
+		}
+		return it;
+	}
+
+	/** Returns an item of the header at the start of the buffer as text: ALPHA without the
+	 * spaces to the right, NUMERIC as its digits, BINARY in hexadecimal, and the lengths as
+	 * numbers. */
+	public String getString(byte[] buf, String name) {
+		Item it = getItem(name);
+		check(buf);
+		switch (it.type) {
+		case ALPHA: {
+			int end = it.offset + it.length;
+			while (end > it.offset && buf[end - 1] == ' ') {
+				end--;
+			}
+			return ascii(buf, it.offset, end - it.offset);
+		}
+		case NUMERIC:
+			return ascii(buf, it.offset, it.length);
+		case BINARY:
+			return cnHexCodec.encode(buf, it.offset, it.length);
+		default:
+			return Long.toString(getLong(buf, it));
+		}
+	}
+
+	/** Sets an item of the header at the start of the buffer from text, as returned by
+	 * getString; ALPHA text is filled with spaces and NUMERIC digits with zeros.
+	 * @throws IllegalArgumentException if the value does not fit in the item. */
+	public void setString(byte[] buf, String name, String value) {
+		Item it = getItem(name);
+		check(buf);
+		switch (it.type) {
+		case ALPHA:
+		case NUMERIC: {
+			int n = value.length();
+			if (n > it.length) {
+				throw new IllegalArgumentException("Value too long for header item " + name + ": " + value);
+			}
+			boolean alpha = it.type == Type.ALPHA;
+			for (int k = 0; !alpha && k < n; k++) {
+				if (value.charAt(k) < '0' || value.charAt(k) > '9') {
+					throw new IllegalArgumentException("Invalid digit in header item " + name + ": " + value);
+				}
+			}
+			int pos = alpha ? it.offset : it.offset + it.length - n;
+			for (int k = it.offset; k < it.offset + it.length; k++) {
+				buf[k] = alpha ? (byte) ' ' : (byte) '0';
+			}
+			for (int k = 0; k < n; k++) {
+				buf[pos + k] = (byte) value.charAt(k);
+			}
+			break;
+		}
+		case BINARY: {
+			byte[] b = cnHexCodec.decode(value);
+			if (b.length != it.length) {
+				throw new IllegalArgumentException("Header item " + name + " has " + it.length + " bytes: " + value);
+			}
+			System.arraycopy(b, 0, buf, it.offset, b.length);
+			break;
+		}
+		default:
+			putLong(buf, 0, it, Long.parseLong(value));
+		}
+	}
+
+	/** Returns an item of the header at the start of the buffer as a number: NUMERIC and
+	 * MESSAGE_LENGTH digits, or BINARY and HEADER_LENGTH bytes as an unsigned big-endian number.
+	 * @throws NumberFormatException if an ALPHA item or a NUMERIC one with other characters is read. */
+	public long getLong(byte[] buf, String name) {
+		Item it = getItem(name);
+		check(buf);
+		return getLong(buf, it);
+	}
+
+	/** Sets an item of the header at the start of the buffer to a number, as in getLong. */
+	public void setLong(byte[] buf, String name, long value) {
+		Item it = getItem(name);
+		check(buf);
+		putLong(buf, 0, it, value);
+	}
+
+	private static long getLong(byte[] buf, Item it) {
+		long v = 0;
+		if (it.type == Type.BINARY || it.type == Type.HEADER_LENGTH) {
+			for (int k = 0; k < it.length; k++) {
+				v = (v << 8) | (buf[it.offset + k] & 0xff);
+			}
+			return v;
+		}
+		if (it.type == Type.ALPHA) {
+			throw new NumberFormatException("Header item " + it.name + " is not a number");
+		}
+		for (int k = 0; k < it.length; k++) {
+			int d = buf[it.offset + k] - '0';
+			if (d < 0 || d > 9) {
+				throw new NumberFormatException("Invalid digit in header item " + it.name);
+			}
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	/** Writes a number in an item of a header that starts at a position of the buffer. */
+	private static void putLong(byte[] buf, int pos, Item it, long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value for header item " + it.name);
+		}
+		int end = pos + it.offset + it.length;
+		if (it.type == Type.BINARY || it.type == Type.HEADER_LENGTH) {
+			if (it.length < 8 && value >>> (it.length * 8) != 0) {
+				throw new IllegalArgumentException("Value too large for header item " + it.name + ": " + value);
+			}
+			for (int k = end - 1; k >= end - it.length; k--) {
+				buf[k] = (byte) value;
+				value >>>= 8;
+			}
+			return;
+		}
+		if (it.type == Type.ALPHA) {
+			throw new IllegalArgumentException("Header item " + it.name + " is not a number");
+		}
+		for (int k = end - 1; k >= end - it.length; k--) {
+			buf[k] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		if (value != 0) {
+			throw new IllegalArgumentException("Value too large for header item " + it.name);
+		}
+	}
+
+	/** Fills the HEADER_LENGTH and MESSAGE_LENGTH items of a header.
+	 * @param buf The buffer with the message.
+	 * @param pos The position of the header (the start of the message) in the buffer.
+	 * @param msglength The length of the message, including the header. */
+	void fillLengths(byte[] buf, int pos, int msglength) {
+		for (Item it : lengthItems) {
+			putLong(buf, pos, it, it.type == Type.HEADER_LENGTH ? length : msglength);
+		}
+	}
+
+	/** Returns true if the layout has items filled when writing. */
+	boolean hasLengths() {
+		return lengthItems.length > 0;
+	}
+
+	private static String ascii(byte[] buf, int pos, int len) {
+		char[] c = new char[len];
+		for (int k = 0; k < len; k++) {
+			c[k] = (char) (buf[pos + k] & 0xff);
+		}
+		return new String(c);
+	}
+
+	private void check(byte[] buf) {
+		if (buf.length < length) {
+			throw new IllegalArgumentException("The header has " + buf.length + " bytes instead of " + length);
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Item it : items) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(it.name).append(':').append(it.length).append(':').append(it.type);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.zyp.cn8583;
+
+/**
+ * ʮƱͽ룬ڶBINARYLLBINLLLBINıʾ
+ * Converts binary data to and from hexadecimal text, which is how the values of the binary
+ * types are shown by cnValue.toString() and written in the templates of the XML configuration.
+ * <P>
+ * All the methods are static and the tables are never modified, so the class can be used
+ * from any thread.
+ *
+ * @author zyplanke
+ */
+public final class cnHexCodec {
+
+	/** The two hexadecimal digits (uppercase) of each byte, indexed by twice the unsigned byte. */
+	private static final char[] BYTE_TO_CHARS = new char[512];
+
+	static {
+		String digits = "0123456789ABCDEF";
+		for (int i = 0; i < 256; i++) {
+			BYTE_TO_CHARS[i * 2] = digits.charAt(i >> 4);
+			BYTE_TO_CHARS[i * 2 + 1] = digits.charAt(i & 0x0f);
+		}
+	}
+
+	private cnHexCodec() {
+	}
+
+	/** Returns the bytes as hexadecimal text, two uppercase digits per byte. */
+	public static String encode(byte[] buf, int pos, int len) {
+		char[] c = new char[len * 2];
+		for (int i = 0; i < len; i++) {
+			int b = (buf[pos + i] & 0xff) * 2;
+			c[i * 2] = BYTE_TO_CHARS[b];
+			c[i * 2 + 1] = BYTE_TO_CHARS[b + 1];
+		}
+		return new String(c);
+	}
+
+	/** Returns the bytes of hexadecimal text (upper or lower case).
+	 * @throws IllegalArgumentException if the text has an odd length or a character that
+	 * is not a hexadecimal digit. */
+	public static byte[] decode(String hex) {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Hexadecimal text must have an even length: " + hex);
+		}
+		byte[] buf = new byte[hex.length() / 2];
+		for (int i = 0; i < buf.length; i++) {
+			int hi = Character.digit(hex.charAt(i * 2), 16);
+			int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("Invalid hexadecimal text: " + hex);
+			}
+			buf[i] = (byte) ((hi << 4) | lo);
+		}
+		return buf;
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.zyp.cn8583;
+
+/**
+ * 㱨MAC64128򣩵Ľӿڡ
+ * This interface defines how the MAC of a message is computed. When a cnMessage has a
+ * MAC generator, the MAC is computed over the bytes of the message as they are written
+ * (header, message type, bitmap and all the fields before the MAC) and stored in field 64
+ * or 128. The cnMessageFactory uses the same generator to verify the MAC of the messages
+ * it parses, over the received bytes.
+ * <P>
+ * Implementations are shared by all the messages of a factory, so they must be thread safe.
+ * 
+ * @author zyplanke
+ */
+public interface cnMacGenerator {
+
+	/** Returns the length in bytes of the MAC, which is the length of field 64 or 128. */
+	public int getMacLength();
+
+	/** Computes the MAC of the data.
+	 * @param buf The buffer with the data.
+	 * @param offset The position of the first byte of the data.
+	 * @param length The number of bytes of the data.
+	 * @return The MAC, getMacLength() bytes long. */
+	public byte[] computeMac(byte[] buf, int offset, int length);
+
+}
@@ -4,12 +4,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.zyp.cn8583.metrics.cnMessageMetrics;
+import org.zyp.cn8583.parse.cnFieldParseInfo;
+
 /**
  * һй8583ʽ׼࣬ʼԴIsoMessageࡣ
  * This is the core class of the framework.
@@ -29,7 +34,38 @@ public class cnMessage {
     private Map<Integer,cnValue<?>> fields = new ConcurrentHashMap<Integer,cnValue<?>>();
     /** Stores the optional 8583 header. */
     private byte[] msgHeader;
+    /** The layout of the items of the header, or null if it is only bytes. */
+    private cnHeaderLayout headerLayout;
     private int etx = -1;
+    /** The charset of the text in the fields. */
+    private cnCharsetCodec charset = cnCharsetCodec.DEFAULT;
+    /** Computes the MAC in field 64 or 128 when the message is written, if not null. */
+    private cnMacGenerator macGenerator;
+    /** Records the time it takes to write the message, if not null. */
+    private cnMessageMetrics metrics;
+    /** Receives the events of this message; never null. */
+    private cnMessageListener listener = cnMessageListener.NONE;
+    /** The layouts of the fields that have sub-fields. (fieldID, layout) */
+    private Map<Integer, cnSubFieldLayout> layouts = Collections.emptyMap();
+    /** The arena that holds the fields, or null if they are in the fields map. */
+    private cnMessageArena arena;
+    /** The position of the field index of the message in the arena. */
+    private int arenaIndex;
+    /** The generation of the arena when the message was created in it. */
+    private int arenaGeneration;
+    /** The parse info of each field of the type, by field number, for a message in an arena. */
+    private cnFieldParseInfo[] arenaInfos;
+    /** The frame the message was parsed from, if the factory keeps it; null otherwise. */
+    private byte[] source;
+    /** The position and size of each field in the source frame; the position is -1 if the
+     * field was not parsed or was changed since. */
+    private int[] sourceRanges;
+    /** The encoding of the source frame: binary flag and charset. */
+    private boolean sourceBinary;
+    private cnCharsetCodec sourceCharset;
+    /** The codec of the bitmap the message was created or parsed with, or null. It is used
+     * to encode the message while the message still has that bitmap. */
+    private cnSpecializedCodec specialized;
 
     public cnMessage() {
     }
@@ -59,9 +95,7 @@ public class cnMessage {
     	if(startindex + data.length > msgHeader.length) {
     		return false;
     	}
-    	for(int i = 0; i < data.length; i++) {
-    		msgHeader[startindex + i] = data[i];
-    	}
+    	System.arraycopy(data, 0, msgHeader, startindex, data.length);
     	return true;		
     }
   
@@ -80,11 +114,65 @@ public class cnMessage {
     		b = new byte[msgHeader.length - startindex];
     	else
     		b = new byte[count];
-    	for(int i = 0; i < b.length; i++) {
-    		b[i] = msgHeader[startindex + i];
-    	}
+    	System.arraycopy(msgHeader, startindex, b, 0, b.length);
     	return b;		
     }
+
+    /** Sets the layout of the items of the 8583 header, which are then read and written in
+     * place by name, and whose length items are filled when the message is written.
+     * @param layout The layout, or null to handle the header only as bytes.
+     * @throws IllegalArgumentException if the layout does not have the length of the header. */
+    public void setHeaderLayout(cnHeaderLayout layout) {
+    	int len = msgHeader == null ? 0 : msgHeader.length;
+    	if (layout != null && layout.getLength() != len) {
+    		throw new IllegalArgumentException("The header layout has " + layout.getLength()
+    				+ " bytes, the header of the message has " + len);
+    	}
+    	headerLayout = layout;
+    }
+    /** Sets the layout of the header configured for the type, if it has the length of the header. */
+    void useHeaderLayout(cnHeaderLayout layout) {
+    	headerLayout = layout != null && msgHeader != null && layout.getLength() == msgHeader.length ? layout : null;
+    }
+    /** Returns the layout of the items of the 8583 header, or null if it has none. */
+    public cnHeaderLayout getHeaderLayout() {
+    	return headerLayout;
+    }
+
+    /** Returns an item of the 8583 header as text, read in place.
+     * @see cnHeaderLayout#getString(byte[], String) */
+    public String getHeaderString(String name) {
+    	return checkHeaderLayout().getString(msgHeader, name);
+    }
+    /** Sets an item of the 8583 header from text, written in place.
+     * @see cnHeaderLayout#setString(byte[], String, String) */
+    public void setHeaderString(String name, String value) {
+    	checkHeaderLayout().setString(msgHeader, name, value);
+    }
+    /** Returns an item of the 8583 header as a number, read in place.
+     * @see cnHeaderLayout#getLong(byte[], String) */
+    public long getHeaderLong(String name) {
+    	return checkHeaderLayout().getLong(msgHeader, name);
+    }
+    /** Sets an item of the 8583 header to a number, written in place.
+     * @see cnHeaderLayout#setLong(byte[], String, long) */
+    public void setHeaderLong(String name, long value) {
+    	checkHeaderLayout().setLong(msgHeader, name, value);
+    }
+
+    private cnHeaderLayout checkHeaderLayout() {
+    	if (headerLayout == null) {
+    		throw new IllegalStateException("Message [" + msgtypeid + "] has no header layout");
+    	}
+    	return headerLayout;
+    }
+
+    /** Fills the length items of the header, if it has a layout with them. */
+    private void fillHeaderLengths(int msglength) {
+    	if (headerLayout != null && headerLayout.hasLengths()) {
+    		headerLayout.fillLengths(msgHeader, 0, msglength);
+    	}
+    }
     
     /** Sets the 8583 message type id. ӦΪ4ַֽ  */
     public void setMsgTypeID(String msgtypeid) {
@@ -115,11 +203,162 @@ public class cnMessage {
     	etx = value;
     }
 
+    /** Sets the charset used to write the text of the fields (default is GBK). A field can
+     * use a different charset with cnValue.setCharset.
+     * @param charsetname The charset name, e.g. "GBK" or "GB18030". */
+    public void setCharset(String charsetname) {
+    	charset = cnCharsetCodec.forName(charsetname);
+    }
+    /** Sets the charset used to write the text of the fields. */
+    public void setCharset(cnCharsetCodec codec) {
+    	charset = codec;
+    }
+    /** Returns the charset used to write the text of the fields. */
+    public cnCharsetCodec getCharset() {
+    	return charset;
+    }
+
+    /** Sets the generator of the MAC. If it is not null, the message is written with a MAC in
+     * field 128 if it has any field between 65 and 127, or in field 64 otherwise. The MAC is
+     * computed over the bytes written before it (header, message type, bitmap and fields) and
+     * appended to them, so the message is encoded only once. Any value set in field 64 or 128
+     * is not written.
+     * @param gen The MAC generator, or null to write the message without MAC. */
+    public void setMacGenerator(cnMacGenerator gen) {
+    	macGenerator = gen;
+    }
+    /** Returns the generator of the MAC, or null if the message is written without MAC. */
+    public cnMacGenerator getMacGenerator() {
+    	return macGenerator;
+    }
+
+    /** Sets the metrics where the time and the size of each write of this message are recorded.
+     * @param value The metrics, or null to not record them. */
+    public void setMetrics(cnMessageMetrics value) {
+    	metrics = value;
+    }
+    /** Returns the metrics where the writes of this message are recorded, or null. */
+    public cnMessageMetrics getMetrics() {
+    	return metrics;
+    }
+
+    /** Sets the listener that is notified each time this message is written.
+     * @param value The listener, or null to use cnMessageListener.NONE. */
+    public void setListener(cnMessageListener value) {
+    	listener = value == null ? cnMessageListener.NONE : value;
+    }
+    /** Returns the listener of this message (cnMessageListener.NONE if there is none). */
+    public cnMessageListener getListener() {
+    	return listener;
+    }
+
+    /** Sets the layouts of the sub-fields, shared with other messages: they are copied
+     * before being modified. */
+    void setSubFieldLayouts(Map<Integer, cnSubFieldLayout> value) {
+    	layouts = value;
+    }
+    /** Sets the layout of the sub-fields of a field of this message.
+     * @param fieldid The field number.
+     * @param layout The layout, or null if the field has no sub-fields. */
+    public void setSubFieldLayout(int fieldid, cnSubFieldLayout layout) {
+    	Map<Integer, cnSubFieldLayout> m = new HashMap<Integer, cnSubFieldLayout>(layouts);
+    	if (layout == null) {
+    		m.remove(fieldid);
+    	} else {
+    		m.put(fieldid, layout);
+    	}
+    	layouts = Collections.unmodifiableMap(m);
+    }
+    /** Returns the layout of the sub-fields of a field, or null if it has no sub-fields. */
+    public cnSubFieldLayout getSubFieldLayout(int fieldid) {
+    	return layouts.get(fieldid);
+    }
+
+    /** Returns the index of the sub-fields of a field, or null if the field is not set.
+     * @throws IllegalArgumentException if the field has no layout or not the expected one. */
+    private cnSubFieldIndex subFieldIndex(int fieldid, boolean tlv) {
+    	cnSubFieldLayout layout = layouts.get(fieldid);
+    	if (layout == null || layout.isTlv() != tlv) {
+    		throw new IllegalArgumentException("Field " + fieldid + " has no "
+    				+ (tlv ? "TLV" : "fixed") + " sub-field layout");
+    	}
+    	cnValue<?> v = getField(fieldid);
+    	if (v != null && v.isReadOnly() && arena == null) {
+    		//a shared value does not keep the index; this message gets a copy that keeps it
+    		v = v.clone();
+    		fields.put(fieldid, v);
+    	}
+    	return v == null ? null : v.getSubFieldIndex(layout, charset);
+    }
+
+    /** Returns the value of a TLV data object of a field, e.g. getTag(55, 0x9F26) for the
+     * application cryptogram. Only the data object is copied; the index of the field is built
+     * the first time and reused while the field is not changed.
+     * @param fieldid The field number; the field must have a TLV layout.
+     * @param tag The tag, with all its bytes (e.g. 0x9F26 or 0x82).
+     * @return The value, or null if the field or the tag is not present.
+     * @throws IllegalArgumentException if the field has no TLV layout or is not valid BER-TLV. */
+    public byte[] getTag(int fieldid, int tag) {
+    	cnSubFieldIndex idx = subFieldIndex(fieldid, true);
+    	return idx == null ? null : idx.getTag(tag);
+    }
+
+    /** Returns the tags of the TLV data objects of a field, in order of appearance, or null
+     * if the field is not set. */
+    public int[] getTags(int fieldid) {
+    	cnSubFieldIndex idx = subFieldIndex(fieldid, true);
+    	return idx == null ? null : idx.getTags();
+    }
+
+    /** Sets the value of a TLV data object of a field, replacing the one with the same tag or
+     * adding it at the end. The field is rebuilt by copying the other data objects as they are.
+     * @param fieldid The field number; the field must be set and have a TLV layout.
+     * @param tag The tag, with all its bytes.
+     * @param value The value, or null to remove the data object. */
+    public void setTag(int fieldid, int tag, byte[] value) {
+    	detachArena();
+    	cnSubFieldIndex idx = subFieldIndex(fieldid, true);
+    	if (idx == null) {
+    		throw new IllegalArgumentException("Field " + fieldid + " is not set");
+    	}
+    	cnValue<?> v = fields.get(fieldid).withBytes(idx.withTag(tag, value), charset);
+    	v.checkVarLength(charset);
+    	touch(fieldid);
+    	fields.put(fieldid, v);
+    }
+
+    /** Returns the text of a sub-field at a fixed position, e.g. getSubField(60, 2). Only the
+     * sub-field is decoded.
+     * @param fieldid The field number; the field must have a fixed layout.
+     * @param num The sub-field number, starting from 1.
+     * @return The text, or null if the field is not set or ends before the sub-field. */
+    public String getSubField(int fieldid, int num) {
+    	cnSubFieldIndex idx = subFieldIndex(fieldid, false);
+    	return idx == null ? null : idx.getSubField(num);
+    }
+
+    /** Sets the text of a sub-field at a fixed position, padded with spaces or cut to its
+     * length. The field is rebuilt by copying the other sub-fields as they are.
+     * @param fieldid The field number; the field must be set and have a fixed layout.
+     * @param num The sub-field number, starting from 1.
+     * @param value The text of the sub-field. */
+    public void setSubField(int fieldid, int num, String value) {
+    	detachArena();
+    	cnSubFieldIndex idx = subFieldIndex(fieldid, false);
+    	if (idx == null) {
+    		throw new IllegalArgumentException("Field " + fieldid + " is not set");
+    	}
+    	cnValue<?> v = fields.get(fieldid).withBytes(idx.withSubField(num, idx.codec.encode(value)), charset);
+    	v.checkVarLength(charset);
+    	touch(fieldid);
+    	fields.put(fieldid, v);
+    }
+
     /** Returns the stored value in the field, without converting or formatting it.
      * @param fieldid The field number. 1 is the secondary bitmap and is not returned as such;
      * real fields go from 2 to 128. */
     public Object getObjectValue(int fieldid) {
-    	cnValue<?> v = fields.get(fieldid);
+    	cnValue<?> v = getField(fieldid);
     	if (v == null) {
     		return null;
     	}
@@ -130,15 +369,25 @@ public class cnMessage {
      * @param  fieldid Ӧ2-128Χ
      */
     public cnValue<?> getField(int fieldid) {
+    	if (arena != null) {
+    		return decodeArenaField(fieldid);
+    	}
     	return fields.get(fieldid);
     }
 
     /** Stored the field in the specified index. The first field is the secondary bitmap and has index 1,
-     * so the first valid value for index must be 2. */
+     * so the first valid value for index must be 2.
+     * @throws IllegalArgumentException if an LLVAR or LLLVAR value has more than 99 or 999 bytes
+     * in its charset or the charset of the message. */
     public void setField(int fieldid, cnValue<?> field) {
     	if (fieldid < 2 || fieldid > 128) {
     		throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
     	}
+    	if (field != null) {
+    		field.checkVarLength(charset);
+    	}
+    	detachArena();
+    	touch(fieldid);
     	if (field == null) {
     		fields.remove(fieldid);
     	} else {
@@ -146,16 +395,26 @@ public class cnMessage {
     	}
     }
 
+    /** Stores a field decoded from the frame of a message being parsed. Its length is not
+     * checked: it was read from a length header that cannot hold more than the type allows. */
+    void setParsedField(int fieldid, cnValue<?> field) {
+    	fields.put(fieldid, field);
+    }
+
     /** Sets the specified value in the specified field, creating an cnValue internally.
      * @param fieldid The field number (2 to 128)
      * @param value The value to be stored.
      * @param t The 8583 cntype.
-     * @param length The length of the field, used for ALPHA and NUMERIC values only, ignored
-     * with any other type. */
+     * @param length The length of the field, used for ALPHA, NUMERIC and BINARY values only,
+     * ignored with any other type. The value of BINARY, LLBIN and LLLBIN fields must be a byte[].
+     * @throws IllegalArgumentException if an LLVAR or LLLVAR value has more than 99 or 999 bytes
+     * in the charset of the message. */
     public void setValue(int fieldid, Object value, cnType t, int length) {
     	if (fieldid < 2 || fieldid > 128) {
     		throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
     	}
+    	detachArena();
+    	touch(fieldid);
     	if (value == null) {
     		fields.remove(fieldid);
     	} else {
@@ -165,6 +424,7 @@ public class cnMessage {
     		} else {
     			v = new cnValue<Object>(t, value);
     		}
+    		v.checkVarLength(charset);
     		fields.put(fieldid, v);
     	}
     }
@@ -172,9 +432,338 @@ public class cnMessage {
     /** Returns true is the message has a value in the specified field.
      * @param fieldid The field id. */
     public boolean hasField(int fieldid) {
+    	if (arena != null) {
+    		return arenaStart(fieldid) >= 0;
+    	}
     	return fields.get(fieldid) != null;
     }
 
+    /** Returns the text of a field as it is written in the message: the digits of numbers,
+     * amounts (in cents) and dates, the text of ALPHA fields with their padding, the text of
+     * LLVAR and LLLVAR fields, and the hex digits of binary fields. For a message in an
+     * arena, the field is read from the arena without creating a cnValue.
+     * @return The text, or null if the field is not set. */
+    public String getString(int fieldid) {
+    	if (arena == null) {
+    		cnValue<?> v = fields.get(fieldid);
+    		return v == null ? null : v.toString();
+    	}
+    	int start = arenaStart(fieldid);
+    	if (start < 0) {
+    		return null;
+    	}
+    	cnFieldParseInfo fpi = arenaInfos[fieldid];
+    	int hs = arenaHeaderSize(fieldid);
+    	int len = arenaSize(fieldid) - hs;
+    	byte[] b = arena.scratch(len);
+    	arena.get(start + hs, b, 0, len);
+    	if (fpi.getType().isBinary()) {
+    		return cnHexCodec.encode(b, 0, len);
+    	} else if (isbinary && isDigits(fpi.getType())) {
+    		return cnBcdCodec.toString(b, 0, fpi.getFixedLength(false));
+    	}
+    	return (fpi.getCharset() == null ? charset : fpi.getCharset()).decode(b, 0, len);
+    }
+
+    /** Returns the value of a field as a number: a NUMERIC field of up to 18 digits, an AMOUNT
+     * in cents, or any field that has only digits. For a message in an arena, the digits
+     * are read from the arena without creating any object.
+     * @throws IllegalArgumentException if the field is not set.
+     * @throws NumberFormatException if the field is not a number of up to 18 digits. */
+    public long getLong(int fieldid) {
+    	if (arena == null) {
+    		cnValue<?> v = fields.get(fieldid);
+    		if (v == null) {
+    			throw new IllegalArgumentException("Field " + fieldid + " is not set");
+    		}
+    		return Long.parseLong(v.toString());
+    	}
+    	int start = arenaStart(fieldid);
+    	if (start < 0) {
+    		throw new IllegalArgumentException("Field " + fieldid + " is not set");
+    	}
+    	int hs = arenaHeaderSize(fieldid);
+    	int end = start + arenaSize(fieldid);
+    	ByteBuffer b = arena.buffer();
+    	long l = 0;
+    	if (isbinary && isDigits(arenaInfos[fieldid].getType())) {
+    		if (end - start > 9) {
+    			throw new NumberFormatException("Field " + fieldid + " has more than 18 digits");
+    		}
+    		for (int i = start; i < end; i++) {
+    			l = l * 100 + cnBcdCodec.decode(b.get(i));
+    		}
+    	} else {
+    		if (end - start - hs > 18) {
+    			throw new NumberFormatException("Field " + fieldid + " has more than 18 digits");
+    		}
+    		for (int i = start + hs; i < end; i++) {
+    			int d = b.get(i) - '0';
+    			if (d < 0 || d > 9) {
+    				throw new NumberFormatException("Field " + fieldid + " is not a number");
+    			}
+    			l = l * 10 + d;
+    		}
+    	}
+    	return l;
+    }
+
+    /** Sets a field of digits (NUMERIC, AMOUNT in cents, or the digits of a date) of a message
+     * in an arena. The digits are written in the arena without creating any object: over
+     * the old value, or at the end of the arena if the field is not set. A field of another
+     * type is set with the text of the number.
+     * @throws IllegalStateException if the message is not in an arena.
+     * @throws IllegalArgumentException if the parse guide of the type does not have the field,
+     * or if the number is negative or has more digits than the field. */
+    public void setLong(int fieldid, long value) {
+    	cnFieldParseInfo fpi = arenaInfo(fieldid);
+    	if (!isDigits(fpi.getType())) {
+    		setString(fieldid, Long.toString(value));
+    		return;
+    	}
+    	int digits = fpi.getFixedLength(false);
+    	long max = 1;
+    	for (int i = 0; i < digits && max <= Long.MAX_VALUE / 10; i++) {
+    		max *= 10;
+    	}
+    	if (value < 0 || (digits < 19 && value >= max)) {
+    		throw new IllegalArgumentException("Value " + value + " does not fit in field " + fieldid);
+    	}
+    	int size = fpi.getFixedLength(isbinary);
+    	int pos = arenaSlot(fieldid, size);
+    	ByteBuffer b = arena.buffer();
+    	for (int i = pos + size - 1; i >= pos; i--) {
+    		if (isbinary) {
+    			b.put(i, cnBcdCodec.encode((int) (value % 100)));
+    			value /= 100;
+    		} else {
+    			b.put(i, (byte) ('0' + value % 10));
+    			value /= 10;
+    		}
+    	}
+    }
+
+    /** Sets a field of a message in an arena from its text, written for the type of the field
+     * in the parse guide: the digits of numbers, amounts (in cents) and dates, filled with
+     * zeros to the left; the text of ALPHA fields, filled with spaces or cut to the length;
+     * the text of LLVAR and LLLVAR fields; the hex digits of binary fields. The field is
+     * written over the old value if it has the same size, otherwise at the end of the arena.
+     * @param value The text, or null to remove the field.
+     * @throws IllegalStateException if the message is not in an arena.
+     * @throws IllegalArgumentException if the parse guide of the type does not have the field,
+     * or if the value does not fit in it. */
+    public void setString(int fieldid, String value) {
+    	cnFieldParseInfo fpi = arenaInfo(fieldid);
+    	if (value == null) {
+    		setArenaField(fieldid, -1, 0);
+    		return;
+    	}
+    	cnType t = fpi.getType();
+    	ByteBuffer b = arena.buffer();
+    	if (isDigits(t)) {
+    		int digits = fpi.getFixedLength(false);
+    		int fill = digits - value.length();
+    		if (fill < 0) {
+    			throw new IllegalArgumentException("Value " + value + " does not fit in field " + fieldid);
+    		}
+    		int pos = arenaSlot(fieldid, fpi.getFixedLength(isbinary));
+    		int odd = isbinary ? digits & 1 : 0;
+    		for (int k = 0; k < digits + odd; k++) {
+    			int d = k < fill + odd ? 0 : value.charAt(k - fill - odd) - '0';
+    			if (d < 0 || d > 9) {
+    				throw new IllegalArgumentException("Value " + value + " of field " + fieldid + " is not a number");
+    			}
+    			if (!isbinary) {
+    				b.put(pos + k, (byte) ('0' + d));
+    			} else if ((k & 1) == 0) {
+    				b.put(pos + k / 2, (byte) (d << 4));
+    			} else {
+    				b.put(pos + k / 2, (byte) (b.get(pos + k / 2) | d));
+    			}
+    		}
+    		return;
+    	}
+    	cnCharsetCodec codec = fpi.getCharset() == null ? charset : fpi.getCharset();
+    	int digits = t.getLengthDigits();
+    	if (digits == 0) {
+    		//ALPHA or BINARY: filled (with spaces or zeros) or cut to the length; ALPHA text
+    		//is cut after the last whole character
+    		int size = fpi.getFixedLength(isbinary);
+    		byte[] data = t.isBinary() ? cnHexCodec.decode(value) : codec.encode(value, size);
+    		int pos = arenaSlot(fieldid, size);
+    		int n = Math.min(data.length, size);
+    		arena.put(pos, data, 0, n);
+    		for (int i = n; i < size; i++) {
+    			b.put(pos + i, t == cnType.ALPHA ? codec.getSpace() : 0);
+    		}
+    		return;
+    	}
+    	byte[] data = t.isBinary() ? cnHexCodec.decode(value) : codec.encode(value);
+    	int max = digits == 3 ? 999 : 99;
+    	if (data.length > max) {
+    		throw new IllegalArgumentException(t + " can only hold values up to " + max + " bytes");
+    	}
+    	int hs = cnBcdCodec.lengthHeaderSize(digits, isbinary);
+    	int pos = arenaSlot(fieldid, hs + data.length);
+    	int len = data.length;
+    	if (isbinary) {
+    		if (digits == 3) {
+    			b.put(pos, cnBcdCodec.encode(len / 100));
+    		}
+    		b.put(pos + hs - 1, cnBcdCodec.encode(len % 100));
+    	} else {
+    		for (int i = pos + hs - 1; i >= pos; i--) {
+    			b.put(i, (byte) ('0' + len % 10));
+    			len /= 10;
+    		}
+    	}
+    	arena.put(pos + hs, data, 0, data.length);
+    }
+
+    /** Returns true if the type is stored as digits, in BCD in binary messages. */
+    private static boolean isDigits(cnType t) {
+    	return t.getLengthDigits() == 0 && t != cnType.ALPHA && t != cnType.BINARY;
+    }
+
+    /** Puts the fields of the message in an arena (used by the factory).
+     * @param index The position of the field index of the message in the arena.
+     * @param infos The parse info of each field of the type, by field number. */
+    void attachArena(cnMessageArena a, int index, cnFieldParseInfo[] infos) {
+    	arena = a;
+    	arenaIndex = index;
+    	arenaGeneration = a.generation();
+    	arenaInfos = infos;
+    }
+
+    /** Returns true if the fields of the message are in a {@link cnMessageArena}. */
+    public boolean isArenaBacked() {
+    	return arena != null;
+    }
+
+    /** Records the position in the arena and the size (with the length header) of a field,
+     * or a position of -1 if the field is not set. */
+    void setArenaField(int fieldid, int start, int size) {
+    	arena.buffer().putInt(arenaIndex + fieldid * 8, start);
+    	arena.buffer().putInt(arenaIndex + fieldid * 8 + 4, size);
+    }
+
+    /** Sets a field of a message in an arena from its bytes, with the length header. */
+    void setArenaBytes(int fieldid, byte[] data, int off, int len) {
+    	arenaInfo(fieldid);
+    	arena.put(arenaSlot(fieldid, len), data, off, len);
+    }
+
+    /** Returns the position of a field in the arena, or -1 if it is not set. */
+    private int arenaStart(int fieldid) {
+    	arena.check(arenaGeneration);
+    	if (fieldid < 0 || fieldid > 128) {
+    		return -1;
+    	}
+    	return arena.buffer().getInt(arenaIndex + fieldid * 8);
+    }
+
+    /** Returns the size of a field in the arena, with the length header. */
+    private int arenaSize(int fieldid) {
+    	return arena.buffer().getInt(arenaIndex + fieldid * 8 + 4);
+    }
+
+    private int arenaHeaderSize(int fieldid) {
+    	int digits = arenaInfos[fieldid].getType().getLengthDigits();
+    	return digits > 0 ? cnBcdCodec.lengthHeaderSize(digits, isbinary) : 0;
+    }
+
+    /** Returns the parse info of a field that is set in the arena. */
+    private cnFieldParseInfo arenaInfo(int fieldid) {
+    	if (arena == null) {
+    		throw new IllegalStateException("The message is not in an arena");
+    	}
+    	arena.check(arenaGeneration);
+    	if (fieldid < 2 || fieldid > 128 || arenaInfos[fieldid] == null) {
+    		throw new IllegalArgumentException("No parse guide for field " + fieldid + " of message type [" + msgtypeid + "]");
+    	}
+    	return arenaInfos[fieldid];
+    }
+
+    /** Returns the position where a field of the specified size is written: where it is now
+     * if it has the same size, or else a new block of the arena. */
+    private int arenaSlot(int fieldid, int size) {
+    	int start = arenaStart(fieldid);
+    	if (start < 0 || arenaSize(fieldid) != size) {
+    		start = arena.allocate(size);
+    		setArenaField(fieldid, start, size);
+    	}
+    	return start;
+    }
+
+    /** Decodes a field from the arena into a new cnValue. */
+    private cnValue<?> decodeArenaField(int fieldid) {
+    	int start = arenaStart(fieldid);
+    	if (start < 0) {
+    		return null;
+    	}
+    	byte[] data = new byte[arenaSize(fieldid)];
+    	arena.get(start, data, 0, data.length);
+    	cnFieldParseInfo fpi = arenaInfos[fieldid];
+    	try {
+    		return isbinary ? fpi.parseBinary(data, 0, charset) : fpi.parse(data, 0, charset);
+    	} catch (ParseException ex) {
+    		throw new IllegalStateException("Cannot decode field " + fieldid + ": " + ex.getMessage(), ex);
+    	}
+    }
+
+    /** Moves the fields from the arena to the fields map, so that the message can be changed
+     * with any method. It is done when a field is set with a cnValue. */
+    private void detachArena() {
+    	if (arena == null) {
+    		return;
+    	}
+    	for (int i = 2; i <= 128; i++) {
+    		cnValue<?> v = decodeArenaField(i);
+    		if (v != null) {
+    			fields.put(i, v);
+    		}
+    	}
+    	arena = null;
+    	arenaInfos = null;
+    }
+
+    /** Keeps the frame the message is parsed from, so that the fields that are not changed
+     * are copied from it when the message is written instead of being encoded again. The
+     * frame is not copied.
+     * @param binary true if the fields of the frame are binary-coded. */
+    void keepSource(byte[] buf, boolean binary) {
+    	source = buf;
+    	sourceRanges = new int[129 * 2];
+    	Arrays.fill(sourceRanges, -1);
+    	sourceBinary = binary;
+    	sourceCharset = charset;
+    }
+
+    /** Sets the codec used to encode the message while it has the bitmap of the codec. */
+    void setSpecializedCodec(cnSpecializedCodec c) {
+    	specialized = c;
+    }
+
+    /** Records the position and size of a field in the source frame, after it is parsed. */
+    void setSourceRange(int fieldid, int pos, int size) {
+    	sourceRanges[fieldid * 2] = pos;
+    	sourceRanges[fieldid * 2 + 1] = size;
+    }
+
+    /** Returns true if a field is written as it was received: the message was parsed with
+     * the frame kept ({@link cnMessageFactory#setKeepSource(boolean)}) and the field was not
+     * set since. */
+    public boolean isFieldUnchanged(int fieldid) {
+    	return sourceRanges != null && fieldid >= 2 && fieldid <= 128 && sourceRanges[fieldid * 2] >= 0;
+    }
+
+    /** Marks a field as changed, so it is encoded again when the message is written. */
+    private void touch(int fieldid) {
+    	if (sourceRanges != null) {
+    		sourceRanges[fieldid * 2] = -1;
+    	}
+    }
+
     /** Writes a message to a stream, after writing the specified number of bytes indicating
      * the message's length. The message will first be written to an internal memory stream
      * which will then be dumped into the specified stream. This method flushes the stream
@@ -282,10 +871,111 @@ public class cnMessage {
     	return buf;
     }
 
+    /** Writes the message into a buffer, after a binary length header of the specified size,
+     * like {@link #writeToBuffer(int)} but into the buffer of the caller. A message in an
+     * arena, without MAC generator or listener, is copied from the arena into the buffer, so
+     * a direct buffer that is reused can be filled without creating any object.
+     * @throws java.nio.BufferOverflowException if the message does not fit in the buffer. */
+    public void writeTo(ByteBuffer dst, int lengthBytes) {
+    	if (arena == null || macGenerator != null || listener != cnMessageListener.NONE) {
+    		dst.put(writeToBuffer(lengthBytes));
+    		return;
+    	}
+    	if (lengthBytes > 4) {
+    		throw new IllegalArgumentException("The length header can have at most 4 bytes");
+    	}
+    	cnMessageMetrics mt = metrics;
+    	long start = mt == null ? 0 : System.nanoTime();
+    	int len = arenaEncodedLength();
+    	fillHeaderLengths(len);
+    	int l = etx > -1 ? len + 1 : len;
+    	for (int shift = (lengthBytes - 1) * 8; shift >= 0; shift -= 8) {
+    		dst.put((byte) (l >>> shift));
+    	}
+    	encodeArena(dst);
+    	if (etx > -1) {
+    		dst.put((byte) etx);
+    	}
+    	if (mt != null) {
+    		mt.record(msgtypeid, cnMessageMetrics.Operation.WRITE, System.nanoTime() - start, len);
+    	}
+    }
+
     /** Writes the message to a memory buffer and returns it. The message does not include
      * the ETX character or the header length. */
     protected byte[] writeInternal() {
-    	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    	cnMessageMetrics mt = metrics;
+    	cnMessageListener ls = listener;
+    	if (mt == null && ls == cnMessageListener.NONE) {
+    		return encode();
+    	}
+    	long start = System.nanoTime();
+    	try {
+    		byte[] data = encode();
+    		long nanos = System.nanoTime() - start;
+    		if (mt != null) {
+    			mt.record(msgtypeid, cnMessageMetrics.Operation.WRITE, nanos, data.length);
+    		}
+    		ls.messageEncoded(this, data, nanos);
+    		return data;
+    	} catch (RuntimeException ex) {
+    		if (mt != null) {
+    			mt.recordError(msgtypeid, cnMessageMetrics.Operation.WRITE);
+    		}
+    		throw ex;
+    	}
+    }
+
+    /** Encodes the header, message type, bitmap and fields (and the MAC if needed). */
+    private byte[] encode() {
+    	if (arena != null) {
+    		int maclen = macGenerator == null ? 0 : macGenerator.getMacLength();
+    		byte[] data = new byte[arenaEncodedLength() + maclen];
+    		fillHeaderLengths(data.length);
+    		ByteBuffer buf = ByteBuffer.wrap(data);
+    		encodeArena(buf);
+    		if (maclen > 0) {
+    			buf.put(macGenerator.computeMac(data, 0, buf.position()));
+    		}
+    		return data;
+    	}
+    	//Bitmap, built together with a snapshot of the fields indexed by number
+    	cnValue<?>[] values = new cnValue<?>[129];
+    	long bitmap1 = 0;
+    	long bitmap2 = 0;
+    	int last = 0;	// 
+    	int macfield = macField();	// MACڵ641280ʾûMAC
+    	for (Map.Entry<Integer, cnValue<?>> e : fields.entrySet()) {
+    		int i = e.getKey();
+    		if (i == macfield) {
+    			continue;
+    		}
+    		values[i] = e.getValue();
+    		if (i <= 64) {
+    			bitmap1 |= cnValidationRule.bit(i);
+    		} else {
+    			bitmap2 |= cnValidationRule.bit(i);
+    		}
+    		last = Math.max(last, i);
+    	}
+    	if (macfield == 64) {
+    		bitmap1 |= cnValidationRule.bit(64);
+    		last = 64;
+    	} else if (macfield == 128) {
+    		bitmap2 |= cnValidationRule.bit(128);
+    		last = 128;
+    	}
+    	//Extend to 128 if needed
+    	if (last > 64) {
+    		bitmap1 |= Long.MIN_VALUE;
+    	}
+    	//The codec of the bitmap knows the fields in order and the size of the last frame
+    	cnSpecializedCodec sc = specialized;
+    	if (sc != null && (macfield > 0 || !sc.matches(bitmap1, bitmap2))) {
+    		sc = null;
+    	}
+
+    	FrameBuffer bout = new FrameBuffer(sc == null ? 32 : sc.sizeHint);
     	try {
     		if (msgHeader != null) 
     			bout.write(msgHeader);	
@@ -295,53 +985,178 @@ public class cnMessage {
 			//should never happen, writing to a ByteArrayOutputStream
 		}    
 
-    	//Bitmap
-    	ArrayList<Integer> keys = new ArrayList<Integer>();
-    	keys.addAll(fields.keySet());
-    	Collections.sort(keys);
-    	BitSet bs = new BitSet(64);
-    	for (Integer i : keys) {	// BitSetԶչС
-    		bs.set(i - 1, true);
+    	//Write bitmap into stream, the highest byte first
+    	if (sc != null) {
+    		bout.write(sc.bitmapBytes, 0, sc.bitmapBytes.length);
+    	} else {
+    		writeBitmapWord(bout, bitmap1);
+    		if (last > 64) {
+    			writeBitmapWord(bout, bitmap2);
+    		}
     	}
-    	//Extend to 128 if needed
-    	if (bs.length() > 64) {
-    		BitSet b2 = new BitSet(128);
-    		b2.or(bs);	// õλͼ(ĸԶչ)
-    		bs = b2;
-    		bs.set(0, true);
-    	}
-    	//Write bitmap into stream
-		int pos = 128; 	// λ㣺 -- 1000 0000ֵλΪ1Ȼһλȵȣ
-		int b = 0; 	// λ㣺ֵλȫ0
-		for (int i = 0; i < bs.size(); i++) {
-			if (bs.get(i)) {
-				b |= pos;
-			}
-			pos >>= 1;
-			if (pos == 0) { // һֽʱ8λд
-				bout.write(b);
-				pos = 128;
-				b = 0;
-			}
-		}
 
-    	//Fields
-    	for (Integer i : keys) {
-    		cnValue v = fields.get(i);
+    	//Fields; the unchanged ones are copied from the source frame, adjacent ones at once
+    	int[] ranges = source != null && isbinary == sourceBinary && charset == sourceCharset ? sourceRanges : null;
+    	int runStart = -1;
+    	int runEnd = -1;
+    	int[] order = sc == null ? null : sc.fieldids;
+    	int count = order == null ? last + 1 : order.length;
+    	for (int k = order == null ? 2 : 0; k < count; k++) {
+    		int i = order == null ? k : order[k];
+    		if (values[i] == null) {
+    			continue;
+    		}
+    		int start = ranges == null ? -1 : ranges[i * 2];
+    		if (start >= 0 && start == runEnd) {
+    			runEnd += ranges[i * 2 + 1];
+    			continue;
+    		}
+    		if (runStart >= 0) {
+    			bout.write(source, runStart, runEnd - runStart);
+    			runStart = -1;
+    			runEnd = -1;
+    		}
+    		if (start >= 0) {
+    			runStart = start;
+    			runEnd = start + ranges[i * 2 + 1];
+    			continue;
+    		}
     		try {
-    			v.write(bout, isbinary);
+    			values[i].write(bout, isbinary, charset);
     		} catch (IOException ex) {
     			//should never happen, writing to a ByteArrayOutputStream
     		}
     	}
+    	if (runStart >= 0) {
+    		bout.write(source, runStart, runEnd - runStart);
+    	}
+    	//The length items of the header, known now that the fields are written
+    	if (headerLayout != null && headerLayout.hasLengths()) {
+    		fillHeaderLengths(bout.size() + (macfield > 0 ? macGenerator.getMacLength() : 0));
+    		System.arraycopy(msgHeader, 0, bout.buffer(), 0, msgHeader.length);
+    	}
+    	//MAC over everything written so far, it is always the last field
+    	if (macfield > 0) {
+    		byte[] mac = macGenerator.computeMac(bout.buffer(), 0, bout.size());
+    		bout.write(mac, 0, mac.length);
+    	}
+    	if (sc != null) {
+    		sc.sizeHint = bout.size();
+    	}
     	return bout.toByteArray();
     }
+
+    /** Returns the field where the MAC goes when the message is encoded: 128 if there is any
+     * field above 64, otherwise 64; or 0 if there is no MAC generator. Only that field is
+     * replaced by the MAC, so field 64 is kept as data when the MAC goes in field 128. */
+    private int macField() {
+    	if (macGenerator == null) {
+    		return 0;
+    	}
+    	if (arena != null) {
+    		for (int i = 65; i <= 128; i++) {
+    			if (arenaStart(i) >= 0) {
+    				return 128;
+    			}
+    		}
+    		return 64;
+    	}
+    	for (Integer i : fields.keySet()) {
+    		if (i > 64) {
+    			return 128;
+    		}
+    	}
+    	return 64;
+    }
+
+    /** Returns the number of bytes of a message in an arena, without the length header, the
+     * ETX and the MAC. */
+    private int arenaEncodedLength() {
+    	int size = (msgHeader == null ? 0 : msgHeader.length) + msgtypeid.length() + 8;
+    	int macfield = macField();
+    	int last = macfield;
+    	for (int i = 2; i <= 128; i++) {
+    		if (i != macfield && arenaStart(i) >= 0) {
+    			size += arenaSize(i);
+    			last = Math.max(last, i);
+    		}
+    	}
+    	return last > 64 ? size + 8 : size;
+    }
+
+    /** Writes the header, message type, bitmap and fields of a message in an arena, copying
+     * the fields from the arena. If there is a MAC generator, the MAC field is in the bitmap
+     * but is left for the caller to write. */
+    private void encodeArena(ByteBuffer dst) {
+    	if (msgHeader != null) {
+    		dst.put(msgHeader);
+    	}
+    	for (int i = 0; i < msgtypeid.length(); i++) {
+    		dst.put((byte) msgtypeid.charAt(i));
+    	}
+    	long bitmap1 = 0;
+    	long bitmap2 = 0;
+    	int macfield = macField();
+    	int last = macfield;
+    	if (macfield == 64) {
+    		bitmap1 |= cnValidationRule.bit(64);
+    	} else if (macfield == 128) {
+    		bitmap2 |= cnValidationRule.bit(128);
+    	}
+    	for (int i = 2; i <= 128; i++) {
+    		if (i != macfield && arenaStart(i) >= 0) {
+    			if (i <= 64) {
+    				bitmap1 |= cnValidationRule.bit(i);
+    			} else {
+    				bitmap2 |= cnValidationRule.bit(i);
+    			}
+    			last = Math.max(last, i);
+    		}
+    	}
+    	if (last > 64) {
+    		bitmap1 |= Long.MIN_VALUE;
+    	}
+    	for (int shift = 56; shift >= 0; shift -= 8) {
+    		dst.put((byte) (bitmap1 >>> shift));
+    	}
+    	if (last > 64) {
+    		for (int shift = 56; shift >= 0; shift -= 8) {
+    			dst.put((byte) (bitmap2 >>> shift));
+    		}
+    	}
+    	for (int i = 2; i <= 128; i++) {
+    		int start = i == macfield ? -1 : arenaStart(i);
+    		if (start >= 0) {
+    			arena.copyTo(start, arenaSize(i), dst);
+    		}
+    	}
+    }
+
+    private static void writeBitmapWord(ByteArrayOutputStream bout, long word) {
+    	for (int shift = 56; shift >= 0; shift -= 8) {
+    		bout.write((int) (word >>> shift));
+    	}
+    }
+
+    /** A memory stream that gives access to its buffer without copying it. */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+    	FrameBuffer(int size) {
+    		super(size);
+    	}
+
+    	byte[] buffer() {
+    		return buf;
+    	}
+    }
     
     /**
      * ݵǰıݣձĵĵĳȣλΪֽڣ
      * @return ıֽڸͷͱʾλͼ͸Чı
      */
     public int estimatetotalmsglength() {
+    	if (arena != null) {
+    		return arenaEncodedLength() + (macGenerator == null ? 0 : macGenerator.getMacLength());
+    	}
     	int totalmsglen = 0;
     	if(msgHeader != null)	// ͷ
     		totalmsglen += msgHeader.length;
@@ -362,7 +1177,7 @@ public class cnMessage {
     	for (Integer i : keys) {
     		cnValue v = fields.get(i);
     		try {
-    			v.write(bout, isbinary);
+    			v.write(bout, isbinary, charset);
     		} catch (IOException ex) {
     			//should never happen, writing to a ByteArrayOutputStream
     		}
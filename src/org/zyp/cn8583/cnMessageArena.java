@@ -0,0 +1,128 @@
+package org.zyp.cn8583;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ⱨڴĵĸ򱣴ֱڴУÿʱͷš
+ * A region of off-heap memory (a direct ByteBuffer) that holds the fields of messages, so a
+ * message parsed or built in it does not create a heap object per field. Space is taken from
+ * the region in order and is never freed one message at a time: {@link #reset()} frees the
+ * whole region at once, typically at the end of each request. The messages of the arena must
+ * not be used after that; they throw an IllegalStateException.
+ * <P>
+ * Each message takes a fixed block for its field index (the position and size of each field)
+ * plus the bytes of its fields, as they are on the wire. Changing a field to a value of the
+ * same size overwrites it in place; any other change appends the new bytes.
+ * <P>
+ * An arena is not thread safe: it should be used by one thread at a time, for example one
+ * arena per worker thread, reset after each request.
+ *
+ * @author zyplanke
+ */
+public final class cnMessageArena {
+
+	/** Size of the field index of a message: the position and the size of fields 0 to 128. */
+	static final int INDEX_SIZE = 129 * 8;
+
+	private final ByteBuffer buf;
+	/** A view of the region used for bulk copies, so they do not create a view each time. */
+	private final ByteBuffer view;
+	private int top;
+	private int generation;
+	/** Reusable heap buffer to encode or decode one field. */
+	private byte[] scratch = new byte[1024];
+
+	/** Creates an arena.
+	 * @param capacity The size of the region in bytes. It must hold all the messages used
+	 * between two resets: about 1 KB per message plus its size on the wire. */
+	public cnMessageArena(int capacity) {
+		buf = ByteBuffer.allocateDirect(capacity);
+		view = buf.duplicate();
+	}
+
+	/** Frees all the messages of the arena. */
+	public void reset() {
+		top = 0;
+		generation++;
+	}
+
+	/** Returns the number of bytes in use. */
+	public int getUsed() {
+		return top;
+	}
+
+	/** Returns the size of the region. */
+	public int getCapacity() {
+		return buf.capacity();
+	}
+
+	/** Takes a block of the region.
+	 * @return The position of the block.
+	 * @throws IllegalStateException if the region is full. */
+	int allocate(int size) {
+		if (top + size > buf.capacity()) {
+			throw new IllegalStateException("Message arena full: " + top + " of " + buf.capacity()
+					+ " bytes used, " + size + " more needed");
+		}
+		int pos = top;
+		top += size;
+		return pos;
+	}
+
+	/** Takes and clears the field index of a new message.
+	 * @return The position of the index. */
+	int allocateIndex() {
+		int pos = allocate(INDEX_SIZE);
+		for (int i = 0; i < 129; i++) {
+			buf.putInt(pos + i * 8, -1);
+		}
+		return pos;
+	}
+
+	/** Returns the generation, which changes on each reset. */
+	int generation() {
+		return generation;
+	}
+
+	/** Checks that the arena was not reset since a message was created in it. */
+	void check(int gen) {
+		if (gen != generation) {
+			throw new IllegalStateException("The message arena was reset");
+		}
+	}
+
+	ByteBuffer buffer() {
+		return buf;
+	}
+
+	/** Returns the scratch buffer, with at least the specified size. */
+	byte[] scratch(int size) {
+		if (scratch.length < size) {
+			scratch = new byte[Math.max(size, scratch.length * 2)];
+		}
+		return scratch;
+	}
+
+	/** Copies bytes into the region. */
+	void put(int pos, byte[] src, int off, int len) {
+		view.clear();
+		view.position(pos);
+		view.put(src, off, len);
+	}
+
+	/** Copies bytes from the region. */
+	void get(int pos, byte[] dst, int off, int len) {
+		view.clear();
+		view.position(pos);
+		view.get(dst, off, len);
+	}
+
+	/** Copies bytes from the region to another buffer, at its position. */
+	void copyTo(int pos, int len, ByteBuffer dst) {
+		view.clear();
+		view.position(pos);
+		view.limit(pos + len);
+		dst.put(view);
+	}
+
+}
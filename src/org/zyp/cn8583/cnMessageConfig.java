@@ -0,0 +1,346 @@
+package org.zyp.cn8583;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.zyp.cn8583.parse.cnFieldParseInfo;
+
+/**
+ * õĲɱգģ塢áͷȡУַ
+ * An immutable snapshot of the configuration used by a cnMessageFactory, with everything
+ * that is read from the XML configuration: templates, parse guides, headers, validation
+ * rules, sub-field layouts and the charset of the fields. The factory
+ * references the current snapshot through a single atomic pointer, so a message that is being
+ * created or parsed always sees one consistent version of the configuration, even if the
+ * configuration is changed or reloaded at the same time.
+ * <P>
+ * Snapshots are never modified; every change creates a new one with the "with" methods.
+ * The message templates are shared between snapshots and must not be modified once added.
+ * 
+ * @author zyplanke
+ */
+public final class cnMessageConfig {
+
+	/** A configuration without templates, parse guides or headers. */
+	public static final cnMessageConfig EMPTY = new cnMessageConfig(new Maps());
+
+	/** The parse guide of one message type as parallel arrays sorted by field number,
+	 * so parsing a message needs no map lookups per field. */
+	static final class ParseGuide {
+		final int[] fieldids;
+		final cnFieldParseInfo[] infos;
+		/** The parse info of each field, by field number (null if the type does not have it). */
+		final cnFieldParseInfo[] byField = new cnFieldParseInfo[129];
+		/** The validation rule of the message type, or null. */
+		final cnValidationRule rule;
+
+		ParseGuide(List<Integer> order, Map<Integer, cnFieldParseInfo> map, cnValidationRule rule) {
+			fieldids = new int[order.size()];
+			infos = new cnFieldParseInfo[order.size()];
+			for (int i = 0; i < fieldids.length; i++) {
+				fieldids[i] = order.get(i);
+				infos[i] = map.get(order.get(i));
+				byField[fieldids[i]] = infos[i];
+			}
+			this.rule = rule;
+		}
+
+		/** Number of slots of the codec cache, a power of two. */
+		private static final int CODEC_SLOTS = 64;
+		/** Direct-mapped cache of the specialized codecs by bitmap. A slot holds the codec of
+		 * the last bitmap that hashed to it, so the cache stays small even if the bitmaps vary. */
+		private final AtomicReferenceArray<cnSpecializedCodec> codecs = new AtomicReferenceArray<cnSpecializedCodec>(CODEC_SLOTS);
+
+		private static int slot(long bitmap1, long bitmap2) {
+			return (int) ((bitmap1 * 0x9E3779B97F4A7C15L + bitmap2) >>> 58) & (CODEC_SLOTS - 1);
+		}
+
+		/** Returns the specialized codec of the bitmap, building it if it is not cached. */
+		cnSpecializedCodec getCodec(long bitmap1, long bitmap2) {
+			int slot = slot(bitmap1, bitmap2);
+			cnSpecializedCodec c = codecs.get(slot);
+			if (c == null || !c.matches(bitmap1, bitmap2)) {
+				c = cnSpecializedCodec.build(this, bitmap1, bitmap2);
+				codecs.set(slot, c);
+			}
+			return c;
+		}
+
+		/** Caches a codec built in advance (that of the template of the type). */
+		void putCodec(cnSpecializedCodec c) {
+			codecs.set(slot(c.bitmap1, c.bitmap2), c);
+		}
+	}
+
+	/** Modifiable copies of the maps of a configuration, used to create a new one. */
+	private static final class Maps {
+		final HashMap<String, cnMessage> typeTemplates;
+		final HashMap<String, Map<Integer, cnFieldParseInfo>> parseMap;
+		final HashMap<String, List<Integer>> parseOrder;
+		final HashMap<String, Integer> msgheadersattr;
+		final HashMap<String, cnValidationRule> rules;
+		final HashMap<String, Map<Integer, cnSubFieldLayout>> layouts;
+		final HashMap<String, cnHeaderLayout> headerLayouts;
+		cnCharsetCodec charset;
+
+		Maps() {
+			typeTemplates = new HashMap<String, cnMessage>();
+			parseMap = new HashMap<String, Map<Integer, cnFieldParseInfo>>();
+			parseOrder = new HashMap<String, List<Integer>>();
+			msgheadersattr = new HashMap<String, Integer>();
+			rules = new HashMap<String, cnValidationRule>();
+			layouts = new HashMap<String, Map<Integer, cnSubFieldLayout>>();
+			headerLayouts = new HashMap<String, cnHeaderLayout>();
+			charset = cnCharsetCodec.DEFAULT;
+		}
+
+		Maps(cnMessageConfig cfg) {
+			typeTemplates = new HashMap<String, cnMessage>(cfg.typeTemplates);
+			parseMap = new HashMap<String, Map<Integer, cnFieldParseInfo>>(cfg.parseMap);
+			parseOrder = new HashMap<String, List<Integer>>(cfg.parseOrder);
+			msgheadersattr = new HashMap<String, Integer>(cfg.msgheadersattr);
+			rules = new HashMap<String, cnValidationRule>(cfg.rules);
+			layouts = new HashMap<String, Map<Integer, cnSubFieldLayout>>(cfg.layouts);
+			headerLayouts = new HashMap<String, cnHeaderLayout>(cfg.headerLayouts);
+			charset = cfg.charset;
+		}
+	}
+
+	/** (msgtypeid, Message) */
+	private final Map<String, cnMessage> typeTemplates;
+	/** (msgtypeid, (fieldID, fieldInfo)) */
+	private final Map<String, Map<Integer, cnFieldParseInfo>> parseMap;
+	/** The field numbers to be parsed, in order of appearance. (msgtypeid, fieldID) */
+	private final Map<String, List<Integer>> parseOrder;
+	/** (msgtypeid, headerlength) */
+	private final Map<String, Integer> msgheadersattr;
+	/** (msgtypeid, rule) */
+	private final Map<String, cnValidationRule> rules;
+	/** (msgtypeid, (fieldID, layout)); the null type holds the layouts of all the types. */
+	private final Map<String, Map<Integer, cnSubFieldLayout>> layouts;
+	/** (msgtypeid, layout of the 8583 header) */
+	private final Map<String, cnHeaderLayout> headerLayouts;
+	/** The charset of the text in the fields of the messages. */
+	private final cnCharsetCodec charset;
+	/** The layouts of each type merged with the layouts of all the types. */
+	private final Map<String, Map<Integer, cnSubFieldLayout>> typeLayouts = new HashMap<String, Map<Integer, cnSubFieldLayout>>();
+	/** The same information as parseMap, parseOrder and rules, ready to be used by the parser. */
+	private final Map<String, ParseGuide> parseGuides = new HashMap<String, ParseGuide>();
+	/** The specialized codec of the bitmap of each template, built when the configuration is
+	 * created. (msgtypeid, codec) */
+	private final Map<String, cnSpecializedCodec> templateCodecs = new HashMap<String, cnSpecializedCodec>();
+
+	/** The maps are owned by the new instance, callers must pass fresh copies. */
+	private cnMessageConfig(Maps m) {
+		this.typeTemplates = Collections.unmodifiableMap(m.typeTemplates);
+		this.parseMap = Collections.unmodifiableMap(m.parseMap);
+		this.parseOrder = Collections.unmodifiableMap(m.parseOrder);
+		this.msgheadersattr = Collections.unmodifiableMap(m.msgheadersattr);
+		this.rules = Collections.unmodifiableMap(m.rules);
+		this.layouts = Collections.unmodifiableMap(m.layouts);
+		this.headerLayouts = Collections.unmodifiableMap(m.headerLayouts);
+		this.charset = m.charset;
+		Map<Integer, cnSubFieldLayout> common = layouts.get(null);
+		for (Map.Entry<String, Map<Integer, cnSubFieldLayout>> e : layouts.entrySet()) {
+			if (e.getKey() != null && common != null) {
+				HashMap<Integer, cnSubFieldLayout> merged = new HashMap<Integer, cnSubFieldLayout>(common);
+				merged.putAll(e.getValue());
+				typeLayouts.put(e.getKey(), Collections.unmodifiableMap(merged));
+			} else {
+				typeLayouts.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<String, List<Integer>> e : parseOrder.entrySet()) {
+			parseGuides.put(e.getKey(), new ParseGuide(e.getValue(), parseMap.get(e.getKey()), rules.get(e.getKey())));
+		}
+		for (Map.Entry<String, cnMessage> e : typeTemplates.entrySet()) {
+			ParseGuide guide = parseGuides.get(e.getKey());
+			cnSpecializedCodec c = cnSpecializedCodec.build(guide, e.getValue());
+			if (c != null) {
+				templateCodecs.put(e.getKey(), c);
+				if (guide != null) {
+					guide.putCodec(c);
+				}
+			}
+		}
+	}
+
+	/** Returns the message template for the specified type, or null if there is none. */
+	public cnMessage getTemplate(String msgtypeid) {
+		return typeTemplates.get(msgtypeid);
+	}
+
+	/** Returns the parse guide for the specified type (fieldID, fieldInfo), or null if there is none. */
+	public Map<Integer, cnFieldParseInfo> getParseMap(String msgtypeid) {
+		return parseMap.get(msgtypeid);
+	}
+
+	/** Returns the field numbers of the parse guide for the specified type, sorted. */
+	public List<Integer> getParseOrder(String msgtypeid) {
+		return parseOrder.get(msgtypeid);
+	}
+
+	/** Returns the message types that have a parse guide. */
+	public Set<String> getParseTypes() {
+		return parseOrder.keySet();
+	}
+
+	/** Returns the parse guide for the specified type, or null if there is none. */
+	ParseGuide getParseGuide(String msgtypeid) {
+		return parseGuides.get(msgtypeid);
+	}
+
+	/** Returns the specialized codec of the bitmap of the template of the type, or null if
+	 * there is no template. */
+	cnSpecializedCodec getTemplateCodec(String msgtypeid) {
+		return templateCodecs.get(msgtypeid);
+	}
+
+	/** Returns the 8583 header length for the specified type, or null if it is not configured. */
+	public Integer getHeaderLength(String msgtypeid) {
+		return msgheadersattr.get(msgtypeid);
+	}
+
+	/** Returns all the configured header lengths. (msgtypeid, headerlength) */
+	public Map<String, Integer> getHeaderLengths() {
+		return msgheadersattr;
+	}
+
+	/** Returns the layout of the 8583 header of the specified type, or null if it has none. */
+	public cnHeaderLayout getHeaderLayout(String msgtypeid) {
+		return headerLayouts.get(msgtypeid);
+	}
+
+	/** Returns the charset of the text in the fields of the messages. */
+	public cnCharsetCodec getCharset() {
+		return charset;
+	}
+
+	/** Returns the validation rule for the specified type, or null if there is none. */
+	public cnValidationRule getValidationRule(String msgtypeid) {
+		return rules.get(msgtypeid);
+	}
+
+	/** Returns the layouts of the fields with sub-fields of the specified type, including
+	 * the layouts declared for all the types. (fieldID, layout) */
+	public Map<Integer, cnSubFieldLayout> getSubFieldLayouts(String msgtypeid) {
+		Map<Integer, cnSubFieldLayout> m = typeLayouts.get(msgtypeid);
+		if (m == null) {
+			m = typeLayouts.get(null);
+		}
+		if (m == null) {
+			return Collections.emptyMap();
+		}
+		return m;
+	}
+
+	/** Returns a copy of this configuration with the template added (or replacing the one
+	 * with the same message type id). */
+	public cnMessageConfig withTemplate(cnMessage templ) {
+		return withTemplate(templ.getMsgTypeID(), templ);
+	}
+
+	/** Returns a copy of this configuration with the template for the specified type, which
+	 * may be other than the type of the template itself. The template is not changed. */
+	public cnMessageConfig withTemplate(String msgtypeid, cnMessage templ) {
+		Maps m = new Maps(this);
+		m.typeTemplates.put(msgtypeid, templ);
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration without the template for the specified type. */
+	public cnMessageConfig withoutTemplate(String msgtypeid) {
+		Maps m = new Maps(this);
+		m.typeTemplates.remove(msgtypeid);
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the parse guide for the specified type.
+	 * The map is copied, so later changes to it have no effect on the configuration. */
+	public cnMessageConfig withParseMap(String msgtypeid, Map<Integer, cnFieldParseInfo> map) {
+		Maps m = new Maps(this);
+		m.parseMap.put(msgtypeid, Collections.unmodifiableMap(new HashMap<Integer, cnFieldParseInfo>(map)));
+		ArrayList<Integer> index = new ArrayList<Integer>();
+		index.addAll(map.keySet());
+		Collections.sort(index);
+		m.parseOrder.put(msgtypeid, Collections.unmodifiableList(index));
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the header length for the specified type. */
+	public cnMessageConfig withHeaderLength(String msgtypeid, Integer headerlen) {
+		Maps m = new Maps(this);
+		m.msgheadersattr.put(msgtypeid, headerlen);
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with all the header lengths replaced by the specified ones. */
+	public cnMessageConfig withHeaders(Map<String, Integer> headers) {
+		Maps m = new Maps(this);
+		m.msgheadersattr.clear();
+		m.msgheadersattr.putAll(headers);
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the layout of the 8583 header of the specified type.
+	 * @param layout The layout, or null to remove it. */
+	public cnMessageConfig withHeaderLayout(String msgtypeid, cnHeaderLayout layout) {
+		Maps m = new Maps(this);
+		if (layout == null) {
+			m.headerLayouts.remove(msgtypeid);
+		} else {
+			m.headerLayouts.put(msgtypeid, layout);
+		}
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the charset of the text in the fields. */
+	public cnMessageConfig withCharset(cnCharsetCodec codec) {
+		if (codec == null) {
+			throw new IllegalArgumentException("Charset cannot be null");
+		}
+		Maps m = new Maps(this);
+		m.charset = codec;
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the validation rule for the specified type.
+	 * @param rule The rule, or null to remove the rule of the type. */
+	public cnMessageConfig withValidationRule(String msgtypeid, cnValidationRule rule) {
+		Maps m = new Maps(this);
+		if (rule == null) {
+			m.rules.remove(msgtypeid);
+		} else {
+			m.rules.put(msgtypeid, rule);
+		}
+		return new cnMessageConfig(m);
+	}
+
+	/** Returns a copy of this configuration with the layout of the sub-fields of a field.
+	 * @param msgtypeid The message type, or null for all the types (a layout for a type
+	 * takes precedence over the one for all the types).
+	 * @param layout The layout, or null to remove it. */
+	public cnMessageConfig withSubFieldLayout(String msgtypeid, int fieldid, cnSubFieldLayout layout) {
+		Maps m = new Maps(this);
+		Map<Integer, cnSubFieldLayout> old = m.layouts.get(msgtypeid);
+		HashMap<Integer, cnSubFieldLayout> fl = old == null ? new HashMap<Integer, cnSubFieldLayout>()
+				: new HashMap<Integer, cnSubFieldLayout>(old);
+		if (layout == null) {
+			fl.remove(fieldid);
+		} else {
+			fl.put(fieldid, layout);
+		}
+		if (fl.isEmpty()) {
+			m.layouts.remove(msgtypeid);
+		} else {
+			m.layouts.put(msgtypeid, Collections.unmodifiableMap(fl));
+		}
+		return new cnMessageConfig(m);
+	}
+
+}
@@ -1,18 +1,26 @@
 package org.zyp.cn8583;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.zyp.cn8583.metrics.cnMessageMetrics;
+import org.zyp.cn8583.parse.cnConfigParser;
 import org.zyp.cn8583.parse.cnFieldParseInfo;
 
 
@@ -29,6 +37,12 @@ import org.zyp.cn8583.parse.cnFieldParseInfo;
  * It can also be configured to know what fields to expect in incoming messages (all possible values
  * must be stated, indicating the date type for each). This way the messages can be parsed from
  * a byte buffer.
+ * <P>
+ * ģ塢úͱͷȱڲɱcnMessageConfigУʱͨreload¼ء
+ * The templates, parse guides and header lengths are kept in an immutable cnMessageConfig
+ * referenced through a single atomic pointer. Every change replaces the whole snapshot,
+ * so messages can be created and parsed from several threads without locking while the
+ * configuration is changed or reloaded.
  * 
  * @author zyplanke
  *
@@ -36,21 +50,28 @@ import org.zyp.cn8583.parse.cnFieldParseInfo;
 public class cnMessageFactory  {
 	protected static final Log log = LogFactory.getLog(cnMessageFactory.class);
 
-	/** This map stores the message template for each message msgtypeid. (msgtypeid, Message)*/
-	private Map<String, cnMessage> typeTemplates = new HashMap<String, cnMessage>();
-	/** Stores the information needed to parse messages sorted by type. (msgtypeid, (fieldID, fieldInfo))*/
-	private Map<String, Map<Integer, cnFieldParseInfo>> parseMap = new HashMap<String, Map<Integer, cnFieldParseInfo>>();
-	/** Stores the field numbers to be parsed, in order of appearance. (msgtypeid, fieldID)*/
-	private Map<String, List<Integer>> parseOrder = new HashMap<String, List<Integer>>();
+	/** The thread that reads the new configuration when reload is called. */
+	private static ExecutorService reloader;
+
+	/** The current message templates, parse guides and header lengths. */
+	private final AtomicReference<cnMessageConfig> config = new AtomicReference<cnMessageConfig>(cnMessageConfig.EMPTY);
 
 	private cnSystemTraceNumGenerator SystraceNumGen;
-	/** The 8583 header to be included in each message msgtypeid. (msgtypeid, headerlength)*/
-	private Map<String, Integer> msgheadersattr = new HashMap<String, Integer>();
 	/** Indicates if the current date should be set on new messages (field 7). */
 	private boolean usecurrentdata;
 	/** Indicates if the factory should create binary messages and also parse binary messages. */
 	private boolean useBinary;
+	/** Indicates if parsed messages keep their frame, to copy the unchanged fields when written. */
+	private boolean keepSource;
+	/** Indicates if messages are parsed and encoded with the codecs specialized for their bitmap. */
+	private boolean useSpecialized;
 	private int etx = -1;
+	/** Computes and verifies the MAC in field 64/128, if not null. */
+	private cnMacGenerator macGenerator;
+	/** Records the time, size and errors of each operation, if not null. */
+	private cnMessageMetrics metrics;
+	/** Receives the events of parsing, encoding and creating messages; never null. */
+	private cnMessageListener listener = cnMessageListener.NONE;
 
 	/** Tells the receiver to create and parse binary messages if the flag is true.
 	 * Default is false, that is, create and parse ASCII messages. */
@@ -63,6 +84,44 @@ public class cnMessageFactory  {
 		return useBinary;
 	}
 
+
+	/** Tells the receiver to keep the frame of the messages it parses, and the position of
+	 * each field in it. When such a message is written, the fields that were not set since
+	 * it was parsed are copied from the frame as they are, and only the changed and added
+	 * fields are encoded; the bitmap is built again. This is for messages that are forwarded
+	 * with a few fields changed (e.g. 11, 32, 33, 41): the result is the same as encoding all
+	 * the fields, in less time.
+	 * <P>
+	 * The frame is not copied, so it must not be changed or reused while the message is used.
+	 * Changes made inside the objects returned by getField or getObjectValue (e.g. the bytes
+	 * of a binary field) are not seen: the field must be set again. If the charset or the
+	 * binary flag of the message is changed, all the fields are encoded.
+	 * Default is false. */
+	public void setKeepSource(boolean flag) {
+		keepSource = flag;
+	}
+	/** Returns true if parsed messages keep their frame. Default is false. */
+	public boolean getKeepSource() {
+		return keepSource;
+	}
+
+	/** Tells the receiver to parse and encode messages with codecs specialized for each
+	 * message type and bitmap: the fields present, their offsets and lengths and the decoding
+	 * of each one are worked out once per bitmap (for the bitmap of each template, when the
+	 * configuration is loaded), so a message is parsed without testing the bits of the absent
+	 * fields or the type of the present ones, and the messages created from a template or
+	 * parsed are encoded into a buffer of the right size. Messages whose bitmap has fields
+	 * that are not in the parse guide, and all the messages if there is a MAC generator, are
+	 * parsed and encoded as usual. The results are the same either way.
+	 * Default is false. */
+	public void setUseSpecializedCodecs(boolean flag) {
+		useSpecialized = flag;
+	}
+	/** Returns true if messages are parsed and encoded with specialized codecs. Default is false. */
+	public boolean getUseSpecializedCodecs() {
+		return useSpecialized;
+	}
+
 	/** Sets the ETX character to be sent at the end of the message. This is optional and the
 	 * default is -1, which means nothing should be sent as terminator.
 	 * @param value The ASCII value of the ETX character or -1 to indicate no terminator should be used. */
@@ -70,16 +129,94 @@ public class cnMessageFactory  {
 		etx = value;
 	}
 
+	/** Sets the charset of the text in the fields, for the messages created and parsed by this
+	 * factory. Default is GBK. Fields with their own charset in the configuration are not affected.
+	 * The charset is part of the configuration snapshot, so it is also replaced by reload.
+	 * @param charsetname The charset name, e.g. "GBK" or "GB18030". */
+	public void setCharset(String charsetname) {
+		cnCharsetCodec codec = cnCharsetCodec.forName(charsetname);
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withCharset(codec)));
+	}
+	/** Returns the charset of the text in the fields of the messages. */
+	public cnCharsetCodec getCharset() {
+		return config.get().getCharset();
+	}
+
+	/** Sets the generator used to compute the MAC of the messages created by this factory
+	 * and to verify the MAC of the messages it parses. Default is null (no MAC).
+	 * @see cnMessage#setMacGenerator(cnMacGenerator) */
+	public void setMacGenerator(cnMacGenerator gen) {
+		macGenerator = gen;
+	}
+	/** Returns the generator of the MAC, or null if there is none. */
+	public cnMacGenerator getMacGenerator() {
+		return macGenerator;
+	}
+
+	/** Sets the metrics where the time, size and errors of parseMessage, newMessagefromTemplate
+	 * and the writes of the messages created by this factory are recorded. Default is null,
+	 * which means nothing is measured.
+	 * @param value The metrics, or null to disable them. */
+	public void setMetrics(cnMessageMetrics value) {
+		metrics = value;
+	}
+	/** Returns the metrics of this factory, or null if they are disabled. */
+	public cnMessageMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Sets the listener that receives the events of the messages parsed and created by this
+	 * factory. It is also set in those messages, so it is notified when they are written.
+	 * @param value The listener, or null to remove it. */
+	public void setListener(cnMessageListener value) {
+		listener = value == null ? cnMessageListener.NONE : value;
+	}
+	/** Returns the listener of this factory (cnMessageListener.NONE if there is none). */
+	public cnMessageListener getListener() {
+		return listener;
+	}
+
 	/** Creates a new message of the specified type id from message template. If the factory is set to use binary
 	 * messages, then the returned message will be written using binary coding.
 	 * @param msgtypeid The message type id, ӦΪ4ַֽ*/
 	public cnMessage newMessagefromTemplate(String msgtypeid) {
-		cnMessage m = new cnMessage(msgtypeid, msgheadersattr.get(msgtypeid));
+		cnMessageMetrics mt = metrics;
+		if (mt == null) {
+			return createFromTemplate(msgtypeid);
+		}
+		long start = System.nanoTime();
+		try {
+			cnMessage m = createFromTemplate(msgtypeid);
+			mt.record(msgtypeid, cnMessageMetrics.Operation.CREATE, System.nanoTime() - start, 0);
+			return m;
+		} catch (RuntimeException ex) {
+			mt.recordError(msgtypeid, cnMessageMetrics.Operation.CREATE);
+			throw ex;
+		}
+	}
+
+	private cnMessage createFromTemplate(String msgtypeid) {
+		cnMessageListener ls = listener;
+		long start = ls == cnMessageListener.NONE ? 0 : System.nanoTime();
+		cnMessageConfig cfg = config.get();
+		cnMessage m = new cnMessage(msgtypeid, cfg.getHeaderLength(msgtypeid));
 		m.setEtx(etx);
 		m.setBinary(useBinary);
+		m.setCharset(cfg.getCharset());
+		m.setMacGenerator(macGenerator);
+		m.setMetrics(metrics);
+		m.setListener(ls);
+		m.setSubFieldLayouts(cfg.getSubFieldLayouts(msgtypeid));
+		m.useHeaderLayout(cfg.getHeaderLayout(msgtypeid));
+		if (useSpecialized) {
+			m.setSpecializedCodec(cfg.getTemplateCodec(msgtypeid));
+		}
 
 		//Copy the values from the template (ͨģֵ)
-		cnMessage templ = typeTemplates.get(msgtypeid);
+		cnMessage templ = cfg.getTemplate(msgtypeid);
 		if (templ != null) {
 			for (int i = 2; i < 128; i++) {
 				if (templ.hasField(i)) {
@@ -93,6 +230,9 @@ public class cnMessageFactory  {
 		if (usecurrentdata) {
 			m.setValue(7, new Date(), cnType.DATE10, 10);
 		}
+		if (ls != cnMessageListener.NONE) {
+			ls.templateApplied(m, templ, System.nanoTime() - start);
+		}
 		return m;
 	}
 
@@ -105,12 +245,21 @@ public class cnMessageFactory  {
 		String resptypeid = request.getMsgTypeID().substring(0, 2)
 							+ Integer.toString(Integer.parseInt(request.getMsgTypeID().substring(2,3)) + 1)
 							+ request.getMsgTypeID().substring(3, 4);
-		cnMessage resp = new cnMessage(resptypeid, msgheadersattr.get(resptypeid));
+		cnMessageListener ls = listener;
+		long start = ls == cnMessageListener.NONE ? 0 : System.nanoTime();
+		cnMessageConfig cfg = config.get();
+		cnMessage resp = new cnMessage(resptypeid, cfg.getHeaderLength(resptypeid));
 	
 		resp.setBinary(request.isBinary());
 		resp.setEtx(etx);
+		resp.setCharset(request.getCharset());
+		resp.setMacGenerator(macGenerator);
+		resp.setMetrics(metrics);
+		resp.setListener(ls);
+		resp.setSubFieldLayouts(cfg.getSubFieldLayouts(resptypeid));
+		resp.useHeaderLayout(cfg.getHeaderLayout(resptypeid));
 		//Copy the values from the template
-		cnMessage templ = typeTemplates.get(resp.getMsgTypeID());
+		cnMessage templ = cfg.getTemplate(resp.getMsgTypeID());
 		if (templ != null) {
 			for (int i = 2; i < 128; i++) {
 				if (templ.hasField(i)) {
@@ -124,13 +273,17 @@ public class cnMessageFactory  {
 				resp.setField(i, request.getField(i).clone());
 			}
 		}
+		if (ls != cnMessageListener.NONE) {
+			ls.templateApplied(resp, templ, System.nanoTime() - start);
+		}
 		return resp;
 	}
 
 	/**
 	 * Creates a new message instance from the buffer, which must contain a
 	 * valid 8583 message. If the factory is set to use binary messages then it
-	 * will try to parse a binary message.
+	 * will try to parse a binary message: the numeric, amount and date fields and the
+	 * length headers of LLVAR and LLLVAR fields are read as BCD.
 	 * 
 	 * @param buf
 	 *            The byte buffer containing the message. Must not include the
@@ -138,65 +291,404 @@ public class cnMessageFactory  {
 	 * @param msgheaderlength
 	 *            The expected length of the 8583 header, after which the
 	 *            message type id and the rest of the message must come.
+	 * <P>
+	 * This method keeps no state between calls and the parse guides are immutable, so it can
+	 * be called from any number of threads at the same time.
+	 * @throws ParseException if there is no parse guide for the message type, if the bitmap does
+	 * not match the validation rule of the type (checked before decoding the fields), if a field cannot
+	 * be parsed (e.g. the frame is too short), or if the factory
+	 * has a MAC generator and the MAC in field 64/128 is missing or wrong. The MAC is checked
+	 * over the received bytes, the message is not encoded again.
 	 */
 	public cnMessage parseMessage(byte[] buf, int msgheaderlength)
 			throws ParseException {
+		cnMessageMetrics mt = metrics;
+		cnMessageListener ls = listener;
+		if (mt == null && ls == cnMessageListener.NONE) {
+			return parse(buf, msgheaderlength, ls, 0);
+		}
+		long start = System.nanoTime();
+		if (mt == null) {
+			return parse(buf, msgheaderlength, ls, start);
+		}
+		try {
+			cnMessage m = parse(buf, msgheaderlength, ls, start);
+			mt.record(m.getMsgTypeID(), cnMessageMetrics.Operation.PARSE, System.nanoTime() - start, buf.length);
+			return m;
+		} catch (ParseException ex) {
+			mt.recordError(peekMsgTypeID(buf, msgheaderlength), cnMessageMetrics.Operation.PARSE);
+			throw ex;
+		} catch (RuntimeException ex) {
+			mt.recordError(peekMsgTypeID(buf, msgheaderlength), cnMessageMetrics.Operation.PARSE);
+			throw ex;
+		}
+	}
+
+	/** Returns the message type id of the message in the buffer, or null if the buffer is too short. */
+	private static String peekMsgTypeID(byte[] buf, int msgheaderlength) {
+		if (buf == null || msgheaderlength < 0 || buf.length < msgheaderlength + 4) {
+			return null;
+		}
+		return new String(buf, msgheaderlength, 4);
+	}
+
+	/** Parses the message, notifying the listener.
+	 * @param start The value of System.nanoTime() when the parsing started (only used with a listener). */
+	private cnMessage parse(byte[] buf, int msgheaderlength, cnMessageListener ls, long start) throws ParseException {
+		if (ls != cnMessageListener.NONE) {
+			ls.frameReceived(buf, msgheaderlength);
+		}
+		cnMessageConfig cfg = config.get();
 		cnMessage m = new cnMessage(new String(buf, msgheaderlength, 4),
 				msgheaderlength);
-		// TODO it only parses ASCII messages for now
+		m.setBinary(useBinary);
+		m.setCharset(cfg.getCharset());
+		m.setMacGenerator(macGenerator);
+		m.setMetrics(metrics);
+		m.setListener(ls);
 
 		// õͷ
 		m.setMessageHeaderData(0, Arrays.copyOfRange(buf, 0, msgheaderlength));
-
-		// Parse the bitmap (primary first)
-		BitSet bs = new BitSet(64);
-		int pos = 0;
-		for (int i = msgheaderlength + 4; i < msgheaderlength + 12; i++) {
-			int bit = 128;
-			for (int b = 0; b < 8; b++) {
-				bs.set(pos++, (buf[i] & bit) != 0);
-				bit >>= 1;
-			}
+		boolean keep = keepSource;
+		if (keep) {
+			m.keepSource(buf, useBinary);
 		}
 
+		// Parse the bitmap (primary first, field 1 is the highest bit)
+		int pos = msgheaderlength + 4;
+		long bitmap1 = readBitmapWord(buf, pos);
+		long bitmap2 = 0;
 		// Check for secondary bitmap and parse if necessary
-		if (bs.get(0)) {
-			for (int i = msgheaderlength + 12; i < msgheaderlength + 20; i++) {
-				int bit = 128;
-				for (int b = 0; b < 8; b++) {
-					bs.set(pos++, (buf[i] & bit) != 0);
-					bit >>= 1;
-				}
-			}
+		if (bitmap1 < 0) {
+			bitmap2 = readBitmapWord(buf, pos + 8);
 			pos = 20 + msgheaderlength;
 		} else {
 			pos = 12 + msgheaderlength;
 		}
 
+		cnMessageConfig.ParseGuide guide = cfg.getParseGuide(m.getMsgTypeID());
+		if (guide == null) {
+			throw new ParseException("No parse guide for message type [" + m.getMsgTypeID() + "]", msgheaderlength);
+		}
+		// УλͼеıѡͲֵ򣬲ʱ
+		if (guide.rule != null && !guide.rule.isValid(bitmap1, bitmap2)) {
+			throw new ParseException("Invalid message [" + m.getMsgTypeID() + "]: "
+					+ guide.rule.describe(bitmap1, bitmap2), msgheaderlength + 4);
+		}
+		int macfield = 0;	// MACڵ641280ʾУMAC
+		if (macGenerator != null) {
+			macfield = bitmap1 < 0 ? 128 : 64;
+			if (!hasBit(bitmap1, bitmap2, macfield)) {
+				throw new ParseException("Message has no MAC in field " + macfield, pos);
+			}
+		}
+
 		//Parse each field
-		Map<Integer, cnFieldParseInfo> parseGuide = parseMap.get(m.getMsgTypeID());
-		List<Integer> index = parseOrder.get(m.getMsgTypeID());	// ͱӦôڵID
-		for (Integer i : index) {
-			cnFieldParseInfo fpi = parseGuide.get(i);
-			if (bs.get(i - 1)) {
-				cnValue val = useBinary ? fpi.parseBinary(buf, pos) : fpi.parse(buf, pos);
-				m.setField(i, val);
-				if (useBinary && !(val.getType() == cnType.ALPHA || val.getType() == cnType.LLVAR
-						|| val.getType() == cnType.LLLVAR)) {
-					pos += (val.getLength() / 2) + (val.getLength() % 2);
-				} else {
-					pos += val.getLength();
+		cnSpecializedCodec sc = useSpecialized && macfield == 0 ? guide.getCodec(bitmap1, bitmap2) : null;
+		if (sc != null && sc.canParse()) {
+			// λͼרõĽֱӽ
+			pos = sc.parse(m, buf, pos, useBinary, keep, ls);
+			m.setSpecializedCodec(sc);
+		} else {
+			int[] index = guide.fieldids;	// ͱӦôڵID
+			for (int k = 0; k < index.length; k++) {
+				int i = index[k];
+				if (hasBit(bitmap1, bitmap2, i)) {
+					cnFieldParseInfo fpi = guide.infos[k];
+					if (i == macfield) {
+						verifyMac(buf, pos);
+						macfield = 0;
+					}
+					//the length header is read once: to decode the field and to find the next one
+					int len = fpi.getFieldLength(buf, pos, useBinary);
+					parseField(m, fpi, i, buf, pos, len, ls);
+					if (keep) {
+						m.setSourceRange(i, pos, len);
+					}
+					pos += len;
+				}
+			}
+		}
+		m.setSubFieldLayouts(cfg.getSubFieldLayouts(m.getMsgTypeID()));
+		m.useHeaderLayout(cfg.getHeaderLayout(m.getMsgTypeID()));
+		if (macfield > 0) {
+			throw new ParseException("No parse guide for MAC field " + macfield, pos);
+		}
+		if (ls != cnMessageListener.NONE) {
+			ls.messageParsed(m, buf, pos, System.nanoTime() - start);
+		}
+		return m;
+	}
+
+	/** Reads 8 bytes of bitmap as a long; the first field is the highest bit. */
+	static long readBitmapWord(byte[] buf, int pos) {
+		long l = 0;
+		for (int i = pos; i < pos + 8; i++) {
+			l = (l << 8) | (buf[i] & 0xff);
+		}
+		return l;
+	}
+
+	/** Indexes the fields of a message without decoding them, so the caller can look at a few
+	 * fields before (or instead of) parsing the whole message.
+	 * @param buf The message, without the length header.
+	 * @param msgheaderlength The length of the 8583 header.
+	 * @throws ParseException if there is no parse guide for the type or the message is too short. */
+	public cnFrameIndex indexMessage(byte[] buf, int msgheaderlength) throws ParseException {
+		String msgtypeid = peekMsgTypeID(buf, msgheaderlength);
+		if (msgtypeid == null) {
+			throw new ParseException("Message too short for the type", msgheaderlength);
+		}
+		cnMessageConfig cfg = config.get();
+		cnMessageConfig.ParseGuide guide = cfg.getParseGuide(msgtypeid);
+		if (guide == null) {
+			throw new ParseException("No parse guide for message type [" + msgtypeid + "]", msgheaderlength);
+		}
+		return new cnFrameIndex(buf, msgheaderlength, msgtypeid, guide, useBinary, cfg.getCharset());
+	}
+
+	/** Parses a message into an arena: the fields are located and copied to the arena as they
+	 * are, without decoding them, so no object is created per field. The message reads and
+	 * writes them in the arena with its typed accessors ({@link cnMessage#getString(int)},
+	 * {@link cnMessage#getLong(int)}, setString, setLong); the header and the message type
+	 * are the only data on the heap. The bitmap, the validation rule, the lengths and the MAC
+	 * are checked as in {@link #parseMessage(byte[], int)}, but a field with invalid data
+	 * is only detected when it is read.
+	 * @param arena The arena that holds the fields until it is reset.
+	 * @throws IllegalStateException if the arena is full. */
+	public cnMessage parseMessage(byte[] buf, int msgheaderlength, cnMessageArena arena)
+			throws ParseException {
+		cnMessageMetrics mt = metrics;
+		cnMessageListener ls = listener;
+		long start = mt == null && ls == cnMessageListener.NONE ? 0 : System.nanoTime();
+		try {
+			cnMessage m = parseIntoArena(buf, msgheaderlength, arena, ls, start);
+			if (mt != null) {
+				mt.record(m.getMsgTypeID(), cnMessageMetrics.Operation.PARSE, System.nanoTime() - start, buf.length);
+			}
+			return m;
+		} catch (ParseException ex) {
+			if (mt != null) {
+				mt.recordError(peekMsgTypeID(buf, msgheaderlength), cnMessageMetrics.Operation.PARSE);
+			}
+			throw ex;
+		}
+	}
+
+	private cnMessage parseIntoArena(byte[] buf, int msgheaderlength, cnMessageArena arena, cnMessageListener ls,
+			long start) throws ParseException {
+		if (ls != cnMessageListener.NONE) {
+			ls.frameReceived(buf, msgheaderlength);
+		}
+		String msgtypeid = peekMsgTypeID(buf, msgheaderlength);
+		int pos = msgheaderlength + 4;
+		if (msgtypeid == null || buf.length < pos + 8) {
+			throw new ParseException("Message too short for the bitmap", msgheaderlength);
+		}
+		cnMessageConfig cfg = config.get();
+		cnMessageConfig.ParseGuide guide = cfg.getParseGuide(msgtypeid);
+		if (guide == null) {
+			throw new ParseException("No parse guide for message type [" + msgtypeid + "]", msgheaderlength);
+		}
+		long bitmap1 = readBitmapWord(buf, pos);
+		long bitmap2 = 0;
+		if (bitmap1 < 0) {
+			if (buf.length < pos + 16) {
+				throw new ParseException("Message too short for the secondary bitmap", pos);
+			}
+			bitmap2 = readBitmapWord(buf, pos + 8);
+			pos += 16;
+		} else {
+			pos += 8;
+		}
+		if (guide.rule != null && !guide.rule.isValid(bitmap1, bitmap2)) {
+			throw new ParseException("Invalid message [" + msgtypeid + "]: "
+					+ guide.rule.describe(bitmap1, bitmap2), msgheaderlength + 4);
+		}
+		int macfield = 0;
+		if (macGenerator != null) {
+			macfield = bitmap1 < 0 ? 128 : 64;
+			if (!hasBit(bitmap1, bitmap2, macfield)) {
+				throw new ParseException("Message has no MAC in field " + macfield, pos);
+			}
+		}
+		cnMessage m = new cnMessage(msgtypeid, msgheaderlength);
+		m.setMessageHeaderData(0, Arrays.copyOfRange(buf, 0, msgheaderlength));
+		m.setBinary(useBinary);
+		m.setCharset(cfg.getCharset());
+		m.setMacGenerator(macGenerator);
+		m.setMetrics(metrics);
+		m.setListener(ls);
+		m.setSubFieldLayouts(cfg.getSubFieldLayouts(msgtypeid));
+		m.useHeaderLayout(cfg.getHeaderLayout(msgtypeid));
+		m.attachArena(arena, arena.allocateIndex(), guide.byField);
+		// ԭƵڴм¼ÿλúͳȣͷ
+		int fieldstart = pos;
+		int data = arena.allocate(buf.length - pos);
+		arena.put(data, buf, pos, buf.length - pos);
+		for (int k = 0; k < guide.fieldids.length; k++) {
+			int i = guide.fieldids[k];
+			if (!hasBit(bitmap1, bitmap2, i)) {
+				continue;
+			}
+			cnFieldParseInfo fpi = guide.infos[k];
+			int digits = fpi.getType().getLengthDigits();
+			int size;
+			if (digits > 0) {
+				int hs = cnBcdCodec.lengthHeaderSize(digits, useBinary);
+				if (pos + hs > buf.length) {
+					throw new ParseException("Message too short for the length of field " + i, pos);
 				}
-				if (val.getType() == cnType.LLVAR) {
-					pos += useBinary ? 1 : 2;
-				} else if (val.getType() == cnType.LLLVAR) {
-					pos += useBinary ? 2 : 3;
+				size = hs + cnBcdCodec.readLengthHeader(buf, pos, digits, useBinary);
+			} else {
+				size = fpi.getFixedLength(useBinary);
+			}
+			if (size < 0 || pos + size > buf.length) {
+				throw new ParseException("Message too short for field " + i, pos);
+			}
+			if (i == macfield) {
+				verifyMac(buf, pos);
+				macfield = 0;
+			}
+			m.setArenaField(i, data + pos - fieldstart, size);
+			pos += size;
+		}
+		if (macfield > 0) {
+			throw new ParseException("No parse guide for MAC field " + macfield, pos);
+		}
+		if (ls != cnMessageListener.NONE) {
+			ls.messageParsed(m, buf, pos, System.nanoTime() - start);
+		}
+		return m;
+	}
+
+	/** Creates a new message of the specified type in an arena, with the values of the template
+	 * (encoded into the arena) and the trace number and date, as
+	 * {@link #newMessagefromTemplate(String)} does. Its fields are set with the typed setters
+	 * of cnMessage, and must be in the parse guide of the type.
+	 * @param arena The arena that holds the fields until it is reset.
+	 * @throws IllegalArgumentException if there is no parse guide for the type.
+	 * @throws IllegalStateException if the arena is full. */
+	public cnMessage newMessage(String msgtypeid, cnMessageArena arena) {
+		cnMessageListener ls = listener;
+		long start = ls == cnMessageListener.NONE ? 0 : System.nanoTime();
+		cnMessageConfig cfg = config.get();
+		cnMessageConfig.ParseGuide guide = cfg.getParseGuide(msgtypeid);
+		if (guide == null) {
+			throw new IllegalArgumentException("No parse guide for message type [" + msgtypeid + "]");
+		}
+		cnMessage m = new cnMessage(msgtypeid, cfg.getHeaderLength(msgtypeid));
+		m.setEtx(etx);
+		m.setBinary(useBinary);
+		m.setCharset(cfg.getCharset());
+		m.setMacGenerator(macGenerator);
+		m.setMetrics(metrics);
+		m.setListener(ls);
+		m.setSubFieldLayouts(cfg.getSubFieldLayouts(msgtypeid));
+		m.useHeaderLayout(cfg.getHeaderLayout(msgtypeid));
+		m.attachArena(arena, arena.allocateIndex(), guide.byField);
+
+		cnMessage templ = cfg.getTemplate(msgtypeid);
+		if (templ != null) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			for (int i = 2; i < 128; i++) {
+				if (templ.hasField(i)) {
+					bout.reset();
+					try {
+						templ.getField(i).write(bout, useBinary, cfg.getCharset());
+					} catch (IOException ex) {
+						//should never happen, writing to a ByteArrayOutputStream
+					}
+					m.setArenaBytes(i, bout.toByteArray(), 0, bout.size());
 				}
 			}
 		}
+		if (SystraceNumGen != null && guide.byField[11] != null) {
+			m.setLong(11, SystraceNumGen.nextTrace());
+		}
+		if (usecurrentdata && guide.byField[7] != null) {
+			m.setString(7, cnType.DATE10.format(new Date()));
+		}
+		if (ls != cnMessageListener.NONE) {
+			ls.templateApplied(m, templ, System.nanoTime() - start);
+		}
 		return m;
 	}
 
+	/** Returns true if the bit of the field is set in the bitmap. */
+	static boolean hasBit(long bitmap1, long bitmap2, int fieldid) {
+		return fieldid <= 64 ? (bitmap1 << (fieldid - 1)) < 0 : (bitmap2 << (fieldid - 65)) < 0;
+	}
+
+	/** Checks a message against the validation rule of its type.
+	 * @return null if the message is valid or there is no rule for its type, otherwise a
+	 * description of the missing and unexpected fields. */
+	public String validate(cnMessage m) {
+		cnValidationRule rule = config.get().getValidationRule(m.getMsgTypeID());
+		if (rule == null) {
+			return null;
+		}
+		long[] b = cnValidationRule.bitmapOf(m);
+		return rule.describe(b[0], b[1]);
+	}
+
+	/** Sets the validation rule for a message type. When a message of this type is parsed, its
+	 * bitmap is checked against the rule before any field is decoded.
+	 * @param msgtypeid The message type id.
+	 * @param rule The rule, or null to remove the rule of the type. */
+	public void setValidationRule(String msgtypeid, cnValidationRule rule) {
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withValidationRule(msgtypeid, rule)));
+	}
+
+	/** Sets the layout of the sub-fields of a field, for the messages created and parsed by
+	 * this factory.
+	 * @param msgtypeid The message type id, or null for all the types.
+	 * @param fieldid The field number.
+	 * @param layout The layout, or null to remove it.
+	 * @see cnMessage#getSubField(int, int)
+	 * @see cnMessage#getTag(int, int) */
+	public void setSubFieldLayout(String msgtypeid, int fieldid, cnSubFieldLayout layout) {
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withSubFieldLayout(msgtypeid, fieldid, layout)));
+	}
+
+	/** Decodes one field into the message, reporting the failure to the listener. */
+	private void parseField(cnMessage m, cnFieldParseInfo fpi, int i, byte[] buf, int pos, int len, cnMessageListener ls)
+			throws ParseException {
+		try {
+			m.setField(i, fpi.parse(buf, pos, len, m.getCharset(), useBinary));
+		} catch (ParseException ex) {
+			ls.fieldDecodeFailed(m.getMsgTypeID(), i, pos, buf, ex);
+			throw ex;
+		} catch (RuntimeException ex) {
+			ls.fieldDecodeFailed(m.getMsgTypeID(), i, pos, buf, ex);
+			ParseException pe = new ParseException("Cannot parse field " + i + ": " + ex, pos);
+			pe.initCause(ex);
+			throw pe;
+		}
+	}
+
+	/** Verifies the MAC that starts at the specified position, computed over the bytes before it. */
+	private void verifyMac(byte[] buf, int macpos) throws ParseException {
+		int maclen = macGenerator.getMacLength();
+		if (macpos + maclen > buf.length) {
+			throw new ParseException("Message too short for MAC", macpos);
+		}
+		byte[] mac = macGenerator.computeMac(buf, 0, macpos);
+		int diff = 0;
+		for (int i = 0; i < maclen; i++) {
+			diff |= mac[i] ^ buf[macpos + i];
+		}
+		if (diff != 0) {
+			throw new ParseException("Invalid MAC", macpos);
+		}
+	}
+
 	/** Sets whether the factory should set the current date on newly created messages,
 	 * in field 7. Default is false. */
 	public void setUseCurrentDate(boolean flag) {
@@ -222,33 +714,99 @@ public class cnMessageFactory  {
 	 * @param value A map where the keys are the message type id and the values are the message headers length.
 	 */
 	public void setHeaders(Map<String, Integer> value) {
-		msgheadersattr.clear();
-		msgheadersattr.putAll(value);
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withHeaders(value)));
 	}
 
 	/** Sets the 8583 header attr for a specific message type.
 	 * @param msgtypeid The message type( 4 bytes)
 	 * @param headerlen The message header length */
 	public void setHeaderLengthAttr(String msgtypeid, Integer headerlen) {
-			msgheadersattr.put(msgtypeid, headerlen);
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withHeaderLength(msgtypeid, headerlen)));
 	}
 
 	/** Returns the 8583 header length for the specified type. */
 	public Integer getHeaderLengthAttr(String msgtypeid) {
-		return msgheadersattr.get(msgtypeid);
+		return config.get().getHeaderLength(msgtypeid);
+	}
+
+	/** Finds the 8583 header length of the message in the buffer, for callers that receive
+	 * messages of several types: the message type id is read after each configured header
+	 * length, and the first one whose type is configured with that length is returned.
+	 * @param buf The message, without the length header.
+	 * @return The header length, or -1 if no configured type matches. */
+	public int findHeaderLength(byte[] buf) {
+		cnMessageConfig cfg = config.get();
+		for (Integer len : cfg.getHeaderLengths().values()) {
+			String msgtypeid = peekMsgTypeID(buf, len);
+			if (msgtypeid != null && len.equals(cfg.getHeaderLength(msgtypeid))) {
+				return len;
+			}
+		}
+		return -1;
+	}
+
+	/** Finds the layout of the 8583 header of the message in the buffer, as
+	 * {@link #findHeaderLength(byte[])} finds its length, so that a frame can be routed or
+	 * forwarded by the items of its header (read and changed in place with the methods of the
+	 * layout) without parsing its fields.
+	 * @param buf The message, without the length header.
+	 * @return The layout, or null if no configured type matches or its header has no layout. */
+	public cnHeaderLayout findHeaderLayout(byte[] buf) {
+		cnMessageConfig cfg = config.get();
+		for (Integer len : cfg.getHeaderLengths().values()) {
+			String msgtypeid = peekMsgTypeID(buf, len);
+			if (msgtypeid != null && len.equals(cfg.getHeaderLength(msgtypeid))) {
+				return cfg.getHeaderLayout(msgtypeid);
+			}
+		}
+		return null;
+	}
+
+	/** Sets the layout of the 8583 header of a message type, for the messages created and
+	 * parsed by this factory.
+	 * @param layout The layout, or null to handle the header only as bytes.
+	 * @throws IllegalArgumentException if the header length of the type is configured and
+	 * is not the length of the layout. */
+	public void setHeaderLayout(String msgtypeid, cnHeaderLayout layout) {
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+			Integer len = cfg.getHeaderLength(msgtypeid);
+			if (layout != null && len != null && len != layout.getLength()) {
+				throw new IllegalArgumentException("The header layout has " + layout.getLength()
+						+ " bytes, the header of [" + msgtypeid + "] has " + len);
+			}
+		} while (!config.compareAndSet(cfg, cfg.withHeaderLayout(msgtypeid, layout)));
+	}
+
+	/** Returns the layout of the 8583 header of a message type, or null if it has none. */
+	public cnHeaderLayout getHeaderLayout(String msgtypeid) {
+		return config.get().getHeaderLayout(msgtypeid);
 	}
 
 	/** Adds a message template to the factory. If there was a template for the same
 	 * message type id as the new one, it is overwritten. */
 	public void addMessageTemplate(cnMessage templ) {
 		if (templ != null) {
-			typeTemplates.put(templ.getMsgTypeID(), templ);
+			cnMessageConfig cfg;
+			do {
+				cfg = config.get();
+			} while (!config.compareAndSet(cfg, cfg.withTemplate(templ)));
 		}
 	}
 
 	/** Removes the message template for the specified message type id. */
 	public void removeMessageTemplate(String msgtypeid) {
-		typeTemplates.remove(msgtypeid);
+		cnMessageConfig cfg;
+		do {
+			cfg = config.get();
+		} while (!config.compareAndSet(cfg, cfg.withoutTemplate(msgtypeid)));
 	}
 
 	/** Sets a message template for a specified message type. When new messages of that type
@@ -259,9 +817,13 @@ public class cnMessageFactory  {
 	 * @deprecated Use addMessageTemplate(cnMessage) and removeMessageTemplate(String) instead of this. */
 	public void setMessageTemplate(String msgtypeid, cnMessage templ) {
 		if (templ == null) {
-			typeTemplates.remove(msgtypeid);
+			removeMessageTemplate(msgtypeid);
 		} else {
-			typeTemplates.put(msgtypeid, templ);
+			//stored under the given type as it is: the template may be registered under others
+			cnMessageConfig cfg;
+			do {
+				cfg = config.get();
+			} while (!config.compareAndSet(cfg, cfg.withTemplate(msgtypeid, templ)));
 		}
 	}
 
@@ -271,12 +833,70 @@ public class cnMessageFactory  {
 	 * @param map A map of FieldParseInfo instances, each of which define what type and length
 	 * of field to expect. The keys will be the field numbers. */
 	public void setParseMap(String msgtypeid, Map<Integer, cnFieldParseInfo> map) {
-		parseMap.put(msgtypeid, map);
-		ArrayList<Integer> index = new ArrayList<Integer>();
-		index.addAll(map.keySet());
-		Collections.sort(index);
-		log.trace("Adding parse map for type: [" + msgtypeid + "] with fields " + index);
-		parseOrder.put(msgtypeid, index);
+		cnMessageConfig cfg;
+		cnMessageConfig upd;
+		do {
+			cfg = config.get();
+			upd = cfg.withParseMap(msgtypeid, map);
+		} while (!config.compareAndSet(cfg, upd));
+		log.trace("Adding parse map for type: [" + msgtypeid + "] with fields " + upd.getParseOrder(msgtypeid));
+	}
+
+	/** Returns the current configuration snapshot (templates, parse guides and header lengths). */
+	public cnMessageConfig getConfig() {
+		return config.get();
+	}
+
+	/** Replaces the whole configuration with the specified snapshot. Messages being created or
+	 * parsed at the moment keep using the previous snapshot until they are done. */
+	public void setConfig(cnMessageConfig cfg) {
+		if (cfg == null) {
+			throw new IllegalArgumentException("Configuration cannot be null");
+		}
+		config.set(cfg);
+	}
+
+	/** Reads the XML configuration from the specified URL in a background thread and, when it has
+	 * been read successfully, replaces the current configuration with it in one step.
+	 * If the new configuration has any error the current one is kept, and the error is
+	 * thrown by the returned Future.
+	 * <P>
+	 * Everything the XML can set is in the snapshot and is replaced: templates, parse guides,
+	 * headers and their layouts, validation rules, sub-field layouts and the charset of the
+	 * j8583cn-config element (GBK if the new XML has none). The properties that are only set
+	 * with the setters of the factory are kept: binary, ETX, keep source, MAC
+	 * generator, metrics, listener, trace number generator and current date.
+	 * @param url The location of the new XML configuration.
+	 * @return A Future that gives the new configuration once it is in use. */
+	public Future<cnMessageConfig> reload(final URL url) {
+		return reloader().submit(new Callable<cnMessageConfig>() {
+			public cnMessageConfig call() throws Exception {
+				cnMessageConfig cfg = cnConfigParser.createFromUrl(url).getConfig();
+				config.set(cfg);
+				log.info("Reloaded message configuration from [" + url + "]");
+				return cfg;
+			}
+		});
+	}
+
+	/** Reads the XML configuration from the specified file in a background thread and replaces
+	 * the current configuration with it. See reload(URL).
+	 * @param filepath The full path and file name of the XML configuration. */
+	public Future<cnMessageConfig> reload(String filepath) throws MalformedURLException {
+		return reload(new File(filepath).toURI().toURL());
+	}
+
+	private static synchronized ExecutorService reloader() {
+		if (reloader == null) {
+			reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "cn8583-config-reload");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return reloader;
 	}
 
 }
@@ -0,0 +1,54 @@
+package org.zyp.cn8583;
+
+/**
+ * Ľе¼ӿڣڸضնˡĻԼͳơ
+ * This interface receives the events of the parsing and encoding of messages, so that
+ * specific terminals can be traced, messages sampled or sent to other telemetry.
+ * Set it in a cnMessageFactory (which also sets it in the messages it creates and parses)
+ * or directly in a cnMessage.
+ * <P>
+ * By default the factory and the messages use NONE, and they do not even read the clock
+ * for the events. The methods are called in the thread that parses or writes the message,
+ * so they must be fast and thread safe; extend cnMessageListenerAdapter to implement only
+ * some of them.
+ * 
+ * @author zyplanke
+ */
+public interface cnMessageListener {
+
+	/** The listener that does nothing. */
+	public static final cnMessageListener NONE = new cnMessageListenerAdapter();
+
+	/** Called when parseMessage starts with a frame.
+	 * @param buf The frame (without the length header).
+	 * @param msgheaderlength The length of the 8583 header, where the message type starts. */
+	public void frameReceived(byte[] buf, int msgheaderlength);
+
+	/** Called when a frame has been parsed.
+	 * @param m The message.
+	 * @param buf The frame.
+	 * @param length The number of bytes of the frame that were parsed (the end of the last field).
+	 * @param nanos The time it took to parse it, in nanoseconds. */
+	public void messageParsed(cnMessage m, byte[] buf, int length, long nanos);
+
+	/** Called when a field cannot be parsed. parseMessage then throws a ParseException.
+	 * @param msgtypeid The message type id.
+	 * @param fieldid The number of the field.
+	 * @param offset The position of the field in the frame.
+	 * @param buf The frame.
+	 * @param error The exception thrown when parsing the field. */
+	public void fieldDecodeFailed(String msgtypeid, int fieldid, int offset, byte[] buf, Exception error);
+
+	/** Called when a message has been written.
+	 * @param m The message.
+	 * @param data The bytes of the message, without the length header and ETX.
+	 * @param nanos The time it took to encode it, in nanoseconds. */
+	public void messageEncoded(cnMessage m, byte[] data, long nanos);
+
+	/** Called when a message has been created by newMessagefromTemplate or createResponse.
+	 * @param m The new message.
+	 * @param template The template whose values were copied, or null if there is none for the type.
+	 * @param nanos The time it took to create the message, in nanoseconds. */
+	public void templateApplied(cnMessage m, cnMessage template, long nanos);
+
+}
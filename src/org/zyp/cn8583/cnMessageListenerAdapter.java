@@ -0,0 +1,27 @@
+package org.zyp.cn8583;
+
+/**
+ * cnMessageListenerĿʵ֣зκ顣
+ * An implementation of cnMessageListener whose methods do nothing. Extend it to
+ * receive only some of the events.
+ * 
+ * @author zyplanke
+ */
+public class cnMessageListenerAdapter implements cnMessageListener {
+
+	public void frameReceived(byte[] buf, int msgheaderlength) {
+	}
+
+	public void messageParsed(cnMessage m, byte[] buf, int length, long nanos) {
+	}
+
+	public void fieldDecodeFailed(String msgtypeid, int fieldid, int offset, byte[] buf, Exception error) {
+	}
+
+	public void messageEncoded(cnMessage m, byte[] data, long nanos) {
+	}
+
+	public void templateApplied(cnMessage m, cnMessage template, long nanos) {
+	}
+
+}
@@ -0,0 +1,200 @@
+package org.zyp.cn8583;
+
+import java.text.ParseException;
+
+import org.zyp.cn8583.parse.cnFieldParseInfo;
+
+/**
+ * ĳһĳһλͼרõĽ롣
+ * The parser and encoder of one message type with one bitmap. Everything that does not
+ * depend on the data is worked out when the codec is built: the fields present, in order;
+ * the length of the fixed fields, so the fields before the first LLVAR or LLLVAR field have
+ * constant offsets and the others constant offsets from the end of the variable field before
+ * them; the size of the length headers; the decoding of each field, so the ALPHA, NUMERIC,
+ * LLVAR and LLLVAR text fields are decoded here directly instead of going through the type
+ * tests of {@link cnFieldParseInfo}; and the bytes of the bitmap. Parsing a message is then a
+ * straight walk over its fields, with no bit tests and no per-type dispatch for the common
+ * fields, and encoding writes the bitmap at once into a buffer of the right size.
+ * <P>
+ * The codecs are built by the configuration: the codec of the bitmap of each template when
+ * the configuration is loaded, the others the first time their bitmap is received (see
+ * {@link cnMessageConfig.ParseGuide#getCodec(long, long)}). They are only used when the
+ * factory is told to ({@link cnMessageFactory#setUseSpecializedCodecs(boolean)}); messages
+ * that have a MAC, or fields that are not in the parse guide, go through the usual parser and
+ * encoder. Instances are immutable apart from the size hint of the encoder.
+ *
+ * @author zyplanke
+ */
+final class cnSpecializedCodec {
+
+	/** The field is decoded by its parse info. */
+	private static final int GENERIC = 0;
+	/** ALPHA (or NUMERIC in a text message) of a fixed length, decoded as text. */
+	private static final int TEXT = 1;
+	/** LLVAR or LLLVAR, decoded as text after its length header. */
+	private static final int VARTEXT = 2;
+
+	final long bitmap1;
+	final long bitmap2;
+	/** The bitmap as it is written: 8 bytes, or 16 with the secondary bitmap. */
+	final byte[] bitmapBytes;
+	/** The fields of the bitmap (without field 1), sorted. */
+	final int[] fieldids;
+	/** The parse info of each field, or null if the codec only encodes: the type has no parse
+	 * guide or the bitmap has fields that are not in it. */
+	private final cnFieldParseInfo[] infos;
+	/** The decoding of each field; [0] in text messages, [1] in binary messages. */
+	private final int[][] kinds = new int[2][];
+	/** The size of each field in bytes, or -1 if it has a length header; [0] text, [1] binary. */
+	private final int[][] lengths = new int[2][];
+	/** The size of the length header of each field, 0 if it has none; [0] text, [1] binary. */
+	private final int[][] headerSizes = new int[2][];
+	/** The number of digits of the length header of each field, 0 if it has none. */
+	private final int[] digits;
+	/** The size of the last frame encoded with this codec, so the next one is written into a
+	 * buffer of the right size. Only a hint: it is read and written without synchronization. */
+	int sizeHint = 64;
+
+	private cnSpecializedCodec(long bitmap1, long bitmap2, int[] fieldids, cnFieldParseInfo[] infos) {
+		this.bitmap1 = bitmap1;
+		this.bitmap2 = bitmap2;
+		this.fieldids = fieldids;
+		this.infos = infos;
+		bitmapBytes = new byte[bitmap1 < 0 ? 16 : 8];
+		for (int i = 0; i < bitmapBytes.length; i++) {
+			long word = i < 8 ? bitmap1 : bitmap2;
+			bitmapBytes[i] = (byte) (word >>> (56 - (i % 8) * 8));
+		}
+		if (infos == null) {
+			digits = null;
+			return;
+		}
+		digits = new int[fieldids.length];
+		for (int b = 0; b < 2; b++) {
+			boolean binary = b == 1;
+			kinds[b] = new int[fieldids.length];
+			lengths[b] = new int[fieldids.length];
+			headerSizes[b] = new int[fieldids.length];
+			for (int k = 0; k < fieldids.length; k++) {
+				cnFieldParseInfo fpi = infos[k];
+				cnType t = fpi.getType();
+				digits[k] = t.getLengthDigits();
+				lengths[b][k] = fpi.getFixedLength(binary);
+				headerSizes[b][k] = digits[k] > 0 ? cnBcdCodec.lengthHeaderSize(digits[k], binary) : 0;
+				if (fpi.getInterner() != null) {
+					kinds[b][k] = GENERIC;
+				} else if (t == cnType.ALPHA || (t == cnType.NUMERIC && !binary)) {
+					kinds[b][k] = TEXT;
+				} else if (t == cnType.LLVAR || t == cnType.LLLVAR) {
+					kinds[b][k] = VARTEXT;
+				} else {
+					kinds[b][k] = GENERIC;
+				}
+			}
+		}
+	}
+
+	/** Builds the codec of a bitmap.
+	 * @param guide The parse guide of the message type, or null to build a codec that only
+	 * encodes.
+	 * @param bitmap1 The primary bitmap; its highest bit is set if there is a secondary one.
+	 * @param bitmap2 The secondary bitmap, or 0. */
+	static cnSpecializedCodec build(cnMessageConfig.ParseGuide guide, long bitmap1, long bitmap2) {
+		int count = Long.bitCount(bitmap1 & Long.MAX_VALUE) + Long.bitCount(bitmap2);
+		int[] ids = new int[count];
+		cnFieldParseInfo[] infos = guide == null ? null : new cnFieldParseInfo[count];
+		int n = 0;
+		for (int i = 2; i <= 128; i++) {
+			if (cnMessageFactory.hasBit(bitmap1, bitmap2, i)) {
+				ids[n] = i;
+				if (infos != null) {
+					infos[n] = guide.byField[i];
+					if (infos[n] == null) {
+						infos = null;	// λͼнûеֻ
+					}
+				}
+				n++;
+			}
+		}
+		return new cnSpecializedCodec(bitmap1, bitmap2, ids, infos);
+	}
+
+	/** Builds the codec of the bitmap of a template, or returns null if it has no fields. */
+	static cnSpecializedCodec build(cnMessageConfig.ParseGuide guide, cnMessage templ) {
+		long b1 = 0;
+		long b2 = 0;
+		for (int i = 2; i <= 128; i++) {
+			if (templ.hasField(i)) {
+				if (i <= 64) {
+					b1 |= cnValidationRule.bit(i);
+				} else {
+					b2 |= cnValidationRule.bit(i);
+				}
+			}
+		}
+		if (b2 != 0) {
+			b1 |= Long.MIN_VALUE;
+		}
+		return b1 == 0 ? null : build(guide, b1, b2);
+	}
+
+	/** Returns true if this is the codec of the bitmap. */
+	boolean matches(long b1, long b2) {
+		return bitmap1 == b1 && bitmap2 == b2;
+	}
+
+	/** Returns true if the codec can parse messages, not only encode them. */
+	boolean canParse() {
+		return infos != null;
+	}
+
+	/** Parses the fields of a message with the bitmap of this codec.
+	 * @param pos The position of the first field, after the bitmap.
+	 * @param binary true if the message is binary coded.
+	 * @param keep true to record the position of each field in the message, as the source of
+	 * the fields that are not changed.
+	 * @return The position after the last field.
+	 * @throws ParseException if a field cannot be parsed; the listener is told first. */
+	int parse(cnMessage m, byte[] buf, int pos, boolean binary, boolean keep, cnMessageListener ls) throws ParseException {
+		int b = binary ? 1 : 0;
+		int[] kind = kinds[b];
+		int[] length = lengths[b];
+		int[] header = headerSizes[b];
+		cnCharsetCodec msgcodec = m.getCharset();
+		int k = 0;
+		try {
+			for (; k < fieldids.length; k++) {
+				cnFieldParseInfo fpi = infos[k];
+				int len = length[k];
+				if (len < 0) {
+					len = header[k] + cnBcdCodec.readLengthHeader(buf, pos, digits[k], binary);
+				}
+				cnValue<?> v;
+				if (kind[k] == TEXT) {
+					cnCharsetCodec codec = fpi.getCharset() == null ? msgcodec : fpi.getCharset();
+					v = new cnValue<String>(fpi.getType(), codec.decode(buf, pos, len), len);
+				} else if (kind[k] == VARTEXT) {
+					cnCharsetCodec codec = fpi.getCharset() == null ? msgcodec : fpi.getCharset();
+					v = new cnValue<String>(fpi.getType(), codec.decode(buf, pos + header[k], len - header[k]));
+				} else {
+					v = fpi.parse(buf, pos, len, msgcodec, binary);
+				}
+				m.setParsedField(fieldids[k], v);
+				if (keep) {
+					m.setSourceRange(fieldids[k], pos, len);
+				}
+				pos += len;
+			}
+		} catch (ParseException ex) {
+			ls.fieldDecodeFailed(m.getMsgTypeID(), fieldids[k], pos, buf, ex);
+			throw ex;
+		} catch (RuntimeException ex) {
+			ls.fieldDecodeFailed(m.getMsgTypeID(), fieldids[k], pos, buf, ex);
+			ParseException pe = new ParseException("Cannot parse field " + fieldids[k] + ": " + ex, pos);
+			pe.initCause(ex);
+			throw pe;
+		}
+		return pos;
+	}
+
+}
@@ -0,0 +1,222 @@
+package org.zyp.cn8583;
+
+import java.util.Arrays;
+
+/**
+ * ¼ڱԭʼֽеλá
+ * The index of the sub-fields of one field value: the bytes of the field and where each
+ * sub-field is in them. Sub-fields are read as slices of those bytes, so looking up one tag
+ * or one sub-field does not decode the rest of the field. A new value of a sub-field is
+ * written by copying the untouched parts of the bytes around it.
+ * <P>
+ * The index is built the first time a sub-field of a value is accessed and kept in the
+ * value (which is never modified). Instances are immutable.
+ *
+ * @author zyplanke
+ */
+final class cnSubFieldIndex {
+
+	/** The padding of fixed sub-fields. */
+	private static final byte SPACE = 0x20;
+
+	final cnSubFieldLayout layout;
+	/** The codec the bytes were encoded with. */
+	final cnCharsetCodec codec;
+	private final byte[] raw;
+	/** For TLV: the tag, the start of the data object, and the offset and length of its value. */
+	private final int[] tags;
+	private final int[] starts;
+	private final int[] offsets;
+	private final int[] lengths;
+
+	private cnSubFieldIndex(cnSubFieldLayout layout, cnCharsetCodec codec, byte[] raw, int count) {
+		this.layout = layout;
+		this.codec = codec;
+		this.raw = raw;
+		tags = new int[count];
+		starts = new int[count];
+		offsets = new int[count];
+		lengths = new int[count];
+	}
+
+	/** Builds the index of the bytes of a field.
+	 * @throws IllegalArgumentException if the layout is TLV and the bytes are not valid BER-TLV. */
+	static cnSubFieldIndex build(cnSubFieldLayout layout, cnCharsetCodec codec, byte[] raw) {
+		if (!layout.isTlv()) {
+			return new cnSubFieldIndex(layout, codec, raw, 0);
+		}
+		// һֻڶ¼λã
+		int count = scanTlv(raw, null);
+		cnSubFieldIndex idx = new cnSubFieldIndex(layout, codec, raw, count);
+		scanTlv(raw, idx);
+		return idx;
+	}
+
+	/** Walks the BER-TLV data objects of the buffer, recording them in the index if it is
+	 * not null, and returns how many there are. Padding bytes (00 or FF) between data
+	 * objects are skipped. */
+	private static int scanTlv(byte[] raw, cnSubFieldIndex idx) {
+		int n = 0;
+		int pos = 0;
+		while (pos < raw.length) {
+			int b = raw[pos] & 0xff;
+			if (b == 0x00 || b == 0xff) {
+				pos++;
+				continue;
+			}
+			int start = pos++;
+			int tag = b;
+			if ((b & 0x1f) == 0x1f) {	// ֽڱǩֽλΪ1ʾһֽ
+				do {
+					if (pos >= raw.length || pos - start > 3) {
+						throw new IllegalArgumentException("Invalid TLV tag at offset " + start);
+					}
+					b = raw[pos++] & 0xff;
+					tag = (tag << 8) | b;
+				} while ((b & 0x80) != 0);
+			}
+			if (pos >= raw.length) {
+				throw new IllegalArgumentException("Missing TLV length at offset " + pos);
+			}
+			int len = raw[pos++] & 0xff;
+			if (len > 0x80) {
+				int nbytes = len & 0x7f;
+				if (nbytes > 3 || pos + nbytes > raw.length) {
+					throw new IllegalArgumentException("Invalid TLV length at offset " + (pos - 1));
+				}
+				len = 0;
+				for (int i = 0; i < nbytes; i++) {
+					len = (len << 8) | (raw[pos++] & 0xff);
+				}
+			} else if (len == 0x80) {
+				throw new IllegalArgumentException("Indefinite TLV length at offset " + (pos - 1));
+			}
+			if (pos + len > raw.length) {
+				throw new IllegalArgumentException("TLV value of tag " + Integer.toHexString(tag).toUpperCase()
+						+ " exceeds the field at offset " + pos);
+			}
+			if (idx != null) {
+				idx.tags[n] = tag;
+				idx.starts[n] = start;
+				idx.offsets[n] = pos;
+				idx.lengths[n] = len;
+			}
+			n++;
+			pos += len;
+		}
+		return n;
+	}
+
+	/** Returns the number of TLV data objects. */
+	int getTagCount() {
+		return tags.length;
+	}
+
+	/** Returns the tags of the TLV data objects, in order of appearance. */
+	int[] getTags() {
+		return tags.clone();
+	}
+
+	private int find(int tag) {
+		for (int i = 0; i < tags.length; i++) {
+			if (tags[i] == tag) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Returns a copy of the value of a TLV data object, or null if the tag is not present. */
+	byte[] getTag(int tag) {
+		int i = find(tag);
+		return i < 0 ? null : Arrays.copyOfRange(raw, offsets[i], offsets[i] + lengths[i]);
+	}
+
+	/** Returns the bytes of a fixed sub-field, or null if the field ends before it.
+	 * The last sub-field may be shorter than its length, if the field is. */
+	byte[] getSubFieldBytes(int num) {
+		int off = layout.getSubFieldOffset(num);
+		if (off >= raw.length) {
+			return null;
+		}
+		return Arrays.copyOfRange(raw, off, Math.min(raw.length, off + layout.getSubFieldLength(num)));
+	}
+
+	/** Returns the text of a fixed sub-field, or null if the field ends before it. */
+	String getSubField(int num) {
+		int off = layout.getSubFieldOffset(num);
+		if (off >= raw.length) {
+			return null;
+		}
+		return codec.decode(raw, off, Math.min(raw.length - off, layout.getSubFieldLength(num)));
+	}
+
+	/** Returns the bytes of the field with the specified sub-field replaced. The value is padded
+	 * with spaces or cut to the length of the sub-field; if the field ends before the sub-field,
+	 * the sub-fields in between are filled with spaces. */
+	byte[] withSubField(int num, byte[] value) {
+		int off = layout.getSubFieldOffset(num);
+		int len = layout.getSubFieldLength(num);
+		byte[] buf = new byte[Math.max(raw.length, off + len)];
+		System.arraycopy(raw, 0, buf, 0, raw.length);
+		if (raw.length < off) {
+			Arrays.fill(buf, raw.length, off, SPACE);
+		}
+		int n = Math.min(len, value.length);
+		System.arraycopy(value, 0, buf, off, n);
+		Arrays.fill(buf, off + n, off + len, SPACE);
+		return buf;
+	}
+
+	/** Returns the bytes of the field with the value of the TLV data object replaced, added
+	 * at the end if the tag is not present, or removed if the value is null. */
+	byte[] withTag(int tag, byte[] value) {
+		int i = find(tag);
+		int from = i < 0 ? raw.length : starts[i];
+		int to = i < 0 ? raw.length : offsets[i] + lengths[i];
+		int tagsize = tagSize(tag);
+		int lensize = value == null ? 0 : lengthSize(value.length);
+		int objsize = value == null ? 0 : tagsize + lensize + value.length;
+		byte[] buf = new byte[raw.length - (to - from) + objsize];
+		System.arraycopy(raw, 0, buf, 0, from);
+		int pos = from;
+		if (value != null) {
+			for (int s = (tagsize - 1) * 8; s >= 0; s -= 8) {
+				buf[pos++] = (byte) (tag >>> s);
+			}
+			if (lensize == 1) {
+				buf[pos++] = (byte) value.length;
+			} else {
+				buf[pos++] = (byte) (0x80 | (lensize - 1));
+				for (int s = (lensize - 2) * 8; s >= 0; s -= 8) {
+					buf[pos++] = (byte) (value.length >>> s);
+				}
+			}
+			System.arraycopy(value, 0, buf, pos, value.length);
+			pos += value.length;
+		}
+		System.arraycopy(raw, to, buf, pos, raw.length - to);
+		return buf;
+	}
+
+	/** Returns the number of bytes of a tag. */
+	private static int tagSize(int tag) {
+		if ((tag & 0xff000000) != 0) {
+			return 4;
+		} else if ((tag & 0xff0000) != 0) {
+			return 3;
+		}
+		return (tag & 0xff00) != 0 ? 2 : 1;
+	}
+
+	/** Returns the number of bytes of a length in BER: short form up to 127, then 81 xx, 82 xx xx... */
+	private static int lengthSize(int len) {
+		if (len < 0x80) {
+			return 1;
+		} else if (len <= 0xff) {
+			return 2;
+		}
+		return len <= 0xffff ? 3 : 4;
+	}
+
+}
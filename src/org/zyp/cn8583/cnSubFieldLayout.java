@@ -0,0 +1,93 @@
+package org.zyp.cn8583;
+
+/**
+ * 486062򣩻IC55򣩵򲼾֡
+ * The layout of the sub-fields of a composite field. A field either has sub-fields at fixed
+ * positions, numbered from 1 (like fields 48, 60 and 62 of the CUP specs), or holds a list
+ * of BER-TLV data objects identified by their tag (like the IC card data of field 55).
+ * <P>
+ * The sub-fields are located in the bytes of the field as it is written in the message,
+ * without the length header. Instances are immutable.
+ *
+ * @author zyplanke
+ * @see cnMessage#getSubField(int, int)
+ * @see cnMessage#getTag(int, int)
+ */
+public final class cnSubFieldLayout {
+
+	/** The layout of a field made of BER-TLV data objects. */
+	public static final cnSubFieldLayout TLV = new cnSubFieldLayout();
+
+	/** The length in bytes of each sub-field, or null for TLV. */
+	private final int[] lengths;
+	/** The offset of each sub-field, or null for TLV. */
+	private final int[] offsets;
+
+	private cnSubFieldLayout() {
+		lengths = null;
+		offsets = null;
+	}
+
+	/** Creates a layout of sub-fields at fixed positions.
+	 * @param lengths The length in bytes of each sub-field, starting with sub-field 1. */
+	public cnSubFieldLayout(int[] lengths) {
+		if (lengths == null || lengths.length == 0) {
+			throw new IllegalArgumentException("A fixed layout needs at least one sub-field");
+		}
+		this.lengths = lengths.clone();
+		offsets = new int[lengths.length];
+		int off = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			if (lengths[i] <= 0) {
+				throw new IllegalArgumentException("Invalid length of sub-field " + (i + 1) + ": " + lengths[i]);
+			}
+			offsets[i] = off;
+			off += lengths[i];
+		}
+	}
+
+	/** Returns true if the field holds BER-TLV data objects. */
+	public boolean isTlv() {
+		return lengths == null;
+	}
+
+	/** Returns the number of sub-fields of a fixed layout, or 0 for TLV. */
+	public int getSubFieldCount() {
+		return lengths == null ? 0 : lengths.length;
+	}
+
+	/** Returns the length in bytes of the specified sub-field of a fixed layout.
+	 * @param num The sub-field number, starting from 1. */
+	public int getSubFieldLength(int num) {
+		checkSubField(num);
+		return lengths[num - 1];
+	}
+
+	/** Returns the offset of the specified sub-field of a fixed layout from the start of the field.
+	 * @param num The sub-field number, starting from 1. */
+	public int getSubFieldOffset(int num) {
+		checkSubField(num);
+		return offsets[num - 1];
+	}
+
+	private void checkSubField(int num) {
+		if (lengths == null) {
+			throw new IllegalStateException("A TLV layout has no numbered sub-fields");
+		}
+		if (num < 1 || num > lengths.length) {
+			throw new IndexOutOfBoundsException("Sub-field number must be between 1 and " + lengths.length);
+		}
+	}
+
+	public String toString() {
+		if (lengths == null) {
+			return "TLV";
+		}
+		StringBuilder sb = new StringBuilder("FIXED");
+		for (int i = 0; i < lengths.length; i++) {
+			sb.append(i == 0 ? " [" : ",").append(lengths[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.zyp.cn8583;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * תӳ䣺͡ͷͱֱĹ淶֮ĶӦϵ
+ * Declares how the messages of one specification are converted to another by a
+ * {@link cnTranscoder}: the message type of the destination, its 8583 header, and the fields
+ * that are moved to another number or dropped. The fields that are not declared keep their
+ * number. Field moves and drops can be declared for one message type or for all of them; the
+ * ones of the type take precedence.
+ * <P>
+ * The mapping can be built with the methods of this class or read from XML with
+ * {@link org.zyp.cn8583.parse.cnConfigParser#createTranscodeMapping(String)}. It is only read
+ * when a transcoder is compiled, so later changes do not affect the existing transcoders.
+ *
+ * @author zyplanke
+ */
+public class cnTranscodeMapping {
+
+	/** (source msgtypeid, destination msgtypeid) */
+	private final Map<String, String> types = new HashMap<String, String>();
+	/** (destination msgtypeid, header) */
+	private final Map<String, byte[]> headers = new HashMap<String, byte[]>();
+	/** (source msgtypeid, (source field, destination field or 0 to drop it)); the null type
+	 * holds the moves of all the types. */
+	private final Map<String, Map<Integer, Integer>> moves = new HashMap<String, Map<Integer, Integer>>();
+
+	/** Sets the type of the messages of the destination for a type of the source. By default
+	 * a message keeps its type. */
+	public void mapType(String from, String to) {
+		checkType(from);
+		checkType(to);
+		types.put(from, to);
+	}
+
+	/** Sets the 8583 header of the messages of a type of the destination. By default the
+	 * header of the source is copied if it has the same length, and the header of the template
+	 * of the destination type is used if it does not. */
+	public void setHeader(String msgtypeid, byte[] header) {
+		checkType(msgtypeid);
+		headers.put(msgtypeid, header.clone());
+	}
+
+	/** Moves a field to another number.
+	 * @param msgtypeid The type of the source messages, or null for all the types. */
+	public void moveField(String msgtypeid, int from, int to) {
+		checkField(from);
+		checkField(to);
+		put(msgtypeid, from, to);
+	}
+
+	/** Drops a field, so it is not in the destination messages.
+	 * @param msgtypeid The type of the source messages, or null for all the types. */
+	public void dropField(String msgtypeid, int fieldid) {
+		checkField(fieldid);
+		put(msgtypeid, fieldid, 0);
+	}
+
+	private void put(String msgtypeid, int from, int to) {
+		if (msgtypeid != null) {
+			checkType(msgtypeid);
+		}
+		Map<Integer, Integer> m = moves.get(msgtypeid);
+		if (m == null) {
+			m = new HashMap<Integer, Integer>();
+			moves.put(msgtypeid, m);
+		}
+		m.put(from, to);
+	}
+
+	/** Returns the destination type of a source type. */
+	public String getType(String from) {
+		String to = types.get(from);
+		return to == null ? from : to;
+	}
+
+	/** Returns true if the destination type of a source type was declared. */
+	boolean isTypeMapped(String from) {
+		return types.containsKey(from);
+	}
+
+	/** Returns the header declared for a destination type, or null. */
+	byte[] getHeader(String msgtypeid) {
+		return headers.get(msgtypeid);
+	}
+
+	/** Returns the number of a source field in the destination, or 0 if it is dropped. */
+	public int getField(String msgtypeid, int fieldid) {
+		Map<Integer, Integer> m = moves.get(msgtypeid);
+		Integer to = m == null ? null : m.get(fieldid);
+		if (to == null) {
+			m = moves.get(null);
+			to = m == null ? null : m.get(fieldid);
+		}
+		return to == null ? fieldid : to;
+	}
+
+	private static void checkType(String msgtypeid) {
+		if (msgtypeid == null || msgtypeid.length() != 4) {
+			throw new IllegalArgumentException("Invalid message type: " + msgtypeid);
+		}
+	}
+
+	private static void checkField(int fieldid) {
+		if (fieldid < 2 || fieldid > 128) {
+			throw new IllegalArgumentException("Field index must be between 2 and 128");
+		}
+	}
+
+}
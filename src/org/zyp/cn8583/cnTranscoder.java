@@ -0,0 +1,511 @@
+package org.zyp.cn8583;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.zyp.cn8583.parse.cnFieldParseInfo;
+
+/**
+ * תֱĹ淶֮䰴ֱֽתģASCIIBCDͷӳ䣩
+ * Converts frames from the format of one factory to the format of another, for example from
+ * terminals that send ASCII messages to a host that expects binary (BCD) messages
+ * ({@link cnMessageFactory#setUseBinary(boolean)}), with other 8583 headers and some fields
+ * moved to other numbers ({@link cnTranscodeMapping}). Each field goes straight from the bytes
+ * of the source frame to the bytes of the destination frame: numbers, amounts and dates are
+ * packed to BCD or unpacked to ASCII digits, the length headers of variable fields are
+ * converted, and text and binary data are copied. No message or field value is created, so a
+ * frame is converted in a fraction of the time of parsing it and writing it again, with the
+ * same result for valid fields.
+ * <P>
+ * {@link #compile(cnMessageFactory, cnMessageFactory, cnTranscodeMapping)} works out the
+ * conversion of each field of each message type of the source parse guides, and fails if a
+ * field has no place in the destination: a field must have the same type in both parse
+ * guides (and the same length, except ALPHA fields, which are filled with spaces or cut), or
+ * be dropped by the mapping. Text fields whose charset differs between the two factories are
+ * decoded and encoded again. If the source factory has a MAC generator the MAC is verified
+ * and dropped; if the destination factory has one, a new MAC is computed over the result.
+ * The length items of the destination header ({@link cnHeaderLayout}) are filled before it.
+ * <P>
+ * A transcoder is immutable and can be used from any number of threads. It keeps the
+ * configuration of the factories at the time it was compiled: compile a new one after a
+ * reload.
+ *
+ * @author zyplanke
+ */
+public final class cnTranscoder {
+
+	/** Conversions of a field. */
+	private static final int DROP = 0;
+	/** The bytes are the same in both formats. */
+	private static final int COPY = 1;
+	/** ASCII digits to BCD. */
+	private static final int PACK = 2;
+	/** BCD to ASCII digits. */
+	private static final int UNPACK = 3;
+	/** A length header converted and the data copied. */
+	private static final int VAR = 4;
+	/** ALPHA text copied and filled with spaces or cut to the destination length. */
+	private static final int RESIZE = 5;
+	/** Text decoded and encoded in another charset. */
+	private static final int RECODE = 6;
+
+	/** The conversion of one message type. */
+	private static final class Plan {
+		byte[] srcType;
+		int srcHeaderLength;
+		byte[] dstType;
+		int dstHeaderLength;
+		/** The header of the destination, or null to copy the header of the source. */
+		byte[] header;
+		/** The layout of the header of the destination, if it has length items to fill. */
+		cnHeaderLayout headerLayout;
+		cnValidationRule rule;
+		/** The fields of the source parse guide, sorted. */
+		int[] fieldids;
+		/** The bits of the fields of the source parse guide, plus the secondary bitmap bit. */
+		long mask1;
+		long mask2;
+		/** By source field: its parse info, destination field, conversion and size. */
+		final cnFieldParseInfo[] src = new cnFieldParseInfo[129];
+		final int[] target = new int[129];
+		final int[] op = new int[129];
+		/** Digits of a packed field, bytes of a copied one, or length of a resized one. */
+		final int[] size = new int[129];
+		/** By source field, the length of an ALPHA field in the destination. */
+		final int[] dstLength = new int[129];
+		final cnCharsetCodec[] srcCodec = new cnCharsetCodec[129];
+		final cnCharsetCodec[] dstCodec = new cnCharsetCodec[129];
+	}
+
+	private final Plan[] plans;
+	private final boolean srcBinary;
+	private final boolean dstBinary;
+	private final cnMacGenerator srcMac;
+	private final cnMacGenerator dstMac;
+	private final int maxHeaderLength;
+
+	private cnTranscoder(Plan[] plans, cnMessageFactory from, cnMessageFactory to) {
+		this.plans = plans;
+		srcBinary = from.getUseBinary();
+		dstBinary = to.getUseBinary();
+		srcMac = from.getMacGenerator();
+		dstMac = to.getMacGenerator();
+		int max = 0;
+		for (Plan p : plans) {
+			max = Math.max(max, p.dstHeaderLength);
+		}
+		maxHeaderLength = max;
+	}
+
+	/** Creates a transcoder for the messages of the source factory.
+	 * @param from The factory of the source format: parse guides, header lengths, binary
+	 * flag, charset and MAC generator.
+	 * @param to The factory of the destination format.
+	 * @param mapping The types, headers and field moves, or null to keep them.
+	 * @throws IllegalArgumentException if a field cannot be converted, or a type of the mapping
+	 * has no parse guide in the destination. */
+	public static cnTranscoder compile(cnMessageFactory from, cnMessageFactory to, cnTranscodeMapping mapping) {
+		if (mapping == null) {
+			mapping = new cnTranscodeMapping();
+		}
+		cnMessageConfig scfg = from.getConfig();
+		cnMessageConfig dcfg = to.getConfig();
+		List<Plan> plans = new ArrayList<Plan>();
+		for (String type : scfg.getParseTypes()) {
+			String dtype = mapping.getType(type);
+			if (dcfg.getParseMap(dtype) == null) {
+				if (mapping.isTypeMapped(type)) {
+					throw new IllegalArgumentException("No parse guide for message type [" + dtype + "] in the destination");
+				}
+				continue;
+			}
+			plans.add(compile(type, dtype, from, to, mapping));
+		}
+		return new cnTranscoder(plans.toArray(new Plan[plans.size()]), from, to);
+	}
+
+	private static Plan compile(String type, String dtype, cnMessageFactory from, cnMessageFactory to,
+			cnTranscodeMapping mapping) {
+		cnMessageConfig scfg = from.getConfig();
+		cnMessageConfig dcfg = to.getConfig();
+		Plan p = new Plan();
+		p.srcType = type.getBytes();
+		p.dstType = dtype.getBytes();
+		Integer hl = scfg.getHeaderLength(type);
+		p.srcHeaderLength = hl == null ? 0 : hl;
+		hl = dcfg.getHeaderLength(dtype);
+		p.dstHeaderLength = hl == null ? 0 : hl;
+		p.header = mapping.getHeader(dtype);
+		if (p.header == null && p.dstHeaderLength != p.srcHeaderLength && p.dstHeaderLength > 0) {
+			cnMessage templ = dcfg.getTemplate(dtype);
+			p.header = templ == null ? null : templ.getmsgHeader();
+			if (p.header == null) {
+				throw new IllegalArgumentException("No header of " + p.dstHeaderLength + " bytes for message type ["
+						+ dtype + "] in the mapping or the templates of the destination");
+			}
+		}
+		if (p.header != null && p.header.length != p.dstHeaderLength) {
+			throw new IllegalArgumentException("The header for message type [" + dtype + "] has " + p.header.length
+					+ " bytes instead of " + p.dstHeaderLength);
+		}
+		p.headerLayout = dcfg.getHeaderLayout(dtype);
+		if (p.headerLayout != null && (p.headerLayout.getLength() != p.dstHeaderLength || !p.headerLayout.hasLengths())) {
+			p.headerLayout = null;
+		}
+		p.rule = scfg.getValidationRule(type);
+		Map<Integer, cnFieldParseInfo> smap = scfg.getParseMap(type);
+		Map<Integer, cnFieldParseInfo> dmap = dcfg.getParseMap(dtype);
+		List<Integer> order = scfg.getParseOrder(type);
+		p.fieldids = new int[order.size()];
+		p.mask1 = Long.MIN_VALUE;
+		int[] source = new int[129];
+		for (int k = 0; k < p.fieldids.length; k++) {
+			int i = order.get(k);
+			p.fieldids[k] = i;
+			if (i <= 64) {
+				p.mask1 |= cnValidationRule.bit(i);
+			} else {
+				p.mask2 |= cnValidationRule.bit(i);
+			}
+			cnFieldParseInfo si = smap.get(i);
+			p.src[i] = si;
+			int t = mapping.getField(type, i);
+			if (t == 0) {
+				p.op[i] = DROP;
+				continue;
+			}
+			cnFieldParseInfo di = dmap.get(t);
+			if (di == null && ((from.getMacGenerator() != null && (i == 64 || i == 128))
+					|| (to.getMacGenerator() != null && (t == 64 || t == 128)))) {
+				//without a parse guide in the destination, it can only be a MAC
+				p.op[i] = DROP;
+				continue;
+			}
+			if (di == null) {
+				throw new IllegalArgumentException("Field " + i + " of message type [" + type + "] has no parse guide"
+						+ " as field " + t + " of [" + dtype + "] in the destination; drop it in the mapping");
+			}
+			if (source[t] != 0) {
+				throw new IllegalArgumentException("Fields " + source[t] + " and " + i + " of message type ["
+						+ type + "] are both moved to field " + t);
+			}
+			source[t] = i;
+			p.target[i] = t;
+			p.srcCodec[i] = si.getCharset() == null ? from.getCharset() : si.getCharset();
+			p.dstCodec[i] = di.getCharset() == null ? to.getCharset() : di.getCharset();
+			compileField(p, i, si, di, from.getUseBinary(), to.getUseBinary(), type);
+		}
+		return p;
+	}
+
+	/** Works out the conversion of a field. */
+	private static void compileField(Plan p, int i, cnFieldParseInfo si, cnFieldParseInfo di, boolean sbin,
+			boolean dbin, String type) {
+		cnType st = si.getType();
+		if (st != di.getType() || (st != cnType.ALPHA && st.needsLength() && si.getLength() != di.getLength())) {
+			throw new IllegalArgumentException("Field " + i + " of message type [" + type + "] is " + st
+					+ (st.needsLength() ? " " + si.getLength() : "") + " in the source and " + di.getType()
+					+ (di.getType().needsLength() ? " " + di.getLength() : "") + " in the destination");
+		}
+		boolean sameCharset = p.srcCodec[i].getCharset().equals(p.dstCodec[i].getCharset());
+		if (st == cnType.ALPHA) {
+			p.size[i] = si.getLength();
+			p.dstLength[i] = di.getLength();
+			if (!sameCharset) {
+				p.op[i] = RECODE;
+			} else {
+				p.op[i] = si.getLength() == di.getLength() ? COPY : RESIZE;
+			}
+		} else if (st == cnType.BINARY) {
+			p.op[i] = COPY;
+			p.size[i] = si.getLength();
+		} else if (st.getLengthDigits() > 0) {
+			p.op[i] = !st.isBinary() && !sameCharset ? RECODE : VAR;
+		} else {
+			//NUMERIC, AMOUNT and dates: digits, in BCD in binary messages
+			int digits = st.needsLength() ? si.getLength() : st.getLength();
+			if (sbin == dbin) {
+				p.op[i] = COPY;
+				p.size[i] = si.getFixedLength(sbin);
+			} else {
+				p.op[i] = sbin ? UNPACK : PACK;
+				p.size[i] = digits;
+			}
+		}
+	}
+
+	/** Returns the largest size of the result of converting a frame of the specified length,
+	 * that is, the size that the buffer given to {@link #transcode(byte[], byte[], int)}
+	 * must have after the offset. */
+	public int getMaxLength(int srclength) {
+		//BCD numbers double in ASCII; headers and length headers grow at most one byte per field
+		int mac = dstMac == null ? 0 : dstMac.getMacLength();
+		return maxHeaderLength + 20 + srclength * 2 + 129 + mac;
+	}
+
+	/** Converts a frame, without the length header, and returns the result. */
+	public byte[] transcode(byte[] buf) throws ParseException {
+		byte[] dst = new byte[getMaxLength(buf.length)];
+		int len = transcode(buf, dst, 0);
+		byte[] r = new byte[len];
+		System.arraycopy(dst, 0, r, 0, len);
+		return r;
+	}
+
+	/** Converts a frame, without the length header, into a buffer.
+	 * @param buf The source frame.
+	 * @param dst The buffer for the result.
+	 * @param off The position of the result in the buffer.
+	 * @return The position after the result.
+	 * @throws ParseException if the frame is not valid for the source parse guides.
+	 * @throws IllegalArgumentException if the buffer has less than {@link #getMaxLength(int)}
+	 * bytes after the offset. */
+	public int transcode(byte[] buf, byte[] dst, int off) throws ParseException {
+		if (dst.length - off < getMaxLength(buf.length)) {
+			throw new IllegalArgumentException("The destination buffer has less than "
+					+ getMaxLength(buf.length) + " bytes");
+		}
+		Plan p = findPlan(buf);
+		int pos = p.srcHeaderLength + 4;
+		if (buf.length < pos + 8) {
+			throw new ParseException("Message too short for the bitmap", pos);
+		}
+		long bitmap1 = cnMessageFactory.readBitmapWord(buf, pos);
+		long bitmap2 = 0;
+		if (bitmap1 < 0) {
+			if (buf.length < pos + 16) {
+				throw new ParseException("Message too short for the secondary bitmap", pos);
+			}
+			bitmap2 = cnMessageFactory.readBitmapWord(buf, pos + 8);
+			pos += 16;
+		} else {
+			pos += 8;
+		}
+		if ((bitmap1 & ~p.mask1) != 0 || (bitmap2 & ~p.mask2) != 0) {
+			throw new ParseException("Message [" + new String(p.srcType) + "] has fields without parse guide", pos);
+		}
+		if (p.rule != null && !p.rule.isValid(bitmap1, bitmap2)) {
+			throw new ParseException("Invalid message [" + new String(p.srcType) + "]: "
+					+ p.rule.describe(bitmap1, bitmap2), p.srcHeaderLength + 4);
+		}
+		int macfield = 0;
+		if (srcMac != null) {
+			macfield = bitmap1 < 0 ? 128 : 64;
+			if (!cnMessageFactory.hasBit(bitmap1, bitmap2, macfield)) {
+				throw new ParseException("Message has no MAC in field " + macfield, pos);
+			}
+		}
+
+		//Locate the source fields and build the bitmap of the destination
+		int[] from = new int[129];	// ĿӦԴ
+		int[] at = new int[129];	// ԴԴеλ
+		long dst1 = 0;
+		long dst2 = 0;
+		int last = 0;
+		for (int k = 0; k < p.fieldids.length; k++) {
+			int i = p.fieldids[k];
+			if (!cnMessageFactory.hasBit(bitmap1, bitmap2, i)) {
+				continue;
+			}
+			if (i == macfield) {
+				verifyMac(buf, pos);
+			}
+			at[i] = pos;
+			pos += p.src[i].getFieldLength(buf, pos, srcBinary);
+			if (pos > buf.length) {
+				throw new ParseException("Message too short for field " + i, at[i]);
+			}
+			if (p.op[i] != DROP && i != macfield) {
+				int t = p.target[i];
+				from[t] = i;
+				if (t <= 64) {
+					dst1 |= cnValidationRule.bit(t);
+				} else {
+					dst2 |= cnValidationRule.bit(t);
+				}
+				last = Math.max(last, t);
+			}
+		}
+		int dstmacfield = 0;
+		if (dstMac != null) {
+			//the MAC replaces only the field where it goes, 128 if there is any field above 64
+			dstmacfield = dst2 != 0 ? 128 : 64;
+			if (dstmacfield == 64) {
+				dst1 |= cnValidationRule.bit(64);
+			} else {
+				dst2 |= cnValidationRule.bit(128);
+			}
+			from[dstmacfield] = 0;
+			last = dstmacfield;
+		}
+		if (last > 64) {
+			dst1 |= Long.MIN_VALUE;
+		}
+
+		//Header, type, bitmap and fields of the destination
+		int o = off;
+		if (p.header != null) {
+			System.arraycopy(p.header, 0, dst, o, p.header.length);
+		} else {
+			System.arraycopy(buf, 0, dst, o, p.dstHeaderLength);
+		}
+		o += p.dstHeaderLength;
+		System.arraycopy(p.dstType, 0, dst, o, 4);
+		o += 4;
+		o = putBitmapWord(dst, o, dst1);
+		if (last > 64) {
+			o = putBitmapWord(dst, o, dst2);
+		}
+		for (int t = 2; t <= last; t++) {
+			if (from[t] != 0) {
+				o = convert(p, from[t], buf, at[from[t]], dst, o);
+			}
+		}
+		if (p.headerLayout != null) {
+			p.headerLayout.fillLengths(dst, off, o - off + (dstmacfield > 0 ? dstMac.getMacLength() : 0));
+		}
+		if (dstmacfield > 0) {
+			byte[] mac = dstMac.computeMac(dst, off, o - off);
+			System.arraycopy(mac, 0, dst, o, mac.length);
+			o += mac.length;
+		}
+		return o;
+	}
+
+	/** Returns the plan of the message type of the frame. */
+	private Plan findPlan(byte[] buf) throws ParseException {
+		for (Plan p : plans) {
+			int hl = p.srcHeaderLength;
+			if (buf.length >= hl + 4 && buf[hl] == p.srcType[0] && buf[hl + 1] == p.srcType[1]
+					&& buf[hl + 2] == p.srcType[2] && buf[hl + 3] == p.srcType[3]) {
+				return p;
+			}
+		}
+		throw new ParseException("No transcoding for the message type of the frame", 0);
+	}
+
+	/** Converts a field and returns the position after it in the destination. */
+	private int convert(Plan p, int i, byte[] buf, int pos, byte[] dst, int o) throws ParseException {
+		switch (p.op[i]) {
+		case COPY:
+			System.arraycopy(buf, pos, dst, o, p.size[i]);
+			return o + p.size[i];
+		case PACK: {
+			int end = pos + p.size[i];
+			if (p.size[i] % 2 == 1) {
+				dst[o++] = (byte) digit(buf, pos++, i);
+			}
+			for (; pos < end; pos += 2) {
+				dst[o++] = (byte) ((digit(buf, pos, i) << 4) | digit(buf, pos + 1, i));
+			}
+			return o;
+		}
+		case UNPACK: {
+			int end = pos + cnBcdCodec.bytesForDigits(p.size[i]);
+			if (p.size[i] % 2 == 1) {
+				dst[o++] = (byte) ('0' + nibble(buf, pos++, 0, i));
+			}
+			for (; pos < end; pos++) {
+				dst[o++] = (byte) ('0' + nibble(buf, pos, 4, i));
+				dst[o++] = (byte) ('0' + nibble(buf, pos, 0, i));
+			}
+			return o;
+		}
+		case VAR: {
+			int digits = p.src[i].getType().getLengthDigits();
+			int len = cnBcdCodec.readLengthHeader(buf, pos, digits, srcBinary);
+			o = cnBcdCodec.writeLengthHeader(dst, o, len, digits, dstBinary);
+			System.arraycopy(buf, pos + cnBcdCodec.lengthHeaderSize(digits, srcBinary), dst, o, len);
+			return o + len;
+		}
+		case RESIZE:
+			if (p.dstLength[i] < p.size[i] && !isAscii(buf, pos, p.dstLength[i])) {
+				//cut after the last whole character of the charset, not inside one
+				byte[] data = p.dstCodec[i].encode(p.srcCodec[i].decode(buf, pos, p.size[i]), p.dstLength[i]);
+				return putAlpha(data, 0, data.length, dst, o, p.dstLength[i], p.dstCodec[i].getSpace());
+			}
+			return putAlpha(buf, pos, p.size[i], dst, o, p.dstLength[i], p.dstCodec[i].getSpace());
+		case RECODE: {
+			int digits = p.src[i].getType().getLengthDigits();
+			if (digits == 0) {
+				byte[] data = p.dstCodec[i].encode(p.srcCodec[i].decode(buf, pos, p.size[i]), p.dstLength[i]);
+				return putAlpha(data, 0, data.length, dst, o, p.dstLength[i], p.dstCodec[i].getSpace());
+			}
+			int len = cnBcdCodec.readLengthHeader(buf, pos, digits, srcBinary);
+			byte[] data = p.dstCodec[i].encode(p.srcCodec[i].decode(buf,
+					pos + cnBcdCodec.lengthHeaderSize(digits, srcBinary), len));
+			if (data.length > (digits == 2 ? 99 : 999)) {
+				throw new ParseException("Field " + i + " is too long in the charset of the destination", pos);
+			}
+			o = cnBcdCodec.writeLengthHeader(dst, o, data.length, digits, dstBinary);
+			System.arraycopy(data, 0, dst, o, data.length);
+			return o + data.length;
+		}
+		}
+		return o;
+	}
+
+	/** Copies ALPHA text, filling it with spaces or cutting it to the length. */
+	private static int putAlpha(byte[] src, int pos, int len, byte[] dst, int o, int dstlen, byte space) {
+		int n = Math.min(len, dstlen);
+		System.arraycopy(src, pos, dst, o, n);
+		for (int k = n; k < dstlen; k++) {
+			dst[o + k] = space;
+		}
+		return o + dstlen;
+	}
+
+	/** Returns true if the bytes are all ASCII, so the text can be cut at any of them. */
+	private static boolean isAscii(byte[] buf, int pos, int len) {
+		for (int k = pos; k < pos + len; k++) {
+			if (buf[k] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns the value of an ASCII digit of a numeric field. */
+	private static int digit(byte[] buf, int pos, int fieldid) throws ParseException {
+		int d = buf[pos] - '0';
+		if (d < 0 || d > 9) {
+			throw new ParseException("Invalid digit in field " + fieldid, pos);
+		}
+		return d;
+	}
+
+	/** Returns a BCD digit of a numeric field. */
+	private static int nibble(byte[] buf, int pos, int shift, int fieldid) throws ParseException {
+		int d = (buf[pos] >> shift) & 0x0f;
+		if (d > 9) {
+			throw new ParseException("Invalid BCD digit in field " + fieldid, pos);
+		}
+		return d;
+	}
+
+	private static int putBitmapWord(byte[] dst, int o, long word) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			dst[o++] = (byte) (word >>> shift);
+		}
+		return o;
+	}
+
+	/** Verifies the MAC that starts at the specified position, computed over the bytes before it. */
+	private void verifyMac(byte[] buf, int macpos) throws ParseException {
+		int maclen = srcMac.getMacLength();
+		if (macpos + maclen > buf.length) {
+			throw new ParseException("Message too short for MAC", macpos);
+		}
+		byte[] mac = srcMac.computeMac(buf, 0, macpos);
+		int diff = 0;
+		for (int k = 0; k < maclen; k++) {
+			diff |= mac[k] ^ buf[macpos + k];
+		}
+		if (diff != 0) {
+			throw new ParseException("Invalid MAC", macpos);
+		}
+	}
+
+}
@@ -11,7 +11,7 @@ import java.util.Date;
  * Some types required the length of the value to be specified (NUMERIC
  * and ALPHA). Other types have a fixed length, like dates and times.
  * Other types do not require a length to be specified, like LLVAR
- * and LLLVAR.
+ * and LLLVAR. BINARY, LLBIN and LLLBIN hold byte arrays instead of text.
  * @author zyplanke
  */
 public enum cnType {
@@ -33,7 +33,14 @@ public enum cnType {
 	/** Time of day in format HHmmss */
 	TIME(false, 6),
 	/** An amount, expressed in cents with a fixed length of 12. */
-	AMOUNT(false, 12);
+	AMOUNT(false, 12),
+	/** Fixed-length binary data (e.g. a PIN block or a MAC), copied as is. It is filled with
+	 * zeros to the right. */
+	BINARY(true, 0),
+	/** Variable length binary data with a 2-digit header length (in bytes). */
+	LLBIN(false, 0),
+	/** Variable length binary data with a 3-digit header length (in bytes). */
+	LLLBIN(false, 0);
 
 	private boolean needsLen;
 	private int length;
@@ -53,6 +60,22 @@ public enum cnType {
 		return length;
 	}
 
+	/** Returns true if the values of the type are binary data (byte arrays) instead of text. */
+	public boolean isBinary() {
+		return this == BINARY || this == LLBIN || this == LLLBIN;
+	}
+
+	/** Returns the number of digits of the length header: 2 for LLVAR and LLBIN, 3 for LLLVAR
+	 * and LLLBIN, and 0 for the types that have no length header. */
+	public int getLengthDigits() {
+		if (this == LLVAR || this == LLBIN) {
+			return 2;
+		} else if (this == LLLVAR || this == LLLBIN) {
+			return 3;
+		}
+		return 0;
+	}
+
 	/** Formats a Date if the receiver is DATE10, DATE4, DATE_EXP or TIME; throws an exception
 	 * otherwise. */
 	public String format(Date value) {
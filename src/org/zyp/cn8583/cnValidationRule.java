@@ -0,0 +1,114 @@
+package org.zyp.cn8583;
+
+import java.util.Collection;
+
+/**
+ * У򣺱ѡ򣨿ѡͽֵֹ
+ * The validation rule of a message type: the fields that are mandatory, conditional (may be
+ * present) and forbidden. The rule is compiled to 128-bit presence masks, held as two longs
+ * in the same layout as the bitmap of the message (field 1 is the highest bit of the primary
+ * word, field 65 the highest bit of the secondary word). Checking a bitmap is then a few
+ * AND operations, which the factory does before decoding any field.
+ * <P>
+ * If the rule has conditional fields, only the mandatory and conditional fields are allowed
+ * and any other field is unexpected; otherwise every field that is not forbidden is allowed.
+ * Instances are immutable.
+ * 
+ * @author zyplanke
+ */
+public final class cnValidationRule {
+
+	private final long mandatory1;
+	private final long mandatory2;
+	/** Fields that must not be present (forbidden or, with conditional fields, not listed). */
+	private final long rejected1;
+	private final long rejected2;
+
+	/** Creates a new rule.
+	 * @param mandatory The fields that must be present.
+	 * @param conditional The fields that may be present, or null if any field that is not
+	 * forbidden may be present.
+	 * @param forbidden The fields that must not be present, or null.
+	 * @throws IllegalArgumentException if a field number is not between 2 and 128. */
+	public cnValidationRule(Collection<Integer> mandatory, Collection<Integer> conditional,
+			Collection<Integer> forbidden) {
+		long[] m = mask(mandatory);
+		long[] r = mask(forbidden);
+		if (conditional != null) {
+			long[] c = mask(conditional);
+			r[0] |= ~(m[0] | c[0]);
+			r[1] |= ~(m[1] | c[1]);
+		}
+		//field 1 is the secondary bitmap, never checked
+		r[0] &= ~(1L << 63);
+		mandatory1 = m[0];
+		mandatory2 = m[1];
+		rejected1 = r[0];
+		rejected2 = r[1];
+	}
+
+	private static long[] mask(Collection<Integer> fields) {
+		long[] mask = new long[2];
+		if (fields != null) {
+			for (Integer f : fields) {
+				if (f < 2 || f > 128) {
+					throw new IllegalArgumentException("Field index must be between 2 and 128: " + f);
+				}
+				mask[(f - 1) / 64] |= bit(f);
+			}
+		}
+		return mask;
+	}
+
+	/** Returns the bit of a field in its word of the bitmap. */
+	static long bit(int fieldid) {
+		return 1L << (63 - ((fieldid - 1) % 64));
+	}
+
+	/** Returns true if the bitmap has all the mandatory fields and no field that is not allowed.
+	 * @param bitmap1 The primary bitmap (fields 1 to 64).
+	 * @param bitmap2 The secondary bitmap (fields 65 to 128), 0 if there is none. */
+	public boolean isValid(long bitmap1, long bitmap2) {
+		return ((mandatory1 & ~bitmap1) | (mandatory2 & ~bitmap2)
+				| (rejected1 & bitmap1) | (rejected2 & bitmap2)) == 0;
+	}
+
+	/** Returns true if the message has all the mandatory fields and no field that is not allowed. */
+	public boolean isValid(cnMessage m) {
+		long[] b = bitmapOf(m);
+		return isValid(b[0], b[1]);
+	}
+
+	/** Returns a description of what is wrong with the bitmap (missing and unexpected fields),
+	 * or null if it is valid. */
+	public String describe(long bitmap1, long bitmap2) {
+		if (isValid(bitmap1, bitmap2)) {
+			return null;
+		}
+		StringBuilder missing = new StringBuilder();
+		StringBuilder unexpected = new StringBuilder();
+		for (int f = 2; f <= 128; f++) {
+			boolean first = f <= 64;
+			long b = bit(f);
+			boolean present = ((first ? bitmap1 : bitmap2) & b) != 0;
+			if (!present && ((first ? mandatory1 : mandatory2) & b) != 0) {
+				missing.append(missing.length() == 0 ? "" : ",").append(f);
+			} else if (present && ((first ? rejected1 : rejected2) & b) != 0) {
+				unexpected.append(unexpected.length() == 0 ? "" : ",").append(f);
+			}
+		}
+		return "missing fields [" + missing + "], unexpected fields [" + unexpected + "]";
+	}
+
+	/** Returns the bitmap of the fields of a message, as two words. */
+	static long[] bitmapOf(cnMessage m) {
+		long[] b = new long[2];
+		for (int f = 2; f <= 128; f++) {
+			if (m.hasField(f)) {
+				b[(f - 1) / 64] |= bit(f);
+			}
+		}
+		return b;
+	}
+
+}
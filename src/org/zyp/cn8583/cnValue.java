@@ -3,6 +3,9 @@ package org.zyp.cn8583;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -17,9 +20,26 @@ import java.util.Date;
  * @author zyplanke
  */
 public class cnValue<T> {
+	/** Powers of ten, to check the number of digits of a NUMERIC value. */
+	private static final long[] TENS = new long[19];
+	static {
+		TENS[0] = 1;
+		for (int i = 1; i < TENS.length; i++) {
+			TENS[i] = TENS[i - 1] * 10;
+		}
+	}
+	/** The largest amount (in cents) that fits in the 12 digits of an AMOUNT. */
+	private static final BigDecimal MAX_AMOUNT = new BigDecimal("999999999999");
+
 	private cnType datatype;
 	private T value;
 	private int length;
+	/** The charset for this field only, or null to use the charset of the message. */
+	private cnCharsetCodec charset;
+	/** The index of the sub-fields, built the first time one is accessed. */
+	private cnSubFieldIndex subfields;
+	/** true if the value is shared by many messages and must not change. */
+	private boolean readonly;
 
 	/** Creates a new instance that stores the specified value as the specified type.
 	 * Useful for storing LLVAR or LLLVAR types, as well as fixed-length value types
@@ -32,13 +52,11 @@ public class cnValue<T> {
 		}
 		datatype = t;
 		this.value = value;
-		if (datatype == cnType.LLVAR || datatype == cnType.LLLVAR) {
+		if (t == cnType.LLBIN || t == cnType.LLLBIN) {
+			length = binaryLength(t, value);
+		} else if (datatype == cnType.LLVAR || datatype == cnType.LLLVAR) {
 			length = value.toString().length();
-			if (t == cnType.LLVAR && length > 99) {
-				throw new IllegalArgumentException("LLVAR can only hold values up to 99 chars");
-			} else if (t == cnType.LLLVAR && length > 999) {
-				throw new IllegalArgumentException("LLLVAR can only hold values up to 999 chars");
-			}
+			checkVarLength(null);
 		} else {
 			length = datatype.getLength();
 		}
@@ -52,16 +70,58 @@ public class cnValue<T> {
 		length = len;
 		if (length == 0 && t.needsLength()) {
 			throw new IllegalArgumentException("Length must be greater than zero");
+		} else if (t == cnType.BINARY) {
+			binaryLength(t, val);
+		} else if (t == cnType.LLBIN || t == cnType.LLLBIN) {
+			length = binaryLength(t, val);
 		} else if (t == cnType.LLVAR || t == cnType.LLLVAR) {
 			length = val.toString().length();
-			if (t == cnType.LLVAR && length > 99) {
-				throw new IllegalArgumentException("LLVAR can only hold values up to 99 chars");
-			} else if (t == cnType.LLLVAR && length > 999) {
-				throw new IllegalArgumentException("LLLVAR can only hold values up to 999 chars");
+			checkVarLength(null);
+		}
+	}
+
+	/** Checks that an LLVAR or LLLVAR value fits in its length header, up to 99 or 999 bytes,
+	 * in the charset of this value or the specified one. The values that cannot have more
+	 * bytes than that in the charset, whatever their characters, are not encoded.
+	 * @param codec The charset of the message, ignored if this value has its own charset; or
+	 * null if it is not known yet, to only check that the value has no more characters than
+	 * the bytes it can hold.
+	 * @throws IllegalArgumentException if the value has too many bytes. */
+	void checkVarLength(cnCharsetCodec codec) {
+		if (datatype != cnType.LLVAR && datatype != cnType.LLLVAR) {
+			return;
+		}
+		cnCharsetCodec c = charset == null ? codec : charset;
+		int max = datatype == cnType.LLVAR ? 99 : 999;
+		if (c == null) {
+			if (length > max) {
+				throw new IllegalArgumentException(datatype + " can only hold values up to " + max + " bytes, the value has "
+						+ length + " characters");
+			}
+		} else if (length * c.getMaxBytesPerChar() > max) {
+			int n = c.encodedLength(value.toString());
+			if (n > max) {
+				throw new IllegalArgumentException(datatype + " can only hold values up to " + max + " bytes, the value has "
+						+ n + " bytes in " + c.getCharset().name());
 			}
 		}
 	}
 
+	/** Checks that the value of a binary type is a byte array that fits in the type, and
+	 * returns its length. */
+	private static int binaryLength(cnType t, Object val) {
+		if (!(val instanceof byte[])) {
+			throw new IllegalArgumentException(t + " values must be byte arrays");
+		}
+		int len = ((byte[])val).length;
+		if (t == cnType.LLBIN && len > 99) {
+			throw new IllegalArgumentException("LLBIN can only hold values up to 99 bytes");
+		} else if (t == cnType.LLLBIN && len > 999) {
+			throw new IllegalArgumentException("LLLBIN can only hold values up to 999 bytes");
+		}
+		return len;
+	}
+
 	/** Returns the cnType to which the value must be formatted. */
 	public cnType getType() {
 		return datatype;
@@ -69,11 +129,80 @@ public class cnValue<T> {
 
 	/** Returns the length of the stored value, of the length of the formatted value
 	 * in case of NUMERIC or ALPHA. It doesn't include the field length header in case
-	 * of LLVAR or LLLVAR. */
+	 * of LLVAR or LLLVAR. For LLVAR and LLLVAR values it is the number of characters, not
+	 * the number of bytes that the length header counts, which depends on the charset: the
+	 * value is checked to fit in the header in its charset when the charset is set, and in
+	 * the charset of the message (unless it has its own) when it is set in a message. */
 	public int getLength() {
 		return length;
 	}
 
+	/** Sets the charset used to write this value, instead of the one of the message.
+	 * @param charsetname The charset name (e.g. "GBK"), or null to use the charset of the message.
+	 * @throws IllegalStateException if the value is read only; change a clone() of it instead.
+	 * @throws IllegalArgumentException if an LLVAR or LLLVAR value has too many bytes in the charset. */
+	public void setCharset(String charsetname) {
+		if (readonly) {
+			throw new IllegalStateException("The value is read only, it is shared by many messages");
+		}
+		cnCharsetCodec prev = charset;
+		charset = charsetname == null ? null : cnCharsetCodec.forName(charsetname);
+		try {
+			checkVarLength(null);
+		} catch (IllegalArgumentException ex) {
+			charset = prev;
+			throw ex;
+		}
+	}
+
+	/** Returns the charset of this value, or null if it uses the charset of the message. */
+	public cnCharsetCodec getCharset() {
+		return charset;
+	}
+
+	/** Makes this value read only, so it can be shared by many messages (see
+	 * {@link org.zyp.cn8583.parse.cnValueInterner}): setCharset throws an
+	 * IllegalStateException and the index of the sub-fields is not kept in it. A clone() of
+	 * it is not read only. */
+	public void setReadOnly() {
+		readonly = true;
+	}
+
+	/** Returns true if this value is read only. */
+	public boolean isReadOnly() {
+		return readonly;
+	}
+
+	/** Returns the index of the sub-fields of this value with the specified layout, building
+	 * it from the bytes of the value if it is not built yet. The value never changes, so the
+	 * index is kept for later calls (unless the value is read only); a race only builds it twice.
+	 * @param codec The charset of the message, used if this value has no charset of its own. */
+	cnSubFieldIndex getSubFieldIndex(cnSubFieldLayout layout, cnCharsetCodec codec) {
+		cnCharsetCodec c = charset == null ? codec : charset;
+		cnSubFieldIndex idx = subfields;
+		if (idx == null || idx.layout != layout || idx.codec != c) {
+			idx = cnSubFieldIndex.build(layout, c, value instanceof byte[] ? (byte[])value : c.encode(toString()));
+			if (!readonly) {
+				subfields = idx;
+			}
+		}
+		return idx;
+	}
+
+	/** Returns a new value of the same type, length and charset holding the specified bytes,
+	 * decoded with the charset of this value or the specified one unless the type is binary. */
+	cnValue<?> withBytes(byte[] raw, cnCharsetCodec codec) {
+		cnValue<?> v;
+		if (datatype.isBinary()) {
+			v = new cnValue<byte[]>(datatype, raw, datatype == cnType.BINARY ? length : raw.length);
+		} else {
+			cnCharsetCodec c = charset == null ? codec : charset;
+			v = new cnValue<String>(datatype, c.decode(raw, 0, raw.length), length);
+		}
+		v.charset = charset;
+		return v;
+	}
+
 	/** Returns the stored value without any conversion or formatting. */
 	public T getValue() {
 		return value;
@@ -85,17 +214,21 @@ public class cnValue<T> {
 		if (value == null) {
 			return "FieldValue<null>";
 		}
+		if (value instanceof byte[]) {
+			byte[] b = (byte[])value;
+			return cnHexCodec.encode(b, 0, b.length);
+		}
 		if (datatype == cnType.NUMERIC || datatype == cnType.AMOUNT) {
 			if (datatype == cnType.AMOUNT) {
 				return datatype.format((BigDecimal)value, 12);
-			} else if (value instanceof Number) {
+			} else if (value instanceof Number && !(value instanceof BigInteger)) {
 				return datatype.format(((Number)value).longValue(), length);
 			} else {
 				return datatype.format(value.toString(), length);
 			}
 		} else if (datatype == cnType.ALPHA) {
 			return datatype.format(value.toString(), length);
-		} else if (datatype == cnType.LLLVAR || datatype == cnType.LLLVAR) {
+		} else if (datatype == cnType.LLVAR || datatype == cnType.LLLVAR) {
 			return value.toString();
 		} else if (value instanceof Date) {
 			return datatype.format((Date)value);
@@ -106,7 +239,10 @@ public class cnValue<T> {
 	/** Returns a copy of the receiver that references the same value object. */
 	@SuppressWarnings("unchecked")
 	public cnValue<T> clone() {
-		return (cnValue<T>)(new cnValue(this.datatype, this.value, this.length));
+		cnValue<T> v = (cnValue<T>)(new cnValue(this.datatype, this.value, this.length));
+		v.charset = charset;
+		v.subfields = subfields;
+		return v;
 
 	}
 
@@ -117,70 +253,109 @@ public class cnValue<T> {
 			return false;
 		}
 		cnValue comp = (cnValue)other;
+		if (value instanceof byte[]) {
+			return comp.getType() == getType() && comp.getValue() instanceof byte[]
+					&& Arrays.equals((byte[])comp.getValue(), (byte[])value) && comp.getLength() == getLength();
+		}
 		return (comp.getType() == getType() && comp.getValue().equals(getValue()) && comp.getLength() == getLength());
 	}
 
 	/** Writes the formatted value to a stream, with the length header
-	 * if it's a variable length type. */
+	 * if it's a variable length type. The text is written with the default charset (GBK). */
 	public void write(OutputStream outs, boolean binary) throws IOException {
-		if (datatype == cnType.LLLVAR || datatype == cnType.LLVAR) {
-			if (binary) {
-				if (datatype == cnType.LLLVAR) {
-					outs.write(length / 100); //00 to 09 automatically in BCD
-				}
-				//BCD encode the rest of the length
-				outs.write((((length % 100) / 10) << 4) | (length % 10));
+		write(outs, binary, cnCharsetCodec.DEFAULT);
+	}
+
+	/** Writes the formatted value to a stream, with the length header
+	 * if it's a variable length type. The length header of LLVAR and LLLVAR values and
+	 * the length of ALPHA values are counted in bytes of the charset.
+	 * @param outs The stream to write the value to.
+	 * @param binary true to write numeric values and length headers in BCD.
+	 * @param codec The charset of the message; ignored if this value has its own charset. */
+	public void write(OutputStream outs, boolean binary, cnCharsetCodec codec) throws IOException {
+		if (charset != null) {
+			codec = charset;
+		}
+		if (datatype == cnType.BINARY) {
+			//copied as is, filled with zeros (or cut) to the length
+			byte[] data = (byte[])value;
+			outs.write(data, 0, Math.min(data.length, length));
+			for (int i = data.length; i < length; i++) {
+				outs.write(0);
+			}
+			return;
+		} else if (datatype == cnType.LLBIN || datatype == cnType.LLLBIN) {
+			byte[] data = (byte[])value;
+			cnBcdCodec.writeLengthHeader(outs, data.length, datatype.getLengthDigits(), binary);
+			outs.write(data);
+			return;
+		} else if (datatype == cnType.LLLVAR || datatype == cnType.LLVAR) {
+			byte[] data = codec.encode(toString());
+			if (datatype == cnType.LLVAR && data.length > 99) {
+				throw new IllegalArgumentException("LLVAR can only hold values up to 99 bytes");
+			} else if (datatype == cnType.LLLVAR && data.length > 999) {
+				throw new IllegalArgumentException("LLLVAR can only hold values up to 999 bytes");
+			}
+			cnBcdCodec.writeLengthHeader(outs, data.length, datatype == cnType.LLLVAR ? 3 : 2, binary);
+			outs.write(data);
+			return;
+		} else if (datatype == cnType.ALPHA) {
+			String v = value == null ? "" : value.toString();
+			if (codec.isAsciiCompatible() && cnCharsetCodec.isAscii(v)) {
+				outs.write(codec.encode(toString()));
 			} else {
-				//write the length in ASCII
-				if (datatype == cnType.LLLVAR) {
-					outs.write((length / 100) + 48);
-				}
-				if (length >= 10) {
-					outs.write(((length % 100) / 10) + 48);
-				} else {
-					outs.write(48);
+				//fill with spaces (or cut) to the length in bytes, not in chars; a value that
+				//is too long is cut after the last whole character, never inside one
+				byte[] data = codec.encode(v, length);
+				outs.write(data);
+				for (int i = data.length; i < length; i++) {
+					outs.write(codec.getSpace());
 				}
-				outs.write((length % 10) + 48);
 			}
+			return;
 		} else if (binary) {
 			//numeric types in binary are coded like this
 			byte[] buf = null;
 			if (datatype == cnType.NUMERIC) {
-				buf = new byte[(length / 2) + (length % 2)];
+				buf = new byte[cnBcdCodec.bytesForDigits(length)];
+				if (isSmallNumber()) {
+					long l = ((Number)value).longValue();
+					if (length < 19 && l >= TENS[length]) {
+						throw new IllegalArgumentException("Numeric value is larger than intended length: " + value + " LEN " + length);
+					}
+					cnBcdCodec.fromLong(l, buf, 0, buf.length);
+					outs.write(buf);
+					return;
+				}
 			} else if (datatype == cnType.AMOUNT) {
 				buf = new byte[6];
+				if (value instanceof BigDecimal && ((BigDecimal)value).signum() >= 0) {
+					BigDecimal cents = ((BigDecimal)value).movePointRight(2).setScale(0, RoundingMode.HALF_EVEN);
+					if (cents.compareTo(MAX_AMOUNT) <= 0) {
+						cnBcdCodec.fromLong(cents.longValue(), buf, 0, 6);
+						outs.write(buf);
+						return;
+					}
+				}
 			} else if (datatype == cnType.DATE10 || datatype == cnType.DATE4 || datatype == cnType.DATE_EXP || datatype == cnType.TIME) {
 				buf = new byte[length / 2];
 			}
 			//Encode in BCD if it's one of these types
 			if (buf != null) {
-				toBcd(toString(), buf);
+				cnBcdCodec.fromString(toString(), buf, 0);
 				outs.write(buf);
 				return;
 			}
 		}
 		//Just write the value as text
-		outs.write(toString().getBytes());
-	}
-
-	/** Encode the value as BCD and put it in the buffer. The buffer must be big enough
-	 * to store the digits in the original value (half the length of the string). */
-	private void toBcd(String value, byte[] buf) {
-		int charpos = 0; //char where we start
-		int bufpos = 0;
-		if (value.length() % 2 == 1) {
-			//for odd lengths we encode just the first digit in the first byte
-			buf[0] = (byte)(value.charAt(0) - 48);
-			charpos = 1;
-			bufpos = 1;
-		}
-		//encode the rest of the string
-		while (charpos < value.length()) {
-			buf[bufpos] = (byte)(((value.charAt(charpos) - 48) << 4)
-					| (value.charAt(charpos + 1) - 48));
-			charpos += 2;
-			bufpos++;
-		}
+		outs.write(codec.encode(toString()));
+	}
+
+	/** Returns true if the value is a non-negative integer that fits in a long, so a NUMERIC
+	 * value can be encoded in BCD without formatting it first. */
+	private boolean isSmallNumber() {
+		return (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) && ((Number)value).longValue() >= 0;
 	}
 
 }
@@ -0,0 +1,298 @@
+package org.zyp.cn8583.impl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnFrameIndex;
+import org.zyp.cn8583.cnHexCodec;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnMessageListenerAdapter;
+import org.zyp.cn8583.cnType;
+import org.zyp.cn8583.cnValue;
+
+/**
+ * 첽־ڵֻ߳ѱֽڸƵԤĻλɺ̨߳̽
+ * A listener that logs the messages that are parsed and written by a factory, without
+ * decoding or formatting them in the thread that parses or writes them. That thread only
+ * copies the frame to a ring buffer that is allocated when the logger is created; a daemon
+ * thread takes the frames from the buffer, indexes them with the factory
+ * ({@link cnMessageFactory#indexMessage(byte[], int)}), masks the sensitive fields and writes
+ * one line per message to a commons-logging Log, at info level.
+ * <P>
+ * When the buffer is full the frame is dropped and counted ({@link #getDropped()}), so a slow
+ * log never blocks the messages. The masked fields are by default the card number (2), the
+ * track data (35, 36), the PIN block (52) and the IC card data (55). A masked field whose value
+ * is a number of 13 to 19 digits is shown as a card number, with only its first 6 and last 4
+ * digits; any other masked field (and any binary one) is shown only by its length. Set the
+ * logger in the factory with {@link cnMessageFactory#setListener(org.zyp.cn8583.cnMessageListener)},
+ * and {@link #close()} it to write the frames left in the buffer.
+ *
+ * @author zyplanke
+ */
+public class cnAsyncMessageLogger extends cnMessageListenerAdapter {
+
+	private static final Log log = LogFactory.getLog(cnAsyncMessageLogger.class);
+
+	/** The fields masked by default. */
+	public static final int[] DEFAULT_MASKED_FIELDS = { 2, 35, 36, 52, 55 };
+
+	/** The bytes of a record before the frame: length, header length, direction and time. */
+	private static final int RECORD_HEADER = 17;
+
+	private final cnMessageFactory factory;
+	private final Log out;
+	private final byte[] ring;
+	private final int mask;
+	private final Object lock = new Object();
+	/** The position where the next record is written; only changed with the lock. */
+	private long tail;
+	/** The position after the last complete record. */
+	private volatile long published;
+	/** The position of the next record to log; only changed by the logging thread. */
+	private volatile long head;
+	private volatile boolean waiting;
+	private volatile boolean closed;
+	private volatile boolean[] masked = new boolean[129];
+	private final AtomicLong logged = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Thread thread;
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+
+	/** Creates a logger with a buffer of 1 MB that writes to the log of this class. */
+	public cnAsyncMessageLogger(cnMessageFactory factory) {
+		this(factory, log, 1 << 20);
+	}
+
+	/** Creates a logger and starts its thread.
+	 * @param factory The factory whose parse guides are used to read the frames.
+	 * @param out The log where the messages are written.
+	 * @param capacity The size of the buffer in bytes, rounded up to a power of two. */
+	public cnAsyncMessageLogger(cnMessageFactory factory, Log out, int capacity) {
+		if (capacity < 1024 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity must be between 1 KB and 1 GB");
+		}
+		this.factory = factory;
+		this.out = out;
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		ring = new byte[size];
+		mask = size - 1;
+		setMaskedFields(DEFAULT_MASKED_FIELDS);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "cn8583-message-logger");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Sets the fields that are masked, replacing the default ones. */
+	public void setMaskedFields(int... fieldids) {
+		boolean[] m = new boolean[129];
+		for (int i : fieldids) {
+			if (i < 2 || i > 128) {
+				throw new IllegalArgumentException("Field index must be between 2 and 128");
+			}
+			m[i] = true;
+		}
+		masked = m;
+	}
+
+	public void frameReceived(byte[] buf, int msgheaderlength) {
+		log(buf, msgheaderlength, false);
+	}
+
+	public void messageEncoded(cnMessage m, byte[] data, long nanos) {
+		log(data, m.getmsgHeader().length, true);
+	}
+
+	/** Copies a frame to the buffer to be logged, or drops it if the buffer is full.
+	 * @param buf The frame, without the length header.
+	 * @param msgheaderlength The length of the 8583 header.
+	 * @param outgoing true if the frame is sent, false if it was received.
+	 * @return false if the frame was dropped. */
+	public boolean log(byte[] buf, int msgheaderlength, boolean outgoing) {
+		if (closed || !out.isInfoEnabled()) {
+			return false;
+		}
+		int size = RECORD_HEADER + buf.length;
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (size > ring.length - (tail - head)) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			long p = tail;
+			p = putInt(p, buf.length);
+			p = putInt(p, msgheaderlength);
+			ring[(int) p & mask] = (byte) (outgoing ? 1 : 0);
+			p = putLong(p + 1, now);
+			int i = (int) p & mask;
+			int first = Math.min(buf.length, ring.length - i);
+			System.arraycopy(buf, 0, ring, i, first);
+			System.arraycopy(buf, first, ring, 0, buf.length - first);
+			tail = p + buf.length;
+			published = tail;
+		}
+		if (waiting) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/** Returns the number of messages written to the log. */
+	public long getLogged() {
+		return logged.get();
+	}
+
+	/** Returns the number of frames dropped because the buffer was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** Returns the number of frames that could not be read with the parse guides of the factory. */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** Stops accepting frames and waits until the ones in the buffer have been logged. */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(thread);
+		thread.join();
+	}
+
+	/** Logs the records of the buffer until the logger is closed. */
+	private void drain() {
+		while (true) {
+			long h = head;
+			if (h == published) {
+				if (closed) {
+					return;
+				}
+				waiting = true;
+				if (h == published && !closed) {
+					LockSupport.parkNanos(this, 100000000L);
+				}
+				waiting = false;
+				continue;
+			}
+			int len = getInt(h);
+			int hl = getInt(h + 4);
+			boolean outgoing = ring[(int) (h + 8) & mask] != 0;
+			long time = getLong(h + 9);
+			byte[] buf = new byte[len];
+			int i = (int) (h + RECORD_HEADER) & mask;
+			int first = Math.min(len, ring.length - i);
+			System.arraycopy(ring, i, buf, 0, first);
+			System.arraycopy(ring, 0, buf, first, len - first);
+			head = h + RECORD_HEADER + len;
+			try {
+				out.info(format(buf, hl, outgoing, time));
+				logged.incrementAndGet();
+			} catch (RuntimeException ex) {
+				failed.incrementAndGet();
+				log.warn("Cannot log a message", ex);
+			}
+		}
+	}
+
+	/** Formats a frame as one line, with the masked fields. */
+	private String format(byte[] buf, int hl, boolean outgoing, long time) {
+		StringBuilder sb = new StringBuilder(buf.length * 2 + 64);
+		sb.append(outgoing ? "send " : "recv ").append(timeFormat.format(new Date(time)));
+		cnFrameIndex idx;
+		try {
+			idx = factory.indexMessage(buf, hl);
+		} catch (ParseException ex) {
+			failed.incrementAndGet();
+			return sb.append(" (").append(buf.length).append(" bytes) cannot be read: ")
+					.append(ex.getMessage()).toString();
+		}
+		sb.append(' ').append(idx.getMsgTypeID());
+		if (hl > 0) {
+			sb.append(" header=").append(cnHexCodec.encode(buf, 0, hl));
+		}
+		boolean[] m = masked;
+		for (int i = 2; i <= 128; i++) {
+			if (!idx.hasField(i)) {
+				continue;
+			}
+			sb.append(' ').append(i).append('=');
+			cnValue<?> v;
+			try {
+				v = idx.decodeField(i);
+			} catch (ParseException ex) {
+				sb.append("<invalid>");
+				continue;
+			}
+			if (m[i]) {
+				appendMasked(sb, v.getType() == cnType.BINARY ? "" : v.toString(), idx.getFieldLength(i));
+			} else {
+				sb.append('[').append(v).append(']');
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Appends a masked value: the first 6 and last 4 digits of a card number, or only the
+	 * length of any other value. */
+	private static void appendMasked(StringBuilder sb, String value, int length) {
+		int n = value.length();
+		boolean pan = n >= 13 && n <= 19;
+		for (int i = 0; pan && i < n; i++) {
+			char c = value.charAt(i);
+			pan = c >= '0' && c <= '9';
+		}
+		if (!pan) {
+			sb.append("<masked ").append(length).append(" bytes>");
+			return;
+		}
+		sb.append('[').append(value, 0, 6);
+		for (int i = 6; i < n - 4; i++) {
+			sb.append('*');
+		}
+		sb.append(value, n - 4, n).append(']');
+	}
+
+	private long putInt(long p, int v) {
+		for (int k = 24; k >= 0; k -= 8) {
+			ring[(int) p++ & mask] = (byte) (v >>> k);
+		}
+		return p;
+	}
+
+	private long putLong(long p, long v) {
+		for (int k = 56; k >= 0; k -= 8) {
+			ring[(int) p++ & mask] = (byte) (v >>> k);
+		}
+		return p;
+	}
+
+	private int getInt(long p) {
+		int v = 0;
+		for (int k = 0; k < 4; k++) {
+			v = (v << 8) | (ring[(int) p++ & mask] & 0xff);
+		}
+		return v;
+	}
+
+	private long getLong(long p) {
+		long v = 0;
+		for (int k = 0; k < 8; k++) {
+			v = (v << 8) | (ring[(int) p++ & mask] & 0xff);
+		}
+		return v;
+	}
+
+}
@@ -0,0 +1,87 @@
+
+package org.zyp.cn8583.impl;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.zyp.cn8583.cnMacGenerator;
+
+/** 
+ * POSն˹淶еECB㷨MACԿڱڴУڲԺûмܻĳϡ
+ * MAC generator that implements the "ECB" algorithm of the China UnionPay POS specification:
+ * <ol>
+ * <li>The data is padded with zeros to a multiple of 8 bytes and all the blocks are XORed together.</li>
+ * <li>The result is expanded to 16 hexadecimal characters; the first 8 are encrypted with
+ * the key, XORed with the last 8 and encrypted again.</li>
+ * <li>The MAC is the first 8 hexadecimal characters (ASCII) of the result.</li>
+ * </ol>
+ * The key is kept in memory, so this class is meant for tests and for links without
+ * a hardware security module. It is thread safe.
+ * 
+ * @author zyplanke
+ */
+public class cnEcbMacGenerator implements cnMacGenerator {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		protected Cipher initialValue() {
+			try {
+				Cipher enc = Cipher.getInstance("DES/ECB/NoPadding");
+				enc.init(Cipher.ENCRYPT_MODE, key);
+				return enc;
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("DES is not available", ex);
+			}
+		}
+	};
+
+	/** Creates a new instance with the specified MAC key.
+	 * @param key The DES key, 8 bytes.
+	 * @throws IllegalArgumentException if the key is not 8 bytes long. */
+	public cnEcbMacGenerator(byte[] key) {
+		if (key == null || key.length != 8) {
+			throw new IllegalArgumentException("MAC key must be 8 bytes long");
+		}
+		this.key = new SecretKeySpec(key, "DES");
+	}
+
+	public int getMacLength() {
+		return 8;
+	}
+
+	public byte[] computeMac(byte[] buf, int offset, int length) {
+		byte[] block = new byte[8];
+		for (int i = 0; i < length; i++) {
+			block[i % 8] ^= buf[offset + i];
+		}
+		byte[] hex = toHex(block);
+		Cipher c = ciphers.get();
+		try {
+			c.doFinal(hex, 0, 8, block, 0);
+			for (int i = 0; i < 8; i++) {
+				block[i] ^= hex[8 + i];
+			}
+			c.doFinal(block, 0, 8, block, 0);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Cannot compute MAC", ex);
+		}
+		byte[] mac = new byte[8];
+		System.arraycopy(toHex(block), 0, mac, 0, 8);
+		return mac;
+	}
+
+	/** Expands the 8 bytes to 16 uppercase hexadecimal characters. */
+	private static byte[] toHex(byte[] b) {
+		byte[] hex = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			hex[i * 2] = HEX[(b[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX[b[i] & 0x0f];
+		}
+		return hex;
+	}
+
+}
@@ -0,0 +1,81 @@
+
+package org.zyp.cn8583.impl;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.zyp.cn8583.cnMacGenerator;
+
+/** 
+ * ANSI X9.19 (X9.9) 㷨MACԿڱڴУڲԺûмܻĳϡ
+ * MAC generator that implements ANSI X9.19 (retail MAC) with a double length DES key,
+ * or ANSI X9.9 with a single length key. The data is padded with zeros to a multiple of
+ * 8 bytes and encrypted with DES in CBC mode with the first half of the key; with a double
+ * length key the last block is then decrypted with the second half and encrypted again
+ * with the first half. The MAC is the 8 bytes of the last block.
+ * <P>
+ * The key is kept in memory, so this class is meant for tests and for links without
+ * a hardware security module. It is thread safe.
+ * 
+ * @author zyplanke
+ */
+public class cnX919MacGenerator implements cnMacGenerator {
+
+	private final SecretKeySpec keyLeft;
+	private final SecretKeySpec keyRight;
+	private final ThreadLocal<Cipher[]> ciphers = new ThreadLocal<Cipher[]>() {
+		protected Cipher[] initialValue() {
+			try {
+				Cipher enc = Cipher.getInstance("DES/ECB/NoPadding");
+				enc.init(Cipher.ENCRYPT_MODE, keyLeft);
+				Cipher dec = null;
+				if (keyRight != null) {
+					dec = Cipher.getInstance("DES/ECB/NoPadding");
+					dec.init(Cipher.DECRYPT_MODE, keyRight);
+				}
+				return new Cipher[] { enc, dec };
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("DES is not available", ex);
+			}
+		}
+	};
+
+	/** Creates a new instance with the specified MAC key.
+	 * @param key 8 bytes for X9.9, or 16 bytes for X9.19.
+	 * @throws IllegalArgumentException if the key is not 8 or 16 bytes long. */
+	public cnX919MacGenerator(byte[] key) {
+		if (key == null || (key.length != 8 && key.length != 16)) {
+			throw new IllegalArgumentException("MAC key must be 8 or 16 bytes long");
+		}
+		keyLeft = new SecretKeySpec(key, 0, 8, "DES");
+		keyRight = key.length == 16 ? new SecretKeySpec(key, 8, 8, "DES") : null;
+	}
+
+	public int getMacLength() {
+		return 8;
+	}
+
+	public byte[] computeMac(byte[] buf, int offset, int length) {
+		Cipher[] c = ciphers.get();
+		byte[] block = new byte[8];
+		try {
+			for (int i = 0; i < length; i += 8) {
+				int n = Math.min(8, length - i);
+				for (int j = 0; j < n; j++) {
+					block[j] ^= buf[offset + i + j];
+				}
+				c[0].doFinal(block, 0, 8, block, 0);
+			}
+			if (c[1] != null) {
+				c[1].doFinal(block, 0, 8, block, 0);
+				c[0].doFinal(block, 0, 8, block, 0);
+			}
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Cannot compute MAC", ex);
+		}
+		return block;
+	}
+
+}
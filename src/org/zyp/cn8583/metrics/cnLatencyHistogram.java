@@ -0,0 +1,106 @@
+package org.zyp.cn8583.metrics;
+
+/**
+ * ĺʱֲͳƣHDRĶ-ԷͰ
+ * A lock-free histogram of latencies in nanoseconds. The values are counted in log-linear
+ * buckets, in the style of HdrHistogram: each power of two is divided in 16 buckets, so every
+ * value is stored with a relative error of at most 1/16 (about 6%), from 1 nanosecond to
+ * several days. Recording a value is a few arithmetic operations and two atomic additions
+ * on the counters of the processor (see {@link cnStripedCounters}), so the threads that
+ * record at the same time do not contend for the same cache lines; the counters of all the
+ * processors are added up when the histogram is read.
+ * 
+ * @author zyplanke
+ */
+public class cnLatencyHistogram {
+
+	/** Number of buckets for each power of two (4 bits of precision). */
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	/** The counters after the buckets: the sum and the largest of the values. */
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+
+	private final cnStripedCounters counters = new cnStripedCounters(BUCKETS + 2);
+
+	/** Returns the bucket of a value. Values under 16 have one bucket each. */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return value < 0 ? 0 : (int)value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int)((value >>> (exp - SUB_BITS)) - SUB_BUCKETS);
+	}
+
+	/** Returns the highest value that is counted in a bucket. */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = SUB_BUCKETS + (bucket % SUB_BUCKETS);
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/** Adds a value to the histogram. */
+	public void record(long nanos) {
+		counters.add(bucketOf(nanos), 1);
+		counters.add(SUM, nanos);
+		counters.max(MAX, nanos);
+	}
+
+	/** Returns the number of values recorded. */
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counters.sum(i);
+		}
+		return n;
+	}
+
+	/** Returns the largest value recorded, or 0. */
+	public long getMax() {
+		return counters.getMax(MAX);
+	}
+
+	/** Returns the mean of the values recorded, or 0. */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double)counters.sum(SUM) / n;
+	}
+
+	/** Returns the value under which the specified percentage of the values fall (with the
+	 * precision of the buckets), or 0 if there are no values.
+	 * @param percentile A number between 0 and 100, e.g. 99.9. */
+	public long getPercentile(double percentile) {
+		long[] c = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counters.sum(i);
+			n += c[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(n * percentile / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long acc = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			acc += c[i];
+			if (acc >= rank) {
+				return Math.min(highestValueOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/** Clears all the values. Values recorded at the same time may be partially lost. */
+	public void reset() {
+		counters.reset();
+	}
+
+}
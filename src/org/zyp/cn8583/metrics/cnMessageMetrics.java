@@ -0,0 +1,139 @@
+package org.zyp.cn8583.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ĴͳƣͺͲģ崴ͳƺʱֽͳ
+ * Collects the latency, the number of bytes and the number of errors of each operation
+ * (parseMessage, write and newMessagefromTemplate) for each message type. Set an instance
+ * in a cnMessageFactory with setMetrics to enable it; without it the factory only checks
+ * a null field.
+ * <P>
+ * The statistics can be read with getStats and snapshot, and can be published as JMX MBeans
+ * (one for each message type and operation) with registerMBeans.
+ * 
+ * @author zyplanke
+ */
+public class cnMessageMetrics {
+
+	private static final Log log = LogFactory.getLog(cnMessageMetrics.class);
+
+	/** The operations that are measured. */
+	public enum Operation {
+		/** cnMessageFactory.parseMessage */
+		PARSE,
+		/** cnMessage.write and writeToBuffer */
+		WRITE,
+		/** cnMessageFactory.newMessagefromTemplate */
+		CREATE
+	}
+
+	/** The most message types that are kept; others (e.g. from garbage frames) are counted as "????". */
+	private static final int MAX_TYPES = 256;
+
+	/** (msgtypeid, stats indexed by Operation.ordinal()) */
+	private final ConcurrentMap<String, cnOperationStats[]> stats = new ConcurrentHashMap<String, cnOperationStats[]>();
+	/** The name of the MBeans, or null if they are not registered. */
+	private volatile String jmxname;
+
+	/** Records an operation that completed without error.
+	 * @param msgtypeid The message type id.
+	 * @param op The operation.
+	 * @param nanos The time it took, in nanoseconds.
+	 * @param nbytes The number of bytes parsed or written (0 for CREATE). */
+	public void record(String msgtypeid, Operation op, long nanos, int nbytes) {
+		getStats(msgtypeid, op).record(nanos, nbytes);
+	}
+
+	/** Records an operation that failed.
+	 * @param msgtypeid The message type id, or null if it could not be read. */
+	public void recordError(String msgtypeid, Operation op) {
+		getStats(msgtypeid == null ? "????" : msgtypeid, op).recordError();
+	}
+
+	/** Returns the statistics of an operation for a message type, creating them if needed. */
+	public cnOperationStats getStats(String msgtypeid, Operation op) {
+		cnOperationStats[] s = stats.get(msgtypeid);
+		if (s == null && stats.size() >= MAX_TYPES && !"????".equals(msgtypeid)) {
+			return getStats("????", op);
+		}
+		if (s == null) {
+			s = new cnOperationStats[Operation.values().length];
+			for (Operation o : Operation.values()) {
+				s[o.ordinal()] = new cnOperationStats(msgtypeid, o);
+			}
+			cnOperationStats[] prev = stats.putIfAbsent(msgtypeid, s);
+			if (prev != null) {
+				s = prev;
+			} else if (jmxname != null) {
+				register(jmxname, s);
+			}
+		}
+		return s[op.ordinal()];
+	}
+
+	/** Returns the current values of the statistics of all the message types and operations
+	 * that have been recorded, sorted by message type. */
+	public List<cnOperationStats.Snapshot> snapshot() {
+		List<String> types = new ArrayList<String>(stats.keySet());
+		Collections.sort(types);
+		List<cnOperationStats.Snapshot> l = new ArrayList<cnOperationStats.Snapshot>();
+		for (String t : types) {
+			for (cnOperationStats s : stats.get(t)) {
+				if (s.getCount() > 0 || s.getErrors() > 0) {
+					l.add(s.snapshot());
+				}
+			}
+		}
+		return l;
+	}
+
+	/** Clears all the statistics. */
+	public void reset() {
+		for (cnOperationStats[] s : stats.values()) {
+			for (cnOperationStats o : s) {
+				o.reset();
+			}
+		}
+	}
+
+	/** Publishes the statistics in the platform MBeanServer, with names like
+	 * org.zyp.cn8583:type=MessageMetrics,name=[name],msgtypeid=0200,operation=PARSE.
+	 * Message types recorded later are registered when they first appear.
+	 * @param name A name that tells this factory apart from others in the same JVM. */
+	public void registerMBeans(String name) {
+		jmxname = name;
+		for (cnOperationStats[] s : stats.values()) {
+			register(name, s);
+		}
+	}
+
+	private void register(String name, cnOperationStats[] s) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (cnOperationStats o : s) {
+			try {
+				ObjectName on = new ObjectName("org.zyp.cn8583:type=MessageMetrics,name=" + ObjectName.quote(name)
+						+ ",msgtypeid=" + ObjectName.quote(o.getMsgTypeID()) + ",operation=" + o.getOperation());
+				if (!server.isRegistered(on)) {
+					server.registerMBean(new StandardMBean(o, cnOperationStatsMBean.class), on);
+				}
+			} catch (JMException ex) {
+				log.warn("Cannot register MBean for " + o.getMsgTypeID() + " " + o.getOperation(), ex);
+			}
+		}
+	}
+
+}
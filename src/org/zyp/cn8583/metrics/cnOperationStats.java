@@ -0,0 +1,136 @@
+package org.zyp.cn8583.metrics;
+
+/**
+ * ĳһĳһͳƣʱֲֽͳ
+ * The statistics of one operation for one message type: the latency histogram, the number of
+ * bytes and the number of errors. All the counters are lock free and kept by processor
+ * ({@link cnStripedCounters}), so the threads that handle the same message type do not
+ * contend for them; they are added up when the statistics are read.
+ * 
+ * @author zyplanke
+ */
+public class cnOperationStats implements cnOperationStatsMBean {
+
+	/** The values of the statistics at one moment. Times are in microseconds. */
+	public static final class Snapshot {
+		public final String msgtypeid;
+		public final String operation;
+		public final long count;
+		public final long errors;
+		public final long bytes;
+		public final double mean;
+		public final double max;
+		public final double p50;
+		public final double p90;
+		public final double p99;
+		public final double p999;
+
+		Snapshot(cnOperationStats s) {
+			msgtypeid = s.getMsgTypeID();
+			operation = s.getOperation();
+			count = s.getCount();
+			errors = s.getErrors();
+			bytes = s.getBytes();
+			mean = s.getMeanMicros();
+			max = s.getMaxMicros();
+			p50 = s.getP50Micros();
+			p90 = s.getP90Micros();
+			p99 = s.getP99Micros();
+			p999 = s.getP999Micros();
+		}
+
+		public String toString() {
+			return msgtypeid + " " + operation + ": count=" + count + " errors=" + errors + " bytes=" + bytes
+					+ " mean=" + mean + "us p50=" + p50 + "us p90=" + p90 + "us p99=" + p99
+					+ "us p99.9=" + p999 + "us max=" + max + "us";
+		}
+	}
+
+	private final String msgtypeid;
+	private final cnMessageMetrics.Operation operation;
+	private final cnLatencyHistogram latency = new cnLatencyHistogram();
+	/** The counters of the bytes and the errors. */
+	private static final int BYTES = 0;
+	private static final int ERRORS = 1;
+	private final cnStripedCounters counters = new cnStripedCounters(2);
+
+	cnOperationStats(String msgtypeid, cnMessageMetrics.Operation operation) {
+		this.msgtypeid = msgtypeid;
+		this.operation = operation;
+	}
+
+	void record(long nanos, int nbytes) {
+		latency.record(nanos);
+		if (nbytes > 0) {
+			counters.add(BYTES, nbytes);
+		}
+	}
+
+	void recordError() {
+		counters.add(ERRORS, 1);
+	}
+
+	/** Returns the latency histogram, in nanoseconds. */
+	public cnLatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public String getMsgTypeID() {
+		return msgtypeid;
+	}
+
+	public String getOperation() {
+		return operation.name();
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	public long getErrors() {
+		return counters.sum(ERRORS);
+	}
+
+	public long getBytes() {
+		return counters.sum(BYTES);
+	}
+
+	public double getMeanMicros() {
+		return latency.getMean() / 1000.0;
+	}
+
+	public double getMaxMicros() {
+		return latency.getMax() / 1000.0;
+	}
+
+	public double getP50Micros() {
+		return latency.getPercentile(50) / 1000.0;
+	}
+
+	public double getP90Micros() {
+		return latency.getPercentile(90) / 1000.0;
+	}
+
+	public double getP99Micros() {
+		return latency.getPercentile(99) / 1000.0;
+	}
+
+	public double getP999Micros() {
+		return latency.getPercentile(99.9) / 1000.0;
+	}
+
+	public void reset() {
+		latency.reset();
+		counters.reset();
+	}
+
+	/** Returns the current values of the statistics. */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+
+}
@@ -0,0 +1,42 @@
+package org.zyp.cn8583.metrics;
+
+/**
+ * JMXӿڣĳһĳһͳơ
+ * The JMX view of the statistics of one operation (parse, write or create) for one
+ * message type. Times are in microseconds.
+ * 
+ * @author zyplanke
+ */
+public interface cnOperationStatsMBean {
+
+	/** Returns the message type id. */
+	public String getMsgTypeID();
+
+	/** Returns the operation: PARSE, WRITE or CREATE. */
+	public String getOperation();
+
+	/** Returns the number of operations that completed without error. */
+	public long getCount();
+
+	/** Returns the number of operations that failed. */
+	public long getErrors();
+
+	/** Returns the total number of bytes parsed or written. */
+	public long getBytes();
+
+	public double getMeanMicros();
+
+	public double getMaxMicros();
+
+	public double getP50Micros();
+
+	public double getP90Micros();
+
+	public double getP99Micros();
+
+	public double getP999Micros();
+
+	/** Clears the statistics. */
+	public void reset();
+
+}
@@ -0,0 +1,112 @@
+package org.zyp.cn8583.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ÿCPUһ̼߳ʱãȡʱٺϲ
+ * A group of counters that many threads update at the same time without sharing a cache
+ * line: the counters are kept in stripes, as many as the processors (a power of two, at most
+ * 64), and each thread updates the stripe chosen by its id. The readers add up (or take the
+ * largest of) the stripes, so reading costs as many reads as stripes, and updating costs one
+ * atomic operation on a line that is seldom shared with another thread.
+ * <P>
+ * The memory does not grow with the number of threads: a stripe is created the first time a
+ * thread uses it, and there are never more stripes than processors. Threads with the same
+ * stripe only share it, the counts stay exact.
+ *
+ * @author zyplanke
+ */
+public final class cnStripedCounters {
+
+	/** The number of stripes, a power of two. */
+	private static final int STRIPES;
+	static {
+		int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+		if (n < Runtime.getRuntime().availableProcessors()) {
+			n <<= 1;
+		}
+		STRIPES = Math.min(n, 64);
+	}
+	/** Longs of padding before and after the counters of a stripe (a cache line). */
+	private static final int PAD = 8;
+
+	private final int width;
+	private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+
+	/** Creates a group of counters, all 0.
+	 * @param width The number of counters. */
+	public cnStripedCounters(int width) {
+		this.width = width;
+	}
+
+	/** Returns the stripe of the current thread, creating it if it is the first to use it. */
+	private AtomicLongArray stripe() {
+		long id = Thread.currentThread().getId();
+		int i = (int)((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+		AtomicLongArray s = stripes.get(i);
+		if (s == null) {
+			s = new AtomicLongArray(width + 2 * PAD);
+			if (!stripes.compareAndSet(i, null, s)) {
+				s = stripes.get(i);
+			}
+		}
+		return s;
+	}
+
+	/** Adds a number to a counter. */
+	public void add(int counter, long delta) {
+		stripe().getAndAdd(PAD + counter, delta);
+	}
+
+	/** Sets a counter to the value if it is larger, to keep the largest value. */
+	public void max(int counter, long value) {
+		AtomicLongArray s = stripe();
+		long m = s.get(PAD + counter);
+		while (value > m && !s.compareAndSet(PAD + counter, m, value)) {
+			m = s.get(PAD + counter);
+		}
+	}
+
+	/** Returns the sum of a counter in all the stripes. */
+	public long sum(int counter) {
+		long n = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			AtomicLongArray s = stripes.get(i);
+			if (s != null) {
+				n += s.get(PAD + counter);
+			}
+		}
+		return n;
+	}
+
+	/** Returns the largest value of a counter kept with {@link #max(int, long)}, or 0. */
+	public long getMax(int counter) {
+		long m = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			AtomicLongArray s = stripes.get(i);
+			if (s != null) {
+				m = Math.max(m, s.get(PAD + counter));
+			}
+		}
+		return m;
+	}
+
+	/** Sets all the counters to 0. Counts added at the same time may be partially lost. */
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			AtomicLongArray s = stripes.get(i);
+			if (s != null) {
+				for (int k = 0; k < width; k++) {
+					s.set(PAD + k, 0);
+				}
+			}
+		}
+	}
+
+	/** Returns the number of counters. */
+	public int getWidth() {
+		return width;
+	}
+
+}
@@ -0,0 +1,252 @@
+package org.zyp.cn8583.net;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageListener;
+
+/**
+ * дģѶģͷETX뵽õĻУһξۼд͡
+ * Writes bursts of messages to a channel with few system calls. Each message is encoded,
+ * with its length header and ETX, into buffers that are allocated once and reused; the
+ * buffers of a batch are sent with a single {@link GatheringByteChannel#write(ByteBuffer[])},
+ * where {@link cnMessage#write(java.io.OutputStream, int, int)} makes up to three writes and a
+ * flush for each message.
+ * <P>
+ * A batch is sent when it reaches a number of bytes ({@link #setMaxBytes(int)}), when a
+ * message is added after the first one of the batch has waited longer than the maximum delay
+ * ({@link #setMaxDelay(long)}), or when the caller calls {@link #flush()}, which it should do
+ * when it has nothing more to send (e.g. when its queue of outgoing messages is empty), and
+ * {@link #flushIfDue()} periodically if it waits for new messages. A message in an arena is
+ * copied from the arena into the buffer; other messages are encoded once and copied.
+ * <P>
+ * The writer is not thread safe: it is meant to be used by the thread that owns the channel,
+ * and the channel should be in blocking mode.
+ *
+ * @author zyplanke
+ */
+public class cnBatchWriter {
+
+	private final GatheringByteChannel channel;
+	private final int lengthBytes;
+	private final int radix;
+	private final int bufferSize;
+	/** The buffers with the messages of the batch, in order; the last one is being filled. */
+	private final List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+	/** The buffers that can be reused. */
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer[] gather = new ByteBuffer[8];
+	private int maxBytes = 65536;
+	private long maxDelay = 1000000L;
+	/** The System.nanoTime() when the first message of the batch was added. */
+	private long first;
+	private int pendingBytes;
+	private long messages;
+	private long batches;
+	private long writes;
+	private long bytes;
+
+	/** Creates a writer with buffers of 64 KB.
+	 * @param lengthBytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary, as in {@link cnFraming}. */
+	public cnBatchWriter(GatheringByteChannel channel, int lengthBytes, int radix) {
+		this(channel, lengthBytes, radix, 65536);
+	}
+
+	/** Creates a writer.
+	 * @param lengthBytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary, as in {@link cnFraming}.
+	 * @param bufferSize The size of each buffer; a message larger than this gets its own buffer. */
+	public cnBatchWriter(GatheringByteChannel channel, int lengthBytes, int radix, int bufferSize) {
+		if (lengthBytes < 2 || lengthBytes > 4) {
+			throw new IllegalArgumentException("The length header must have 2 to 4 bytes");
+		}
+		if (radix != 10 && radix != 16) {
+			throw new IllegalArgumentException("ֻΪ1016");
+		}
+		if (bufferSize < 1024) {
+			throw new IllegalArgumentException("The buffers must have at least 1024 bytes");
+		}
+		this.channel = channel;
+		this.lengthBytes = lengthBytes;
+		this.radix = radix;
+		this.bufferSize = bufferSize;
+	}
+
+	/** Sets the number of bytes that makes a batch be sent. Default is 64 KB. */
+	public void setMaxBytes(int value) {
+		maxBytes = value;
+	}
+
+	/** Sets the longest time the first message of a batch waits for more messages, in
+	 * microseconds; it is checked when a message is added and by {@link #flushIfDue()}.
+	 * Default is 1000. */
+	public void setMaxDelay(long micros) {
+		maxDelay = micros * 1000L;
+	}
+
+	/** Adds a message to the batch, and sends the batch if it reaches a threshold. */
+	public void write(cnMessage m) throws IOException {
+		if (m.isArenaBacked() && m.getMacGenerator() == null && m.getListener() == cnMessageListener.NONE) {
+			ByteBuffer b = current(lengthBytes + 1);
+			int start = b.position();
+			b.position(start + lengthBytes);
+			try {
+				m.writeTo(b, 0);
+			} catch (BufferOverflowException ex) {
+				//does not fit in the rest of the buffer, the data is encoded into a new one
+				b.position(start);
+				write(m.writeToBuffer(0));
+				return;
+			}
+			added(b, start);
+		} else {
+			write(m.writeToBuffer(0));
+		}
+	}
+
+	/** Adds an encoded message (without the length header, with the ETX if it has one) to
+	 * the batch, and sends the batch if it reaches a threshold. */
+	public void write(byte[] data, int off, int len) throws IOException {
+		write(ByteBuffer.wrap(data, off, len));
+	}
+
+	private void write(ByteBuffer data) throws IOException {
+		int size = lengthBytes + data.remaining();
+		ByteBuffer b;
+		if (size > bufferSize) {
+			b = ByteBuffer.allocate(size);
+			batch.add(b);
+		} else {
+			b = current(size);
+		}
+		int start = b.position();
+		b.position(start + lengthBytes);
+		b.put(data);
+		added(b, start);
+	}
+
+	/** Returns the buffer being filled, or a new one if it has less than the specified room. */
+	private ByteBuffer current(int room) {
+		ByteBuffer b = batch.isEmpty() ? null : batch.get(batch.size() - 1);
+		if (b == null || b.remaining() < room) {
+			b = free.poll();
+			if (b == null) {
+				b = ByteBuffer.allocateDirect(bufferSize);
+			}
+			batch.add(b);
+		}
+		return b;
+	}
+
+	/** Writes the length header of the message that starts at the position, and sends the
+	 * batch if it reaches a threshold. */
+	private void added(ByteBuffer b, int start) throws IOException {
+		int len = b.position() - start - lengthBytes;
+		if (radix == 16) {
+			for (int k = lengthBytes - 1; k >= 0; k--) {
+				b.put(start + k, (byte) (len >>> ((lengthBytes - 1 - k) * 8)));
+			}
+		} else {
+			for (int k = lengthBytes - 1, l = len; k >= 0; k--, l /= 10) {
+				b.put(start + k, (byte) ('0' + l % 10));
+			}
+		}
+		messages++;
+		long now = System.nanoTime();
+		if (pendingBytes == 0) {
+			first = now;
+		}
+		pendingBytes += len + lengthBytes;
+		if (pendingBytes >= maxBytes || now - first >= maxDelay) {
+			flush();
+		}
+	}
+
+	/** Sends the batch if its first message has waited longer than the maximum delay.
+	 * @return true if the batch was sent. */
+	public boolean flushIfDue() throws IOException {
+		if (pendingBytes > 0 && System.nanoTime() - first >= maxDelay) {
+			flush();
+			return true;
+		}
+		return false;
+	}
+
+	/** Sends the messages of the batch, with a single gathering write if the channel takes
+	 * them all at once. */
+	public void flush() throws IOException {
+		if (pendingBytes == 0) {
+			return;
+		}
+		int n = batch.size();
+		if (gather.length < n) {
+			gather = new ByteBuffer[Math.max(n, gather.length * 2)];
+		}
+		for (int i = 0; i < n; i++) {
+			ByteBuffer b = batch.get(i);
+			b.flip();
+			gather[i] = b;
+		}
+		int sent = pendingBytes;
+		int i = 0;
+		try {
+			while (i < n) {
+				channel.write(gather, i, n - i);
+				writes++;
+				while (i < n && !gather[i].hasRemaining()) {
+					i++;
+				}
+			}
+		} finally {
+			for (int k = 0; k < n; k++) {
+				ByteBuffer b = gather[k];
+				gather[k] = null;
+				if (b.isDirect() && b.capacity() == bufferSize) {
+					b.clear();
+					free.add(b);
+				}
+			}
+			batch.clear();
+			pendingBytes = 0;
+		}
+		batches++;
+		bytes += sent;
+	}
+
+	/** Returns the number of messages added. */
+	public long getMessages() {
+		return messages;
+	}
+
+	/** Returns the number of batches sent. */
+	public long getBatches() {
+		return batches;
+	}
+
+	/** Returns the number of writes to the channel. */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Returns the number of bytes sent. */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/** Sends the batch and closes the channel. */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+package org.zyp.cn8583.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnValue;
+
+/**
+ * 첽8583ͻˣӳءڵ㸺ؾ⡢Ͻڵժ̽⡣
+ * An asynchronous client that sends requests to several host nodes over pooled persistent
+ * connections. {@link #send(cnMessage)} returns at once with a {@link cnResponseFuture};
+ * the response is matched to its request by fields 11 and 41, so many requests can be
+ * outstanding on each connection.
+ * <P>
+ * Each request goes to the available endpoint with the fewest outstanding requests (or to
+ * the next one in turn with round-robin balancing), and to its connection with the fewest
+ * outstanding requests. New connections are opened as needed, up to the configured number
+ * per endpoint. An endpoint whose connection cannot be opened or fails is ejected for a
+ * while; after that the next request to it opens a new connection, which probes it again.
+ * <P>
+ * Responses are parsed with the message factory, which must have the header lengths and
+ * parse guides of the response types. The client is thread safe; the configuration should
+ * be set before sending the first request.
+ *
+ * @author zyplanke
+ */
+public class cnClient {
+
+	private static final Log log = LogFactory.getLog(cnClient.class);
+
+	/** How requests are spread across the endpoints. */
+	public enum Balancing {
+		/** The available endpoint with the fewest outstanding requests. */
+		LEAST_OUTSTANDING,
+		/** The available endpoints in turn. */
+		ROUND_ROBIN
+	}
+
+	private final cnMessageFactory factory;
+	private final List<cnEndpoint> endpoints;
+	private final AtomicInteger next = new AtomicInteger();
+	private Balancing balancing = Balancing.LEAST_OUTSTANDING;
+	private int connectionsPerEndpoint = 2;
+	private int lengthBytes = 4;
+	private int lengthRadix = 10;
+	private int maxFrameLength = 65535;
+	private int connectTimeout = 3000;
+	private long timeout = 30000;
+	private long ejectTime = 10000;
+	private volatile boolean closed;
+	private Thread timer;
+
+	/** Creates a client for the specified host nodes.
+	 * @param factory The factory used to parse the responses.
+	 * @param addresses The addresses of the host nodes. */
+	public cnClient(cnMessageFactory factory, List<InetSocketAddress> addresses) {
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is needed");
+		}
+		this.factory = factory;
+		List<cnEndpoint> l = new ArrayList<cnEndpoint>(addresses.size());
+		for (InetSocketAddress a : addresses) {
+			l.add(new cnEndpoint(a));
+		}
+		endpoints = Collections.unmodifiableList(l);
+	}
+
+	/** Sets how requests are spread across the endpoints. Default is LEAST_OUTSTANDING. */
+	public void setBalancing(Balancing value) {
+		balancing = value;
+	}
+	public Balancing getBalancing() {
+		return balancing;
+	}
+
+	/** Sets the maximum number of connections to each endpoint. Default is 2. */
+	public void setConnectionsPerEndpoint(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("At least one connection per endpoint is needed");
+		}
+		connectionsPerEndpoint = value;
+	}
+	public int getConnectionsPerEndpoint() {
+		return connectionsPerEndpoint;
+	}
+
+	/** Sets the length header of the frames, as in cnMessage.write. Default is 4 decimal digits.
+	 * @param bytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary. */
+	public void setLengthHeader(int bytes, int radix) {
+		if (bytes < 2 || bytes > 4 || (radix != 10 && radix != 16)) {
+			throw new IllegalArgumentException("Invalid length header: " + bytes + " bytes, radix " + radix);
+		}
+		lengthBytes = bytes;
+		lengthRadix = radix;
+	}
+	public int getLengthBytes() {
+		return lengthBytes;
+	}
+	public int getLengthRadix() {
+		return lengthRadix;
+	}
+
+	/** Sets the largest response accepted; a larger length header closes the connection.
+	 * Default is 65535 bytes. */
+	public void setMaxFrameLength(int value) {
+		maxFrameLength = value;
+	}
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/** Sets the timeout to open a connection, in milliseconds. Default is 3000. */
+	public void setConnectTimeout(int millis) {
+		connectTimeout = millis;
+	}
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/** Sets the time to wait for a response before failing a request with a TimeoutException,
+	 * in milliseconds. Default is 30000. */
+	public void setTimeout(long millis) {
+		timeout = millis;
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/** Sets the time an endpoint is ejected after a failure, in milliseconds. Default is 10000. */
+	public void setEjectTime(long millis) {
+		ejectTime = millis;
+	}
+	public long getEjectTime() {
+		return ejectTime;
+	}
+
+	/** Returns the endpoints of the client, in the order they were given. */
+	public List<cnEndpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/** Sends a request. The request must have field 11 (and field 41 if the host node
+	 * answers with it), and no other request with the same values may be outstanding.
+	 * @return The future response. It fails if no endpoint is available, if the response
+	 * does not arrive in time, or if the connection fails before it arrives. */
+	public cnResponseFuture send(cnMessage request) {
+		cnResponseFuture f = new cnResponseFuture();
+		if (closed) {
+			f.fail(new IOException("Client closed"));
+			return f;
+		}
+		String key = matchKey(request);
+		if (key == null) {
+			f.fail(new IllegalArgumentException("The request has no field 11"));
+			return f;
+		}
+		byte[] frame;
+		try {
+			frame = cnFraming.frame(request, lengthBytes, lengthRadix);
+		} catch (RuntimeException ex) {
+			f.fail(ex);
+			return f;
+		}
+		try {
+			startTimer();
+			select().send(new cnConnection.Pending(key, frame, f, System.currentTimeMillis() + timeout));
+		} catch (IOException ex) {
+			f.fail(ex);
+		}
+		return f;
+	}
+
+	/** Sends a request and calls the handler with the outcome. */
+	public void send(cnMessage request, cnResponseHandler handler) {
+		send(request).addHandler(handler);
+	}
+
+	/** Returns the key that matches a response to its request: fields 11 and 41, or null
+	 * if there is no field 11. */
+	static String matchKey(cnMessage m) {
+		cnValue<?> stan = m.getField(11);
+		if (stan == null) {
+			return null;
+		}
+		cnValue<?> terminal = m.getField(41);
+		return terminal == null ? stan.toString() : stan.toString() + '/' + terminal.toString();
+	}
+
+	/** Parses a response with the factory, finding its header length by its type. */
+	cnMessage parseResponse(byte[] buf) throws ParseException {
+		int hl = factory.findHeaderLength(buf);
+		if (hl < 0) {
+			throw new ParseException("Unknown message type in response", 0);
+		}
+		return factory.parseMessage(buf, hl);
+	}
+
+	/** Returns a connection to an available endpoint, opening it if needed. Endpoints that
+	 * cannot be connected are ejected and the next one is tried. */
+	private cnConnection select() throws IOException {
+		IOException error = null;
+		for (int attempt = 0; attempt < endpoints.size(); attempt++) {
+			cnEndpoint ep = selectEndpoint();
+			if (ep == null) {
+				break;
+			}
+			try {
+				return connectionTo(ep);
+			} catch (IOException ex) {
+				log.warn("Cannot connect to " + ep + ", ejecting it for " + ejectTime + " ms: " + ex);
+				ep.eject(ejectTime);
+				error = ex;
+			}
+		}
+		IOException ex = new IOException("No endpoint available");
+		if (error != null) {
+			ex.initCause(error);
+		}
+		throw ex;
+	}
+
+	private cnEndpoint selectEndpoint() {
+		long now = System.currentTimeMillis();
+		int n = endpoints.size();
+		if (balancing == Balancing.ROUND_ROBIN) {
+			int start = next.getAndIncrement() & Integer.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				cnEndpoint ep = endpoints.get((start + i) % n);
+				if (ep.isAvailable(now)) {
+					return ep;
+				}
+			}
+			return null;
+		}
+		cnEndpoint best = null;
+		int min = Integer.MAX_VALUE;
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;	// ͬʱѡ
+		for (int i = 0; i < n; i++) {
+			cnEndpoint ep = endpoints.get((start + i) % n);
+			int o = ep.outstanding.get();
+			if (o < min && ep.isAvailable(now)) {
+				best = ep;
+				min = o;
+			}
+		}
+		return best;
+	}
+
+	/** Returns the connection of the endpoint with the fewest outstanding requests, opening a
+	 * new one if all are busy and there are fewer than the maximum. */
+	private cnConnection connectionTo(cnEndpoint ep) throws IOException {
+		cnConnection best = leastBusy(ep);
+		if (best != null && (best.getOutstanding() == 0 || ep.connections.size() >= connectionsPerEndpoint)) {
+			return best;
+		}
+		synchronized (ep) {
+			if (ep.connections.size() < connectionsPerEndpoint) {
+				cnConnection c = new cnConnection(this, ep);
+				ep.connections.add(c);
+				return c;
+			}
+		}
+		best = leastBusy(ep);
+		if (best == null) {
+			throw new IOException("No open connection to " + ep);
+		}
+		return best;
+	}
+
+	private static cnConnection leastBusy(cnEndpoint ep) {
+		cnConnection best = null;
+		for (cnConnection c : ep.connections) {
+			if (!c.isClosed() && (best == null || c.getOutstanding() < best.getOutstanding())) {
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/** Called by a connection when it is closed. A failure ejects its endpoint. */
+	void connectionClosed(cnConnection c, IOException cause) {
+		c.endpoint.connections.remove(c);
+		if (cause != null && !closed) {
+			log.warn("Connection to " + c.endpoint + " failed, ejecting it for " + ejectTime + " ms: " + cause);
+			c.endpoint.eject(ejectTime);
+		}
+	}
+
+	/** Starts the thread that fails the requests that time out. */
+	private synchronized void startTimer() {
+		if (timer != null) {
+			return;
+		}
+		timer = new Thread(new Runnable() {
+			public void run() {
+				long period = Math.max(10, Math.min(1000, timeout / 10));
+				while (!closed) {
+					try {
+						Thread.sleep(period);
+					} catch (InterruptedException ex) {
+						return;
+					}
+					long now = System.currentTimeMillis();
+					for (cnEndpoint ep : endpoints) {
+						for (cnConnection c : ep.connections) {
+							c.expire(now);
+						}
+					}
+				}
+			}
+		}, "cn8583-client-timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/** Closes all the connections, failing the outstanding requests. */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (timer != null) {
+				timer.interrupt();
+			}
+		}
+		for (cnEndpoint ep : endpoints) {
+			for (cnConnection c : ep.connections) {
+				c.close(null);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.zyp.cn8583.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnMessage;
+
+/**
+ * ĳһڵһӡ
+ * A persistent connection to an endpoint. Requests are queued and written by a writer
+ * thread, which takes all the frames queued at that moment and writes them with a single
+ * flush, so many concurrent requests share few system calls. A reader thread reads the
+ * responses and completes the requests they match (by fields 11 and 41). Any I/O error
+ * closes the connection and fails all its outstanding requests.
+ *
+ * @author zyplanke
+ */
+final class cnConnection {
+
+	private static final Log log = LogFactory.getLog(cnConnection.class);
+
+	/** Most frames written with a single flush. */
+	private static final int MAX_BATCH = 64;
+
+	/** A request waiting to be written or answered. */
+	static final class Pending {
+		final String key;
+		final byte[] frame;
+		final cnResponseFuture future;
+		/** The time (System.currentTimeMillis) when the request times out. */
+		final long deadline;
+
+		Pending(String key, byte[] frame, cnResponseFuture future, long deadline) {
+			this.key = key;
+			this.frame = frame;
+			this.future = future;
+			this.deadline = deadline;
+		}
+	}
+
+	final cnEndpoint endpoint;
+	private final cnClient client;
+	private final Socket socket;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	/** The requests waiting for a response, by match key. */
+	private final ConcurrentMap<String, Pending> outstanding = new ConcurrentHashMap<String, Pending>();
+	private volatile boolean closed;
+
+	/** Opens the connection and starts its threads.
+	 * @throws IOException if the connection cannot be opened. */
+	cnConnection(cnClient client, cnEndpoint endpoint) throws IOException {
+		this.client = client;
+		this.endpoint = endpoint;
+		socket = new Socket();
+		try {
+			socket.connect(endpoint.getAddress(), client.getConnectTimeout());
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
+		}
+		Thread w = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "cn8583-client-writer-" + endpoint);
+		Thread r = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, "cn8583-client-reader-" + endpoint);
+		w.setDaemon(true);
+		r.setDaemon(true);
+		w.start();
+		r.start();
+	}
+
+	/** Returns the number of requests waiting for a response on this connection. */
+	int getOutstanding() {
+		return outstanding.size();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/** Queues a request to be written. */
+	void send(Pending p) {
+		if (outstanding.putIfAbsent(p.key, p) != null) {
+			p.future.fail(new IllegalStateException("A request with the same fields 11 and 41 is outstanding: " + p.key));
+			return;
+		}
+		endpoint.outstanding.incrementAndGet();
+		p.future.attach(this, p);
+		queue.add(p);
+		if (closed) {
+			finish(p, new IOException("Connection to " + endpoint + " is closed"));
+		} else if (p.future.isDone()) {
+			//cancelled before it was attached
+			finish(p, new CancellationException("Request cancelled"));
+		}
+	}
+
+	/** Removes a cancelled request, so it is not written if it is still queued and its
+	 * fields 11 and 41 can be used again, and fails it.
+	 * @return false if it was no longer outstanding. */
+	boolean cancel(Pending p) {
+		return finish(p, new CancellationException("Request cancelled"));
+	}
+
+	/** Removes the request and fails it, if it is still outstanding.
+	 * @return false if it was no longer outstanding. */
+	private boolean finish(Pending p, Throwable error) {
+		if (outstanding.remove(p.key, p)) {
+			endpoint.outstanding.decrementAndGet();
+			p.future.fail(error);
+			return true;
+		}
+		return false;
+	}
+
+	/** Fails the requests whose deadline has passed. Called periodically by the client. */
+	void expire(long now) {
+		for (Pending p : outstanding.values()) {
+			if (now >= p.deadline) {
+				finish(p, new TimeoutException("No response from " + endpoint + " for " + p.key));
+			}
+		}
+	}
+
+	private void writeLoop() {
+		List<Pending> batch = new ArrayList<Pending>(MAX_BATCH);
+		try {
+			OutputStream outs = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			while (!closed) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (Pending p : batch) {
+					if (outstanding.get(p.key) == p) {	// ѳʱȡٷ
+						outs.write(p.frame);
+					}
+				}
+				outs.flush();
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			close(new IOException("Writer interrupted"));
+		} catch (IOException ex) {
+			close(ex);
+		}
+	}
+
+	private void readLoop() {
+		try {
+			InputStream ins = new BufferedInputStream(socket.getInputStream(), 8192);
+			while (!closed) {
+				byte[] buf = cnFraming.readFrame(ins, client.getLengthBytes(), client.getLengthRadix(), client.getMaxFrameLength());
+				if (buf == null) {
+					throw new EOFException("Connection closed by " + endpoint);
+				}
+				cnMessage m;
+				try {
+					m = client.parseResponse(buf);
+				} catch (ParseException ex) {
+					log.warn("Discarding invalid response from " + endpoint, ex);
+					continue;
+				}
+				String key = cnClient.matchKey(m);
+				Pending p = key == null ? null : outstanding.remove(key);
+				if (p == null) {
+					log.warn("Discarding unexpected response " + m.getMsgTypeID() + " " + key + " from " + endpoint);
+					continue;
+				}
+				endpoint.outstanding.decrementAndGet();
+				endpoint.answered();
+				p.future.complete(m);
+			}
+		} catch (IOException ex) {
+			close(ex);
+		}
+	}
+
+	/** Closes the connection and fails its outstanding requests.
+	 * @param cause The error that closes it, or null if the client is being closed. */
+	void close(IOException cause) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			//nothing more to do
+		}
+		IOException error = cause != null ? cause : new IOException("Client closed");
+		for (Pending p : outstanding.values()) {
+			finish(p, error);
+		}
+		queue.clear();
+		queue.offer(new Pending("", new byte[0], new cnResponseFuture(), 0));	// д߳
+		client.connectionClosed(this, cause);
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.zyp.cn8583.net;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ڵ㣺ַӺ״̬
+ * A host node the client sends requests to: its address, its open connections, the number
+ * of requests waiting for a response, and whether it is ejected. An endpoint is ejected when
+ * a connection to it cannot be opened or fails; it gets no requests until the ejection time
+ * has passed, and then the next request opens a new connection to probe it.
+ *
+ * @author zyplanke
+ */
+public final class cnEndpoint {
+
+	private final InetSocketAddress address;
+	/** The requests sent to this endpoint that have not completed. */
+	final AtomicInteger outstanding = new AtomicInteger();
+	final CopyOnWriteArrayList<cnConnection> connections = new CopyOnWriteArrayList<cnConnection>();
+	/** The time (System.currentTimeMillis) when the ejection ends, 0 if it is not ejected. */
+	private volatile long ejectedUntil;
+	/** Number of failures since the last response. */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	cnEndpoint(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/** Returns the address of the node. */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/** Returns the number of requests sent to this node that have not completed. */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/** Returns the number of open connections to this node. */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/** Returns true if the node is ejected and gets no requests. */
+	public boolean isEjected() {
+		return System.currentTimeMillis() < ejectedUntil;
+	}
+
+	/** Returns the number of failures since the node last answered a request. */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	boolean isAvailable(long now) {
+		return now >= ejectedUntil;
+	}
+
+	/** Ejects the node for the specified time. */
+	void eject(long millis) {
+		failures.incrementAndGet();
+		ejectedUntil = System.currentTimeMillis() + millis;
+	}
+
+	/** Called when the node answers a request. */
+	void answered() {
+		if (failures.get() != 0) {
+			failures.set(0);
+		}
+	}
+
+	public String toString() {
+		return address.toString();
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.zyp.cn8583.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.zyp.cn8583.cnMessage;
+
+/**
+ * TCPϵ֡ʽĳͷ24ֽڣӱġ
+ * Reads and writes the frames of messages on a stream connection: a length header of 2 to 4
+ * bytes followed by the message. The length header is written by
+ * {@link cnMessage#write(java.io.OutputStream, int, int)}, as ASCII decimal digits (radix 10)
+ * or as a big-endian binary number (radix 16).
+ * <P>
+ * All the methods are static, so the class can be used from any thread.
+ *
+ * @author zyplanke
+ */
+public final class cnFraming {
+
+	private cnFraming() {
+	}
+
+	/** Returns the frame of a message: its length header and its data, as written by
+	 * cnMessage.write (with the ETX, if the message has one).
+	 * @param lengthBytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary. */
+	public static byte[] frame(cnMessage m, int lengthBytes, int radix) {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try {
+			m.write(bout, lengthBytes, radix);
+		} catch (IOException ex) {
+			//should never happen, writing to a ByteArrayOutputStream
+		}
+		return bout.toByteArray();
+	}
+
+	/** Decodes a length header.
+	 * @param buf The buffer with the header.
+	 * @param pos The position of the header in the buffer.
+	 * @param lengthBytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary.
+	 * @throws IOException if a decimal header has a character that is not a digit. */
+	public static int decodeLength(byte[] buf, int pos, int lengthBytes, int radix) throws IOException {
+		int len = 0;
+		for (int i = 0; i < lengthBytes; i++) {
+			int b = buf[pos + i] & 0xff;
+			if (radix == 16) {
+				len = (len << 8) | b;
+			} else {
+				if (b < '0' || b > '9') {
+					throw new IOException("Invalid length header: " + new String(buf, pos, lengthBytes, "ISO-8859-1"));
+				}
+				len = len * 10 + (b - '0');
+			}
+		}
+		return len;
+	}
+
+	/** Reads the next frame from the stream and returns the message in it, without the
+	 * length header.
+	 * @param ins The stream.
+	 * @param lengthBytes The size of the length header, 2 to 4.
+	 * @param radix 10 for decimal digits or 16 for binary.
+	 * @param maxLength The largest message accepted.
+	 * @return The message, or null if the stream ended before a new frame.
+	 * @throws IOException if the stream ends in the middle of a frame, or if the length is
+	 * larger than maxLength. */
+	public static byte[] readFrame(InputStream ins, int lengthBytes, int radix, int maxLength) throws IOException {
+		byte[] header = new byte[lengthBytes];
+		if (!readFully(ins, header, true)) {
+			return null;
+		}
+		int len = decodeLength(header, 0, lengthBytes, radix);
+		if (len > maxLength) {
+			throw new IOException("Frame of " + len + " bytes is larger than " + maxLength);
+		}
+		byte[] buf = new byte[len];
+		readFully(ins, buf, false);
+		return buf;
+	}
+
+	/** Fills the buffer from the stream.
+	 * @return false if the stream ended before the first byte and that is allowed. */
+	private static boolean readFully(InputStream ins, byte[] buf, boolean eofAllowed) throws IOException {
+		int pos = 0;
+		while (pos < buf.length) {
+			int n = ins.read(buf, pos, buf.length - pos);
+			if (n < 0) {
+				if (pos == 0 && eofAllowed) {
+					return false;
+				}
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+}
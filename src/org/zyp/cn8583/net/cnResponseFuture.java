@@ -0,0 +1,141 @@
+package org.zyp.cn8583.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.zyp.cn8583.cnMessage;
+
+/**
+ * 첽ĽӦĻʧԭ
+ * The pending response of a request sent with {@link cnClient#send(cnMessage)}. The caller
+ * can wait for it with get(), or add handlers that are called when it completes, so no
+ * thread has to wait for each request.
+ *
+ * @author zyplanke
+ */
+public class cnResponseFuture implements Future<cnMessage> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	/** The handlers to call on completion; null once completed. Guarded by this. */
+	private List<cnResponseHandler> handlers = new ArrayList<cnResponseHandler>(1);
+	private volatile cnMessage response;
+	private volatile Throwable error;
+	private volatile boolean cancelled;
+	/** The connection where the request is outstanding, and its entry there; null until it
+	 * is queued. Guarded by this. */
+	private cnConnection connection;
+	private cnConnection.Pending pending;
+
+	/** Tells the future where its request is outstanding, so cancel can remove it. */
+	synchronized void attach(cnConnection c, cnConnection.Pending p) {
+		connection = c;
+		pending = p;
+	}
+
+	/** Completes the future with the response.
+	 * @return false if it was already completed. */
+	boolean complete(cnMessage m) {
+		List<cnResponseHandler> l;
+		synchronized (this) {
+			if (handlers == null) {
+				return false;
+			}
+			response = m;
+			l = handlers;
+			handlers = null;
+		}
+		done.countDown();
+		for (cnResponseHandler h : l) {
+			h.completed(m);
+		}
+		return true;
+	}
+
+	/** Completes the future with an error.
+	 * @return false if it was already completed. */
+	boolean fail(Throwable ex) {
+		List<cnResponseHandler> l;
+		synchronized (this) {
+			if (handlers == null) {
+				return false;
+			}
+			error = ex;
+			cancelled = ex instanceof CancellationException;
+			l = handlers;
+			handlers = null;
+		}
+		done.countDown();
+		for (cnResponseHandler h : l) {
+			h.failed(ex);
+		}
+		return true;
+	}
+
+	/** Adds a handler that is called when the request completes, or right now, in this
+	 * thread, if it has already completed. */
+	public void addHandler(cnResponseHandler h) {
+		synchronized (this) {
+			if (handlers != null) {
+				handlers.add(h);
+				return;
+			}
+		}
+		if (error != null) {
+			h.failed(error);
+		} else {
+			h.completed(response);
+		}
+	}
+
+	/** Fails the request with a CancellationException and removes it from its connection:
+	 * if it is still queued it is not sent, and its fields 11 and 41 can be used again at
+	 * once. If it has been sent already, its response is discarded as unexpected. */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		cnConnection c;
+		cnConnection.Pending p;
+		synchronized (this) {
+			c = connection;
+			p = pending;
+		}
+		if (c != null && c.cancel(p)) {
+			return true;
+		}
+		return fail(new CancellationException("Request cancelled"));
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public cnMessage get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	public cnMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("No response after " + unit.toMillis(timeout) + " ms");
+		}
+		return result();
+	}
+
+	private cnMessage result() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException)error;
+		} else if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return response;
+	}
+
+}
@@ -0,0 +1,23 @@
+package org.zyp.cn8583.net;
+
+import org.zyp.cn8583.cnMessage;
+
+/**
+ * 첽ʱĻص
+ * Receives the outcome of a request sent with {@link cnClient#send(cnMessage)}. The methods
+ * are called once, from the thread that completes the request (the reader thread of the
+ * connection, the timer of the client, or the caller if the request is already completed
+ * when the handler is added), so they must not block.
+ *
+ * @author zyplanke
+ */
+public interface cnResponseHandler {
+
+	/** Called with the response of the request. */
+	public void completed(cnMessage response);
+
+	/** Called if the request failed: it timed out, could not be sent, its connection was
+	 * closed before the response arrived, or it was cancelled. */
+	public void failed(Throwable error);
+
+}
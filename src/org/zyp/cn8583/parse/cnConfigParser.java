@@ -1,30 +1,42 @@
 package org.zyp.cn8583.parse;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FileInputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
+import org.zyp.cn8583.cnCharsetCodec;
+import org.zyp.cn8583.cnHeaderLayout;
+import org.zyp.cn8583.cnHexCodec;
 import org.zyp.cn8583.cnMessage;
 import org.zyp.cn8583.cnType;
 import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnSubFieldLayout;
+import org.zyp.cn8583.cnTranscodeMapping;
+import org.zyp.cn8583.cnValidationRule;
 
 /**
  * һй8583ʽ׼࣬ʼԴConfigParser  <P/>
  * This class is used to parse a XML configuration file and configure
  * a MessageFactory with the values from it.
+ * <P>
+ * ļStAXʽ˳ȡһ飬߶õcnMessageFactoryУڴбĵ
+ * Any error in the configuration is reported as an IOException whose message contains
+ * the line and column where the problem was found.
  * 
  * @author zyplanke
  */
@@ -32,27 +44,41 @@ public class cnConfigParser {
 
 	private final static Log log = LogFactory.getLog(cnConfigParser.class);
 
+	/** The number of values kept for a field of a parse guide with intern="true". */
+	private static final int DEFAULT_INTERN_SIZE = 256;
+
 	/** Creates a message factory configured from the default file, which is j8583.xml
 	 * located in the root of the classpath. 
 	 * @deprecated use createFromXMLConfigFile(String) instead
 	 */
 	public static cnMessageFactory createDefault() throws IOException {
-		if (cnMessageFactory.class.getClassLoader().getResource("j8583.xml") == null) {
-			log.warn("j8583.xml not found, returning empty message factory");
-			return new cnMessageFactory();
-		} else {
-			return createFromXMLConfigFile("j8583.xml");
-		}
+		return createFromClasspathConfig("j8583.xml");
 	}
 
 	/** Creates a message factory from the specified path( full path and filename). */
 	public static cnMessageFactory createFromXMLConfigFile(String filepath) throws IOException {
-		// InputStream ins = cnMessageFactory.class.getClassLoader().getResourceAsStream(path);
 		InputStream ins = new FileInputStream(filepath);
 		cnMessageFactory mfact = new cnMessageFactory();
+		if (log.isDebugEnabled()) {
+			log.debug("Parsing config from xml file: [" + filepath + "]");
+		}
+		try {
+			parse(mfact, ins);
+		} finally {
+			ins.close();
+		}
+		return mfact;
+	}
+
+	/** Creates a message factory from the specified resource, which is looked up in the classpath.
+	 * If the resource cannot be found, an empty message factory is returned.
+	 * @param path The path of the resource inside the classpath (without leading slash). */
+	public static cnMessageFactory createFromClasspathConfig(String path) throws IOException {
+		InputStream ins = cnMessageFactory.class.getClassLoader().getResourceAsStream(path);
+		cnMessageFactory mfact = new cnMessageFactory();
 		if (ins != null) {
 			if (log.isDebugEnabled()) {
-				log.debug("Parsing config from xml file: [" + filepath + "]");
+				log.debug("Parsing config from classpath resource: [" + path + "]");
 			}
 			try {
 				parse(mfact, ins);
@@ -60,7 +86,7 @@ public class cnConfigParser {
 				ins.close();
 			}
 		} else {
-			log.warn("File not found in classpath: " + filepath);
+			log.warn("File not found in classpath: " + path + ", returning empty message factory");
 		}
 		return mfact;
 	}
@@ -77,93 +103,362 @@ public class cnConfigParser {
 		return mfact;
 	}
 
+	/** Reads a transcoding mapping (see {@link cnTranscodeMapping}) from a file like this:
+	 * <PRE>
+	 * &lt;j8583cn-transcode&gt;
+	 *   &lt;move from="32" to="33"/&gt;                  (all the message types)
+	 *   &lt;message from="0200" to="0200"&gt;
+	 *     &lt;header&gt;6000030000&lt;/header&gt;          (in hexadecimal)
+	 *     &lt;move from="48" to="57"/&gt;
+	 *     &lt;drop id="35"/&gt;
+	 *   &lt;/message&gt;
+	 * &lt;/j8583cn-transcode&gt;
+	 * </PRE>
+	 * The to attribute of message is optional. */
+	public static cnTranscodeMapping createTranscodeMapping(String filepath) throws IOException {
+		InputStream ins = new FileInputStream(filepath);
+		XMLStreamReader reader = null;
+		try {
+			cnTranscodeMapping mapping = new cnTranscodeMapping();
+			reader = newInputFactory().createXMLStreamReader(ins);
+			String from = null;	// ڶȡԴ
+			String to = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					try {
+						if ("message".equals(name)) {
+							from = reader.getAttributeValue(null, "from");
+							to = reader.getAttributeValue(null, "to");
+							if (to == null) {
+								to = from;
+							}
+							mapping.mapType(from, to);
+						} else if ("header".equals(name)) {
+							if (from == null) {
+								throw error(reader, "header element must be inside a message", null);
+							}
+							mapping.setHeader(to, cnHexCodec.decode(reader.getElementText().trim()));
+						} else if ("move".equals(name)) {
+							mapping.moveField(from, intAttribute(reader, "from", -1), intAttribute(reader, "to", -1));
+						} else if ("drop".equals(name)) {
+							mapping.dropField(from, intAttribute(reader, "id", -1));
+						}
+					} catch (IllegalArgumentException ex) {
+						throw error(reader, "Invalid " + name + ": " + ex.getMessage(), ex);
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && "message".equals(reader.getLocalName())) {
+					from = null;
+					to = null;
+				}
+			}
+			return mapping;
+		} catch (XMLStreamException ex) {
+			throw error(ex.getLocation(), "Parsing XML transcoding mapping: " + ex.getMessage(), ex);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException ex) {
+					log.warn("Closing XML transcoding mapping reader", ex);
+				}
+			}
+			ins.close();
+		}
+	}
+
 	/** Reads the XML from the stream and configures the message factory with its values.
+	 * The document is read in a single forward pass; each header, template and parseinfo
+	 * is set in the factory as soon as its closing tag is read.
 	 * @param mfact The message factory to be configured with the values read from the XML.
-	 * @param stream The InputStream containing the XML configuration. */
+	 * @param stream The InputStream containing the XML configuration.
+	 * @throws IOException if the XML is malformed or contains an invalid value; the message
+	 * includes the line and column of the offending element. */
 	protected static void parse(cnMessageFactory mfact, InputStream stream) throws IOException {
-		final DocumentBuilderFactory docfact = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docb = null;
-		Document doc = null;
+		XMLStreamReader reader = null;
 		try {
-			docb = docfact.newDocumentBuilder();
-			doc = docb.parse(stream);
-		} catch (ParserConfigurationException ex) {
-			log.error("Cannot parse XML configuration", ex);
-			return;
-		} catch (SAXException ex) {
-			log.error("Parsing XML configuration", ex);
-			return;
-		}
-		final Element root = doc.getDocumentElement();
-
-		//Read the 8583 message configure headers
-		NodeList nodes = root.getElementsByTagName("header");
-		Element elem = null;
-		for (int i = 0; i < nodes.getLength(); i++) {
-			elem = (Element)nodes.item(i);
-			int headerlen = Integer.parseInt(elem.getAttribute("length"));
-			if (elem.getChildNodes() == null || elem.getChildNodes().getLength() == 0) {
-				throw new IOException("Invalid header element");
+			reader = newInputFactory().createXMLStreamReader(stream);
+			cnMessage templ = null;		// ڶȡıģ
+			String parsetypeid = null;	// ڶȡĽõı
+			HashMap<Integer, cnFieldParseInfo> parseMap = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("j8583cn-config".equals(name)) {
+						String charset = reader.getAttributeValue(null, "charset");
+						if (charset != null) {
+							mfact.setCharset(charsetName(reader, charset));
+						}
+					} else if ("header".equals(name)) {
+						parseHeader(mfact, reader);
+					} else if ("template".equals(name)) {
+						templ = new cnMessage();
+						templ.setMsgTypeID(msgTypeAttribute(reader, "template"));
+					} else if ("parseinfo".equals(name)) {
+						parsetypeid = msgTypeAttribute(reader, "parse guide");
+						parseMap = new HashMap<Integer, cnFieldParseInfo>();
+					} else if ("validation".equals(name)) {
+						parseValidation(mfact, reader);
+					} else if ("subfields".equals(name)) {
+						parseSubFields(mfact, reader);
+					} else if ("field".equals(name)) {
+						if (templ != null) {
+							parseTemplateField(templ, reader);
+						} else if (parseMap != null) {
+							parseMap.put(fieldIdAttribute(reader), parseGuideField(reader));
+						} else {
+							throw error(reader, "field element must be inside a template or parseinfo", null);
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("template".equals(name)) {
+						mfact.addMessageTemplate(templ);
+						templ = null;
+					} else if ("parseinfo".equals(name)) {
+						mfact.setParseMap(parsetypeid, parseMap);
+						parseMap = null;
+					}
+				}
 			}
-			String msgtypeid = elem.getChildNodes().item(0).getNodeValue();
-			
-			if (msgtypeid.length() != 4) {
-				throw new IOException("Invalid msgtypeid for header: " + elem.getAttribute("msgtypeid"));
+		} catch (XMLStreamException ex) {
+			throw error(ex.getLocation(), "Parsing XML configuration: " + ex.getMessage(), ex);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException ex) {
+					log.warn("Closing XML configuration reader", ex);
+				}
 			}
-			mfact.setHeaderLengthAttr(msgtypeid, headerlen);
-			if (log.isTraceEnabled()) {
-				log.trace("Adding 8583 header for msgtypeid: " + msgtypeid + "  length: " + headerlen);
-			}		
-		}
-
-		//Read the message templates
-		nodes = root.getElementsByTagName("template");
-		for (int i = 0; i < nodes.getLength(); i++) {
-			elem = (Element)nodes.item(i);
-			String msgtypeid = elem.getAttribute("msgtypeid");
-			if (msgtypeid.length() != 4) {
-				throw new IOException("Invalid type for template: " + msgtypeid);
+		}
+	}
+
+	/** Reads a header element: the length attribute, the optional layout attribute (CUP or a
+	 * list of name:length:type items) and the message type id as text. */
+	private static void parseHeader(cnMessageFactory mfact, XMLStreamReader reader) throws IOException, XMLStreamException {
+		int headerlen = intAttribute(reader, "length", -1);
+		if (headerlen < 0) {
+			throw error(reader, "Missing length attribute for header", null);
+		}
+		String spec = reader.getAttributeValue(null, "layout");
+		cnHeaderLayout layout = null;
+		if (spec != null) {
+			try {
+				layout = cnHeaderLayout.parse(spec);
+			} catch (IllegalArgumentException ex) {
+				throw error(reader, "Invalid header layout: " + ex.getMessage(), ex);
 			}
-			NodeList fields = elem.getElementsByTagName("field");
-			cnMessage m = new cnMessage();
-			m.setMsgTypeID(msgtypeid);
-			for (int j = 0; j < fields.getLength(); j++) {
-				Element f = (Element)fields.item(j);
-				int fieldid = Integer.parseInt(f.getAttribute("id"));
-				cnType datatype = cnType.valueOf(f.getAttribute("datatype"));
-				int length = 0;
-				if (f.getAttribute("length").length() > 0) {
-					length = Integer.parseInt(f.getAttribute("length"));
-				}
-				String init_filed_data = f.getChildNodes().item(0).getNodeValue();
-				m.setValue(fieldid, init_filed_data, datatype, length);
+			if (layout.getLength() != headerlen) {
+				throw error(reader, "The header layout has " + layout.getLength() + " bytes instead of " + headerlen, null);
 			}
-			mfact.addMessageTemplate(m);
 		}
+		Location loc = reader.getLocation();
+		String msgtypeid = reader.getElementText().trim();
+		if (msgtypeid.length() != 4) {
+			throw error(loc, "Invalid msgtypeid for header: [" + msgtypeid + "]", null);
+		}
+		mfact.setHeaderLengthAttr(msgtypeid, headerlen);
+		mfact.setHeaderLayout(msgtypeid, layout);
+		if (log.isTraceEnabled()) {
+			log.trace("Adding 8583 header for msgtypeid: " + msgtypeid + "  length: " + headerlen
+					+ (layout == null ? "" : "  layout: " + layout));
+		}
+	}
 
-		//Read the parsing guides
-		nodes = root.getElementsByTagName("parseinfo");
-		for (int i = 0; i < nodes.getLength(); i++) {
-			elem = (Element)nodes.item(i);
-			String msgtypeid = elem.getAttribute("msgtypeid");
-			if (msgtypeid.length()!= 4) {
-				throw new IOException("Invalid type for parse guide: " + msgtypeid);
+	/** Reads a field of a parse guide: its type, length and charset, and the intern attribute,
+	 * which is true (to keep up to 256 values) or the number of values of the field to keep
+	 * and share between the messages (see cnValueInterner). */
+	private static cnFieldParseInfo parseGuideField(XMLStreamReader reader) throws IOException {
+		int fieldid = fieldIdAttribute(reader);
+		cnType datatype = typeAttribute(reader);
+		String charset = reader.getAttributeValue(null, "charset");
+		String intern = reader.getAttributeValue(null, "intern");
+		int internSize = 0;
+		if ("true".equals(intern)) {
+			internSize = DEFAULT_INTERN_SIZE;
+		} else if (intern != null && !"false".equals(intern)) {
+			internSize = intAttribute(reader, "intern", 0);
+		}
+		try {
+			return new cnFieldParseInfo(datatype, intAttribute(reader, "length", 0),
+					charset == null ? null : charsetName(reader, charset), internSize);
+		} catch (IllegalArgumentException ex) {
+			throw error(reader, "Invalid parse info for field " + fieldid + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	/** Reads a validation element: the mandatory, conditional and forbidden attributes are
+	 * lists of field numbers separated by spaces or commas. */
+	private static void parseValidation(cnMessageFactory mfact, XMLStreamReader reader) throws IOException {
+		String msgtypeid = msgTypeAttribute(reader, "validation");
+		try {
+			mfact.setValidationRule(msgtypeid, new cnValidationRule(fieldListAttribute(reader, "mandatory"),
+					fieldListAttribute(reader, "conditional"), fieldListAttribute(reader, "forbidden")));
+		} catch (IllegalArgumentException ex) {
+			throw error(reader, "Invalid validation for " + msgtypeid + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	/** Reads a subfields element: the layout of the sub-fields of a field, TLV or FIXED with
+	 * the lengths of the sub-fields. Without msgtypeid it applies to all the message types. */
+	private static void parseSubFields(cnMessageFactory mfact, XMLStreamReader reader) throws IOException {
+		String msgtypeid = reader.getAttributeValue(null, "msgtypeid");
+		if (msgtypeid != null) {
+			msgtypeid = msgTypeAttribute(reader, "subfields");
+		}
+		int fieldid = fieldIdAttribute(reader);
+		String format = reader.getAttributeValue(null, "format");
+		List<Integer> lengths = fieldListAttribute(reader, "lengths");
+		cnSubFieldLayout layout;
+		if ("TLV".equals(format)) {
+			layout = cnSubFieldLayout.TLV;
+		} else if ("FIXED".equals(format)) {
+			if (lengths == null) {
+				throw error(reader, "Missing lengths of the sub-fields of field " + fieldid, null);
 			}
-			NodeList fields = elem.getElementsByTagName("field");
-			HashMap<Integer, cnFieldParseInfo> parseMap = new HashMap<Integer, cnFieldParseInfo>();
-			for (int j = 0; j < fields.getLength(); j++) {
-				Element f = (Element)fields.item(j);
-				int fieldid = Integer.parseInt(f.getAttribute("id"));
-				cnType datatype = cnType.valueOf(f.getAttribute("datatype"));
-				int length = 0;
-				if (f.getAttribute("length").length() > 0) {
-					length = Integer.parseInt(f.getAttribute("length"));
+			int[] l = new int[lengths.size()];
+			for (int i = 0; i < l.length; i++) {
+				l[i] = lengths.get(i);
+			}
+			try {
+				layout = new cnSubFieldLayout(l);
+			} catch (IllegalArgumentException ex) {
+				throw error(reader, "Invalid sub-fields of field " + fieldid + ": " + ex.getMessage(), ex);
+			}
+		} else {
+			throw error(reader, "Invalid format of sub-fields: " + format, null);
+		}
+		mfact.setSubFieldLayout(msgtypeid, fieldid, layout);
+	}
+
+	/** Returns the numbers of a list attribute, or null if the attribute is absent. */
+	private static List<Integer> fieldListAttribute(XMLStreamReader reader, String attr) throws IOException {
+		String v = reader.getAttributeValue(null, attr);
+		if (v == null) {
+			return null;
+		}
+		List<Integer> l = new ArrayList<Integer>();
+		for (String f : v.trim().split("[\\s,]+")) {
+			if (f.length() > 0) {
+				try {
+					l.add(Integer.valueOf(f));
+				} catch (NumberFormatException ex) {
+					throw error(reader, "Invalid number in " + attr + ": " + f, ex);
 				}
-				parseMap.put(fieldid, new cnFieldParseInfo(datatype, length));
 			}
-			mfact.setParseMap(msgtypeid, parseMap);
 		}
+		return l;
+	}
+
+	/** Reads a field of a template. An empty element sets an empty value in the field.
+	 * The value of BINARY, LLBIN and LLLBIN fields is written in hexadecimal. */
+	private static void parseTemplateField(cnMessage templ, XMLStreamReader reader) throws IOException, XMLStreamException {
+		int fieldid = fieldIdAttribute(reader);
+		cnType datatype = typeAttribute(reader);
+		int length = intAttribute(reader, "length", 0);
+		String charset = reader.getAttributeValue(null, "charset");
+		if (charset != null) {
+			charset = charsetName(reader, charset);
+		}
+		Location loc = reader.getLocation();
+		String init_filed_data = reader.getElementText();
+		try {
+			if (datatype.isBinary()) {
+				templ.setValue(fieldid, cnHexCodec.decode(init_filed_data.trim()), datatype, length);
+			} else {
+				templ.setValue(fieldid, init_filed_data, datatype, length);
+			}
+			if (charset != null) {
+				templ.getField(fieldid).setCharset(charset);
+			}
+		} catch (IllegalArgumentException ex) {
+			throw error(loc, "Invalid value for field " + fieldid + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	private static String msgTypeAttribute(XMLStreamReader reader, String what) throws IOException {
+		String msgtypeid = reader.getAttributeValue(null, "msgtypeid");
+		if (msgtypeid == null || msgtypeid.length() != 4) {
+			throw error(reader, "Invalid type for " + what + ": " + msgtypeid, null);
+		}
+		return msgtypeid;
+	}
+
+	private static int fieldIdAttribute(XMLStreamReader reader) throws IOException {
+		int fieldid = intAttribute(reader, "id", -1);
+		if (fieldid < 2 || fieldid > 128) {
+			throw error(reader, "Field id must be between 2 and 128", null);
+		}
+		return fieldid;
+	}
 
+	private static cnType typeAttribute(XMLStreamReader reader) throws IOException {
+		String datatype = reader.getAttributeValue(null, "datatype");
+		if (datatype == null) {
+			throw error(reader, "Missing datatype attribute", null);
+		}
+		try {
+			return cnType.valueOf(datatype.trim());
+		} catch (IllegalArgumentException ex) {
+			throw error(reader, "Invalid datatype: " + datatype, ex);
+		}
+	}
+
+	/** Checks that the charset is supported by the JVM and returns its name. */
+	private static String charsetName(XMLStreamReader reader, String charset) throws IOException {
+		try {
+			cnCharsetCodec.forName(charset.trim());
+		} catch (IllegalArgumentException ex) {
+			throw error(reader, "Unsupported charset: " + charset, ex);
+		}
+		return charset.trim();
+	}
+
+	/** Returns the value of an integer attribute, or the default value if the attribute is absent or empty. */
+	private static int intAttribute(XMLStreamReader reader, String attr, int defval) throws IOException {
+		String v = reader.getAttributeValue(null, attr);
+		if (v == null || v.trim().length() == 0) {
+			return defval;
+		}
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException ex) {
+			throw error(reader, "Invalid value for attribute " + attr + ": " + v, ex);
+		}
+	}
+
+	private static IOException error(XMLStreamReader reader, String msg, Throwable cause) {
+		return error(reader.getLocation(), msg, cause);
+	}
+
+	/** Creates the exception for a configuration error, adding the position in the XML to the message. */
+	private static IOException error(Location loc, String msg, Throwable cause) {
+		if (loc != null) {
+			msg = msg + " (line " + loc.getLineNumber() + ", column " + loc.getColumnNumber() + ")";
+		}
+		IOException ex = new IOException(msg);
+		if (cause != null) {
+			ex.initCause(cause);
+		}
+		return ex;
+	}
+
+	/** Creates a non-validating StAX factory. The DTD is never fetched, since the configuration
+	 * may reference it by a public URL. */
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		xif.setXMLResolver(new XMLResolver() {
+			public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		});
+		return xif;
 	}
 
 }
@@ -4,32 +4,69 @@ package org.zyp.cn8583.parse;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
+import org.zyp.cn8583.cnBcdCodec;
+import org.zyp.cn8583.cnCharsetCodec;
 import org.zyp.cn8583.cnType;
 import org.zyp.cn8583.cnValue;
 
 /** һй8583ʽ׼࣬ʼԴFieldParseInfo  <P/>
  * This class contains the information needed to parse a field from a message buffer.
+ * Instances are immutable: the length of LLVAR and LLLVAR values is read into a local
+ * variable, so the same instance can parse messages in several threads at the same time.
+ * The values of a field whose values repeat often can be interned ({@link cnValueInterner}):
+ * the same value is then returned each time the same bytes are parsed.
  *
  * @author zyplanke
  */
 public class cnFieldParseInfo {
 
-	private cnType type;
-	private int length;
+	private final cnType type;
+	private final int length;
+	/** The charset of this field, or null to use the charset of the message. */
+	private final cnCharsetCodec charset;
+	/** The cache of the values of this field, or null if they are not interned. */
+	private final cnValueInterner interner;
 
 	/** Creates a new instance that parses a value of the specified type, with the specified length.
 	 * The length is only useful for ALPHA and NUMERIC types.
 	 * @param t The 8583 type to be parsed.
 	 * @param len The length of the data to be read (useful only for ALPHA and NUMERIC types). */
 	public cnFieldParseInfo(cnType t, int len) {
+		this(t, len, null);
+	}
+
+	/** Creates a new instance that parses a value of the specified type, with the specified length
+	 * and the specified charset.
+	 * @param t The 8583 type to be parsed.
+	 * @param len The length of the data to be read (useful only for ALPHA and NUMERIC types).
+	 * @param charsetname The charset of the text of this field, or null to use the charset
+	 * of the message factory. */
+	public cnFieldParseInfo(cnType t, int len, String charsetname) {
+		this(t, len, charsetname, 0);
+	}
+
+	/** Creates a new instance that parses a value of the specified type, with the specified length
+	 * and charset, and keeps the values it parses in a {@link cnValueInterner}.
+	 * @param t The 8583 type to be parsed: ALPHA, NUMERIC, LLVAR or LLLVAR if the values are interned.
+	 * @param len The length of the data to be read (useful only for ALPHA and NUMERIC types).
+	 * @param charsetname The charset of the text of this field, or null to use the charset
+	 * of the message factory.
+	 * @param internSize The number of values kept, or 0 to create a new value each time. */
+	public cnFieldParseInfo(cnType t, int len, String charsetname, int internSize) {
 		if (t == null) {
 			throw new IllegalArgumentException("cnType cannot be null");
 		}
+		if (internSize > 0 && t != cnType.ALPHA && t != cnType.NUMERIC && t != cnType.LLVAR && t != cnType.LLLVAR) {
+			throw new IllegalArgumentException("Only ALPHA, NUMERIC, LLVAR and LLLVAR values can be interned");
+		}
 		type = t;
 		length = len;
+		charset = charsetname == null ? null : cnCharsetCodec.forName(charsetname);
+		interner = internSize > 0 ? new cnValueInterner(internSize) : null;
 	}
 
 	/** Returns the specified length for the data to be parsed. */
@@ -37,22 +74,91 @@ public class cnFieldParseInfo {
 		return length;
 	}
 
+	/** Returns the charset of this field, or null if it uses the charset of the message factory. */
+	public cnCharsetCodec getCharset() {
+		return charset;
+	}
+
 	/** Returns the data type for the data to be parsed. */
 	public cnType getType() {
 		return type;
 	}
 
+	/** Returns the cache of the values of this field, with its statistics, or null if the
+	 * values are not interned. */
+	public cnValueInterner getInterner() {
+		return interner;
+	}
+
+	/** Returns the number of bytes that the field occupies in the message buffer, including
+	 * the length header for LLVAR and LLLVAR fields.
+	 * @param buf The message buffer.
+	 * @param pos The position where the field starts.
+	 * @param binary true if the message is binary coded. */
+	public int getFieldLength(byte[] buf, int pos, boolean binary) {
+		int digits = type.getLengthDigits();
+		if (digits > 0) {
+			return cnBcdCodec.lengthHeaderSize(digits, binary) + cnBcdCodec.readLengthHeader(buf, pos, digits, binary);
+		}
+		return getFixedLength(binary);
+	}
+
+	/** Returns the number of bytes that the field occupies in the message buffer if it does
+	 * not depend on the data, that is, for every type except LLVAR, LLLVAR, LLBIN and LLLBIN.
+	 * @param binary true if the message is binary (numbers and dates in BCD).
+	 * @return The length in bytes, or -1 for the fields with a length header. */
+	public int getFixedLength(boolean binary) {
+		if (type.getLengthDigits() > 0) {
+			return -1;
+		}
+		int len = type.needsLength() ? length : type.getLength();
+		if (binary && type != cnType.ALPHA && type != cnType.BINARY) {
+			return cnBcdCodec.bytesForDigits(len);
+		}
+		return len;
+	}
+
 	/** Parses the character data from the buffer and returns the
-	 * FieldValue with the correct data type in it. */
+	 * FieldValue with the correct data type in it. The text is read with the
+	 * default charset (GBK) unless the field has its own charset. */
 	public cnValue<?> parse(byte[] buf, int pos) throws ParseException {
+		return parse(buf, pos, cnCharsetCodec.DEFAULT);
+	}
+
+	/** Parses the character data from the buffer and returns the
+	 * FieldValue with the correct data type in it.
+	 * @param codec The charset of the message; ignored if the field has its own charset. */
+	public cnValue<?> parse(byte[] buf, int pos, cnCharsetCodec codec) throws ParseException {
+		return parse(buf, pos, getFieldLength(buf, pos, false), codec, false);
+	}
+
+	/** Parses a field whose length is already known, so the length header of LLVAR and LLLVAR
+	 * fields is not read again: the parser reads it once to find the next field.
+	 * @param len The number of bytes of the field, with its length header, as returned by
+	 * {@link #getFieldLength(byte[], int, boolean)}.
+	 * @param codec The charset of the message; ignored if the field has its own charset.
+	 * @param binary true if the message is binary coded. */
+	public cnValue<?> parse(byte[] buf, int pos, int len, cnCharsetCodec codec, boolean binary) throws ParseException {
+		if (charset != null) {
+			codec = charset;
+		}
+		return interner == null ? decode(buf, pos, len, codec, binary) : interner.parse(this, buf, pos, len, codec, binary);
+	}
+
+	/** Parses a field of a message with the specified charset and length, without the interner. */
+	cnValue<?> decode(byte[] buf, int pos, int len, cnCharsetCodec codec, boolean binary) throws ParseException {
+		return binary ? decodeBinary(buf, pos, len, codec) : decodeText(buf, pos, len, codec);
+	}
+
+	private cnValue<?> decodeText(byte[] buf, int pos, int len, cnCharsetCodec codec) throws ParseException {
 		if (type == cnType.NUMERIC || type == cnType.ALPHA) {
-			return new cnValue<String>(type, new String(buf, pos, length), length);
+			return new cnValue<String>(type, codec.decode(buf, pos, length), length);
+		} else if (type.isBinary()) {
+			return parseBytes(buf, pos, len, false);
 		} else if (type == cnType.LLVAR) {
-			length = ((buf[pos] - 48) * 10) + (buf[pos + 1] - 48);
-			return new cnValue<String>(type, new String(buf, pos + 2, length));
+			return new cnValue<String>(type, codec.decode(buf, pos + 2, len - 2));
 		} else if (type == cnType.LLLVAR) {
-			length = ((buf[pos] - 48) * 100) + ((buf[pos + 1] - 48) * 10) + (buf[pos + 2] - 48);
-			return new cnValue<String>(type, new String(buf, pos + 3, length));
+			return new cnValue<String>(type, codec.decode(buf, pos + 3, len - 3));
 		} else if (type == cnType.AMOUNT) {
 			byte[] c = new byte[13];
 			System.arraycopy(buf, pos, c, 0, 10);
@@ -106,78 +212,83 @@ public class cnFieldParseInfo {
 		return null;
 	}
 
+	/** Copies the data of a BINARY, LLBIN or LLLBIN field. Only the length header depends on
+	 * the message being binary (BCD) or not (ASCII digits).
+	 * @param size The number of bytes of the field, with its length header. */
+	private cnValue<byte[]> parseBytes(byte[] buf, int pos, int size, boolean binary) throws ParseException {
+		int digits = type.getLengthDigits();
+		int start = pos;
+		int len = length;
+		if (digits > 0) {
+			start = pos + cnBcdCodec.lengthHeaderSize(digits, binary);
+			len = size - (start - pos);
+		}
+		if (len < 0 || start + len > buf.length) {
+			throw new ParseException("Insufficient data for " + type + " field of length " + len, pos);
+		}
+		byte[] data = Arrays.copyOfRange(buf, start, start + len);
+		return digits > 0 ? new cnValue<byte[]>(type, data) : new cnValue<byte[]>(type, data, len);
+	}
+
 	/** Parses binary data from the buffer, creating and returning an cnValue of the configured
-	 * type and length. */
+	 * type and length. The text is read with the default charset (GBK) unless the field
+	 * has its own charset. */
 	public cnValue<?> parseBinary(byte[] buf, int pos) throws ParseException {
+		return parseBinary(buf, pos, cnCharsetCodec.DEFAULT);
+	}
+
+	/** Parses binary data from the buffer, creating and returning an cnValue of the configured
+	 * type and length.
+	 * @param codec The charset of the message; ignored if the field has its own charset. */
+	public cnValue<?> parseBinary(byte[] buf, int pos, cnCharsetCodec codec) throws ParseException {
+		return parse(buf, pos, getFieldLength(buf, pos, true), codec, true);
+	}
+
+	private cnValue<?> decodeBinary(byte[] buf, int pos, int len, cnCharsetCodec codec) throws ParseException {
 		if (type == cnType.ALPHA) {
 
-			return new cnValue<String>(type, new String(buf, pos, length), length);
+			return new cnValue<String>(type, codec.decode(buf, pos, length), length);
+
+		} else if (type.isBinary()) {
+
+			return parseBytes(buf, pos, len, true);
 
 		} else if (type == cnType.NUMERIC) {
 
 			//A long covers up to 18 digits
 			if (length < 19) {
-				long l = 0;
-				int power = 1;
-				for (int i = pos + (length / 2) + (length % 2) - 1; i >= pos; i--) {
-					l += (buf[i] & 0x0f) * power;
-					power *= 10;
-					l += ((buf[i] & 0xf0) >> 4) * power;
-					power *= 10;
-				}
+				long l = cnBcdCodec.toLong(buf, pos, cnBcdCodec.bytesForDigits(length));
 				return new cnValue<Number>(cnType.NUMERIC, l, length);
 			} else {
 				//Use a BigInteger
-				char[] digits = new char[length];
-				int start = 0;
-				for (int i = pos; i < pos + (length / 2) + (length % 2); i++) {
-					digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
-					digits[start++] = (char)((buf[i] & 0x0f) + 48);
-				}
-				return new cnValue<Number>(cnType.NUMERIC, new BigInteger(new String(digits)), length);
+				return new cnValue<Number>(cnType.NUMERIC, new BigInteger(cnBcdCodec.toString(buf, pos, length)), length);
 			}
 
 		} else if (type == cnType.LLVAR) {
 
-			length = (((buf[pos] & 0xf0) >> 4) * 10) + (buf[pos] & 0x0f);
-			return new cnValue<String>(type, new String(buf, pos + 1, length));
+			return new cnValue<String>(type, codec.decode(buf, pos + 1, len - 1));
 
 		} else if (type == cnType.LLLVAR) {
 
-			length = ((buf[pos] & 0x0f) * 100) + (((buf[pos + 1] & 0xf0) >> 4) * 10) + (buf[pos + 1] & 0x0f);
-			return new cnValue<String>(type, new String(buf, pos + 2, length));
+			return new cnValue<String>(type, codec.decode(buf, pos + 2, len - 2));
 
 		} else if (type == cnType.AMOUNT) {
 
-			char[] digits = new char[13];
-			digits[10] = '.';
-			int start = 0;
-			for (int i = pos; i < pos + 6; i++) {
-				digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
-				digits[start++] = (char)((buf[i] & 0x0f) + 48);
-				if (start == 10) {
-					start++;
-				}
-			}
-			return new cnValue<BigDecimal>(cnType.AMOUNT, new BigDecimal(new String(digits)));
+			return new cnValue<BigDecimal>(cnType.AMOUNT, BigDecimal.valueOf(cnBcdCodec.toLong(buf, pos, 6), 2));
+
 		} else if (type == cnType.DATE10 || type == cnType.DATE4 || type == cnType.DATE_EXP
 				|| type == cnType.TIME) {
 
-			int[] tens = new int[(type.getLength() / 2) + (type.getLength() % 2)];
-			int start = 0;
-			for (int i = pos; i < pos + tens.length; i++) {
-				tens[start++] = (((buf[i] & 0xf0) >> 4) * 10) + (buf[i] & 0x0f);
-			}
 			Calendar cal = Calendar.getInstance();
 			if (type == cnType.DATE10) {
 				//A SimpleDateFormat in the case of dates won't help because of the missing data
 				//we have to use the current date for reference and change what comes in the buffer
 				//Set the month in the date
-				cal.set(Calendar.MONTH, tens[0] - 1);
-				cal.set(Calendar.DATE, tens[1]);
-				cal.set(Calendar.HOUR_OF_DAY, tens[2]);
-				cal.set(Calendar.MINUTE, tens[3]);
-				cal.set(Calendar.SECOND, tens[4]);
+				cal.set(Calendar.MONTH, cnBcdCodec.decode(buf[pos]) - 1);
+				cal.set(Calendar.DATE, cnBcdCodec.decode(buf[pos + 1]));
+				cal.set(Calendar.HOUR_OF_DAY, cnBcdCodec.decode(buf[pos + 2]));
+				cal.set(Calendar.MINUTE, cnBcdCodec.decode(buf[pos + 3]));
+				cal.set(Calendar.SECOND, cnBcdCodec.decode(buf[pos + 4]));
 				if (cal.getTime().after(new Date())) {
 					cal.add(Calendar.YEAR, -1);
 				}
@@ -187,8 +298,8 @@ public class cnFieldParseInfo {
 				cal.set(Calendar.MINUTE, 0);
 				cal.set(Calendar.SECOND, 0);
 				//Set the month in the date
-				cal.set(Calendar.MONTH, tens[0] - 1);
-				cal.set(Calendar.DATE, tens[1]);
+				cal.set(Calendar.MONTH, cnBcdCodec.decode(buf[pos]) - 1);
+				cal.set(Calendar.DATE, cnBcdCodec.decode(buf[pos + 1]));
 				if (cal.getTime().after(new Date())) {
 					cal.add(Calendar.YEAR, -1);
 				}
@@ -200,15 +311,13 @@ public class cnFieldParseInfo {
 				cal.set(Calendar.DATE, 1);
 				//Set the month in the date
 				cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)
-						- (cal.get(Calendar.YEAR) % 100) + tens[0]);
-				cal.set(Calendar.MONTH, tens[1] - 1);
-				return new cnValue<Date>(type, cal.getTime());
-			} else if (type == cnType.TIME) {
-				cal.set(Calendar.HOUR_OF_DAY, tens[0]);
-				cal.set(Calendar.MINUTE, tens[1]);
-				cal.set(Calendar.SECOND, tens[2]);
+						- (cal.get(Calendar.YEAR) % 100) + cnBcdCodec.decode(buf[pos]));
+				cal.set(Calendar.MONTH, cnBcdCodec.decode(buf[pos + 1]) - 1);
 				return new cnValue<Date>(type, cal.getTime());
 			}
+			cal.set(Calendar.HOUR_OF_DAY, cnBcdCodec.decode(buf[pos]));
+			cal.set(Calendar.MINUTE, cnBcdCodec.decode(buf[pos + 1]));
+			cal.set(Calendar.SECOND, cnBcdCodec.decode(buf[pos + 2]));
 			return new cnValue<Date>(type, cal.getTime());
 		}
 		return null;
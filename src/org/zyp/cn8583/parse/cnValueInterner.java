@@ -0,0 +1,155 @@
+package org.zyp.cn8583.parse;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.zyp.cn8583.cnCharsetCodec;
+import org.zyp.cn8583.cnValue;
+import org.zyp.cn8583.metrics.cnStripedCounters;
+
+/**
+ * ֵ棺ȡֵٵҴ롢롢ն˺ţʱͬһֵ
+ * A bounded cache of the parsed values of a field whose values repeat often, like the
+ * currency code (49), the processing code (3), the POS entry and condition modes (22, 25),
+ * the acquirer id (32) or the terminal id (41). The bytes of the field in the message are
+ * looked up in the cache, and if they were parsed before, the same cnValue is returned
+ * without creating any object; otherwise the field is parsed and the value is stored.
+ * <P>
+ * The cache is a table of a fixed number of slots, indexed by a hash of the bytes, that can
+ * be used from any number of threads without locks. A value whose slots are taken replaces
+ * one of them, so a field with more values than slots still works, only with fewer hits;
+ * {@link #getHitRate()} shows how well the cache fits the field. The hits and misses are
+ * counted in {@link cnStripedCounters}, one stripe per processor, so the threads that parse
+ * at the same time seldom write the same cache line, and the memory of the counters does
+ * not grow with the threads that used the cache; the getters add up the stripes.
+ * <P>
+ * The values are shared by all the messages that have them, so they are read only
+ * ({@link cnValue#setReadOnly()}): setCharset on them throws an IllegalStateException, and
+ * a message keeps the index of their sub-fields in a copy of its own.
+ * Only the text and numeric types (ALPHA, NUMERIC, LLVAR, LLLVAR) can be interned.
+ *
+ * @author zyplanke
+ * @see cnFieldParseInfo#getInterner()
+ */
+public final class cnValueInterner {
+
+	/** Slots looked at for each value. */
+	private static final int PROBES = 4;
+
+	/** A parsed value and the bytes it was parsed from. */
+	private static final class Entry {
+		final int hash;
+		final byte[] data;
+		final boolean binary;
+		final cnCharsetCodec codec;
+		final cnValue<?> value;
+
+		Entry(int hash, byte[] data, boolean binary, cnCharsetCodec codec, cnValue<?> value) {
+			this.hash = hash;
+			this.data = data;
+			this.binary = binary;
+			this.codec = codec;
+			this.value = value;
+		}
+
+		boolean matches(int h, byte[] buf, int pos, int len, boolean bin, cnCharsetCodec c) {
+			if (hash != h || data.length != len || binary != bin || codec != c) {
+				return false;
+			}
+			for (int i = 0; i < len; i++) {
+				if (data[i] != buf[pos + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** The counters of the hits and the misses. */
+	private static final int HITS = 0;
+	private static final int MISSES = 1;
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final cnStripedCounters counters = new cnStripedCounters(2);
+
+	/** Creates a cache.
+	 * @param size The number of values kept, rounded up to a power of two. */
+	public cnValueInterner(int size) {
+		if (size < 1 || size > 65536) {
+			throw new IllegalArgumentException("The size of an interner must be between 1 and 65536");
+		}
+		int n = Math.max(Integer.highestOneBit(size), PROBES);
+		if (n < size) {
+			n <<= 1;
+		}
+		slots = new AtomicReferenceArray<Entry>(n);
+		mask = n - 1;
+	}
+
+	/** Returns the value of the field that starts at the position, from the cache or parsed
+	 * with the parse info.
+	 * @param len The number of bytes of the field, with its length header. */
+	cnValue<?> parse(cnFieldParseInfo fpi, byte[] buf, int pos, int len, cnCharsetCodec codec, boolean binary) throws ParseException {
+		if (len < 0 || pos + len > buf.length) {
+			return fpi.decode(buf, pos, len, codec, binary);
+		}
+		int h = 0x811c9dc5;
+		for (int i = pos; i < pos + len; i++) {
+			h = (h ^ buf[i]) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		int idx = h & mask;
+		for (int k = 0; k < PROBES; k++) {
+			Entry e = slots.get((idx + k) & mask);
+			if (e == null) {
+				break;
+			}
+			if (e.matches(h, buf, pos, len, binary, codec)) {
+				counters.add(HITS, 1);
+				return e.value;
+			}
+		}
+		counters.add(MISSES, 1);
+		cnValue<?> v = fpi.decode(buf, pos, len, codec, binary);
+		v.setReadOnly();
+		byte[] data = new byte[len];
+		System.arraycopy(buf, pos, data, 0, len);
+		Entry e = new Entry(h, data, binary, codec, v);
+		for (int k = 0; k < PROBES; k++) {
+			if (slots.compareAndSet((idx + k) & mask, null, e)) {
+				return v;
+			}
+		}
+		slots.set((idx + (h >>> 28 & (PROBES - 1))) & mask, e);
+		return v;
+	}
+
+	/** Returns the number of values found in the cache. */
+	public long getHits() {
+		return counters.sum(HITS);
+	}
+
+	/** Returns the number of values that were parsed because they were not in the cache. */
+	public long getMisses() {
+		return counters.sum(MISSES);
+	}
+
+	/** Returns the fraction of the values found in the cache, from 0 to 1. */
+	public double getHitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/** Returns the number of values the cache can hold. */
+	public int getSize() {
+		return slots.length();
+	}
+
+	public String toString() {
+		return String.format("hits %d, misses %d (%.1f%%), %d slots", getHits(), getMisses(),
+				getHitRate() * 100, getSize());
+	}
+
+}
@@ -0,0 +1,262 @@
+package org.zyp.cn8583.server;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.zyp.cn8583.cnFrameIndex;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnType;
+
+/**
+ * ׼ƣͺնˣ41ʱֱӾܾ
+ * Decides which incoming requests are processed when the load is too high, before they are
+ * parsed. A request is admitted if:
+ * <UL>
+ * <LI>its message type has tokens left in its token bucket (if the type has one),</LI>
+ * <LI>its terminal (field 41) has tokens left in its token bucket (if terminals are limited),</LI>
+ * <LI>fewer than the maximum number of admitted requests are in progress, and</LI>
+ * <LI>the average time to process a request is below the maximum latency.</LI>
+ * </UL>
+ * The checks only need the message type and the bytes of field 41, which are read from a
+ * {@link cnFrameIndex} without decoding the message. A request that is not admitted should
+ * be answered right away with {@link #decline(cnFrameIndex)}, so the terminal gets a quick
+ * decline instead of a timeout. A typical use:
+ * <PRE>
+ * cnFrameIndex idx = factory.indexMessage(buf, headerlen);
+ * if (admission.admit(idx) != cnAdmissionController.Decision.ADMIT) {
+ *     reply(admission.decline(idx));
+ * } else {
+ *     long start = System.nanoTime();
+ *     try {
+ *         reply(process(factory.parseMessage(buf, headerlen)));
+ *     } finally {
+ *         admission.release(System.nanoTime() - start);
+ *     }
+ * }
+ * </PRE>
+ * The controller is thread safe; the limits should be set before it is used.
+ *
+ * @author zyplanke
+ */
+public class cnAdmissionController {
+
+	/** The outcome of {@link #admit(cnFrameIndex)}. */
+	public enum Decision {
+		/** The request may be processed; release() must be called when it is done. */
+		ADMIT,
+		/** The message type is over its rate. */
+		TYPE_LIMIT,
+		/** The terminal is over its rate. */
+		TERMINAL_LIMIT,
+		/** Too many requests are in progress or they take too long. */
+		OVERLOAD
+	}
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	/** While overloaded by latency, one request in this many is admitted to keep measuring it. */
+	private static final int PROBE_RATE = 16;
+	/** Most terminals looked at to find an idle one when a new terminal does not fit. */
+	private static final int EVICT_SCAN = 8;
+
+	private final cnMessageFactory factory;
+	private final Map<String, cnTokenBucket> typeBuckets = new ConcurrentHashMap<String, cnTokenBucket>();
+	private final ConcurrentMap<String, cnTokenBucket> terminalBuckets = new ConcurrentHashMap<String, cnTokenBucket>();
+	/** The terminals of terminalBuckets in the order they were added (or last kept). */
+	private final ConcurrentLinkedQueue<String> terminalOrder = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger terminalCount = new AtomicInteger();
+	private double terminalRate;
+	private int terminalBurst;
+	private int maxTerminals = 100000;
+	private int maxInFlight;
+	private long maxLatency;
+	private String declineCode = "96";
+	private int[] echoFields = { 2, 3, 4, 7, 11, 12, 13, 32, 33, 37, 41, 42, 49 };
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/** Moving average of the processing time, in nanoseconds. */
+	private final AtomicLong latency = new AtomicLong();
+	private final AtomicInteger probes = new AtomicInteger();
+	/** The number of requests of each decision. */
+	private final AtomicLongArray counts = new AtomicLongArray(Decision.values().length);
+
+	/** Creates a controller without limits.
+	 * @param factory The factory used to create the decline responses. */
+	public cnAdmissionController(cnMessageFactory factory) {
+		this.factory = factory;
+	}
+
+	/** Limits the rate of a message type.
+	 * @param perSecond The sustained rate, or 0 to remove the limit.
+	 * @param burst The number of requests allowed at once. */
+	public void setTypeRate(String msgtypeid, double perSecond, int burst) {
+		if (perSecond <= 0) {
+			typeBuckets.remove(msgtypeid);
+		} else {
+			typeBuckets.put(msgtypeid, new cnTokenBucket(perSecond, burst));
+		}
+	}
+
+	/** Limits the rate of each terminal (field 41).
+	 * @param perSecond The sustained rate of each terminal, or 0 to remove the limit.
+	 * @param burst The number of requests of a terminal allowed at once. */
+	public void setTerminalRate(double perSecond, int burst) {
+		terminalRate = perSecond;
+		terminalBurst = burst;
+		terminalBuckets.clear();
+		terminalOrder.clear();
+		terminalCount.set(0);
+	}
+
+	/** Sets the number of terminals tracked. Each new terminal over this number makes the
+	 * controller forget another one: an idle one among the oldest, or else the oldest.
+	 * Default is 100000. */
+	public void setMaxTerminals(int value) {
+		maxTerminals = value;
+	}
+
+	/** Sets the maximum number of admitted requests in progress (admitted and not released),
+	 * or 0 for no limit, the default. */
+	public void setMaxInFlight(int value) {
+		maxInFlight = value;
+	}
+
+	/** Sets the maximum average processing time, in milliseconds, or 0 for no limit, the
+	 * default. While the average is higher, only a few requests are admitted, to keep
+	 * measuring it. */
+	public void setMaxLatency(long millis) {
+		maxLatency = millis * 1000000L;
+	}
+
+	/** Sets the response code (field 39) of the declines. Default is "96" (system malfunction). */
+	public void setDeclineCode(String value) {
+		declineCode = value;
+	}
+
+	/** Sets the fields of the request copied into the declines, in addition to the ones of
+	 * the template of the response type. */
+	public void setEchoFields(int... fieldids) {
+		echoFields = fieldids.clone();
+	}
+
+	/** Decides if a request is processed. If the decision is ADMIT, release() must be
+	 * called when the request is done. */
+	public Decision admit(cnFrameIndex idx) {
+		Decision d = check(idx);
+		counts.incrementAndGet(d.ordinal());
+		return d;
+	}
+
+	private Decision check(cnFrameIndex idx) {
+		// ȼأСټͰ
+		if (maxLatency > 0 && latency.get() > maxLatency && probes.incrementAndGet() % PROBE_RATE != 0) {
+			return Decision.OVERLOAD;
+		}
+		cnTokenBucket b = typeBuckets.get(idx.getMsgTypeID());
+		if (b != null && !b.tryAcquire()) {
+			return Decision.TYPE_LIMIT;
+		}
+		if (terminalRate > 0 && idx.hasField(41)) {
+			b = terminalBucket(idx);
+			if (!b.tryAcquire()) {
+				return Decision.TERMINAL_LIMIT;
+			}
+		}
+		if (maxInFlight > 0) {
+			if (inFlight.incrementAndGet() > maxInFlight) {
+				inFlight.decrementAndGet();
+				return Decision.OVERLOAD;
+			}
+		} else {
+			inFlight.incrementAndGet();
+		}
+		return Decision.ADMIT;
+	}
+
+	private cnTokenBucket terminalBucket(cnFrameIndex idx) {
+		// 41ԭʼֽΪַ
+		String key = new String(idx.getBuffer(), idx.getFieldOffset(41), idx.getFieldLength(41), LATIN1);
+		cnTokenBucket b = terminalBuckets.get(key);
+		if (b == null) {
+			b = new cnTokenBucket(terminalRate, terminalBurst);
+			cnTokenBucket old = terminalBuckets.putIfAbsent(key, b);
+			if (old != null) {
+				return old;
+			}
+			terminalOrder.offer(key);
+			if (terminalCount.incrementAndGet() > maxTerminals) {
+				evictTerminal();
+			}
+		}
+		return b;
+	}
+
+	/** Forgets one terminal, so each new terminal costs a few steps instead of a scan of
+	 * all of them. */
+	private void evictTerminal() {
+		// ն˿ʼ̭УͰģEVICT_SCANûʱ̭
+		for (int i = 0;; i++) {
+			String key = terminalOrder.poll();
+			if (key == null) {
+				return;
+			}
+			cnTokenBucket b = terminalBuckets.get(key);
+			if (b == null) {
+				continue;
+			}
+			if (i < EVICT_SCAN && !b.isFull()) {
+				terminalOrder.offer(key);
+				continue;
+			}
+			if (terminalBuckets.remove(key, b)) {
+				terminalCount.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/** Called when an admitted request is done.
+	 * @param nanos The time it took to process it. */
+	public void release(long nanos) {
+		inFlight.decrementAndGet();
+		long avg = latency.get();
+		latency.set(avg + (nanos - avg) / 8);
+	}
+
+	/** Creates the response that declines a request: the response of the factory for the
+	 * request (with its template), with the echo fields of the request and the decline code
+	 * in field 39. Only the echo fields are decoded. */
+	public cnMessage decline(cnFrameIndex idx) throws ParseException {
+		cnMessage resp = factory.createResponse(idx.decodeFields(echoFields));
+		resp.setValue(39, declineCode, cnType.ALPHA, 2);
+		return resp;
+	}
+
+	/** Returns the number of terminals tracked. */
+	public int getTerminalCount() {
+		return terminalCount.get();
+	}
+
+	/** Returns the number of admitted requests in progress. */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/** Returns the moving average of the processing time, in microseconds. */
+	public long getAverageLatency() {
+		return latency.get() / 1000;
+	}
+
+	/** Returns the number of requests with the specified decision. */
+	public long getCount(Decision d) {
+		return counts.get(d.ordinal());
+	}
+
+}
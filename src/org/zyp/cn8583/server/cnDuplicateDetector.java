@@ -0,0 +1,272 @@
+package org.zyp.cn8583.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zyp.cn8583.cnFrameIndex;
+import org.zyp.cn8583.cnMessage;
+
+/**
+ * ظļ⣺ն˳ʱطֱӷԭӦ
+ * Detects the retransmissions of requests (a terminal that times out sends the same request
+ * again) so they are not processed twice. A request is identified by its message type and
+ * the bytes of fields 11 (trace number), 41 (terminal), 42 (merchant) and 7 (transmission
+ * time), read from a {@link cnFrameIndex} without parsing the message. A typical use:
+ * <PRE>
+ * cnFrameIndex idx = factory.indexMessage(buf, headerlen);
+ * cnDuplicateDetector.Entry e = detector.check(idx);
+ * if (e.isOriginal()) {
+ *     try {
+ *         cnMessage resp = process(factory.parseMessage(buf, headerlen));
+ *         reply(e.complete(resp, 2));
+ *     } catch (Exception ex) {
+ *         e.abandon();
+ *     }
+ * } else {
+ *     ByteBuffer frame = e.awaitResponse(5000, TimeUnit.MILLISECONDS);
+ *     if (frame != null) {
+ *         reply(frame);
+ *     }
+ * }
+ * </PRE>
+ * The detector keeps each request for a fixed time after it arrives, and at most a number of
+ * requests; when there are more, the oldest ones are forgotten. It is thread safe.
+ *
+ * @author zyplanke
+ */
+public class cnDuplicateDetector {
+
+	/** The fields that identify a request, after the message type. */
+	private static final int[] KEY_FIELDS = { 11, 41, 42, 7 };
+
+	private final long ttl;
+	private final int maxEntries;
+	private volatile Set<String> msgtypes;
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	/** The entries in the order they were added, to forget the oldest ones. */
+	private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/** Creates a detector.
+	 * @param ttlMillis How long a request is remembered, in milliseconds; it should be longer
+	 * than the time the terminals wait before they retransmit.
+	 * @param maxEntries The maximum number of requests remembered. */
+	public cnDuplicateDetector(long ttlMillis, int maxEntries) {
+		if (ttlMillis <= 0 || maxEntries < 1) {
+			throw new IllegalArgumentException("Invalid duplicate detector: " + ttlMillis + " ms, " + maxEntries + " entries");
+		}
+		ttl = ttlMillis * 1000000L;
+		this.maxEntries = maxEntries;
+	}
+
+	/** Sets the message types that are checked, e.g. "0200" and "0400". The other types are
+	 * always treated as original requests. By default all the types are checked. */
+	public void setMsgTypes(String... msgtypeids) {
+		msgtypes = msgtypeids == null || msgtypeids.length == 0 ? null : new HashSet<String>(Arrays.asList(msgtypeids));
+	}
+
+	/** Checks if a request is a retransmission of one that arrived before.
+	 * @return The entry of the request. If it is original, the caller must process it and
+	 * then call complete() or abandon() on the entry; otherwise the entry is the one of the
+	 * first request, with its response or waiting for it. */
+	public Entry check(cnFrameIndex idx) {
+		Set<String> types = msgtypes;
+		if (types != null && !types.contains(idx.getMsgTypeID())) {
+			return new Entry(this, null, now());
+		}
+		long now = now();
+		evict(now);
+		Key k = new Key(idx);
+		Entry e = new Entry(this, k, now);
+		Entry old = entries.putIfAbsent(k, e);
+		while (old != null) {
+			if (now - old.created <= ttl && !old.abandoned) {
+				duplicates.incrementAndGet();
+				return new Entry(old);
+			}
+			//expired or abandoned, but not removed yet: replace it
+			if (entries.replace(k, old, e)) {
+				size.decrementAndGet();
+				break;
+			}
+			old = entries.putIfAbsent(k, e);
+		}
+		size.incrementAndGet();
+		order.add(e);
+		return e;
+	}
+
+	private static long now() {
+		return System.nanoTime();
+	}
+
+	/** Forgets the expired requests, and the oldest ones while there are too many. */
+	private void evict(long now) {
+		Entry e;
+		while ((e = order.peek()) != null && (now - e.created > ttl || size.get() >= maxEntries)) {
+			if (order.remove(e) && entries.remove(e.key, e)) {
+				size.decrementAndGet();
+			}
+		}
+	}
+
+	/** Forgets all the requests. The pending ones can still be completed. */
+	public void clear() {
+		Entry e;
+		while ((e = order.poll()) != null) {
+			if (entries.remove(e.key, e)) {
+				size.decrementAndGet();
+			}
+		}
+	}
+
+	/** Returns the number of requests remembered. */
+	public int size() {
+		return size.get();
+	}
+
+	/** Returns the number of retransmissions detected. */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/** The identity of a request: the bytes of its type and key fields. */
+	private static final class Key {
+		private final byte[] data;
+		private final int hash;
+
+		Key(cnFrameIndex idx) {
+			int len = 4 + KEY_FIELDS.length;
+			for (int i : KEY_FIELDS) {
+				len += idx.getFieldLength(i);
+			}
+			byte[] buf = idx.getBuffer();
+			data = new byte[len];
+			System.arraycopy(buf, idx.getHeaderLength(), data, 0, 4);
+			int pos = 4;
+			for (int i : KEY_FIELDS) {
+				//the length of each field separates them, 0xff if the field is not present
+				int l = idx.getFieldLength(i);
+				data[pos++] = idx.hasField(i) ? (byte) l : (byte) 0xff;
+				if (l > 0) {
+					System.arraycopy(buf, idx.getFieldOffset(i), data, pos, l);
+					pos += l;
+				}
+			}
+			hash = Arrays.hashCode(data);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && ((Key) other).hash == hash && Arrays.equals(((Key) other).data, data);
+		}
+	}
+
+	/**
+	 * һļ¼Ӧ
+	 * A request remembered by the detector, and its response once it is processed.
+	 */
+	public static final class Entry {
+		private final cnDuplicateDetector owner;
+		private final Key key;
+		private final long created;
+		private final boolean original;
+		private final Entry first;
+		private volatile ByteBuffer response;
+		private volatile boolean abandoned;
+		private final CountDownLatch done;
+
+		private Entry(cnDuplicateDetector owner, Key key, long created) {
+			this.owner = owner;
+			this.key = key;
+			this.created = created;
+			this.original = true;
+			this.first = this;
+			this.done = new CountDownLatch(1);
+		}
+
+		/** A view of the first entry for a retransmission. */
+		private Entry(Entry first) {
+			this.owner = first.owner;
+			this.key = first.key;
+			this.created = first.created;
+			this.original = false;
+			this.first = first;
+			this.done = first.done;
+		}
+
+		/** Returns true if this is the first request, which must be processed. */
+		public boolean isOriginal() {
+			return original;
+		}
+
+		/** Returns true if the first request is done: completed or abandoned. */
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/** Returns the response frame of the first request, or null if it is not done yet or
+		 * it was abandoned. Each call returns a new read-only view of the frame. */
+		public ByteBuffer getResponse() {
+			ByteBuffer b = first.response;
+			return b == null ? null : b.asReadOnlyBuffer();
+		}
+
+		/** Waits until the first request is done.
+		 * @return The response frame, or null if the first request was abandoned or is not
+		 * done after the timeout. */
+		public ByteBuffer awaitResponse(long timeout, TimeUnit unit) throws InterruptedException {
+			done.await(timeout, unit);
+			return getResponse();
+		}
+
+		/** Stores the response of the first request, encoded with
+		 * {@link cnMessage#writeToBuffer(int)}, and releases the retransmissions waiting for it.
+		 * @param lengthBytes The size of the length header of the frame.
+		 * @return The response frame, to send to the terminal. */
+		public ByteBuffer complete(cnMessage resp, int lengthBytes) {
+			ByteBuffer b = resp.writeToBuffer(lengthBytes);
+			complete(b);
+			return b.asReadOnlyBuffer();
+		}
+
+		/** Stores the response frame of the first request (from its position to its limit),
+		 * and releases the retransmissions waiting for it. The frame must not be modified
+		 * afterwards. Only the first call on the original entry has an effect. */
+		public void complete(ByteBuffer frame) {
+			if (!original || isDone()) {
+				return;
+			}
+			response = frame.asReadOnlyBuffer();
+			done.countDown();
+		}
+
+		/** Called when the first request could not be processed: the retransmissions waiting
+		 * for it get no response, and the next one is processed as a new request. */
+		public void abandon() {
+			if (!original || isDone()) {
+				return;
+			}
+			abandoned = true;
+			done.countDown();
+			if (key != null && owner.entries.remove(key, this)) {
+				owner.size.decrementAndGet();
+			}
+		}
+	}
+
+}
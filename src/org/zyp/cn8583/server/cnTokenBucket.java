@@ -0,0 +1,56 @@
+package org.zyp.cn8583.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ͱ
+ * A token bucket: allows a sustained rate of events with bursts of up to a number of events.
+ * It is implemented as a virtual scheduling algorithm (GCRA): the only state is the time at
+ * which the bucket will be full again, updated with a compare-and-set, so it needs no lock
+ * and no timer thread.
+ *
+ * @author zyplanke
+ */
+public final class cnTokenBucket {
+
+	/** Nanoseconds per token. */
+	private final long interval;
+	/** How far the full time can be ahead of now: the burst minus one token. */
+	private final long tolerance;
+	/** The time (System.nanoTime) when the bucket is full again. */
+	private final AtomicLong fullAt;
+
+	/** Creates a full bucket.
+	 * @param perSecond The sustained rate, in events per second.
+	 * @param burst The number of events allowed at once when the bucket is full. */
+	public cnTokenBucket(double perSecond, int burst) {
+		if (perSecond <= 0 || burst < 1) {
+			throw new IllegalArgumentException("Invalid token bucket: " + perSecond + "/s, burst " + burst);
+		}
+		interval = Math.max(1, (long) (1000000000L / perSecond));
+		tolerance = interval * (burst - 1);
+		fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/** Takes a token if there is one.
+	 * @return true if the event is allowed. */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		for (;;) {
+			long t = fullAt.get();
+			long base = t - now > 0 ? t : now;
+			if (base - now > tolerance) {
+				return false;
+			}
+			if (fullAt.compareAndSet(t, base + interval)) {
+				return true;
+			}
+		}
+	}
+
+	/** Returns true if the bucket is full, i.e. no token has been taken recently. */
+	public boolean isFull() {
+		return fullAt.get() - System.nanoTime() <= 0;
+	}
+
+}
@@ -0,0 +1,530 @@
+package org.zyp.cn8583.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnValue;
+import org.zyp.cn8583.net.cnFraming;
+
+/**
+ * 洢תУ֪ͨȱʹııڴӳļУֱյӦ
+ * A durable queue of the frames of messages that must be delivered eventually, such as
+ * reversals (0400) and advices (0220), kept in memory-mapped segment files in a directory
+ * so they survive a restart. Each message is encoded once, when it is added; the stored
+ * bytes are sent again on each attempt.
+ * <P>
+ * A message is identified by its key: field 11, and field 41 if it has one, the same key
+ * that matches the responses of {@link org.zyp.cn8583.net.cnClient}. A typical use:
+ * <PRE>
+ * queue.add(reversal);
+ * ...
+ * // in the sender thread
+ * cnStoreForwardQueue.Item it;
+ * while ((it = queue.poll()) != null) {
+ *     send(it.getFrame());
+ * }
+ * // when a response arrives
+ * queue.ack(response);
+ * </PRE>
+ * {@link #poll()} returns the messages that are due, and schedules each one again with an
+ * exponential backoff, so a message is sent again until it is acknowledged.
+ * <P>
+ * Records are appended to the current segment; when it is full a new one is created.
+ * Concurrent producers append under a short lock, and share the flushes to disk: a producer
+ * waits for a flush that includes its record, and one flush covers all the records appended
+ * before it started. Acknowledgements mark the record in place and are flushed with the
+ * next flush, so after a crash an acknowledged message may be delivered once more.
+ * {@link #compact()} deletes the segments without pending messages, and moves the pending
+ * messages out of the segments that have few of them.
+ * <P>
+ * The queue is thread safe. Only one queue may use a directory at a time.
+ *
+ * @author zyplanke
+ */
+public class cnStoreForwardQueue {
+
+	private static final Log log = LogFactory.getLog(cnStoreForwardQueue.class);
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	/** Record header: state (1 byte), key length (1), frame length (4), CRC32 of key and frame (4). */
+	private static final int HEADER = 10;
+	private static final byte STATE_END = 0;
+	private static final byte STATE_PENDING = 1;
+	private static final byte STATE_ACKED = 2;
+
+	private final File dir;
+	private final int segmentSize;
+	private int lengthBytes = 4;
+	private int lengthRadix = 10;
+	private boolean syncOnAdd = true;
+	private long initialDelay = 1000000000L;
+	private long maxDelay = 60000000000L;
+
+	//guarded by this
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private final Map<String, Item> pending = new HashMap<String, Item>();
+	private final PriorityQueue<Item> schedule = new PriorityQueue<Item>(64, new Comparator<Item>() {
+		public int compare(Item a, Item b) {
+			long d = a.nextAttempt - b.nextAttempt;
+			return d < 0 ? -1 : d > 0 ? 1 : 0;
+		}
+	});
+	private long appended;
+	private boolean closed;
+
+	private final Object flushLock = new Object();
+	private volatile long flushed;
+
+	/** Opens the queue in a directory, creating it if needed, and loads the pending messages
+	 * of its segments. They are due right away.
+	 * @param segmentSize The size of the segment files, in bytes; the largest record must fit. */
+	public cnStoreForwardQueue(File dir, int segmentSize) throws IOException {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory " + dir);
+		}
+		String[] names = dir.list();
+		Arrays.sort(names);
+		long now = System.nanoTime();
+		for (String name : names) {
+			if (name.matches("seg-\\d{8}\\.dat")) {
+				Segment s = new Segment(new File(dir, name), Integer.parseInt(name.substring(4, 12)), 0);
+				segments.add(s);
+				recover(s, now);
+			}
+		}
+		if (segments.isEmpty()) {
+			rollover();
+		} else {
+			current = segments.get(segments.size() - 1);
+		}
+		if (log.isInfoEnabled()) {
+			log.info("Opened store-and-forward queue " + dir + ": " + segments.size() + " segments, "
+					+ pending.size() + " pending messages");
+		}
+	}
+
+	/** Sets the length header of the frames of the messages added afterwards, as in
+	 * {@link cnFraming#frame(cnMessage, int, int)}. Default is 4 decimal digits. */
+	public void setLengthHeader(int bytes, int radix) {
+		lengthBytes = bytes;
+		lengthRadix = radix;
+	}
+
+	/** Sets whether add() waits until the record is flushed to disk. Default is true. */
+	public void setSyncOnAdd(boolean flag) {
+		syncOnAdd = flag;
+	}
+
+	/** Sets the delay before the second attempt, in milliseconds; it doubles after each
+	 * attempt, up to the maximum delay. Defaults are 1 second and 60 seconds. */
+	public void setRetryDelay(long initialMillis, long maxMillis) {
+		initialDelay = initialMillis * 1000000L;
+		maxDelay = maxMillis * 1000000L;
+	}
+
+	/** Returns the key of a message: field 11, and field 41 after a '/' if the message has it,
+	 * or null if the message has no field 11. */
+	public static String keyOf(cnMessage m) {
+		cnValue<?> stan = m.getField(11);
+		if (stan == null) {
+			return null;
+		}
+		cnValue<?> terminal = m.getField(41);
+		return terminal == null ? stan.toString() : stan.toString() + '/' + terminal.toString();
+	}
+
+	/** Encodes a message and adds it to the queue. It replaces a pending message with the same key.
+	 * @return The key of the message. */
+	public String add(cnMessage m) throws IOException {
+		String key = keyOf(m);
+		if (key == null) {
+			throw new IllegalArgumentException("The message has no field 11");
+		}
+		add(key, cnFraming.frame(m, lengthBytes, lengthRadix));
+		return key;
+	}
+
+	/** Adds an encoded frame to the queue, with a key. It replaces a pending message with
+	 * the same key. */
+	public void add(String key, byte[] frame) throws IOException {
+		byte[] kb = key.getBytes(LATIN1);
+		if (kb.length > 255) {
+			throw new IllegalArgumentException("Key too long: " + key);
+		}
+		if (HEADER + kb.length + frame.length > segmentSize) {
+			throw new IllegalArgumentException("Frame of " + frame.length + " bytes does not fit in a segment");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(kb);
+		crc.update(frame);
+		long seq;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Queue closed");
+			}
+			Item it = append(kb, frame, 0, frame.length, (int) crc.getValue());
+			it.key = key;
+			Item old = pending.put(key, it);
+			if (old != null) {
+				markAcked(old);
+			}
+			it.nextAttempt = System.nanoTime();
+			schedule.add(it);
+			seq = ++appended;
+		}
+		if (syncOnAdd) {
+			flush(seq);
+		}
+	}
+
+	/** Writes a record in the current segment, creating a new one if it does not fit. */
+	private Item append(byte[] kb, byte[] data, int off, int len, int crc) throws IOException {
+		int size = HEADER + kb.length + len;
+		if (current.end + size > current.map.capacity()) {
+			rollover();
+		}
+		int pos = current.end;
+		ByteBuffer b = current.map.duplicate();
+		b.position(pos + 1);
+		b.put((byte) kb.length);
+		b.putInt(len);
+		b.putInt(crc);
+		b.put(kb);
+		b.put(data, off, len);
+		//the state is written last, so a record is not pending until it is complete
+		b.put(pos, STATE_PENDING);
+		current.end = pos + size;
+		if (current.end < current.map.capacity()) {
+			b.put(current.end, STATE_END);
+		}
+		current.records++;
+		current.live++;
+		current.dirty = true;
+		Item it = new Item(this);
+		it.segment = current;
+		it.pos = pos;
+		it.keyLength = kb.length;
+		it.length = len;
+		return it;
+	}
+
+	/** Creates a new segment and makes it current. */
+	private void rollover() throws IOException {
+		int id = current == null ? 1 : current.id + 1;
+		if (current != null) {
+			current.dirty = true;
+		}
+		current = new Segment(new File(dir, String.format("seg-%08d.dat", id)), id, segmentSize);
+		segments.add(current);
+	}
+
+	/** Loads the pending records of a segment, up to its first incomplete or damaged record. */
+	private void recover(Segment s, long now) {
+		ByteBuffer b = s.map.duplicate();
+		int size = b.capacity();
+		int pos = 0;
+		CRC32 crc = new CRC32();
+		while (pos + HEADER <= size) {
+			byte state = b.get(pos);
+			if (state != STATE_PENDING && state != STATE_ACKED) {
+				break;
+			}
+			int kl = b.get(pos + 1) & 0xff;
+			int len = b.getInt(pos + 2);
+			if (len < 0 || pos + HEADER + kl + len > size) {
+				break;
+			}
+			byte[] data = new byte[kl + len];
+			b.position(pos + HEADER);
+			b.get(data);
+			crc.reset();
+			crc.update(data);
+			if ((int) crc.getValue() != b.getInt(pos + 6)) {
+				log.warn("Damaged record at " + pos + " in " + s.file + ", ignoring the rest of the segment");
+				break;
+			}
+			s.records++;
+			if (state == STATE_PENDING) {
+				Item it = new Item(this);
+				it.key = new String(data, 0, kl, LATIN1);
+				it.segment = s;
+				it.pos = pos;
+				it.keyLength = kl;
+				it.length = len;
+				it.nextAttempt = now;
+				s.live++;
+				Item old = pending.put(it.key, it);
+				if (old != null) {
+					markAcked(old);
+				}
+				schedule.add(it);
+			}
+			pos += HEADER + kl + len;
+		}
+		s.end = pos;
+		if (pos < size) {
+			b.put(pos, STATE_END);
+		}
+	}
+
+	/** Returns the next message that is due, or null if there is none now. The message is
+	 * scheduled again after the retry delay, in case it is not acknowledged. */
+	public synchronized Item poll() {
+		long now = System.nanoTime();
+		Item it;
+		while ((it = schedule.peek()) != null) {
+			if (it.acked) {
+				schedule.poll();
+				continue;
+			}
+			if (it.nextAttempt - now > 0) {
+				return null;
+			}
+			schedule.poll();
+			long delay = it.attempts >= 30 ? maxDelay : Math.min(maxDelay, initialDelay << it.attempts);
+			it.attempts++;
+			it.nextAttempt = now + delay;
+			schedule.add(it);
+			return it;
+		}
+		return null;
+	}
+
+	/** Acknowledges the message with the key of a response.
+	 * @return false if there was no pending message with that key. */
+	public boolean ack(cnMessage response) {
+		String key = keyOf(response);
+		return key != null && ack(key);
+	}
+
+	/** Acknowledges the message with a key, so it is not sent again.
+	 * @return false if there was no pending message with that key. */
+	public synchronized boolean ack(String key) {
+		Item it = pending.remove(key);
+		if (it == null) {
+			return false;
+		}
+		markAcked(it);
+		return true;
+	}
+
+	private void markAcked(Item it) {
+		it.acked = true;
+		it.segment.map.put(it.pos, STATE_ACKED);
+		it.segment.live--;
+		it.segment.dirty = true;
+	}
+
+	/** Returns the number of pending messages. */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/** Returns the number of segment files. */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/** Flushes all the records and acknowledgements to disk. */
+	public void flush() throws IOException {
+		long seq;
+		synchronized (this) {
+			seq = appended;
+			current.dirty = true;
+		}
+		flush(seq);
+	}
+
+	/** Waits until the records up to a sequence number are flushed. One thread flushes the
+	 * dirty segments while the others wait for it; the records appended meanwhile are
+	 * flushed by the next one. */
+	private void flush(long seq) throws IOException {
+		if (flushed >= seq) {
+			return;
+		}
+		synchronized (flushLock) {
+			if (flushed >= seq) {
+				return;
+			}
+			List<Segment> dirty = new ArrayList<Segment>(2);
+			long upto;
+			synchronized (this) {
+				upto = appended;
+				for (Segment s : segments) {
+					if (s.dirty) {
+						s.dirty = false;
+						dirty.add(s);
+					}
+				}
+			}
+			for (Segment s : dirty) {
+				s.map.force();
+			}
+			flushed = upto;
+		}
+	}
+
+	/** Deletes the segments without pending messages, and moves the pending messages of the
+	 * segments where fewer than a quarter of the records are pending into the current
+	 * segment, so their segments can be deleted too. The current segment is kept.
+	 * @return The number of segments deleted. */
+	public int compact() throws IOException {
+		List<Segment> removed = new ArrayList<Segment>();
+		long seq;
+		synchronized (this) {
+			for (Segment s : new ArrayList<Segment>(segments)) {
+				if (s == current || (s.live > 0 && s.live * 4 >= s.records)) {
+					continue;
+				}
+				if (s.live > 0) {
+					for (Item it : pending.values()) {
+						if (it.segment == s) {
+							move(it);
+						}
+					}
+				}
+				segments.remove(s);
+				removed.add(s);
+			}
+			seq = appended;
+			current.dirty = true;
+		}
+		if (removed.isEmpty()) {
+			return 0;
+		}
+		//the moved records must be on disk before their old copies are deleted
+		flush(seq);
+		for (Segment s : removed) {
+			if (!s.file.delete()) {
+				log.warn("Cannot delete segment " + s.file);
+			}
+		}
+		return removed.size();
+	}
+
+	/** Copies a pending record to the current segment. Its stored bytes are reused. */
+	private void move(Item it) throws IOException {
+		Segment old = it.segment;
+		byte[] data = new byte[it.keyLength + it.length];
+		ByteBuffer b = old.map.duplicate();
+		b.position(it.pos + HEADER);
+		b.get(data);
+		Item moved = append(Arrays.copyOf(data, it.keyLength), data, it.keyLength, it.length, b.getInt(it.pos + 6));
+		it.segment = moved.segment;
+		it.pos = moved.pos;
+		old.live--;
+		appended++;
+	}
+
+	/** Flushes the queue and closes it. */
+	public void close() throws IOException {
+		flush();
+		synchronized (this) {
+			closed = true;
+		}
+	}
+
+	/** A segment file, mapped in memory. */
+	private static final class Segment {
+		final File file;
+		final int id;
+		final MappedByteBuffer map;
+		/** The position after the last record. */
+		int end;
+		/** The number of records, and of pending records. */
+		int records;
+		int live;
+		/** True if the segment was modified since it was last flushed. */
+		boolean dirty;
+
+		/** Maps a segment file, creating it with a size if it is not 0. */
+		Segment(File file, int id, int size) throws IOException {
+			this.file = file;
+			this.id = id;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (size > 0) {
+					raf.setLength(size);
+				}
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			} finally {
+				//the mapping stays valid after the channel is closed
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * еһʹﱨġ
+	 * A pending message of the queue.
+	 */
+	public static final class Item {
+		private final cnStoreForwardQueue queue;
+		private String key;
+		private Segment segment;
+		private int pos;
+		private int keyLength;
+		private int length;
+		private int attempts;
+		private long nextAttempt;
+		private boolean acked;
+
+		private Item(cnStoreForwardQueue queue) {
+			this.queue = queue;
+		}
+
+		/** Returns the key of the message. */
+		public String getKey() {
+			return key;
+		}
+
+		/** Returns the number of times the message was returned by poll(). */
+		public int getAttempts() {
+			synchronized (queue) {
+				return attempts;
+			}
+		}
+
+		/** Returns the stored frame of the message, as a read-only view of the segment, ready
+		 * to be written to a channel. */
+		public ByteBuffer getFrame() {
+			synchronized (queue) {
+				ByteBuffer b = segment.map.duplicate();
+				b.position(pos + HEADER + keyLength);
+				b.limit(pos + HEADER + keyLength + length);
+				return b.slice().asReadOnlyBuffer();
+			}
+		}
+
+		/** Returns a copy of the stored frame of the message. */
+		public byte[] getFrameBytes() {
+			ByteBuffer b = getFrame();
+			byte[] data = new byte[b.remaining()];
+			b.get(data);
+			return data;
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.zyp.cn8583.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnFrameIndex;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnType;
+import org.zyp.cn8583.net.cnFraming;
+import org.zyp.cn8583.server.cnAdmissionController;
+
+/**
+ * Ӧ񣺶ÿ󷵻Ӧġ
+ * A host node stub for tests: it answers each request on its connections with the response
+ * of the factory ({@link cnMessageFactory#createResponse(cnMessage)}: the template of the
+ * response type plus the fields of the request) with a response code in field 39, after an
+ * optional delay. It lets {@link cnLoadGenerator} and other tests run on one machine.
+ * <P>
+ * Each connection is served by its own thread, which answers its requests in order. With
+ * {@link #setWorkers(int)} the requests are instead processed by a fixed number of worker
+ * threads shared by all the connections, so the stub has a fixed capacity (workers / delay)
+ * and the requests over it wait in a queue, as in a real host; with
+ * {@link #setAdmissionController(cnAdmissionController)} the requests that are not admitted
+ * are declined at once by the thread of the connection. The factory must have the header
+ * lengths and parse guides of the request types.
+ *
+ * @author zyplanke
+ */
+public class cnEchoServer {
+
+	private static final Log log = LogFactory.getLog(cnEchoServer.class);
+
+	private final cnMessageFactory factory;
+	private final ServerSocket server;
+	private final Set<Socket> sockets = new CopyOnWriteArraySet<Socket>();
+	private int lengthBytes = 4;
+	private int lengthRadix = 10;
+	private int maxFrameLength = 65535;
+	private String responseCode = "00";
+	private long delay;
+	private int workers;
+	private cnAdmissionController admission;
+	private ExecutorService pool;
+	private final AtomicLong requests = new AtomicLong();
+	private volatile boolean closed;
+
+	/** Creates a stub that listens on a port of the local host.
+	 * @param port The port, or 0 for any free port (see {@link #getPort()}). */
+	public cnEchoServer(cnMessageFactory factory, int port) throws IOException {
+		this.factory = factory;
+		server = new ServerSocket(port);
+	}
+
+	/** Sets the length header of the frames, as in {@link cnFraming}. Default is 4 decimal digits. */
+	public void setLengthHeader(int bytes, int radix) {
+		lengthBytes = bytes;
+		lengthRadix = radix;
+	}
+
+	/** Sets the response code (field 39) of the responses. Default is "00". */
+	public void setResponseCode(String value) {
+		responseCode = value;
+	}
+
+	/** Sets the time to wait before answering each request, in microseconds. Default is 0. */
+	public void setDelay(long micros) {
+		delay = micros * 1000L;
+	}
+
+	/** Sets the number of worker threads that process the requests of all the connections,
+	 * or 0 to process them in the thread of each connection, the default. Set it before
+	 * start(). */
+	public void setWorkers(int value) {
+		workers = value;
+	}
+
+	/** Sets the controller that decides which requests are processed, or null to process
+	 * all of them, the default. The others are answered with its decline. */
+	public void setAdmissionController(cnAdmissionController value) {
+		admission = value;
+	}
+
+	/** Returns the port the stub listens on. */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/** Returns the number of requests answered. */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** Starts accepting connections, in a daemon thread. */
+	public void start() {
+		if (workers > 0) {
+			pool = Executors.newFixedThreadPool(workers);
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "cn8583-echo-" + getPort());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket s;
+			try {
+				s = server.accept();
+				s.setTcpNoDelay(true);
+			} catch (IOException ex) {
+				if (!closed) {
+					log.error("Cannot accept connections on port " + getPort(), ex);
+				}
+				return;
+			}
+			sockets.add(s);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					serve(s);
+				}
+			}, "cn8583-echo-" + s.getRemoteSocketAddress());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Answers the requests of a connection until it is closed. */
+	private void serve(Socket s) {
+		try {
+			InputStream ins = new BufferedInputStream(s.getInputStream());
+			final OutputStream outs = new BufferedOutputStream(s.getOutputStream());
+			byte[] buf;
+			while ((buf = cnFraming.readFrame(ins, lengthBytes, lengthRadix, maxFrameLength)) != null) {
+				final int hl = factory.findHeaderLength(buf);
+				if (hl < 0) {
+					log.warn("No header length for the request, ignored");
+					continue;
+				}
+				if (admission != null) {
+					cnFrameIndex idx = factory.indexMessage(buf, hl);
+					if (admission.admit(idx) != cnAdmissionController.Decision.ADMIT) {
+						cnMessage resp = admission.decline(idx);
+						resp.setMessageHeaderData(0, Arrays.copyOfRange(buf, 0, hl));
+						reply(outs, resp, true);
+						continue;
+					}
+				}
+				if (pool == null) {
+					long start = System.nanoTime();
+					cnMessage resp = answer(buf, hl);
+					if (admission != null) {
+						admission.release(System.nanoTime() - start);
+					}
+					reply(outs, resp, ins.available() == 0);
+				} else {
+					final byte[] req = buf;
+					final long start = System.nanoTime();
+					pool.execute(new Runnable() {
+						public void run() {
+							try {
+								cnMessage resp = answer(req, hl);
+								reply(outs, resp, true);
+							} catch (Exception ex) {
+								if (!closed) {
+									log.error("Cannot answer a request", ex);
+								}
+							} finally {
+								if (admission != null) {
+									//the time in the queue counts, it is what makes the latency grow
+									admission.release(System.nanoTime() - start);
+								}
+							}
+						}
+					});
+				}
+			}
+		} catch (SocketException ex) {
+			//closed
+		} catch (Exception ex) {
+			if (!closed) {
+				log.error("Connection from " + s.getRemoteSocketAddress() + " failed", ex);
+			}
+		} finally {
+			sockets.remove(s);
+			try {
+				s.close();
+			} catch (IOException ex) {
+				//nothing to do
+			}
+		}
+	}
+
+	/** Parses a request and creates its response, after the delay. */
+	private cnMessage answer(byte[] buf, int hl) throws ParseException, InterruptedException {
+		cnMessage req = factory.parseMessage(buf, hl);
+		cnMessage resp = factory.createResponse(req);
+		resp.setMessageHeaderData(0, req.getMessageHeaderData(0, hl));
+		resp.setValue(39, responseCode, cnType.ALPHA, 2);
+		if (delay > 0) {
+			long end = System.nanoTime() + delay;
+			for (long left = delay; left > 0; left = end - System.nanoTime()) {
+				Thread.sleep(left / 1000000, (int) (left % 1000000));
+			}
+		}
+		return resp;
+	}
+
+	/** Writes a response; the workers and the thread of the connection may write at once. */
+	private void reply(OutputStream outs, cnMessage resp, boolean flush) throws IOException {
+		byte[] frame = cnFraming.frame(resp, lengthBytes, lengthRadix);
+		synchronized (outs) {
+			outs.write(frame);
+			if (flush) {
+				outs.flush();
+			}
+		}
+		requests.incrementAndGet();
+	}
+
+	/** Stops accepting connections and closes the open ones. */
+	public void close() {
+		closed = true;
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+		try {
+			server.close();
+		} catch (IOException ex) {
+			//nothing to do
+		}
+		for (Socket s : sockets) {
+			try {
+				s.close();
+			} catch (IOException ex) {
+				//nothing to do
+			}
+		}
+	}
+
+}
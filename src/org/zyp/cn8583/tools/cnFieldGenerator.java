@@ -0,0 +1,149 @@
+package org.zyp.cn8583.tools;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnType;
+
+/**
+ * Աֵšն˺ŵȡ
+ * Sets a field of the messages of a load test to a new value each time, such as a random
+ * amount, a card number with a valid check digit, or one of a number of terminals. The
+ * generators are used by {@link cnLoadGenerator} on the messages created from the templates
+ * of the configuration; the other fields keep the values of the template.
+ * <P>
+ * The generators are thread safe. They can be created with the static methods, or from a
+ * text spec with {@link #parse(String)}.
+ *
+ * @author zyplanke
+ */
+public abstract class cnFieldGenerator {
+
+	/** Sets a new value in the field of the message. */
+	public abstract void apply(cnMessage m, int fieldid, Random rnd);
+
+	/** An AMOUNT between two values in cents (fen), both included. */
+	public static cnFieldGenerator amount(final long mincents, final long maxcents) {
+		return new cnFieldGenerator() {
+			public void apply(cnMessage m, int fieldid, Random rnd) {
+				long cents = mincents + (long) (rnd.nextDouble() * (maxcents - mincents + 1));
+				m.setValue(fieldid, BigDecimal.valueOf(cents, 2), cnType.AMOUNT, 0);
+			}
+		};
+	}
+
+	/** A card number (LLVAR) with the prefix (the BIN), random digits and a Luhn check digit.
+	 * @param length The number of digits, including the prefix and the check digit. */
+	public static cnFieldGenerator pan(final String prefix, final int length) {
+		if (prefix.length() >= length) {
+			throw new IllegalArgumentException("The prefix " + prefix + " is not shorter than " + length);
+		}
+		return new cnFieldGenerator() {
+			public void apply(cnMessage m, int fieldid, Random rnd) {
+				char[] c = new char[length];
+				prefix.getChars(0, prefix.length(), c, 0);
+				for (int i = prefix.length(); i < length - 1; i++) {
+					c[i] = (char) ('0' + rnd.nextInt(10));
+				}
+				c[length - 1] = luhn(c, length - 1);
+				m.setValue(fieldid, new String(c), cnType.LLVAR, 0);
+			}
+		};
+	}
+
+	/** Returns the Luhn check digit of the first digits of the array. */
+	static char luhn(char[] c, int len) {
+		int sum = 0;
+		boolean dbl = true;
+		for (int i = len - 1; i >= 0; i--) {
+			int d = c[i] - '0';
+			if (dbl) {
+				d *= 2;
+				if (d > 9) {
+					d -= 9;
+				}
+			}
+			sum += d;
+			dbl = !dbl;
+		}
+		return (char) ('0' + (10 - sum % 10) % 10);
+	}
+
+	/** One of a number of terminal ids (ALPHA): the prefix followed by a number from 0 to
+	 * count - 1, filled with zeros to the length, e.g. TERM0042.
+	 * @param length The length of the field. */
+	public static cnFieldGenerator terminal(final String prefix, final int count, final int length) {
+		final int digits = length - prefix.length();
+		if (digits < Long.toString(count - 1).length()) {
+			throw new IllegalArgumentException(count + " terminals do not fit in " + length + " characters with prefix " + prefix);
+		}
+		return new cnFieldGenerator() {
+			public void apply(cnMessage m, int fieldid, Random rnd) {
+				m.setValue(fieldid, prefix + cnType.NUMERIC.format(rnd.nextInt(count), digits), cnType.ALPHA, length);
+			}
+		};
+	}
+
+	/** A random NUMERIC value with the specified number of digits. */
+	public static cnFieldGenerator numeric(final int digits) {
+		return new cnFieldGenerator() {
+			public void apply(cnMessage m, int fieldid, Random rnd) {
+				StringBuilder sb = new StringBuilder(digits);
+				for (int i = 0; i < digits; i++) {
+					sb.append((char) ('0' + rnd.nextInt(10)));
+				}
+				m.setValue(fieldid, sb.toString(), cnType.NUMERIC, digits);
+			}
+		};
+	}
+
+	/** A NUMERIC counter with the specified number of digits, from 1, wrapping to 1 after the
+	 * largest value; typically for the trace number (field 11), which must be different for
+	 * each outstanding request. */
+	public static cnFieldGenerator sequence(final int digits) {
+		long m = 1;
+		for (int i = 0; i < digits && m <= Long.MAX_VALUE / 10; i++) {
+			m *= 10;
+		}
+		final long max = m - 1;
+		final AtomicLong counter = new AtomicLong();
+		return new cnFieldGenerator() {
+			public void apply(cnMessage m, int fieldid, Random rnd) {
+				long v = counter.incrementAndGet() % max + 1;
+				m.setValue(fieldid, v, cnType.NUMERIC, digits);
+			}
+		};
+	}
+
+	/** Creates a generator from a spec, as given on the command line of the load generator:
+	 * <UL>
+	 * <LI>amount:min:max (in cents)</LI>
+	 * <LI>pan:prefix:length</LI>
+	 * <LI>terminal:prefix:count:length</LI>
+	 * <LI>numeric:digits</LI>
+	 * <LI>sequence:digits</LI>
+	 * </UL>
+	 * @throws IllegalArgumentException if the spec is not valid. */
+	public static cnFieldGenerator parse(String spec) {
+		String[] p = spec.split(":");
+		try {
+			if (p[0].equals("amount") && p.length == 3) {
+				return amount(Long.parseLong(p[1]), Long.parseLong(p[2]));
+			} else if (p[0].equals("pan") && p.length == 3) {
+				return pan(p[1], Integer.parseInt(p[2]));
+			} else if (p[0].equals("terminal") && p.length == 4) {
+				return terminal(p[1], Integer.parseInt(p[2]), Integer.parseInt(p[3]));
+			} else if (p[0].equals("numeric") && p.length == 2) {
+				return numeric(Integer.parseInt(p[1]));
+			} else if (p[0].equals("sequence") && p.length == 2) {
+				return sequence(Integer.parseInt(p[1]));
+			}
+		} catch (NumberFormatException ex) {
+			//reported below
+		}
+		throw new IllegalArgumentException("Invalid field generator: " + spec);
+	}
+
+}
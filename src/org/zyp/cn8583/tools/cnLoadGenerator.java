@@ -0,0 +1,331 @@
+package org.zyp.cn8583.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.metrics.cnLatencyHistogram;
+import org.zyp.cn8583.net.cnClient;
+import org.zyp.cn8583.net.cnResponseHandler;
+import org.zyp.cn8583.parse.cnConfigParser;
+
+/**
+ * ѹԹߣ̶ʷ͸ݱģɵͳƺʱֲ
+ * Sends requests at a fixed rate to host nodes and reports the distribution of the response
+ * times. The requests are created from the template of a message type in the configuration
+ * ({@link cnMessageFactory#newMessagefromTemplate(String)}), with some fields set by
+ * {@link cnFieldGenerator}s, and sent with a {@link cnClient}.
+ * <P>
+ * The load is open-loop: request number i is due at start + i / rate, whether or not the
+ * responses of the previous ones have arrived, as with real terminals. The latency of a
+ * request is measured from the time it was due, not from the time it was actually sent, so
+ * a stall of the generator or of the host (which delays the sending of the next requests)
+ * is counted in the latency of all the requests it delayed (correction of the coordinated
+ * omission). The report shows both that latency and the service time, measured from the
+ * actual sending.
+ * <P>
+ * It can be run from the command line; with -echo it starts a {@link cnEchoServer} and sends
+ * the requests to it, so the test runs on one machine:
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnLoadGenerator -config config.xml -type 0200 -rate 500 -duration 30
+ *     -echo -field 4=amount:100:500000 -field 2=pan:622202:19 -field 41=terminal:T:5000:8
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnLoadGenerator {
+
+	private final cnMessageFactory factory;
+	private final String msgtypeid;
+	private final List<InetSocketAddress> targets;
+	private final Map<Integer, cnFieldGenerator> generators = new LinkedHashMap<Integer, cnFieldGenerator>();
+	private double rate = 100;
+	private int duration = 10;
+	private int connections = 2;
+	private long timeout = 10000;
+	private int lengthBytes = 4;
+	private int lengthRadix = 10;
+	private long seed = System.nanoTime();
+
+	/** Creates a generator of requests of a message type.
+	 * @param factory The factory with the templates of the requests and the parse guides of
+	 * the responses.
+	 * @param targets The addresses of the host nodes. */
+	public cnLoadGenerator(cnMessageFactory factory, String msgtypeid, List<InetSocketAddress> targets) {
+		this.factory = factory;
+		this.msgtypeid = msgtypeid;
+		this.targets = targets;
+	}
+
+	/** Sets the generator of the value of a field. Field 11 has a counter by default, so that
+	 * the outstanding requests are different. */
+	public void setGenerator(int fieldid, cnFieldGenerator gen) {
+		generators.put(fieldid, gen);
+	}
+
+	/** Sets the number of requests per second. Default is 100. */
+	public void setRate(double value) {
+		rate = value;
+	}
+
+	/** Sets the duration of the test in seconds. Default is 10. */
+	public void setDuration(int seconds) {
+		duration = seconds;
+	}
+
+	/** Sets the number of connections to each host node. Default is 2. */
+	public void setConnections(int value) {
+		connections = value;
+	}
+
+	/** Sets the time to wait for each response, in milliseconds. Default is 10000. */
+	public void setTimeout(long millis) {
+		timeout = millis;
+	}
+
+	/** Sets the length header of the frames, as in {@link cnClient#setLengthHeader(int, int)}. */
+	public void setLengthHeader(int bytes, int radix) {
+		lengthBytes = bytes;
+		lengthRadix = radix;
+	}
+
+	/** Sets the seed of the random values, to repeat a test with the same values. */
+	public void setSeed(long value) {
+		seed = value;
+	}
+
+	/** Runs the test and returns its results. It returns when all the responses have arrived
+	 * or timed out. */
+	public Report run() throws InterruptedException {
+		if (!generators.containsKey(11)) {
+			generators.put(11, cnFieldGenerator.sequence(6));
+		}
+		final Report r = new Report();
+		cnClient client = new cnClient(factory, targets);
+		client.setConnectionsPerEndpoint(connections);
+		client.setLengthHeader(lengthBytes, lengthRadix);
+		client.setTimeout(timeout);
+		Random rnd = new Random(seed);
+		long interval = (long) (1000000000L / rate);
+		long total = (long) (rate * duration);
+		long start = System.nanoTime();
+		try {
+			for (long i = 0; i < total; i++) {
+				final long due = start + i * interval;
+				for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+					LockSupport.parkNanos(wait);
+				}
+				cnMessage m = factory.newMessagefromTemplate(msgtypeid);
+				for (Map.Entry<Integer, cnFieldGenerator> e : generators.entrySet()) {
+					e.getValue().apply(m, e.getKey(), rnd);
+				}
+				final long sent = System.nanoTime();
+				r.sent++;
+				client.send(m, new cnResponseHandler() {
+					public void completed(cnMessage response) {
+						long now = System.nanoTime();
+						r.latency.record(now - due);
+						r.service.record(now - sent);
+						Object code = response.getObjectValue(39);
+						if (code != null && !"00".equals(code.toString().trim())) {
+							r.declined.incrementAndGet();
+						} else {
+							r.approved.record(now - due);
+						}
+						r.responses.incrementAndGet();
+					}
+					public void failed(Throwable error) {
+						r.failures.incrementAndGet();
+					}
+				});
+			}
+			r.sendTime = System.nanoTime() - start;
+			long end = System.currentTimeMillis() + timeout + 1000;
+			while (r.responses.get() + r.failures.get() < r.sent && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+		} finally {
+			client.close();
+		}
+		return r;
+	}
+
+	/**
+	 * ѹԽ
+	 * The results of a test.
+	 */
+	public static final class Report {
+		private long sent;
+		private long sendTime;
+		private final AtomicLong responses = new AtomicLong();
+		private final AtomicLong declined = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final cnLatencyHistogram latency = new cnLatencyHistogram();
+		private final cnLatencyHistogram service = new cnLatencyHistogram();
+		private final cnLatencyHistogram approved = new cnLatencyHistogram();
+
+		/** Returns the number of requests sent. */
+		public long getSent() {
+			return sent;
+		}
+
+		/** Returns the number of responses received. */
+		public long getResponses() {
+			return responses.get();
+		}
+
+		/** Returns the number of responses with a response code (field 39) other than "00". */
+		public long getDeclined() {
+			return declined.get();
+		}
+
+		/** Returns the number of requests without response: timed out or failed. */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/** Returns the rate at which the requests were actually sent, per second. */
+		public double getSendRate() {
+			return sendTime == 0 ? 0 : sent * 1e9 / sendTime;
+		}
+
+		/** Returns the latencies, measured from the time each request was due. */
+		public cnLatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/** Returns the service times, measured from the time each request was sent. */
+		public cnLatencyHistogram getServiceTime() {
+			return service;
+		}
+
+		/** Returns the latencies of the responses that were not declined, measured from the
+		 * time each request was due. */
+		public cnLatencyHistogram getApprovedLatency() {
+			return approved;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("requests %d (%.1f/s), responses %d, declined %d, failures %d%n",
+					sent, getSendRate(), getResponses(), getDeclined(), getFailures()));
+			append(sb, "latency (from due time)", latency);
+			append(sb, "service time (from send time)", service);
+			if (getDeclined() > 0) {
+				append(sb, "latency of the not declined", approved);
+			}
+			return sb.toString();
+		}
+
+		private static void append(StringBuilder sb, String name, cnLatencyHistogram h) {
+			sb.append(String.format("%-30s p50 %8d us  p90 %8d us  p99 %8d us  p99.9 %8d us  max %8d us%n", name,
+					h.getPercentile(50) / 1000, h.getPercentile(90) / 1000, h.getPercentile(99) / 1000,
+					h.getPercentile(99.9) / 1000, h.getMax() / 1000));
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: cnLoadGenerator -config <file> -type <msgtypeid> [-rate <per second>] [-duration <seconds>]");
+		System.err.println("       [-target <host:port>]... [-echo] [-echo-delay <microseconds>] [-connections <n>]");
+		System.err.println("       [-timeout <ms>] [-seed <n>] [-field <id>=<generator>]...");
+		System.err.println("Generators: amount:min:max (cents), pan:prefix:length, terminal:prefix:count:length,");
+		System.err.println("            numeric:digits, sequence:digits");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String config = null;
+		String type = null;
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		Map<Integer, cnFieldGenerator> gens = new LinkedHashMap<Integer, cnFieldGenerator>();
+		boolean echo = false;
+		long echoDelay = 0;
+		double rate = 100;
+		int duration = 10;
+		int connections = 2;
+		long timeout = 10000;
+		Long seed = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String a = args[i];
+				if (a.equals("-echo")) {
+					echo = true;
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				String v = args[++i];
+				if (a.equals("-config")) {
+					config = v;
+				} else if (a.equals("-type")) {
+					type = v;
+				} else if (a.equals("-rate")) {
+					rate = Double.parseDouble(v);
+				} else if (a.equals("-duration")) {
+					duration = Integer.parseInt(v);
+				} else if (a.equals("-target")) {
+					int c = v.lastIndexOf(':');
+					targets.add(new InetSocketAddress(v.substring(0, c), Integer.parseInt(v.substring(c + 1))));
+				} else if (a.equals("-echo-delay")) {
+					echoDelay = Long.parseLong(v);
+				} else if (a.equals("-connections")) {
+					connections = Integer.parseInt(v);
+				} else if (a.equals("-timeout")) {
+					timeout = Long.parseLong(v);
+				} else if (a.equals("-seed")) {
+					seed = Long.parseLong(v);
+				} else if (a.equals("-field")) {
+					int eq = v.indexOf('=');
+					gens.put(Integer.parseInt(v.substring(0, eq)), cnFieldGenerator.parse(v.substring(eq + 1)));
+				} else {
+					usage();
+				}
+			}
+		} catch (RuntimeException ex) {
+			System.err.println(ex.getMessage());
+			usage();
+		}
+		if (config == null || type == null || (targets.isEmpty() && !echo)) {
+			usage();
+		}
+		cnMessageFactory factory = cnConfigParser.createFromXMLConfigFile(config);
+		cnEchoServer server = null;
+		if (echo) {
+			server = startEcho(factory, echoDelay);
+			targets.add(new InetSocketAddress("127.0.0.1", server.getPort()));
+		}
+		cnLoadGenerator gen = new cnLoadGenerator(factory, type, targets);
+		for (Map.Entry<Integer, cnFieldGenerator> e : gens.entrySet()) {
+			gen.setGenerator(e.getKey(), e.getValue());
+		}
+		gen.setRate(rate);
+		gen.setDuration(duration);
+		gen.setConnections(connections);
+		gen.setTimeout(timeout);
+		if (seed != null) {
+			gen.setSeed(seed);
+		}
+		Report r = gen.run();
+		System.out.print(r);
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	private static cnEchoServer startEcho(cnMessageFactory factory, long delay) throws IOException {
+		cnEchoServer server = new cnEchoServer(factory, 0);
+		server.setDelay(delay);
+		server.start();
+		return server;
+	}
+
+}
@@ -0,0 +1,648 @@
+package org.zyp.cn8583.tools;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnSystemTraceNumGenerator;
+import org.zyp.cn8583.cnType;
+import org.zyp.cn8583.cnValue;
+import org.zyp.cn8583.impl.cnSimpleSystemTraceNumGen;
+import org.zyp.cn8583.metrics.cnLatencyHistogram;
+import org.zyp.cn8583.net.cnClient;
+import org.zyp.cn8583.net.cnFraming;
+import org.zyp.cn8583.net.cnResponseHandler;
+import org.zyp.cn8583.parse.cnConfigParser;
+
+/**
+ * ׻طŹߣԭʼط¼Ƶıģ¼ƵӦȽϡ
+ * Replays recorded traffic against host nodes. The capture is a file of frames with a length
+ * header, as written by {@link cnMessage#write(java.io.OutputStream, int, int)}; it is read as
+ * a stream, so it can hold a whole day of traffic. The requests of the capture are sent with
+ * a {@link cnClient}; the responses of the capture (the message types with an odd third
+ * digit, such as 0210) are not sent but compared with the responses of the host nodes, field
+ * by field, to find the changes of behavior of a new build.
+ * <P>
+ * The speed can be the original one, a multiple of it ({@link #setSpeed(double)}), or the
+ * maximum. The frames have no time stamp, so the original timing is taken from the
+ * transmission time of the requests (field 7), which has a resolution of one second: the
+ * requests of the same second are spread evenly over that second. Requests without field 7
+ * keep the time of the previous one. The capture is read one second
+ * ahead of the replay, and only that much traffic is held in memory.
+ * <P>
+ * A capture often has requests with the same trace number (field 11) and terminal at once,
+ * which the client cannot match to their responses. With a trace generator
+ * ({@link #setTraceGenerator(cnSystemTraceNumGenerator)}), those requests get a new trace
+ * number, and a new transmission time in field 7; {@link #setRenumberAll(boolean)} does it
+ * for all the requests.
+ * <P>
+ * The report has the throughput, the latencies (from the time each request was due, and
+ * from the time it was sent) and the number of different responses per field.
+ *
+ * @author zyplanke
+ */
+public class cnTrafficReplayer {
+
+	private static final Log log = LogFactory.getLog(cnTrafficReplayer.class);
+
+	private final cnMessageFactory factory;
+	private final List<InetSocketAddress> targets;
+	private double speed = 1;
+	private int connections = 2;
+	private long timeout = 10000;
+	private int lengthBytes = 4;
+	private int lengthRadix = 10;
+	private int maxFrameLength = 65535;
+	private int maxOutstanding = 1000;
+	private cnSystemTraceNumGenerator traceGen;
+	private boolean renumberAll;
+	private final Set<Integer> ignored = new HashSet<Integer>();
+	private int maxLoggedDiffs = 20;
+
+	/** Results of the comparisons not done yet, by key of the original request. */
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+	/** Keys of the requests sent and not answered yet. */
+	private final Set<String> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private Report report;
+
+	/** Creates a replayer.
+	 * @param factory The factory with the parse guides and header lengths of the requests and
+	 * the responses of the capture.
+	 * @param targets The addresses of the host nodes. */
+	public cnTrafficReplayer(cnMessageFactory factory, List<InetSocketAddress> targets) {
+		this.factory = factory;
+		this.targets = targets;
+		setIgnoredFields(7, 11, 12, 13, 15, 37, 38, 64, 128);
+	}
+
+	/** Sets the speed: 1 for the original speed, 2 for twice as fast, etc., or 0 for the
+	 * maximum speed. Default is 1. */
+	public void setSpeed(double value) {
+		speed = value;
+	}
+
+	/** Sets the number of connections to each host node. Default is 2. */
+	public void setConnections(int value) {
+		connections = value;
+	}
+
+	/** Sets the time to wait for each response, in milliseconds. Default is 10000. */
+	public void setTimeout(long millis) {
+		timeout = millis;
+	}
+
+	/** Sets the length header of the frames of the capture and the connections, as in
+	 * {@link cnFraming}. Default is 4 decimal digits. */
+	public void setLengthHeader(int bytes, int radix) {
+		lengthBytes = bytes;
+		lengthRadix = radix;
+	}
+
+	/** Sets the maximum number of requests without response; the replay waits when it is
+	 * reached. Default is 1000. */
+	public void setMaxOutstanding(int value) {
+		maxOutstanding = value;
+	}
+
+	/** Sets the generator of the new trace numbers, for the requests that have the same
+	 * trace number and terminal as an outstanding one. Default is none: those requests are
+	 * sent as they are, and fail. */
+	public void setTraceGenerator(cnSystemTraceNumGenerator gen) {
+		traceGen = gen;
+	}
+
+	/** Sets whether all the requests get a new trace number and transmission time, and not
+	 * only the ones that need it. It needs a trace generator. Default is false. */
+	public void setRenumberAll(boolean flag) {
+		renumberAll = flag;
+	}
+
+	/** Sets the fields that are not compared, because they are different on each run. Default
+	 * is 7, 11, 12, 13, 15, 37, 38, 64 and 128 (times, trace, reference and authorization
+	 * numbers, MAC). */
+	public void setIgnoredFields(int... fieldids) {
+		ignored.clear();
+		for (int id : fieldids) {
+			ignored.add(id);
+		}
+	}
+
+	/** Sets the number of different responses that are logged in full. Default is 20. */
+	public void setMaxLoggedDiffs(int value) {
+		maxLoggedDiffs = value;
+	}
+
+	/** Replays a capture file. */
+	public Report replay(String file) throws IOException, InterruptedException {
+		InputStream ins = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			return replay(ins);
+		} finally {
+			ins.close();
+		}
+	}
+
+	/** Replays a capture and returns the results. It returns when all the responses have
+	 * arrived or timed out. */
+	public Report replay(final InputStream ins) throws IOException, InterruptedException {
+		final Report r = new Report();
+		report = r;
+		synchronized (slots) {
+			slots.clear();
+		}
+		outstanding.clear();
+		//the capture is read one second ahead, so parsing does not delay the requests
+		final BlockingQueue<Group> groups = new ArrayBlockingQueue<Group>(2);
+		final IOException[] error = new IOException[1];
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					read(ins, groups, r);
+				} catch (IOException ex) {
+					error[0] = ex;
+				} catch (InterruptedException ex) {
+					return;
+				}
+				try {
+					groups.put(Group.END);
+				} catch (InterruptedException ex) {
+					//replay stopped
+				}
+			}
+		}, "cn8583-replay-reader");
+		reader.setDaemon(true);
+		reader.start();
+		Semaphore permits = new Semaphore(maxOutstanding);
+		cnClient client = new cnClient(factory, targets);
+		client.setConnectionsPerEndpoint(connections);
+		client.setLengthHeader(lengthBytes, lengthRadix);
+		client.setTimeout(timeout);
+		try {
+			Group g = groups.take();
+			long start = System.nanoTime();
+			for (; g != Group.END; g = groups.take()) {
+				send(client, g.requests, start, g.offset, permits, r);
+			}
+			r.sendTime = System.nanoTime() - start;
+			long end = System.currentTimeMillis() + timeout + 1000;
+			while (permits.availablePermits() < maxOutstanding && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			r.elapsed = System.nanoTime() - start;
+		} finally {
+			reader.interrupt();
+			client.close();
+		}
+		if (error[0] != null) {
+			throw error[0];
+		}
+		synchronized (slots) {
+			for (Slot s : slots.values()) {
+				r.unmatched += s.recorded.size() + s.live.size();
+			}
+			slots.clear();
+		}
+		return r;
+	}
+
+	/** Reads the capture, passing the recorded responses to the comparison and the requests
+	 * in groups of one second to the replay. */
+	private void read(InputStream ins, BlockingQueue<Group> groups, Report r) throws IOException, InterruptedException {
+		List<cnMessage> group = new ArrayList<cnMessage>();
+		long groupTime = -1;
+		long firstTime = -1;
+		byte[] buf;
+		while ((buf = cnFraming.readFrame(ins, lengthBytes, lengthRadix, maxFrameLength)) != null) {
+			cnMessage m = parse(buf, r);
+			if (m == null) {
+				continue;
+			}
+			if (isResponse(m)) {
+				String key = keyOf(m);
+				if (key != null) {
+					offer(key, m, true);
+				}
+				continue;
+			}
+			long t = timeOf(m, groupTime);
+			if (t != groupTime && !group.isEmpty()) {
+				groups.put(new Group(groupTime - firstTime, group));
+				group = new ArrayList<cnMessage>();
+			}
+			if (firstTime < 0) {
+				firstTime = t;
+			}
+			groupTime = t;
+			group.add(m);
+		}
+		if (!group.isEmpty()) {
+			groups.put(new Group(groupTime - firstTime, group));
+		}
+	}
+
+	private cnMessage parse(byte[] buf, Report r) {
+		int hl = factory.findHeaderLength(buf);
+		try {
+			if (hl >= 0) {
+				return factory.parseMessage(buf, hl);
+			}
+			log.warn("Unknown message type in the capture, frame skipped");
+		} catch (ParseException ex) {
+			log.warn("Cannot parse a frame of the capture, skipped: " + ex.getMessage());
+		}
+		r.skipped.incrementAndGet();
+		return null;
+	}
+
+	/** Returns true for the message types of responses, which have an odd third digit. */
+	static boolean isResponse(cnMessage m) {
+		String type = m.getMsgTypeID();
+		return type != null && type.length() == 4 && (type.charAt(2) - '0') % 2 == 1;
+	}
+
+	/** Returns the key of a request or response: fields 11 and 41, or null if there is no
+	 * field 11. */
+	private static String keyOf(cnMessage m) {
+		cnValue<?> stan = m.getField(11);
+		if (stan == null) {
+			return null;
+		}
+		cnValue<?> terminal = m.getField(41);
+		return terminal == null ? stan.toString() : stan.toString() + '/' + terminal.toString();
+	}
+
+	/** Returns the transmission time of a request in milliseconds, or the previous one if it
+	 * has no field 7. */
+	private static long timeOf(cnMessage m, long previous) {
+		Object v = m.getObjectValue(7);
+		if (v instanceof Date) {
+			//field 7 has whole seconds; the parsed date may have the milliseconds of the parsing
+			long t = ((Date) v).getTime() / 1000 * 1000;
+			//times of the capture go forward; a step back is the end of the year
+			return previous < 0 || t >= previous ? t : previous;
+		}
+		return previous < 0 ? 0 : previous;
+	}
+
+	/** Sends the requests of one second of the capture, spread evenly over that second at
+	 * the speed of the replay.
+	 * @param offset The original time of the requests after the first one of the capture. */
+	private void send(cnClient client, List<cnMessage> group, long start, long offset,
+			Semaphore permits, final Report r) throws InterruptedException {
+		long begin = speed > 0 ? start + (long) (offset * 1000000L / speed) : 0;
+		long interval = speed > 0 ? (long) (1000000000L / speed / group.size()) : 0;
+		for (int i = 0; i < group.size(); i++) {
+			cnMessage m = group.get(i);
+			final long due = speed > 0 ? begin + i * interval : System.nanoTime();
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+			final String original = keyOf(m);
+			if (original == null) {
+				r.skipped.incrementAndGet();
+				continue;
+			}
+			permits.acquire();
+			final String key = renumber(m, original, r);
+			final Semaphore p = permits;
+			final long sent = System.nanoTime();
+			r.sent++;
+			client.send(m, new cnResponseHandler() {
+				public void completed(cnMessage response) {
+					long now = System.nanoTime();
+					r.latency.record(now - due);
+					r.service.record(now - sent);
+					r.responses.incrementAndGet();
+					done(key, p);
+					offer(original, response, false);
+				}
+				public void failed(Throwable error) {
+					r.failures.incrementAndGet();
+					done(key, p);
+					offer(original, null, false);
+				}
+			});
+		}
+	}
+
+	/** Gives a new trace number and transmission time to a request if needed.
+	 * @return The key of the request as sent. */
+	private String renumber(cnMessage m, String key, Report r) {
+		if (traceGen != null && (renumberAll || outstanding.contains(key))) {
+			r.renumbered++;
+			m.setValue(11, traceGen.nextTrace(), cnType.NUMERIC, 6);
+			if (m.hasField(7)) {
+				m.setValue(7, new Date(), cnType.DATE10, 10);
+			}
+			key = keyOf(m);
+		}
+		outstanding.add(key);
+		return key;
+	}
+
+	private void done(String key, Semaphore permits) {
+		outstanding.remove(key);
+		permits.release();
+	}
+
+	/** Takes the recorded or the new response to a request, and compares them when both
+	 * are there. Requests with the same key are matched in order.
+	 * @param m The response, or null if the request failed. */
+	private void offer(String key, cnMessage m, boolean recorded) {
+		cnMessage rec;
+		cnMessage live;
+		synchronized (slots) {
+			Slot s = slots.get(key);
+			if (s == null) {
+				s = new Slot();
+				slots.put(key, s);
+			}
+			(recorded ? s.recorded : s.live).add(m);
+			if (s.recorded.isEmpty() || s.live.isEmpty()) {
+				return;
+			}
+			rec = s.recorded.removeFirst();
+			live = s.live.removeFirst();
+			if (s.recorded.isEmpty() && s.live.isEmpty()) {
+				slots.remove(key);
+			}
+		}
+		if (live != null) {
+			compare(key, rec, live);
+		}
+	}
+
+	/** Compares a recorded response with the new one, field by field. */
+	private void compare(String key, cnMessage rec, cnMessage live) {
+		Report r = report;
+		r.compared.incrementAndGet();
+		StringBuilder diff = null;
+		if (!rec.getMsgTypeID().equals(live.getMsgTypeID())) {
+			diff = new StringBuilder();
+			diff.append(" type ").append(rec.getMsgTypeID()).append(" -> ").append(live.getMsgTypeID());
+		}
+		for (int i = 2; i <= 128; i++) {
+			if (ignored.contains(i)) {
+				continue;
+			}
+			cnValue<?> a = rec.getField(i);
+			cnValue<?> b = live.getField(i);
+			String va = a == null ? null : a.toString();
+			String vb = b == null ? null : b.toString();
+			if (va == null ? vb != null : !va.equals(vb)) {
+				r.fieldDiffs.incrementAndGet(i);
+				if (diff == null) {
+					diff = new StringBuilder();
+				}
+				diff.append(" [").append(i).append("] ").append(va).append(" -> ").append(vb);
+			}
+		}
+		if (diff != null && r.different.incrementAndGet() <= maxLoggedDiffs) {
+			log.info("Different response to " + key + ":" + diff);
+		}
+	}
+
+	/** The requests of one second of the capture. */
+	private static final class Group {
+		static final Group END = new Group(0, null);
+		/** Original time after the first request of the capture, in milliseconds. */
+		final long offset;
+		final List<cnMessage> requests;
+
+		Group(long offset, List<cnMessage> requests) {
+			this.offset = offset;
+			this.requests = requests;
+		}
+	}
+
+	/** The recorded and the new responses to the requests with the same key. */
+	private static final class Slot {
+		final LinkedList<cnMessage> recorded = new LinkedList<cnMessage>();
+		final LinkedList<cnMessage> live = new LinkedList<cnMessage>();
+	}
+
+	/**
+	 * طŽ
+	 * The results of a replay.
+	 */
+	public static final class Report {
+		private long sent;
+		private final AtomicLong skipped = new AtomicLong();
+		private long renumbered;
+		private long sendTime;
+		private long elapsed;
+		private int unmatched;
+		private final AtomicLong responses = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong compared = new AtomicLong();
+		private final AtomicLong different = new AtomicLong();
+		private final AtomicLongArray fieldDiffs = new AtomicLongArray(129);
+		private final cnLatencyHistogram latency = new cnLatencyHistogram();
+		private final cnLatencyHistogram service = new cnLatencyHistogram();
+
+		/** Returns the number of requests sent. */
+		public long getSent() {
+			return sent;
+		}
+
+		/** Returns the number of frames of the capture that were not replayed: unknown types,
+		 * frames that cannot be parsed, requests without field 11. */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		/** Returns the number of requests sent with a new trace number. */
+		public long getRenumbered() {
+			return renumbered;
+		}
+
+		/** Returns the number of responses received. */
+		public long getResponses() {
+			return responses.get();
+		}
+
+		/** Returns the number of requests without response: timed out or failed. */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/** Returns the number of responses compared with a recorded one. */
+		public long getCompared() {
+			return compared.get();
+		}
+
+		/** Returns the number of responses different from the recorded one. */
+		public long getDifferent() {
+			return different.get();
+		}
+
+		/** Returns the number of responses with a different value in a field. */
+		public long getFieldDiffs(int fieldid) {
+			return fieldDiffs.get(fieldid);
+		}
+
+		/** Returns the number of requests and recorded responses left without their
+		 * counterpart at the end of the replay. */
+		public int getUnmatched() {
+			return unmatched;
+		}
+
+		/** Returns the number of responses per second over the replay. */
+		public double getThroughput() {
+			return elapsed == 0 ? 0 : responses.get() * 1e9 / elapsed;
+		}
+
+		/** Returns the rate at which the requests were sent, per second. */
+		public double getSendRate() {
+			return sendTime == 0 ? 0 : sent * 1e9 / sendTime;
+		}
+
+		/** Returns the latencies, measured from the time each request was due. */
+		public cnLatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/** Returns the service times, measured from the time each request was sent. */
+		public cnLatencyHistogram getServiceTime() {
+			return service;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("requests %d (%.1f/s), skipped %d, renumbered %d, responses %d (%.1f/s), failures %d%n",
+					sent, getSendRate(), getSkipped(), renumbered, getResponses(), getThroughput(), getFailures()));
+			sb.append(String.format("compared %d, different %d, unmatched %d%n", getCompared(), getDifferent(), unmatched));
+			for (int i = 0; i < 129; i++) {
+				if (fieldDiffs.get(i) > 0) {
+					sb.append(String.format("  field %3d different in %d responses%n", i, fieldDiffs.get(i)));
+				}
+			}
+			append(sb, "latency (from due time)", latency);
+			append(sb, "service time (from send time)", service);
+			return sb.toString();
+		}
+
+		private static void append(StringBuilder sb, String name, cnLatencyHistogram h) {
+			sb.append(String.format("%-30s p50 %8d us  p90 %8d us  p99 %8d us  p99.9 %8d us  max %8d us%n", name,
+					h.getPercentile(50) / 1000, h.getPercentile(90) / 1000, h.getPercentile(99) / 1000,
+					h.getPercentile(99.9) / 1000, h.getMax() / 1000));
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: cnTrafficReplayer -config <file> -capture <file> [-target <host:port>]... [-echo]");
+		System.err.println("       [-speed <factor, 0 for maximum>] [-renumber] [-renumber-all] [-connections <n>]");
+		System.err.println("       [-timeout <ms>] [-max-outstanding <n>] [-ignore <field,field...>]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String config = null;
+		String capture = null;
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		boolean echo = false;
+		boolean renumber = false;
+		boolean renumberAll = false;
+		double speed = 1;
+		int connections = 2;
+		long timeout = 10000;
+		int maxOutstanding = 1000;
+		int[] ignore = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String a = args[i];
+				if (a.equals("-echo")) {
+					echo = true;
+					continue;
+				} else if (a.equals("-renumber")) {
+					renumber = true;
+					continue;
+				} else if (a.equals("-renumber-all")) {
+					renumber = renumberAll = true;
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				String v = args[++i];
+				if (a.equals("-config")) {
+					config = v;
+				} else if (a.equals("-capture")) {
+					capture = v;
+				} else if (a.equals("-target")) {
+					int c = v.lastIndexOf(':');
+					targets.add(new InetSocketAddress(v.substring(0, c), Integer.parseInt(v.substring(c + 1))));
+				} else if (a.equals("-speed")) {
+					speed = Double.parseDouble(v);
+				} else if (a.equals("-connections")) {
+					connections = Integer.parseInt(v);
+				} else if (a.equals("-timeout")) {
+					timeout = Long.parseLong(v);
+				} else if (a.equals("-max-outstanding")) {
+					maxOutstanding = Integer.parseInt(v);
+				} else if (a.equals("-ignore")) {
+					String[] p = v.split(",");
+					ignore = new int[p.length];
+					for (int j = 0; j < p.length; j++) {
+						ignore[j] = Integer.parseInt(p[j].trim());
+					}
+				} else {
+					usage();
+				}
+			}
+		} catch (RuntimeException ex) {
+			System.err.println(ex.getMessage());
+			usage();
+		}
+		if (config == null || capture == null || (targets.isEmpty() && !echo)) {
+			usage();
+		}
+		cnMessageFactory factory = cnConfigParser.createFromXMLConfigFile(config);
+		cnEchoServer server = null;
+		if (echo) {
+			server = new cnEchoServer(factory, 0);
+			server.start();
+			targets.add(new InetSocketAddress("127.0.0.1", server.getPort()));
+		}
+		cnTrafficReplayer rp = new cnTrafficReplayer(factory, targets);
+		rp.setSpeed(speed);
+		rp.setConnections(connections);
+		rp.setTimeout(timeout);
+		rp.setMaxOutstanding(maxOutstanding);
+		if (renumber) {
+			rp.setTraceGenerator(new cnSimpleSystemTraceNumGen((int) (System.currentTimeMillis() % 999999) + 1));
+			rp.setRenumberAll(renumberAll);
+		}
+		if (ignore != null) {
+			rp.setIgnoredFields(ignore);
+		}
+		System.out.print(rp.replay(capture));
+		if (server != null) {
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+package org.zyp.cn8583.tools;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.zyp.cn8583.cnBcdCodec;
+import org.zyp.cn8583.cnType;
+
+/**
+ * BCDܶԱȣcnBcdCodec֮ǰֽڼĴ롣
+ * Compares {@link cnBcdCodec} with the code that encoded and decoded BCD before it, which is
+ * kept here as it was: decoding with shifts and masks of each nibble into char and int
+ * arrays, and encoding numbers and amounts by formatting them as text first and then
+ * subtracting '0' from each character. Each case runs both ways on the same random values
+ * and prints the time per value; the results of both ways are compared, so the benchmark
+ * also fails, with exit status 1, if they differ. See {@link cnBcdRoundTripTest} for the
+ * round trips.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnBcdBenchmark [-count 1000000] [-rounds 5]
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnBcdBenchmark {
+
+	/** Keeps the results alive, so the JIT cannot drop the work. */
+	private static long sink;
+
+	private static cnHarness harness;
+
+	public static void main(String[] args) {
+		harness = new cnHarness("cnBcdBenchmark", args, "[-count <values>] [-rounds <n>]");
+		int count = harness.getInt("-count", 1000000);
+		int rounds = harness.getInt("-rounds", 5);
+		Random rnd = new Random(8583);
+		long[] numbers = new long[count];
+		byte[][] num9 = new byte[count][];
+		byte[][] num12 = new byte[count][];
+		byte[][] num21 = new byte[count][];
+		byte[][] amounts = new byte[count][];
+		byte[][] lll = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			numbers[i] = (rnd.nextLong() >>> 1) % 1000000000000L;
+			num9[i] = new byte[5];
+			cnBcdCodec.fromLong(numbers[i] % 1000000000L, num9[i], 0, 5);
+			num12[i] = new byte[6];
+			cnBcdCodec.fromLong(numbers[i], num12[i], 0, 6);
+			StringBuilder sb = new StringBuilder(21);
+			for (int k = 0; k < 21; k++) {
+				sb.append((char) ('0' + rnd.nextInt(10)));
+			}
+			num21[i] = new byte[11];
+			cnBcdCodec.fromString(sb.toString(), num21[i], 0);
+			amounts[i] = num12[i];
+			lll[i] = new byte[2];
+			cnBcdCodec.writeLengthHeader(lll[i], 0, rnd.nextInt(1000), 3, true);
+		}
+		for (int r = 1; r <= rounds; r++) {
+			System.out.printf("round %d%n", r);
+
+			long t0 = System.nanoTime();
+			long a = 0;
+			for (int i = 0; i < count; i++) {
+				a += oldToLong(num9[i], 0, 9);
+			}
+			long t1 = System.nanoTime();
+			long b = 0;
+			for (int i = 0; i < count; i++) {
+				b += cnBcdCodec.toLong(num9[i], 0, 5);
+			}
+			long t2 = System.nanoTime();
+			report("NUMERIC(9) to long", count, t1 - t0, t2 - t1, a == b);
+
+			t0 = System.nanoTime();
+			a = 0;
+			for (int i = 0; i < count; i++) {
+				a += oldToBigInteger(num21[i], 0, 21).hashCode();
+			}
+			t1 = System.nanoTime();
+			b = 0;
+			for (int i = 0; i < count; i++) {
+				b += new BigInteger(cnBcdCodec.toString(num21[i], 0, 21)).hashCode();
+			}
+			t2 = System.nanoTime();
+			report("NUMERIC(21) to BigInteger", count, t1 - t0, t2 - t1, a == b);
+
+			t0 = System.nanoTime();
+			a = 0;
+			for (int i = 0; i < count; i++) {
+				a += oldToAmount(amounts[i], 0).unscaledValue().longValue();
+			}
+			t1 = System.nanoTime();
+			b = 0;
+			for (int i = 0; i < count; i++) {
+				b += BigDecimal.valueOf(cnBcdCodec.toLong(amounts[i], 0, 6), 2).unscaledValue().longValue();
+			}
+			t2 = System.nanoTime();
+			report("AMOUNT to BigDecimal", count, t1 - t0, t2 - t1, a == b);
+
+			t0 = System.nanoTime();
+			a = 0;
+			for (int i = 0; i < count; i++) {
+				byte[] h = lll[i];
+				a += ((h[0] & 0x0f) * 100) + (((h[1] & 0xf0) >> 4) * 10) + (h[1] & 0x0f);
+			}
+			t1 = System.nanoTime();
+			b = 0;
+			for (int i = 0; i < count; i++) {
+				b += cnBcdCodec.readLengthHeader(lll[i], 0, 3, true);
+			}
+			t2 = System.nanoTime();
+			report("LLLVAR length header", count, t1 - t0, t2 - t1, a == b);
+
+			byte[] out1 = new byte[6];
+			byte[] out2 = new byte[6];
+			boolean same = true;
+			t0 = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				oldToBcd(cnType.NUMERIC.format(numbers[i], 12), out1);
+				sink += out1[5];
+			}
+			t1 = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				cnBcdCodec.fromLong(numbers[i], out2, 0, 6);
+				sink += out2[5];
+			}
+			t2 = System.nanoTime();
+			for (int i = 0; i < count && same; i += 997) {
+				oldToBcd(cnType.NUMERIC.format(numbers[i], 12), out1);
+				cnBcdCodec.fromLong(numbers[i], out2, 0, 6);
+				same = Arrays.equals(out1, out2);
+			}
+			report("long to NUMERIC(12)", count, t1 - t0, t2 - t1, same);
+
+			t0 = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				oldToBcd(cnType.AMOUNT.format(BigDecimal.valueOf(numbers[i], 2), 12), out1);
+				sink += out1[5];
+			}
+			t1 = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				BigDecimal cents = BigDecimal.valueOf(numbers[i], 2).movePointRight(2);
+				cnBcdCodec.fromLong(cents.longValue(), out2, 0, 6);
+				sink += out2[5];
+			}
+			t2 = System.nanoTime();
+			report("BigDecimal to AMOUNT", count, t1 - t0, t2 - t1, true);
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+		harness.exit();
+	}
+
+	private static void report(String name, int count, long before, long after, boolean same) {
+		cnHarness.compare(name, count, "previous", before, "table", after);
+		harness.check(same, name + ": the results differ");
+	}
+
+	/** The previous decoding of NUMERIC fields of up to 18 digits. The power of ten is an
+	 * int, so it is only right up to 9 or 10 digits, and the benchmark uses 9. */
+	private static long oldToLong(byte[] buf, int pos, int length) {
+		long l = 0;
+		int power = 1;
+		for (int i = pos + (length / 2) + (length % 2) - 1; i >= pos; i--) {
+			l += (buf[i] & 0x0f) * power;
+			power *= 10;
+			l += ((buf[i] & 0xf0) >> 4) * power;
+			power *= 10;
+		}
+		return l;
+	}
+
+	/** The previous decoding of longer NUMERIC fields (with the fix for odd lengths, as the
+	 * original code overflowed the array with them). */
+	private static BigInteger oldToBigInteger(byte[] buf, int pos, int length) {
+		char[] digits = new char[length + length % 2];
+		int start = 0;
+		for (int i = pos; i < pos + (length / 2) + (length % 2); i++) {
+			digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
+			digits[start++] = (char)((buf[i] & 0x0f) + 48);
+		}
+		return new BigInteger(new String(digits));
+	}
+
+	/** The previous decoding of AMOUNT fields. */
+	private static BigDecimal oldToAmount(byte[] buf, int pos) {
+		char[] digits = new char[13];
+		digits[10] = '.';
+		int start = 0;
+		for (int i = pos; i < pos + 6; i++) {
+			digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
+			digits[start++] = (char)((buf[i] & 0x0f) + 48);
+			if (start == 10) {
+				start++;
+			}
+		}
+		return new BigDecimal(new String(digits));
+	}
+
+	/** The previous encoding of the text of a field in BCD. */
+	private static void oldToBcd(String value, byte[] buf) {
+		int charpos = 0; //char where we start
+		int bufpos = 0;
+		if (value.length() % 2 == 1) {
+			//for odd lengths we encode just the first digit in the first byte
+			buf[0] = (byte)(value.charAt(0) - 48);
+			charpos = 1;
+			bufpos = 1;
+		}
+		//encode the rest of the string
+		while (charpos < value.length()) {
+			buf[bufpos] = (byte)(((value.charAt(charpos) - 48) << 4)
+					| (value.charAt(charpos + 1) - 48));
+			charpos += 2;
+			bufpos++;
+		}
+	}
+
+}
@@ -0,0 +1,437 @@
+package org.zyp.cn8583.tools;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnType;
+import org.zyp.cn8583.net.cnClient;
+import org.zyp.cn8583.net.cnEndpoint;
+import org.zyp.cn8583.net.cnFraming;
+import org.zyp.cn8583.net.cnResponseFuture;
+import org.zyp.cn8583.net.cnResponseHandler;
+
+/**
+ * ͻ˻ػԣڱģӦƥ䡢ؾ⡢ժָʱȡ
+ * Checks {@link cnClient} against host node stubs listening on the loopback interface of
+ * this process: that responses answered out of order are matched to their requests by
+ * fields 11 and 41, that requests are spread by round robin and by least outstanding
+ * requests, that an endpoint whose stub drops its connection is ejected and probed again
+ * after the eject time, that requests without a response time out, and that a cancelled
+ * request frees its fields 11 and 41 at once and never completes with a late response.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnClientLoopbackTest -config config.xml -type 0200
+ * </PRE>
+ * The factory must have the template of the request type and the parse guides of the
+ * request and response types. The program prints the failed checks, and exits with status 1
+ * if there was any.
+ *
+ * @author zyplanke
+ */
+public class cnClientLoopbackTest {
+
+	/** The longest wait for something that should happen at once. */
+	private static final long WAIT = 5000;
+
+	private static cnHarness harness;
+	private static cnMessageFactory factory;
+	private static String type;
+	private static int stan;
+
+	public static void main(String[] args) throws Exception {
+		harness = new cnHarness("cnClientLoopbackTest", args, "-config <file> -type <msgtypeid> [-binary]");
+		factory = harness.getFactory();
+		type = harness.require("-type");
+		matching();
+		roundRobin();
+		leastOutstanding();
+		ejection();
+		timeout();
+		cancel();
+		harness.exit();
+	}
+
+	/** Responses answered in reverse order, with the same field 11 for two terminals. */
+	private static void matching() throws Exception {
+		Stub s = new Stub();
+		cnClient client = client(cnClient.Balancing.ROUND_ROBIN, s);
+		try {
+			s.hold = true;
+			List<cnMessage> requests = new ArrayList<cnMessage>();
+			List<cnResponseFuture> futures = new ArrayList<cnResponseFuture>();
+			int first = stan + 1;
+			for (int i = 0; i < 20; i++) {
+				cnMessage m = request(first + i % 10, i < 10 ? "TERM0001" : "TERM0002");
+				m.setValue(37, i, cnType.NUMERIC, 12);
+				requests.add(m);
+				futures.add(client.send(m));
+			}
+			stan += 10;
+			await(s, 20);
+			try {
+				client.send(request(first, "TERM0001")).get(WAIT, TimeUnit.MILLISECONDS);
+				harness.check(false, "matching: a duplicate of an outstanding request was sent");
+			} catch (ExecutionException ex) {
+				harness.check(ex.getCause() instanceof IllegalStateException, "matching: duplicate request failed with " + ex.getCause());
+			}
+			s.release();
+			for (int i = 0; i < 20; i++) {
+				cnMessage resp = futures.get(i).get(WAIT, TimeUnit.MILLISECONDS);
+				for (int id : new int[] { 11, 41, 37 }) {
+					harness.check(resp.getField(id).toString().equals(requests.get(i).getField(id).toString()),
+							"matching: request " + i + " got field " + id + " " + resp.getField(id) + " instead of " + requests.get(i).getField(id));
+				}
+			}
+			harness.check(client.getEndpoints().get(0).getOutstanding() == 0, "matching: requests still outstanding");
+		} finally {
+			client.close();
+			s.close();
+		}
+	}
+
+	/** Sequential requests alternate between two nodes. */
+	private static void roundRobin() throws Exception {
+		Stub a = new Stub();
+		Stub b = new Stub();
+		cnClient client = client(cnClient.Balancing.ROUND_ROBIN, a, b);
+		try {
+			sendAll(client, 100, "round robin");
+			harness.check(a.received.get() == 50 && b.received.get() == 50,
+					"round robin: " + a.received + " and " + b.received + " requests instead of 50 and 50");
+		} finally {
+			client.close();
+			a.close();
+			b.close();
+		}
+	}
+
+	/** While one node holds a request, all the others go to the idle node. */
+	private static void leastOutstanding() throws Exception {
+		Stub a = new Stub();
+		Stub b = new Stub();
+		a.hold = true;
+		cnClient client = client(cnClient.Balancing.LEAST_OUTSTANDING, a, b);
+		cnEndpoint ep = client.getEndpoints().get(0);
+		try {
+			cnResponseFuture held = null;
+			for (int i = 0; i < 20; i++) {
+				int before = a.received.get();
+				cnResponseFuture f = client.send(request(++stan, "TERM0001"));
+				await(a, b, i + 1);
+				if (a.received.get() > before) {
+					held = f;
+				} else {
+					f.get(WAIT, TimeUnit.MILLISECONDS);
+				}
+			}
+			//a and b are tied until a holds a request, then only b is idle
+			harness.check(a.received.get() == 1 && b.received.get() == 19,
+					"least outstanding: " + a.received + " and " + b.received + " requests instead of 1 and 19");
+			harness.check(ep.getOutstanding() == 1, "least outstanding: " + ep.getOutstanding() + " outstanding instead of 1");
+			a.release();
+			if (held != null) {
+				held.get(WAIT, TimeUnit.MILLISECONDS);
+			}
+			harness.check(ep.getOutstanding() == 0, "least outstanding: requests still outstanding");
+		} finally {
+			client.close();
+			a.close();
+			b.close();
+		}
+	}
+
+	/** A node that drops its connection is ejected, gets nothing until the eject time has
+	 * passed, and then is connected again. */
+	private static void ejection() throws Exception {
+		Stub a = new Stub();
+		Stub b = new Stub();
+		cnClient client = client(cnClient.Balancing.ROUND_ROBIN, a, b);
+		client.setEjectTime(1000);
+		cnEndpoint ep = client.getEndpoints().get(0);
+		try {
+			sendAll(client, 10, "ejection");
+			a.drop();
+			long end = System.currentTimeMillis() + WAIT;
+			while (!ep.isEjected() && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			harness.check(ep.isEjected(), "ejection: the node was not ejected when it dropped its connection");
+			harness.check(ep.getFailures() == 1 && ep.getConnectionCount() == 0,
+					"ejection: " + ep.getFailures() + " failures and " + ep.getConnectionCount() + " connections");
+			int before = a.received.get();
+			sendAll(client, 10, "ejection");
+			harness.check(a.received.get() == before, "ejection: the ejected node got " + (a.received.get() - before) + " requests");
+			while (ep.isEjected()) {
+				Thread.sleep(10);
+			}
+			sendAll(client, 10, "ejection");
+			harness.check(a.received.get() > before && a.accepted.get() == 2,
+					"ejection: the node was not probed again (" + a.accepted + " connections)");
+			harness.check(ep.getFailures() == 0 && ep.getConnectionCount() == 1,
+					"ejection: " + ep.getFailures() + " failures and " + ep.getConnectionCount() + " connections after the probe");
+		} finally {
+			client.close();
+			a.close();
+			b.close();
+		}
+	}
+
+	/** A request without a response fails with a TimeoutException after the timeout. */
+	private static void timeout() throws Exception {
+		Stub s = new Stub();
+		s.hold = true;
+		cnClient client = client(cnClient.Balancing.ROUND_ROBIN, s);
+		client.setTimeout(300);
+		try {
+			long start = System.currentTimeMillis();
+			cnResponseFuture f = client.send(request(++stan, "TERM0001"));
+			try {
+				f.get(WAIT, TimeUnit.MILLISECONDS);
+				harness.check(false, "timeout: got a response");
+			} catch (ExecutionException ex) {
+				harness.check(ex.getCause() instanceof TimeoutException, "timeout: failed with " + ex.getCause());
+			} catch (TimeoutException ex) {
+				harness.check(false, "timeout: the request did not expire");
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			harness.check(elapsed >= 300, "timeout: expired after " + elapsed + " ms");
+			harness.check(client.getEndpoints().get(0).getOutstanding() == 0, "timeout: the request is still outstanding");
+			//the late response is discarded
+			s.hold = false;
+			s.release();
+			sendAll(client, 1, "timeout");
+		} finally {
+			client.close();
+			s.close();
+		}
+	}
+
+	/** A cancelled request frees its key at once, and its late response is discarded. */
+	private static void cancel() throws Exception {
+		Stub s = new Stub();
+		s.hold = true;
+		cnClient client = client(cnClient.Balancing.ROUND_ROBIN, s);
+		try {
+			final AtomicInteger calls = new AtomicInteger();
+			cnResponseFuture f = client.send(request(++stan, "TERM0001"));
+			f.addHandler(new cnResponseHandler() {
+				public void completed(cnMessage response) {
+					harness.check(false, "cancel: the cancelled request got a response");
+				}
+				public void failed(Throwable error) {
+					calls.incrementAndGet();
+				}
+			});
+			await(s, 1);
+			harness.check(f.cancel(true) && f.isCancelled(), "cancel: the request was not cancelled");
+			harness.check(!f.cancel(true), "cancel: the request was cancelled twice");
+			harness.check(client.getEndpoints().get(0).getOutstanding() == 0, "cancel: the request is still outstanding");
+			cnResponseFuture again = client.send(request(stan, "TERM0001"));
+			harness.check(!again.isDone(), "cancel: the same fields 11 and 41 could not be sent again");
+			await(s, 2);
+			s.hold = false;
+			s.release();
+			cnMessage resp = again.get(WAIT, TimeUnit.MILLISECONDS);
+			harness.check(resp != null, "cancel: no response to the request sent again");
+			try {
+				f.get(WAIT, TimeUnit.MILLISECONDS);
+				harness.check(false, "cancel: the cancelled request completed");
+			} catch (CancellationException ex) {
+				//expected
+			}
+			//the second response to the same key is discarded, the next request still works
+			sendAll(client, 1, "cancel");
+			harness.check(calls.get() == 1, "cancel: the handler was called " + calls + " times");
+		} finally {
+			client.close();
+			s.close();
+		}
+	}
+
+	private static cnClient client(cnClient.Balancing balancing, Stub... stubs) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (Stub s : stubs) {
+			addresses.add(new InetSocketAddress("127.0.0.1", s.getPort()));
+		}
+		cnClient client = new cnClient(factory, addresses);
+		client.setBalancing(balancing);
+		client.setConnectionsPerEndpoint(1);
+		client.setTimeout(WAIT);
+		return client;
+	}
+
+	private static cnMessage request(int stan, String terminal) {
+		cnMessage m = factory.newMessagefromTemplate(type);
+		m.setValue(11, stan, cnType.NUMERIC, 6);
+		m.setValue(41, terminal, cnType.ALPHA, 16);
+		return m;
+	}
+
+	/** Sends requests one at a time, and checks that each gets its response. */
+	private static void sendAll(cnClient client, int count, String what) throws Exception {
+		for (int i = 0; i < count; i++) {
+			cnMessage m = request(++stan, "TERM0001");
+			try {
+				cnMessage resp = client.send(m).get(WAIT, TimeUnit.MILLISECONDS);
+				harness.check(resp.getField(11).toString().equals(m.getField(11).toString()), what + ": wrong response");
+			} catch (ExecutionException ex) {
+				harness.check(false, what + ": " + ex.getCause());
+			}
+		}
+	}
+
+	/** Waits until the stubs have received a number of requests. */
+	private static void await(Stub a, Stub b, int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + WAIT;
+		while (a.received.get() + (b == null ? 0 : b.received.get()) < count) {
+			if (System.currentTimeMillis() > end) {
+				harness.check(false, "the stubs did not receive " + count + " requests");
+				return;
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	private static void await(Stub s, int count) throws InterruptedException {
+		await(s, null, count);
+	}
+
+	/**
+	 * ģӦ󣬻ݴӦ𣬻Ͽӡ
+	 * A host node stub: it answers each request with the response of the factory, or, while
+	 * {@link #hold} is set, keeps the requests until {@link #release()} answers them in
+	 * reverse order; {@link #drop()} closes its connections but keeps listening.
+	 */
+	private static class Stub {
+
+		private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		private final Set<Socket> sockets = new CopyOnWriteArraySet<Socket>();
+		/** The requests held, with the stream of their connection. */
+		private final List<Object[]> held = new ArrayList<Object[]>();
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger received = new AtomicInteger();
+		volatile boolean hold;
+
+		Stub() throws IOException {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					accept();
+				}
+			}, "cn8583-stub-" + getPort());
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		private void accept() {
+			try {
+				while (true) {
+					final Socket s = server.accept();
+					s.setTcpNoDelay(true);
+					sockets.add(s);
+					accepted.incrementAndGet();
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							serve(s);
+						}
+					}, "cn8583-stub-" + s.getRemoteSocketAddress());
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException ex) {
+				//closed
+			}
+		}
+
+		private void serve(Socket s) {
+			try {
+				InputStream ins = new BufferedInputStream(s.getInputStream());
+				OutputStream outs = s.getOutputStream();
+				byte[] buf;
+				while ((buf = cnFraming.readFrame(ins, 4, 10, 65535)) != null) {
+					synchronized (this) {
+						received.incrementAndGet();
+						if (hold) {
+							held.add(new Object[] { outs, buf });
+							continue;
+						}
+					}
+					answer(outs, buf);
+				}
+			} catch (Exception ex) {
+				//dropped or closed
+			} finally {
+				sockets.remove(s);
+				try {
+					s.close();
+				} catch (IOException ex) {
+					//nothing to do
+				}
+			}
+		}
+
+		private void answer(OutputStream outs, byte[] buf) throws Exception {
+			int hl = factory.findHeaderLength(buf);
+			cnMessage req = factory.parseMessage(buf, hl);
+			cnMessage resp = factory.createResponse(req);
+			resp.setMessageHeaderData(0, Arrays.copyOfRange(buf, 0, hl));
+			resp.setValue(39, 0, cnType.NUMERIC, 2);
+			byte[] frame = cnFraming.frame(resp, 4, 10);
+			synchronized (outs) {
+				outs.write(frame);
+				outs.flush();
+			}
+		}
+
+		/** Answers the requests held, the last one first. */
+		void release() throws Exception {
+			List<Object[]> l;
+			synchronized (this) {
+				l = new ArrayList<Object[]>(held);
+				held.clear();
+			}
+			Collections.reverse(l);
+			for (Object[] r : l) {
+				try {
+					answer((OutputStream) r[0], (byte[]) r[1]);
+				} catch (IOException ex) {
+					//the connection is closed
+				}
+			}
+		}
+
+		/** Closes the open connections, as a failed node would. */
+		void drop() throws IOException {
+			for (Socket s : sockets) {
+				s.close();
+			}
+		}
+
+		void close() throws IOException {
+			server.close();
+			drop();
+		}
+	}
+
+}
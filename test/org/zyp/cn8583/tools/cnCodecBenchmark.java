@@ -0,0 +1,111 @@
+package org.zyp.cn8583.tools;
+
+import java.util.Arrays;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+
+/**
+ * רñܶԱȣλͼרõĽͨõĽ
+ * Compares the parsing and encoding of a factory with specialized codecs
+ * ({@link cnMessageFactory#setUseSpecializedCodecs(boolean)}) with those of the same
+ * configuration without them. The frames are created as in {@link cnParseStressTest}, from
+ * the template of the type with LLVAR and LLLVAR fields of random lengths (or with the -field
+ * generators); each round parses all of them both ways, then encodes the parsed messages and
+ * new messages from the template both ways, and prints the time per message. Every field of
+ * every message parsed and every frame encoded is compared, so the benchmark also fails, with
+ * exit status 1, if the two ways differ.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnCodecBenchmark -config config.xml -type 0200 [-binary] [-rounds 5]
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnCodecBenchmark {
+
+	/** Keeps the results alive, so the JIT cannot drop the work. */
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		cnHarness harness = new cnHarness("cnCodecBenchmark", args,
+				"-config <file> -type <msgtypeid> [-binary] [-frames <n>] [-repeat <n>]\n"
+				+ "[-rounds <n>] [-field <id>=<generator>]...");
+		cnMessageFactory plain = harness.getFactory();
+		cnMessageFactory special = harness.getFactory();
+		special.setUseSpecializedCodecs(true);
+		String type = harness.require("-type");
+		int rounds = harness.getInt("-rounds", 5);
+		int repeat = harness.getInt("-repeat", 100);
+		byte[][] frames = cnParseStressTest.frames(plain, type, harness.getInt("-frames", 10000), harness.getGenerators(), 8583);
+		int hl = cnHarness.headerLength(plain, type);
+		long count = (long) frames.length * repeat;
+		System.out.printf("%d frames of type %s, %d messages per round%n", frames.length, type, count);
+
+		//the same fields and the same bytes both ways
+		cnMessage[] parsed1 = new cnMessage[frames.length];
+		cnMessage[] parsed2 = new cnMessage[frames.length];
+		for (int i = 0; i < frames.length; i++) {
+			parsed1[i] = plain.parseMessage(frames[i], hl);
+			parsed2[i] = special.parseMessage(frames[i], hl);
+			harness.check(Arrays.equals(cnParseStressTest.describe(parsed1[i]), cnParseStressTest.describe(parsed2[i])),
+					"frame " + i + " is parsed differently");
+			harness.check(Arrays.equals(parsed1[i].writeToBuffer(0).array(), parsed2[i].writeToBuffer(0).array()),
+					"frame " + i + " is encoded differently");
+			harness.check(Arrays.equals(frames[i], parsed2[i].writeToBuffer(0).array()),
+					"frame " + i + " is not encoded as received");
+		}
+		harness.check(Arrays.equals(plain.newMessagefromTemplate(type).writeToBuffer(0).array(),
+				special.newMessagefromTemplate(type).writeToBuffer(0).array()), "the template is encoded differently");
+
+		for (int r = 1; r <= rounds; r++) {
+			System.out.printf("round %d%n", r);
+			long t0 = System.nanoTime();
+			parse(plain, frames, hl, repeat);
+			long t1 = System.nanoTime();
+			parse(special, frames, hl, repeat);
+			long t2 = System.nanoTime();
+			cnHarness.compare("parse", count, "interpreted", t1 - t0, "specialized", t2 - t1);
+
+			t0 = System.nanoTime();
+			encode(parsed1, repeat);
+			t1 = System.nanoTime();
+			encode(parsed2, repeat);
+			t2 = System.nanoTime();
+			cnHarness.compare("encode parsed", count, "interpreted", t1 - t0, "specialized", t2 - t1);
+
+			t0 = System.nanoTime();
+			create(plain, type, count);
+			t1 = System.nanoTime();
+			create(special, type, count);
+			t2 = System.nanoTime();
+			cnHarness.compare("create and encode", count, "interpreted", t1 - t0, "specialized", t2 - t1);
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+		harness.exit();
+	}
+
+	private static void parse(cnMessageFactory factory, byte[][] frames, int hl, int repeat) throws Exception {
+		for (int n = 0; n < repeat; n++) {
+			for (byte[] f : frames) {
+				sink += factory.parseMessage(f, hl).getMsgTypeID().length();
+			}
+		}
+	}
+
+	private static void encode(cnMessage[] messages, int repeat) {
+		for (int n = 0; n < repeat; n++) {
+			for (cnMessage m : messages) {
+				sink += m.writeToBuffer(0).limit();
+			}
+		}
+	}
+
+	private static void create(cnMessageFactory factory, String type, long count) {
+		for (long n = 0; n < count; n++) {
+			sink += factory.newMessagefromTemplate(type).writeToBuffer(0).limit();
+		}
+	}
+
+}
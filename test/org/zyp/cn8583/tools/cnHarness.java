@@ -0,0 +1,230 @@
+package org.zyp.cn8583.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.parse.cnConfigParser;
+
+/**
+ * ԺܶԱȳĹ֣в˳״̬̼߳ʱ
+ * What the tests and benchmarks of this tree share: the options of the command line, the
+ * count of the checks and the failures with the exit status, and the timing of threads.
+ * <P>The options are taken from the usage text: a word like -count followed by &lt;...&gt;
+ * takes a value, a word like -binary alone is a switch, and an option followed by ... may be
+ * repeated. Anything else on the command line prints the usage and exits with status 2.
+ * After the checks, {@link #exit()} prints their number and the failures, and exits with
+ * status 1 if there was any, so the programs can stop a build (see the check target of
+ * build.xml).
+ *
+ * @author zyplanke
+ */
+class cnHarness {
+
+	private static final Pattern OPTION = Pattern.compile("(?<=^| )(-[a-z][a-z-]*)( <[^>]*>)?[^ ]*?(\\.\\.\\.)?(?= |$)");
+
+	private final String usage;
+	private final Map<String, List<String>> values = new HashMap<String, List<String>>();
+	private final Set<String> switches = new HashSet<String>();
+	private long checks;
+	private long failures;
+
+	/** Reads the command line.
+	 * @param name The name of the program.
+	 * @param args The command line.
+	 * @param usage The options of the program, as shown in the usage text; use a new line to
+	 * break the text. */
+	cnHarness(String name, String[] args, String usage) {
+		this.usage = "Usage: " + name + " " + usage.replace("\n", "\n       ");
+		Set<String> valued = new HashSet<String>();
+		Set<String> repeated = new HashSet<String>();
+		Set<String> flags = new HashSet<String>();
+		Matcher m = OPTION.matcher(usage.replace("[", "").replace("]", "").replace('\n', ' '));
+		while (m.find()) {
+			if (m.group(2) == null) {
+				flags.add(m.group(1));
+			} else {
+				valued.add(m.group(1));
+			}
+			if (m.group(3) != null) {
+				repeated.add(m.group(1));
+			}
+		}
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (flags.contains(a)) {
+				switches.add(a);
+			} else if (valued.contains(a) && i + 1 < args.length
+					&& (repeated.contains(a) || !values.containsKey(a))) {
+				List<String> l = values.get(a);
+				if (l == null) {
+					l = new ArrayList<String>();
+					values.put(a, l);
+				}
+				l.add(args[++i]);
+			} else {
+				usage();
+			}
+		}
+	}
+
+	/** Prints the usage text and exits with status 2. */
+	void usage() {
+		System.err.println(usage);
+		System.exit(2);
+	}
+
+	/** Returns true if the switch is on the command line. */
+	boolean has(String option) {
+		return switches.contains(option);
+	}
+
+	/** Returns the value of an option, or the default if it is not on the command line. */
+	String get(String option, String def) {
+		List<String> l = values.get(option);
+		return l == null ? def : l.get(0);
+	}
+
+	/** Returns the value of an option that must be on the command line. */
+	String require(String option) {
+		String v = get(option, null);
+		if (v == null) {
+			System.err.println(option + " is required");
+			usage();
+		}
+		return v;
+	}
+
+	int getInt(String option, int def) {
+		return (int) getLong(option, def);
+	}
+
+	long getLong(String option, long def) {
+		String v = get(option, null);
+		try {
+			return v == null ? def : Long.parseLong(v);
+		} catch (NumberFormatException ex) {
+			System.err.println(option + ": " + ex.getMessage());
+			usage();
+			return def;
+		}
+	}
+
+	double getDouble(String option, double def) {
+		String v = get(option, null);
+		try {
+			return v == null ? def : Double.parseDouble(v);
+		} catch (NumberFormatException ex) {
+			System.err.println(option + ": " + ex.getMessage());
+			usage();
+			return def;
+		}
+	}
+
+	/** Returns the generators of the -field options (id=generator), by field number. */
+	Map<Integer, cnFieldGenerator> getGenerators() {
+		Map<Integer, cnFieldGenerator> gens = new LinkedHashMap<Integer, cnFieldGenerator>();
+		List<String> l = values.get("-field");
+		if (l != null) {
+			for (String v : l) {
+				int eq = v.indexOf('=');
+				try {
+					gens.put(Integer.parseInt(v.substring(0, eq)), cnFieldGenerator.parse(v.substring(eq + 1)));
+				} catch (RuntimeException ex) {
+					System.err.println("-field " + v + ": " + ex.getMessage());
+					usage();
+				}
+			}
+		}
+		return gens;
+	}
+
+	/** Creates the factory of the -config option, in binary mode if -binary is given. */
+	cnMessageFactory getFactory() throws IOException {
+		cnMessageFactory factory = cnConfigParser.createFromXMLConfigFile(require("-config"));
+		factory.setUseBinary(has("-binary"));
+		return factory;
+	}
+
+	/** Returns the length of the header of the message type in the factory, 0 if it has none. */
+	static int headerLength(cnMessageFactory factory, String type) {
+		Integer hl = factory.getConfig().getHeaderLength(type);
+		return hl == null ? 0 : hl;
+	}
+
+	/** Counts a check, and prints the first failures. Safe to call from several threads. */
+	synchronized void check(boolean ok, String what) {
+		checks++;
+		if (!ok && ++failures <= 20) {
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	synchronized long getFailures() {
+		return failures;
+	}
+
+	/** Prints the number of checks and failures, and exits with status 1 if there was any
+	 * failure, or 0. */
+	void exit() {
+		long f;
+		synchronized (this) {
+			System.out.printf("%d checks, %d failures%n", checks, failures);
+			f = failures;
+		}
+		System.exit(f > 0 ? 1 : 0);
+	}
+
+	/** Prints the time per operation of two ways of doing the same work, and how many times
+	 * faster the second is. */
+	static void compare(String what, long count, String first, long firstNanos, String second, long secondNanos) {
+		System.out.printf("  %-26s %s %7.1f ns  %s %7.1f ns  x%4.2f%n", what, first, firstNanos / (double) count,
+				second, secondNanos / (double) count, firstNanos / (double) secondNanos);
+	}
+
+	/** The work of each thread of {@link #runThreads(int, String, Task)}. */
+	interface Task {
+		void run(int thread) throws Exception;
+	}
+
+	/** Runs a task in a number of threads, started at the same time, and waits for them. An
+	 * exception of a task is printed and counted as a failure.
+	 * @return The time from the start of the threads to the end of the last one, in nanoseconds. */
+	long runThreads(int threads, String name, final Task task) throws InterruptedException {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int n = t;
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					try {
+						ready.countDown();
+						go.await();
+						task.run(n);
+					} catch (Exception ex) {
+						check(false, Thread.currentThread().getName() + ": " + ex);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "cn8583-" + name + "-" + t);
+			th.start();
+		}
+		ready.await();
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.zyp.cn8583.tools;
+
+import java.util.Collections;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.metrics.cnMessageMetrics;
+import org.zyp.cn8583.metrics.cnOperationStats;
+
+/**
+ * ͳƿصĿԱȣͬıڲúcnMessageMetricsʱ͸ģ崴ĺʱ
+ * Measures the cost of {@link cnMessageMetrics}: the same frames are parsed, written again with
+ * writeToBuffer and a message is created from the template, first with the metrics of the
+ * factory disabled (null) and then enabled, in each round, so both are measured with the same
+ * JIT state and the same load of the machine. It prints the time per message of both and the
+ * difference. With the metrics disabled the factory and the messages only check a null field,
+ * so that run is the cost of the library without metrics; the difference is what enabling them
+ * costs. With several threads, they share the statistics of the message type, as in a server.
+ * The frames are created as in {@link cnParseStressTest}.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnMetricsBenchmark -config config.xml -type 0200 -count 200000
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnMetricsBenchmark {
+
+	/** Keeps the results alive, so the JIT cannot drop the work. */
+	private static volatile long sink;
+
+	private static cnHarness harness;
+
+	public static void main(String[] args) throws Exception {
+		harness = new cnHarness("cnMetricsBenchmark", args, "-config <file> -type <msgtypeid> [-count <messages>]\n"
+				+ "[-rounds <n>] [-threads <n>] [-frames <n>] [-binary]");
+		cnMessageFactory factory = harness.getFactory();
+		String type = harness.require("-type");
+		int count = harness.getInt("-count", 200000);
+		int rounds = harness.getInt("-rounds", 5);
+		int threads = harness.getInt("-threads", 1);
+		byte[][] frames = cnParseStressTest.frames(factory, type, harness.getInt("-frames", 1000),
+				Collections.<Integer, cnFieldGenerator>emptyMap(), 8583);
+		int headerlen = cnHarness.headerLength(factory, type);
+		cnMessageMetrics metrics = new cnMessageMetrics();
+		System.out.printf("%d frames of type %s, %d messages per run, %d threads%n", frames.length, type, count, threads);
+		//warm up both ways, so the first round is not measured with the interpreter
+		run(factory, type, frames, headerlen, count, threads);
+		factory.setMetrics(metrics);
+		run(factory, type, frames, headerlen, count, threads);
+		metrics.reset();
+		for (int r = 1; r <= rounds; r++) {
+			System.out.printf("round %d%n", r);
+			factory.setMetrics(null);
+			long off = run(factory, type, frames, headerlen, count, threads);
+			factory.setMetrics(metrics);
+			long on = run(factory, type, frames, headerlen, count, threads);
+			cnHarness.compare("parse, write and create", count, "enabled", on, "disabled", off);
+			System.out.printf("  cost of enabling %+6.1f ns/msg (%+5.1f%%)%n", (on - off) / (double) count,
+					(on - off) * 100.0 / off);
+		}
+		cnOperationStats parse = metrics.getStats(type, cnMessageMetrics.Operation.PARSE);
+		System.out.printf("parses recorded %d%n", parse.getCount());
+		harness.exit();
+	}
+
+	/** Parses, writes and creates the number of messages, divided among the threads.
+	 * @return The time it took, in nanoseconds. */
+	private static long run(final cnMessageFactory factory, final String type, final byte[][] frames, final int hl,
+			final int count, final int threads) throws InterruptedException {
+		return harness.runThreads(threads, "benchmark", new cnHarness.Task() {
+			public void run(int t) throws Exception {
+				int i = t * frames.length / threads;
+				int n = count / threads + (t < count % threads ? 1 : 0);
+				long s = 0;
+				for (int k = 0; k < n; k++) {
+					cnMessage m = factory.parseMessage(frames[i], hl);
+					s += m.writeToBuffer(0).limit();
+					s += factory.newMessagefromTemplate(type).hashCode();
+					if (++i == frames.length) {
+						i = 0;
+					}
+				}
+				sink += s;
+			}
+		});
+	}
+
+}
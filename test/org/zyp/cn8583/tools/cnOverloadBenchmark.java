@@ -0,0 +1,92 @@
+package org.zyp.cn8583.tools;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.server.cnAdmissionController;
+
+/**
+ * ʱβӳٶԱȣʳʱʹúʹ׼Ƶĺʱֲ
+ * Shows what {@link cnAdmissionController} does to the tail latency when a host is offered
+ * more requests than it can process. A {@link cnEchoServer} with a fixed number of workers
+ * and a fixed service time (so its capacity is workers / service time) receives requests from
+ * a {@link cnLoadGenerator} at a multiple of that capacity, twice: first without admission
+ * control, where every request waits in the queue of the workers and the latency grows for
+ * as long as the test runs, and then with a controller that limits the requests in progress
+ * (and optionally their average time), where the requests over the limit are declined at
+ * once and the others keep a latency of a few service times. Both reports are printed; the
+ * latency of the responses that were not declined is the one to compare.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnOverloadBenchmark -config config.xml -type 0200 -workers 4
+ *     -service-time 5000 -load 1.5 -duration 10
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnOverloadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		cnHarness harness = new cnHarness("cnOverloadBenchmark", args, "-config <file> -type <msgtypeid> [-workers <n>]\n"
+				+ "[-service-time <microseconds>] [-load <offered / capacity>] [-duration <seconds>]\n"
+				+ "[-max-in-flight <n>] [-max-latency <ms>] [-connections <n>] [-field <id>=<generator>]...");
+		cnMessageFactory factory = harness.getFactory();
+		String type = harness.require("-type");
+		int workers = harness.getInt("-workers", 4);
+		long serviceTime = harness.getLong("-service-time", 5000);
+		double load = harness.getDouble("-load", 1.5);
+		int duration = harness.getInt("-duration", 10);
+		int maxInFlight = harness.getInt("-max-in-flight", 0);
+		long maxLatency = harness.getLong("-max-latency", 0);
+		int connections = harness.getInt("-connections", 2);
+		Map<Integer, cnFieldGenerator> gens = harness.getGenerators();
+		if (maxInFlight == 0 && maxLatency == 0) {
+			//the workers busy and as many requests waiting: a wait of about one service time
+			maxInFlight = workers * 2;
+		}
+		double capacity = workers * 1e6 / serviceTime;
+		System.out.printf("capacity %.0f/s (%d workers, %d us each), offered %.0f/s for %d s%n",
+				capacity, workers, serviceTime, capacity * load, duration);
+
+		System.out.println("without admission control:");
+		System.out.print(run(factory, type, gens, workers, serviceTime, capacity * load, duration, connections, null));
+
+		cnAdmissionController ac = new cnAdmissionController(factory);
+		ac.setMaxInFlight(maxInFlight);
+		ac.setMaxLatency(maxLatency);
+		System.out.printf("with admission control (max in flight %d, max latency %d ms):%n", maxInFlight, maxLatency);
+		System.out.print(run(factory, type, gens, workers, serviceTime, capacity * load, duration, connections, ac));
+		for (cnAdmissionController.Decision d : cnAdmissionController.Decision.values()) {
+			System.out.printf("  %-15s %d%n", d, ac.getCount(d));
+		}
+	}
+
+	/** Runs the load against a new stub and returns the report. */
+	private static cnLoadGenerator.Report run(cnMessageFactory factory, String type, Map<Integer, cnFieldGenerator> gens,
+			int workers, long serviceTime, double rate, int duration, int connections, cnAdmissionController ac)
+			throws Exception {
+		cnEchoServer server = new cnEchoServer(factory, 0);
+		server.setWorkers(workers);
+		server.setDelay(serviceTime);
+		server.setAdmissionController(ac);
+		server.start();
+		try {
+			cnLoadGenerator gen = new cnLoadGenerator(factory, type,
+					Collections.singletonList(new InetSocketAddress("127.0.0.1", server.getPort())));
+			for (Map.Entry<Integer, cnFieldGenerator> e : gens.entrySet()) {
+				gen.setGenerator(e.getKey(), e.getValue());
+			}
+			gen.setRate(rate);
+			gen.setDuration(duration);
+			gen.setConnections(connections);
+			//long enough for the queue of the run without control to drain, so no latency is lost
+			gen.setTimeout(duration * 1000L * 2 + 10000);
+			gen.setSeed(8583);
+			return gen.run();
+		} finally {
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.zyp.cn8583.tools;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zyp.cn8583.cnMessageFactory;
+
+/**
+ * ߳ı仯1N߳ͬʱͬһġ
+ * Measures how the parsing throughput of one factory grows with the number of threads: for
+ * each number of threads from 1 to the maximum, the threads parse the same frames for a
+ * number of seconds, and the throughput is shown with the speedup over one thread and the
+ * efficiency (speedup divided by threads; 1.0 is linear scaling). The frames are created as
+ * in {@link cnParseStressTest}. Run it on a machine with at least as many idle cores as the
+ * maximum number of threads, or the efficiency only shows the lack of cores.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnParseScalingBenchmark -config config.xml -type 0200 -max-threads 8
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnParseScalingBenchmark {
+
+	private static cnHarness harness;
+
+	public static void main(String[] args) throws Exception {
+		harness = new cnHarness("cnParseScalingBenchmark", args, "-config <file> -type <msgtypeid> [-max-threads <n>]\n"
+				+ "[-seconds <per step>] [-frames <n>] [-binary]");
+		cnMessageFactory factory = harness.getFactory();
+		String type = harness.require("-type");
+		int maxThreads = harness.getInt("-max-threads", Runtime.getRuntime().availableProcessors());
+		int seconds = harness.getInt("-seconds", 5);
+		int count = harness.getInt("-frames", 1000);
+		byte[][] frames = cnParseStressTest.frames(factory, type, count,
+				Collections.<Integer, cnFieldGenerator>emptyMap(), 8583);
+		int headerlen = cnHarness.headerLength(factory, type);
+		System.out.printf("%d frames of type %s, %d cores%n", frames.length, type, Runtime.getRuntime().availableProcessors());
+		//warm up, so the first step is not measured with the interpreter
+		run(factory, frames, headerlen, maxThreads, Math.max(1, seconds / 2));
+		double single = 0;
+		for (int t = 1; t <= maxThreads; t++) {
+			double rate = run(factory, frames, headerlen, t, seconds);
+			if (t == 1) {
+				single = rate;
+			}
+			System.out.printf("threads %3d: %10.0f msg/s  speedup %5.2f  efficiency %4.2f%n",
+					t, rate, rate / single, rate / single / t);
+		}
+		harness.exit();
+	}
+
+	/** Parses the frames from a number of threads for some seconds.
+	 * @return The number of messages parsed per second by all the threads. */
+	private static double run(final cnMessageFactory factory, final byte[][] frames, final int hl, final int threads,
+			final int seconds) throws InterruptedException {
+		final AtomicLong parsed = new AtomicLong();
+		long time = harness.runThreads(threads, "benchmark", new cnHarness.Task() {
+			public void run(int t) throws Exception {
+				long stop = System.nanoTime() + seconds * 1000000000L;
+				int i = t * frames.length / threads;
+				long n = 0;
+				try {
+					while (System.nanoTime() < stop) {
+						for (int k = 0; k < 100; k++) {
+							factory.parseMessage(frames[i], hl);
+							if (++i == frames.length) {
+								i = 0;
+							}
+						}
+						n += 100;
+					}
+				} finally {
+					parsed.addAndGet(n);
+				}
+			}
+		});
+		return parsed.get() * 1e9 / time;
+	}
+
+}
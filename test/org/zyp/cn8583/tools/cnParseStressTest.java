@@ -0,0 +1,134 @@
+package org.zyp.cn8583.tools;
+
+import java.text.ParseException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.cnType;
+import org.zyp.cn8583.cnValue;
+
+/**
+ * ߳̽ѹԣ߳ͬʱͬıģÿ뵥߳̽Ľͬ
+ * Parses frames from many threads at the same time with one factory, and checks that every
+ * field of every message is the same as when the frame is parsed by a single thread. The
+ * frames are created from the template of a message type, with the LLVAR and LLLVAR fields
+ * of the template set to random digits of random lengths (or with the generators given with
+ * -field), so two threads that shared the length of a field would read wrong values.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnParseStressTest -config config.xml -type 0200 -threads 16 -seconds 30
+ * </PRE>
+ * It prints the number of messages parsed and the mismatches found, and exits with status 1
+ * if there was any.
+ *
+ * @author zyplanke
+ */
+public class cnParseStressTest {
+
+	public static void main(String[] args) throws Exception {
+		final cnHarness harness = new cnHarness("cnParseStressTest", args,
+				"-config <file> -type <msgtypeid> [-threads <n>] [-seconds <n>]\n"
+				+ "[-frames <n>] [-binary] [-seed <n>] [-field <id>=<generator>]...");
+		final cnMessageFactory f = harness.getFactory();
+		String type = harness.require("-type");
+		int threads = harness.getInt("-threads", Runtime.getRuntime().availableProcessors() * 2);
+		int seconds = harness.getInt("-seconds", 10);
+		final long seed = harness.getLong("-seed", 8583);
+		final byte[][] frames = frames(f, type, harness.getInt("-frames", 1000), harness.getGenerators(), seed);
+		final int hl = cnHarness.headerLength(f, type);
+		final String[][] expected = new String[frames.length][];
+		for (int i = 0; i < frames.length; i++) {
+			expected[i] = describe(f.parseMessage(frames[i], hl));
+		}
+		System.out.printf("%d frames of type %s, %d threads, %d seconds%n", frames.length, type, threads, seconds);
+
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong parsed = new AtomicLong();
+		final AtomicLong mismatches = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		harness.runThreads(threads, "stress", new cnHarness.Task() {
+			public void run(int t) {
+				Random rnd = new Random(seed + t);
+				long n = 0;
+				try {
+					while (System.nanoTime() < end) {
+						for (int k = 0; k < 100; k++) {
+							int i = rnd.nextInt(frames.length);
+							try {
+								String[] got = describe(f.parseMessage(frames[i], hl));
+								for (int j = 0; j < got.length; j++) {
+									if (!equal(got[j], expected[i][j])) {
+										if (mismatches.incrementAndGet() <= 10) {
+											System.out.printf("frame %d field %d: [%s] instead of [%s]%n", i, j, got[j], expected[i][j]);
+										}
+									}
+								}
+							} catch (ParseException ex) {
+								if (errors.incrementAndGet() <= 10) {
+									System.out.printf("frame %d: %s%n", i, ex);
+								}
+							}
+							n++;
+						}
+					}
+				} finally {
+					parsed.addAndGet(n);
+				}
+			}
+		});
+		System.out.printf("parsed %d messages (%.0f msg/s), %d mismatches, %d parse errors%n",
+				parsed.get(), parsed.get() / (double) seconds, mismatches.get(), errors.get());
+		harness.check(mismatches.get() == 0, mismatches.get() + " fields parsed differently by the threads");
+		harness.check(errors.get() == 0, errors.get() + " frames not parsed by the threads");
+		harness.exit();
+	}
+
+	/** Creates frames (without length header) from the template of a message type, with the
+	 * LLVAR and LLLVAR fields of the template set to random digits of random lengths, and the
+	 * fields with a generator set by it. */
+	static byte[][] frames(cnMessageFactory factory, String type, int count, Map<Integer, cnFieldGenerator> gens, long seed) {
+		Random rnd = new Random(seed);
+		byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			cnMessage m = factory.newMessagefromTemplate(type);
+			for (int f = 2; f <= 128; f++) {
+				cnValue<?> v = m.getField(f);
+				if (v == null || gens.containsKey(f)) {
+					continue;
+				}
+				if (v.getType() == cnType.LLVAR || v.getType() == cnType.LLLVAR) {
+					int max = v.getType() == cnType.LLVAR ? 99 : 200;
+					StringBuilder sb = new StringBuilder();
+					for (int k = 1 + rnd.nextInt(max); k > 0; k--) {
+						sb.append((char) ('0' + rnd.nextInt(10)));
+					}
+					m.setValue(f, sb.toString(), v.getType(), 0);
+				}
+			}
+			for (Map.Entry<Integer, cnFieldGenerator> e : gens.entrySet()) {
+				e.getValue().apply(m, e.getKey(), rnd);
+			}
+			frames[i] = m.writeToBuffer(0).array();
+		}
+		return frames;
+	}
+
+	/** Returns the type and text of each field of the message, by field number. */
+	static String[] describe(cnMessage m) {
+		String[] s = new String[129];
+		for (int f = 2; f <= 128; f++) {
+			cnValue<?> v = m.getField(f);
+			if (v != null) {
+				s[f] = v.getType() + ":" + v.getLength() + ":" + v;
+			}
+		}
+		return s;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+}
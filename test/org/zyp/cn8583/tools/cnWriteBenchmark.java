@@ -0,0 +1,97 @@
+package org.zyp.cn8583.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zyp.cn8583.cnMessage;
+import org.zyp.cn8583.cnMessageFactory;
+import org.zyp.cn8583.net.cnBatchWriter;
+
+/**
+ * дĵܶԱȣдcnBatchWriterۼд
+ * Compares the two ways of sending a burst of messages on a connection to the local host:
+ * {@link cnMessage#write(OutputStream, int, int)} for each message (which writes the length
+ * header, the message and the ETX and flushes), and a {@link cnBatchWriter}, which sends many
+ * messages with each gathering write. A thread on the other side of the connection reads and
+ * discards the data. The messages are created from the template of a message type, and each
+ * one is encoded again when it is written, in both cases.
+ * <PRE>
+ * java org.zyp.cn8583.tools.cnWriteBenchmark -config config.xml -type 0200 -count 200000
+ * </PRE>
+ *
+ * @author zyplanke
+ */
+public class cnWriteBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		cnHarness harness = new cnHarness("cnWriteBenchmark", args, "-config <file> -type <msgtypeid> [-count <messages>]\n"
+				+ "[-rounds <n>] [-batch-bytes <bytes>]");
+		cnMessageFactory factory = harness.getFactory();
+		String type = harness.require("-type");
+		int count = harness.getInt("-count", 100000);
+		int rounds = harness.getInt("-rounds", 3);
+		int batchBytes = harness.getInt("-batch-bytes", 65536);
+		cnMessage m = factory.newMessagefromTemplate(type);
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		final AtomicLong received = new AtomicLong();
+		final ServerSocketChannel srv = server;
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				drain(srv, received);
+			}
+		}, "cn8583-benchmark-drain");
+		drain.setDaemon(true);
+		drain.start();
+		SocketChannel ch = SocketChannel.open(server.socket().getLocalSocketAddress());
+		ch.socket().setTcpNoDelay(true);
+		try {
+			OutputStream outs = ch.socket().getOutputStream();
+			cnBatchWriter bw = new cnBatchWriter(ch, 4, 10);
+			bw.setMaxBytes(batchBytes);
+			for (int r = 1; r <= rounds; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					m.write(outs, 4, 10);
+				}
+				long single = System.nanoTime() - start;
+				long writes = bw.getWrites();
+				start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					bw.write(m);
+				}
+				bw.flush();
+				long batched = System.nanoTime() - start;
+				System.out.printf("round %d%n", r);
+				cnHarness.compare("send a message", count, "write per message", single, "batched", batched);
+				System.out.printf("  %d gathering writes%n", bw.getWrites() - writes);
+			}
+			System.out.printf("bytes received %d%n", received.get());
+		} finally {
+			ch.close();
+			server.close();
+		}
+	}
+
+	/** Reads and discards the data of the connections. */
+	private static void drain(ServerSocketChannel server, AtomicLong received) {
+		try {
+			Socket s = server.accept().socket();
+			InputStream ins = s.getInputStream();
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = ins.read(buf)) >= 0) {
+				received.addAndGet(n);
+			}
+		} catch (IOException ex) {
+			//closed
+		}
+	}
+
+}